@@ -0,0 +1,149 @@
+import com.jsyn.Synthesizer;
+
+/**
+ * AudioBlockMonitor is an audio task that checks every engine buffer against the wall clock.
+ * The output device plays frames at a fixed rate and can hold a device buffer's worth of frames,
+ * so a buffer that starts rendering after its frames were due to be played is an underrun,
+ * and one that starts with less than a quarter of the device buffer of headroom is a late block.
+ * Add it with {@code synth.addAudioTask(monitor)}.
+ * With a TraceRing set, late blocks and underruns are traced and an underrun asks for a dump.
+ * Both are also recorded as synth.LateBlock flight recorder events.
+ */
+public class AudioBlockMonitor implements Runnable {
+    // The synthesizer being watched
+    private Synthesizer synth;
+    // Device buffer size in frames
+    private int bufferFrames;
+    // Frames ignored at the start while the device buffer fills and the JIT warms up
+    private long skipFrames;
+    // Time the first watched frame was due to play
+    private long startNanos = -1;
+    // Frame count when watching started
+    private long startFrame;
+    // Counters, written only by the audio thread
+    private volatile long blocks = 0;
+    private volatile long lateBlocks = 0;
+    private volatile long underruns = 0;
+    // Smallest headroom seen in nanoseconds
+    private volatile long minHeadroomNanos = Long.MAX_VALUE;
+    // Trace to record late blocks in, null when not tracing
+    private volatile TraceRing trace;
+
+    /**
+     * Creates a new AudioBlockMonitor
+     *
+     * @param synth the synthesizer to watch
+     * @param bufferFrames the device buffer size in frames
+     */
+    public AudioBlockMonitor(Synthesizer synth, int bufferFrames) {this(synth, bufferFrames, 0);}
+
+    /**
+     * Creates a new AudioBlockMonitor that ignores a warm up period
+     *
+     * @param synth the synthesizer to watch
+     * @param bufferFrames the device buffer size in frames
+     * @param warmupFrames the number of frames to ignore after the first buffer
+     */
+    public AudioBlockMonitor(Synthesizer synth, int bufferFrames, long warmupFrames) {
+        if (synth == null) throw new IllegalArgumentException("Synthesizer cannot be null");
+        if (bufferFrames < 1) throw new IllegalArgumentException("Buffer size must be positive");
+        if (warmupFrames < 0) throw new IllegalArgumentException("Warm up cannot be negative");
+        this.synth = synth;
+        this.bufferFrames = bufferFrames;
+        this.skipFrames = Math.max(bufferFrames, warmupFrames);
+    }
+
+    /**
+     * Called by the engine at the start of every buffer
+     */
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        long frame = synth.getFrameCount();
+        int frameRate = synth.getFrameRate();
+        if (startNanos < 0) { // First buffer, the device starts playing now
+            startNanos = now;
+            startFrame = frame;
+            return;
+        }
+        long elapsedFrames = frame - startFrame;
+        if (elapsedFrames < skipFrames) return; // Still filling the device buffer or warming up
+        long dueNanos = startNanos + elapsedFrames * 1_000_000_000L / frameRate; // When this buffer plays
+        long headroom = dueNanos - now;
+        long bufferNanos = (long) bufferFrames * 1_000_000_000L / frameRate;
+        if (headroom > bufferNanos) { // The device clock started later than ours, line the clocks up
+            startNanos -= headroom - bufferNanos;
+            headroom = bufferNanos;
+        }
+        blocks++;
+        if (headroom < minHeadroomNanos) minHeadroomNanos = headroom;
+        TraceRing t = trace;
+        if (headroom < bufferNanos / 4) { // Late or an underrun, for the flight recorder
+            SynthEvents.LateBlock event = new SynthEvents.LateBlock();
+            if (event.shouldCommit()) {
+                event.frame = frame;
+                event.headroom = headroom;
+                event.underrun = headroom < 0;
+                event.commit();
+            }
+        }
+        if (headroom < 0) { // The device already ran out of frames
+            underruns++;
+            lateBlocks++;
+            if (t != null) {
+                t.record(TraceRing.Type.UNDERRUN, -1, 0, headroom / 1e9);
+                t.requestDump(); // Printed by the trace's dump thread
+            }
+            startNanos = now - elapsedFrames * 1_000_000_000L / frameRate; // Device restarts from here
+        } else if (headroom < bufferNanos / 4) {
+            lateBlocks++; // Less than a quarter of the device buffer left
+            if (t != null) t.record(TraceRing.Type.LATE_BLOCK, -1, 0, headroom / 1e9);
+        }
+    }
+
+    /**
+     * Sets the trace late blocks and underruns are recorded in
+     *
+     * @param trace the trace ring, or null to stop tracing
+     */
+    public void setTrace(TraceRing trace) {this.trace = trace;}
+
+    /**
+     * Clears the counters and starts watching again from the next buffer
+     */
+    public void reset() {
+        startNanos = -1;
+        blocks = 0;
+        lateBlocks = 0;
+        underruns = 0;
+        minHeadroomNanos = Long.MAX_VALUE;
+    }
+
+    /**
+     * Gets the number of buffers checked
+     *
+     * @return the buffer count
+     */
+    public long getBlocks() {return blocks;}
+
+    /**
+     * Gets the number of buffers that started with too little headroom
+     *
+     * @return the late buffer count
+     */
+    public long getLateBlocks() {return lateBlocks;}
+
+    /**
+     * Gets the number of times the device ran out of frames
+     *
+     * @return the underrun count
+     */
+    public long getUnderruns() {return underruns;}
+
+    /**
+     * Gets the smallest headroom seen
+     *
+     * @return the headroom in seconds
+     */
+    public double getMinHeadroom() {return blocks == 0 ? 0.0 : minHeadroomNanos / 1e9;}
+}
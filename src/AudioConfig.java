@@ -0,0 +1,197 @@
+import com.jsyn.devices.AudioDeviceManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * AudioConfig holds the audio device settings used when the synth is started:
+ * the frame rate, the output device, the device buffer size and the internal frame rate
+ * the engine renders at (resampled to the device frame rate on output).
+ * It can be saved to and loaded from a properties file so a calibrated setting is kept per machine.
+ */
+public class AudioConfig {
+    /**
+     * Buffer size meaning "let the device pick"
+     */
+    public static final int DEVICE_DEFAULT_BUFFER = 0;
+
+    /**
+     * Internal frame rate meaning "render at the device frame rate"
+     */
+    public static final int SAME_AS_OUTPUT = 0;
+
+    // Frame rate in Hz
+    private int frameRate = 44100;
+    // Output device ID, or AudioDeviceManager.USE_DEFAULT_DEVICE
+    private int outputDevice = AudioDeviceManager.USE_DEFAULT_DEVICE;
+    // Device buffer size in frames, or DEVICE_DEFAULT_BUFFER
+    private int bufferFrames = DEVICE_DEFAULT_BUFFER;
+    // Engine frame rate in Hz, or SAME_AS_OUTPUT
+    private int internalFrameRate = SAME_AS_OUTPUT;
+
+    /**
+     * Creates a new AudioConfig with the JSyn defaults
+     */
+    public AudioConfig() {}
+
+    /**
+     * Creates a new AudioConfig
+     *
+     * @param frameRate the frame rate in Hz
+     * @param bufferFrames the device buffer size in frames, or DEVICE_DEFAULT_BUFFER
+     */
+    public AudioConfig(int frameRate, int bufferFrames) {
+        setFrameRate(frameRate);
+        setBufferFrames(bufferFrames);
+    }
+
+    /**
+     * Sets the frame rate
+     *
+     * @param frameRate the frame rate in Hz
+     */
+    public void setFrameRate(int frameRate) {
+        if (frameRate < 8000 || frameRate > 192000) throw new IllegalArgumentException("Frame rate must be between 8000 and 192000");
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Gets the frame rate
+     *
+     * @return the frame rate in Hz
+     */
+    public int getFrameRate() {return frameRate;}
+
+    /**
+     * Sets the frame rate the engine renders at. A rate below the device rate makes large
+     * polyphony cheaper, one above it oversamples. The output is resampled to the device rate.
+     *
+     * @param frameRate the internal frame rate in Hz, or SAME_AS_OUTPUT
+     */
+    public void setInternalFrameRate(int frameRate) {
+        if (frameRate != SAME_AS_OUTPUT && (frameRate < 8000 || frameRate > 192000)) throw new IllegalArgumentException("Internal frame rate must be between 8000 and 192000");
+        this.internalFrameRate = frameRate;
+    }
+
+    /**
+     * Gets the frame rate the engine renders at
+     *
+     * @return the internal frame rate in Hz
+     */
+    public int getInternalFrameRate() {return (internalFrameRate == SAME_AS_OUTPUT) ? frameRate : internalFrameRate;}
+
+    /**
+     * Checks whether the output is resampled
+     *
+     * @return true if the engine renders at a different rate from the device
+     */
+    public boolean isResampled() {return getInternalFrameRate() != frameRate;}
+
+    /**
+     * Sets the output device
+     *
+     * @param deviceId the device ID from the AudioDeviceManager, or AudioDeviceManager.USE_DEFAULT_DEVICE
+     */
+    public void setOutputDevice(int deviceId) {
+        if (deviceId < AudioDeviceManager.USE_DEFAULT_DEVICE) throw new IllegalArgumentException("Invalid output device");
+        this.outputDevice = deviceId;
+    }
+
+    /**
+     * Gets the output device
+     *
+     * @return the device ID
+     */
+    public int getOutputDevice() {return outputDevice;}
+
+    /**
+     * Sets the device buffer size
+     *
+     * @param frames the buffer size in frames (16 to 16384), or DEVICE_DEFAULT_BUFFER
+     */
+    public void setBufferFrames(int frames) {
+        if (frames != DEVICE_DEFAULT_BUFFER && (frames < 16 || frames > 16384)) throw new IllegalArgumentException("Buffer size must be between 16 and 16384 frames");
+        this.bufferFrames = frames;
+    }
+
+    /**
+     * Gets the device buffer size
+     *
+     * @return the buffer size in frames, or DEVICE_DEFAULT_BUFFER
+     */
+    public int getBufferFrames() {return bufferFrames;}
+
+    /**
+     * Gets the output latency the buffer size gives
+     *
+     * @return the latency in seconds, or 0 when the device picks the buffer
+     */
+    public double getLatencySeconds() {return (double) bufferFrames / frameRate;}
+
+    /**
+     * Applies the buffer size to a device manager before the synth is started
+     *
+     * @param devices the device manager to configure
+     */
+    public void applyTo(AudioDeviceManager devices) {
+        if (bufferFrames != DEVICE_DEFAULT_BUFFER) devices.setSuggestedOutputLatency(getLatencySeconds());
+    }
+
+    /**
+     * Saves the config to a properties file
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("frameRate", Integer.toString(frameRate));
+        props.setProperty("outputDevice", Integer.toString(outputDevice));
+        props.setProperty("bufferFrames", Integer.toString(bufferFrames));
+        props.setProperty("internalFrameRate", Integer.toString(internalFrameRate));
+        if (file.getParent() != null) Files.createDirectories(file.getParent()); // Make sure the folder exists
+        try (OutputStream out = Files.newOutputStream(file)) {
+            props.store(out, "Synth audio settings");
+        }
+    }
+
+    /**
+     * Loads a config from a properties file
+     *
+     * @param file the file to read
+     * @return the config
+     * @throws IOException if the file cannot be read
+     */
+    public static AudioConfig load(Path file) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        AudioConfig config = new AudioConfig();
+        try {
+            config.setFrameRate(Integer.parseInt(props.getProperty("frameRate", "44100")));
+            config.setOutputDevice(Integer.parseInt(props.getProperty("outputDevice", "-1")));
+            config.setBufferFrames(Integer.parseInt(props.getProperty("bufferFrames", "0")));
+            config.setInternalFrameRate(Integer.parseInt(props.getProperty("internalFrameRate", "0")));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid audio settings in " + file, e);
+        }
+        return config;
+    }
+
+    /**
+     * Gets the per user file where the calibrated config is kept
+     *
+     * @return the path of the settings file
+     */
+    public static Path defaultPath() {return Paths.get(System.getProperty("user.home"), ".javasynth", "audio.properties");}
+
+    @Override
+    public String toString() {
+        return frameRate + " Hz" + (isResampled() ? " (rendered at " + internalFrameRate + " Hz)" : "") + ", device " + outputDevice + ", " + (bufferFrames == DEVICE_DEFAULT_BUFFER ? "default buffer" : bufferFrames + " frames");
+    }
+}
@@ -0,0 +1,135 @@
+import com.jsyn.ports.UnitOutputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CachePlayer plays notes the NoteCache has already rendered. Each playback is a buffer,
+ * a read position and a gain, so a cached note costs one multiply-add per frame instead of
+ * an oscillator, envelope and filter. The output is stereo and sits next to the MixBus in
+ * front of the reverb.
+ *
+ * The control thread fills a free slot and publishes it by bumping the slot's start serial;
+ * the audio thread picks it up at the next block and marks the slot done at the end of the
+ * buffer. The audio thread never allocates or locks; play and getActiveCount synchronize
+ * only with each other, so control threads can share one player.
+ */
+public class CachePlayer extends UnitGenerator {
+    /**
+     * Stereo output, part 0 is left and part 1 is right
+     */
+    public UnitOutputPort output;
+
+    // Playback slots, written by the control thread before the start serial is bumped
+    private final FloatBuffer[] buffers;
+    private final double[] gains;
+    private final int[] startSerial;
+    private volatile int startVersion = 0;
+    // Serial each slot finished, published by the audio thread
+    private final AtomicIntegerArray doneSerial;
+
+    // Audio thread state
+    private int seenStartVersion = 0;
+    private final int[] playingSerial;
+    private final int[] position;
+    private final boolean[] playing;
+
+    /**
+     * Creates a new CachePlayer
+     *
+     * @param slots the number of notes that can play at once (1 to 1024)
+     */
+    public CachePlayer(int slots) {
+        if (slots < 1 || slots > 1024) throw new IllegalArgumentException("Slots must be between 1 and 1024");
+        addPort(output = new UnitOutputPort(2, "Output"));
+        buffers = new FloatBuffer[slots];
+        gains = new double[slots];
+        startSerial = new int[slots];
+        doneSerial = new AtomicIntegerArray(slots);
+        playingSerial = new int[slots];
+        position = new int[slots];
+        playing = new boolean[slots];
+    }
+
+    /**
+     * Starts playing a rendered note in a free slot
+     *
+     * @param samples the rendered note, read from 0 to its limit
+     * @param gain the gain applied to both channels
+     * @return true if a slot was free, false if every slot is busy
+     */
+    public synchronized boolean play(FloatBuffer samples, double gain) {
+        if (samples == null) throw new IllegalArgumentException("Samples cannot be null");
+        for (int slot = 0; slot < buffers.length; slot++) {
+            if (doneSerial.get(slot) != startSerial[slot]) continue; // Still playing
+            buffers[slot] = samples;
+            gains[slot] = gain;
+            startSerial[slot]++;
+            startVersion++; // Publish the slot
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of notes playing or waiting to start
+     *
+     * @return the busy slots
+     */
+    public synchronized int getActiveCount() {
+        int active = 0;
+        for (int slot = 0; slot < buffers.length; slot++) if (doneSerial.get(slot) != startSerial[slot]) active++;
+        return active;
+    }
+
+    /**
+     * Gets the number of slots
+     *
+     * @return the most notes that can play at once
+     */
+    public int getNumSlots() {return buffers.length;}
+
+    /**
+     * Sums the playing notes into the output
+     *
+     * @param start the start index
+     * @param limit the limit index
+     */
+    @Override
+    public void generate(int start, int limit) {
+        double[] left = output.getValues(0);
+        double[] right = output.getValues(1);
+        for (int i = start; i < limit; i++) {
+            left[i] = 0.0;
+            right[i] = 0.0;
+        }
+        int version = startVersion;
+        if (version != seenStartVersion) { // New playbacks since the last block
+            seenStartVersion = version;
+            for (int slot = 0; slot < buffers.length; slot++) {
+                if (startSerial[slot] != playingSerial[slot]) {
+                    playingSerial[slot] = startSerial[slot];
+                    position[slot] = 0;
+                    playing[slot] = true;
+                }
+            }
+        }
+        for (int slot = 0; slot < buffers.length; slot++) {
+            if (!playing[slot]) continue;
+            FloatBuffer samples = buffers[slot];
+            double gain = gains[slot];
+            int pos = position[slot];
+            int end = Math.min(samples.limit(), pos + (limit - start));
+            for (int i = start; pos < end; i++, pos++) {
+                double v = samples.get(pos) * gain;
+                left[i] += v;
+                right[i] += v;
+            }
+            position[slot] = pos;
+            if (pos >= samples.limit()) {
+                playing[slot] = false;
+                doneSerial.lazySet(slot, playingSerial[slot]); // Publish the free slot after its last read
+            }
+        }
+    }
+}
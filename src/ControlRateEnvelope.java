@@ -0,0 +1,199 @@
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.ports.UnitOutputPort;
+import com.jsyn.unitgen.UnitGenerator;
+
+/**
+ * ControlRateEnvelope is an attack, decay, sustain, release envelope that works out its level
+ * once every control period (8 to 64 frames) from an EnvelopeCurve table and ramps linearly
+ * between those points. Each frame costs one add and one multiply, where EnvelopeDAHDSR runs
+ * its segment logic every frame.
+ *
+ * The gate and the velocity are separate: the gate starts and releases the envelope and the
+ * velocity scales its output. The settings are plain fields written by the audio thread,
+ * Envelope copies them in at the start of a block, so the unit has no ports to read but
+ * amplitude, which the ModMatrix modulates.
+ */
+public class ControlRateEnvelope extends UnitGenerator {
+    /**
+     * Default frames between control points
+     */
+    public static final int DEFAULT_CONTROL_PERIOD = 16;
+
+    // Segments
+    private static final int STAGE_IDLE = 0;
+    private static final int STAGE_ATTACK = 1;
+    private static final int STAGE_DECAY = 2;
+    private static final int STAGE_SUSTAIN = 3;
+    private static final int STAGE_RELEASE = 4;
+
+    /**
+     * Envelope level times the amplitude and the velocity
+     */
+    public UnitOutputPort output;
+    /**
+     * Peak level, read once per block
+     */
+    public UnitInputPort amplitude;
+
+    // Settings, audio thread only
+    private double attack = 0.01;
+    private double decay = 0.1;
+    private double sustain = 0.8;
+    private double release = 0.2;
+    private double velocity = 1.0;
+    private EnvelopeCurve curve = EnvelopeCurve.EXPONENTIAL;
+    private int controlPeriod = DEFAULT_CONTROL_PERIOD;
+
+    // State, audio thread only
+    private int stage = STAGE_IDLE;
+    private double progress = 0.0; // Time through the segment, 0.0 to 1.0
+    private double from = 0.0; // Level the segment started at
+    private double level = 0.0; // Level of the next frame
+    private double step = 0.0; // Per frame ramp to the next control point
+    private int framesToPoint = 0; // Frames until the next control point
+
+    /**
+     * Creates a new ControlRateEnvelope
+     */
+    public ControlRateEnvelope() {
+        addPort(output = new UnitOutputPort("Output"));
+        addPort(amplitude = new UnitInputPort("Amplitude", 1.0));
+    }
+
+    /**
+     * Sets the segment times and sustain level. Audio thread only.
+     *
+     * @param attack the attack time in seconds
+     * @param decay the decay time in seconds
+     * @param sustain the sustain level
+     * @param release the release time in seconds
+     */
+    public void setSegments(double attack, double decay, double sustain, double release) {
+        this.attack = attack;
+        this.decay = decay;
+        this.sustain = sustain;
+        this.release = release;
+    }
+
+    /**
+     * Sets the output scale for the note. Audio thread only.
+     *
+     * @param velocity the velocity (0.0 to 1.0)
+     */
+    public void setVelocity(double velocity) {this.velocity = velocity;}
+
+    /**
+     * Sets the segment shape, used from the next control point. Audio thread only.
+     *
+     * @param curve the curve
+     */
+    public void setCurve(EnvelopeCurve curve) {this.curve = curve;}
+
+    /**
+     * Sets how often the level is worked out
+     *
+     * @param frames the frames between control points (8 to 64)
+     */
+    public void setControlPeriod(int frames) {
+        if (frames < 8 || frames > 64) throw new IllegalArgumentException("Control period must be between 8 and 64 frames");
+        controlPeriod = frames;
+    }
+
+    /**
+     * Gets how often the level is worked out
+     *
+     * @return the frames between control points
+     */
+    public int getControlPeriod() {return controlPeriod;}
+
+    /**
+     * Starts the attack from the current level, so a retriggered note does not click. Audio thread only.
+     */
+    public void gateOn() {
+        stage = STAGE_ATTACK;
+        from = level;
+        progress = 0.0;
+        framesToPoint = 0; // Aim for the new segment straight away
+    }
+
+    /**
+     * Starts the release from the current level. Audio thread only.
+     */
+    public void gateOff() {
+        if (stage == STAGE_IDLE) return;
+        stage = STAGE_RELEASE;
+        from = level;
+        progress = 0.0;
+        framesToPoint = 0;
+    }
+
+    /**
+     * Checks if the envelope is past its release
+     *
+     * @return true if the level is 0 and no note is held
+     */
+    public boolean isIdle() {return stage == STAGE_IDLE;}
+
+    @Override
+    public void generate(int start, int limit) {
+        double[] outputs = output.getValues();
+        double gain = amplitude.getValues()[start] * velocity; // Control rate
+        for (int i = start; i < limit; i++) {
+            if (framesToPoint == 0) nextPoint();
+            outputs[i] = level * gain;
+            level += step;
+            framesToPoint--;
+        }
+    }
+
+    /**
+     * Moves the envelope on by a control period and sets the ramp to its level there
+     */
+    private void nextPoint() {
+        int frames = controlPeriod;
+        double target = advance(frames, getFrameRate());
+        step = (target - level) / frames;
+        framesToPoint = frames;
+    }
+
+    /**
+     * Moves the segment on
+     *
+     * @return the level at the end of the control period
+     */
+    private double advance(int frames, double frameRate) {
+        switch (stage) {
+            case STAGE_ATTACK:
+                progress += frames / Math.max(1.0, attack * frameRate);
+                if (progress >= 1.0) {
+                    startSegment(STAGE_DECAY, 1.0);
+                    return 1.0;
+                }
+                return from + (1.0 - from) * curve.shape(progress);
+            case STAGE_DECAY:
+                progress += frames / Math.max(1.0, decay * frameRate);
+                if (progress >= 1.0) {
+                    startSegment(STAGE_SUSTAIN, sustain);
+                    return sustain;
+                }
+                return from + (sustain - from) * curve.shape(progress);
+            case STAGE_SUSTAIN:
+                return sustain; // Follows sustain changes with a ramp
+            case STAGE_RELEASE:
+                progress += frames / Math.max(1.0, release * frameRate);
+                if (progress >= 1.0) {
+                    startSegment(STAGE_IDLE, 0.0);
+                    return 0.0;
+                }
+                return from * (1.0 - curve.shape(progress));
+            default:
+                return 0.0;
+        }
+    }
+
+    private void startSegment(int next, double start) {
+        stage = next;
+        from = start;
+        progress = 0.0;
+    }
+}
@@ -0,0 +1,414 @@
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.ports.UnitOutputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ConvolutionReverb convolves the stereo mix with an impulse response, between the MixBus
+ * and the LineOut. It uses uniformly partitioned overlap-save FFT convolution: the response
+ * is cut into partitions of one block, each transformed once when it is loaded, and every
+ * block of input is transformed once and kept in a frequency domain delay line, so a block
+ * costs one FFT, one inverse FFT and a complex multiply-add per partition. Both channels
+ * share each transform (left in the real part, right in the imaginary part).
+ *
+ * The audio thread only multiplies the first few (head) partitions. The rest of the response
+ * (the tail) only needs input that is at least that many blocks old, so a worker thread
+ * computes it ahead of time and hands it over; a tail that is not ready in time is left out
+ * and counted ({@link #getMissedTails()}). All buffers are allocated when the response is
+ * loaded, and the audio thread and the worker do not allocate or lock.
+ *
+ * The wet signal is one partition late. With no response loaded the mix passes straight through.
+ */
+public class ConvolutionReverb extends UnitGenerator {
+    /**
+     * Default partition size in frames
+     */
+    public static final int DEFAULT_PARTITION = 256;
+    /**
+     * Default number of partitions computed on the audio thread
+     */
+    public static final int DEFAULT_HEAD_PARTITIONS = 4;
+
+    /**
+     * Stereo input, part 0 is left and part 1 is right
+     */
+    public UnitInputPort input;
+    /**
+     * Stereo output, part 0 is left and part 1 is right
+     */
+    public UnitOutputPort output;
+
+    // Partition size in frames, a power of 2
+    private final int partitionSize;
+    // Partitions the audio thread computes
+    private final int headPartitions;
+    // Levels of the reverb and of the untouched mix
+    private volatile double wet = 0.25;
+    private volatile double dry = 1.0;
+    // False to compute the tail on the audio thread (offline rendering)
+    private volatile boolean tailOnWorker = true;
+    // Kernel the audio thread uses from its next block, null for no reverb
+    private volatile Kernel pendingKernel;
+
+    /**
+     * Creates a new ConvolutionReverb with the default partitioning
+     */
+    public ConvolutionReverb() {this(DEFAULT_PARTITION, DEFAULT_HEAD_PARTITIONS);}
+
+    /**
+     * Creates a new ConvolutionReverb
+     *
+     * @param partitionSize the partition size in frames, a power of 2 (16 to 8192)
+     * @param headPartitions the partitions computed on the audio thread (1 to 64), the worker has this many blocks to compute the tail
+     */
+    public ConvolutionReverb(int partitionSize, int headPartitions) {
+        if (partitionSize < 16 || partitionSize > 8192 || Integer.bitCount(partitionSize) != 1) throw new IllegalArgumentException("Partition size must be a power of 2 between 16 and 8192");
+        if (headPartitions < 1 || headPartitions > 64) throw new IllegalArgumentException("Head partitions must be between 1 and 64");
+        this.partitionSize = partitionSize;
+        this.headPartitions = headPartitions;
+        addPort(input = new UnitInputPort(2, "Input"));
+        addPort(output = new UnitOutputPort(2, "Output"));
+    }
+
+    /**
+     * Loads an impulse response, resampled to the engine's frame rate, so call it after the
+     * synth is started. The partitions are transformed here, not on the audio thread.
+     *
+     * @param response the impulse response, or null to turn the reverb off
+     */
+    public void setImpulseResponse(ImpulseResponse response) {
+        Kernel next = null;
+        if (response != null) {
+            int rate = (getSynthesisEngine() == null) ? response.getFrameRate() : getSynthesisEngine().getFrameRate();
+            next = new Kernel(response.resample(rate), partitionSize, headPartitions);
+            next.start();
+        }
+        Kernel previous = pendingKernel;
+        pendingKernel = next; // The audio thread switches at its next block
+        if (previous != null) previous.stop();
+    }
+
+    /**
+     * Sets the reverb level
+     *
+     * @param level the wet gain (0.0 to 1.0)
+     */
+    public void setWet(double level) {
+        if (level < 0 || level > 1) throw new IllegalArgumentException("Wet level must be between 0 and 1");
+        wet = level;
+    }
+
+    /**
+     * Gets the reverb level
+     *
+     * @return the wet gain
+     */
+    public double getWet() {return wet;}
+
+    /**
+     * Sets the level of the mix without reverb
+     *
+     * @param level the dry gain (0.0 to 1.0)
+     */
+    public void setDry(double level) {
+        if (level < 0 || level > 1) throw new IllegalArgumentException("Dry level must be between 0 and 1");
+        dry = level;
+    }
+
+    /**
+     * Gets the level of the mix without reverb
+     *
+     * @return the dry gain
+     */
+    public double getDry() {return dry;}
+
+    /**
+     * Sets where the tail partitions are computed. Offline rendering runs faster than real time,
+     * so it should compute the tail on the audio thread to get every block.
+     *
+     * @param worker true for the worker thread, false for the audio thread
+     */
+    public void setTailOnWorker(boolean worker) {tailOnWorker = worker;}
+
+    /**
+     * Gets the delay of the wet signal
+     *
+     * @return the latency in frames
+     */
+    public int getLatencyFrames() {return partitionSize;}
+
+    /**
+     * Gets the number of partitions of the loaded response
+     *
+     * @return the partition count, 0 with no response
+     */
+    public int getPartitions() {
+        Kernel k = pendingKernel;
+        return (k == null) ? 0 : k.partitions;
+    }
+
+    /**
+     * Gets the number of blocks played without their tail because the worker was late
+     *
+     * @return the missed tail count for the loaded response
+     */
+    public long getMissedTails() {
+        Kernel k = pendingKernel;
+        return (k == null) ? 0 : k.missedTails;
+    }
+
+    /**
+     * Gets the thread computing the tail
+     *
+     * @return the worker, or null when the response fits in the head
+     */
+    public Thread getWorker() {
+        Kernel k = pendingKernel;
+        return (k == null) ? null : k.worker;
+    }
+
+    /**
+     * Mixes the reverb into the stereo signal
+     *
+     * @param start the start index
+     * @param limit the limit index
+     */
+    @Override
+    public void generate(int start, int limit) {
+        Kernel k = pendingKernel; // A new response starts with empty buffers
+        double[] inLeft = input.getValues(0);
+        double[] inRight = input.getValues(1);
+        double[] outLeft = output.getValues(0);
+        double[] outRight = output.getValues(1);
+        double d = dry;
+        if (k == null) { // No reverb
+            for (int i = start; i < limit; i++) {
+                outLeft[i] = inLeft[i] * d;
+                outRight[i] = inRight[i] * d;
+            }
+            return;
+        }
+        double w = wet;
+        boolean worker = tailOnWorker;
+        for (int i = start; i < limit; i++) {
+            int f = k.fill;
+            k.blockLeft[f] = inLeft[i];
+            k.blockRight[f] = inRight[i];
+            outLeft[i] = inLeft[i] * d + k.wetLeft[f] * w;
+            outRight[i] = inRight[i] * d + k.wetRight[f] * w;
+            if (++k.fill == partitionSize) {
+                k.fill = 0;
+                k.processBlock(worker);
+            }
+        }
+    }
+
+    /**
+     * The transformed response and every buffer used to convolve with it
+     */
+    private static class Kernel {
+        private final int n; // Partition size
+        private final int bins; // Frequency bins kept per channel, n + 1
+        private final int partitions;
+        private final int head; // Partitions done on the audio thread
+        private final int ring; // Slots in the frequency domain delay line
+        private final Fft fft;
+        // Response spectra, partition p channel c bin k at (p * 2 + c) * bins + k
+        private final double[] responseRe;
+        private final double[] responseIm;
+        // Input spectra by block, laid out like the response with slot = block % ring
+        private final double[] delayRe;
+        private final double[] delayIm;
+        // Time domain blocks
+        private final double[] blockLeft, blockRight; // Input being collected
+        private final double[] lastLeft, lastRight; // Previous input block, the overlap
+        private final double[] wetLeft, wetRight; // Output being played
+        private int fill = 0;
+        // FFT work buffers
+        private final double[] workRe, workIm;
+        // Output spectrum of the current block, per channel
+        private final double[] sumRe, sumIm;
+        // Tails computed by the worker, slot = block % (head + 1), and the block each holds
+        private final double[] tailRe, tailIm;
+        private final AtomicLongArray tailBlock;
+        // Blocks processed by the audio thread
+        private long block = 0;
+        // Newest tail wanted by the audio thread, and the last one the worker computed
+        private volatile long requested = -1;
+        private long done = -1;
+        private volatile long missedTails = 0;
+        private volatile boolean running = true;
+        private Thread worker;
+
+        Kernel(ImpulseResponse response, int n, int headPartitions) {
+            this.n = n;
+            bins = n + 1;
+            partitions = (response.getFrames() + n - 1) / n;
+            head = Math.min(headPartitions, partitions);
+            ring = partitions + head; // Slots the worker may still read while the audio thread writes
+            fft = new Fft(2 * n);
+            responseRe = new double[partitions * 2 * bins];
+            responseIm = new double[partitions * 2 * bins];
+            delayRe = new double[ring * 2 * bins];
+            delayIm = new double[ring * 2 * bins];
+            blockLeft = new double[n];
+            blockRight = new double[n];
+            lastLeft = new double[n];
+            lastRight = new double[n];
+            wetLeft = new double[n];
+            wetRight = new double[n];
+            workRe = new double[2 * n];
+            workIm = new double[2 * n];
+            sumRe = new double[2 * bins];
+            sumIm = new double[2 * bins];
+            tailRe = new double[(head + 1) * 2 * bins];
+            tailIm = new double[(head + 1) * 2 * bins];
+            tailBlock = new AtomicLongArray(head + 1);
+            for (int t = 0; t <= head; t++) tailBlock.set(t, -1);
+            double[] left = response.getChannel(0);
+            double[] right = response.getChannel(1);
+            for (int p = 0; p < partitions; p++) { // Transform each partition, zero padded to 2n
+                Arrays.fill(workRe, 0.0);
+                Arrays.fill(workIm, 0.0);
+                for (int j = 0; j < n && p * n + j < left.length; j++) {
+                    workRe[j] = left[p * n + j];
+                    workIm[j] = right[p * n + j];
+                }
+                fft.transform(workRe, workIm, false);
+                unpack(responseRe, responseIm, p * 2 * bins);
+            }
+        }
+
+        /**
+         * Starts the worker if the response is longer than the head
+         */
+        void start() {
+            if (partitions <= head) return;
+            worker = new Thread(this::runWorker, "reverb-tail");
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MAX_PRIORITY); // It has a deadline too
+            worker.start();
+        }
+
+        /**
+         * Stops the worker
+         */
+        void stop() {
+            running = false;
+            if (worker != null) LockSupport.unpark(worker);
+        }
+
+        /**
+         * Splits the transform of a packed left + i right signal into the two channel spectra
+         */
+        private void unpack(double[] re, double[] im, int base) {
+            int mask = 2 * n - 1;
+            for (int k = 0; k < bins; k++) {
+                int m = (2 * n - k) & mask; // Mirror bin
+                re[base + k] = 0.5 * (workRe[k] + workRe[m]); // Left
+                im[base + k] = 0.5 * (workIm[k] - workIm[m]);
+                re[base + bins + k] = 0.5 * (workIm[k] + workIm[m]); // Right
+                im[base + bins + k] = -0.5 * (workRe[k] - workRe[m]);
+            }
+        }
+
+        /**
+         * Adds the products of the input spectra and the response partitions first to last - 1
+         */
+        private void accumulate(long outputBlock, int first, int last, double[] re, double[] im, int base) {
+            for (int p = first; p < last; p++) {
+                long inputBlock = outputBlock - p;
+                if (inputBlock < 0) break; // Before the first input
+                int x = (int) (inputBlock % ring) * 2 * bins;
+                int h = p * 2 * bins;
+                for (int k = 0; k < 2 * bins; k++) { // Both channels
+                    double xr = delayRe[x + k], xi = delayIm[x + k];
+                    double hr = responseRe[h + k], hi = responseIm[h + k];
+                    re[base + k] += xr * hr - xi * hi;
+                    im[base + k] += xr * hi + xi * hr;
+                }
+            }
+        }
+
+        /**
+         * Transforms the block just collected and computes the next block of wet output.
+         * Called by the audio thread every n frames.
+         */
+        void processBlock(boolean useWorker) {
+            for (int j = 0; j < n; j++) { // Overlap-save, the last block then this one
+                workRe[j] = lastLeft[j];
+                workIm[j] = lastRight[j];
+                workRe[n + j] = blockLeft[j];
+                workIm[n + j] = blockRight[j];
+            }
+            System.arraycopy(blockLeft, 0, lastLeft, 0, n);
+            System.arraycopy(blockRight, 0, lastRight, 0, n);
+            fft.transform(workRe, workIm, false);
+            unpack(delayRe, delayIm, (int) (block % ring) * 2 * bins);
+            Arrays.fill(sumRe, 0.0);
+            Arrays.fill(sumIm, 0.0);
+            accumulate(block, 0, head, sumRe, sumIm, 0); // Head, newest input
+            if (partitions > head) {
+                if (!useWorker) {
+                    accumulate(block, head, partitions, sumRe, sumIm, 0);
+                } else {
+                    int t = (int) (block % (head + 1));
+                    if (tailBlock.get(t) == block) {
+                        int base = t * 2 * bins;
+                        for (int k = 0; k < 2 * bins; k++) {
+                            sumRe[k] += tailRe[base + k];
+                            sumIm[k] += tailIm[base + k];
+                        }
+                    } else if (block >= head) {
+                        missedTails++; // Single writer
+                    }
+                }
+            }
+            int mask = 2 * n - 1;
+            for (int k = 0; k < bins; k++) { // Pack left + i right back into one spectrum
+                double lr = sumRe[k], li = sumIm[k], rr = sumRe[bins + k], ri = sumIm[bins + k];
+                workRe[k] = lr - ri;
+                workIm[k] = li + rr;
+                if (k > 0 && k < n) {
+                    int m = (2 * n - k) & mask;
+                    workRe[m] = lr + ri;
+                    workIm[m] = rr - li;
+                }
+            }
+            fft.transform(workRe, workIm, true);
+            double scale = 1.0 / (2 * n);
+            for (int j = 0; j < n; j++) { // The second half is the valid part
+                wetLeft[j] = workRe[n + j] * scale;
+                wetRight[j] = workIm[n + j] * scale;
+            }
+            if (useWorker && partitions > head) {
+                requested = block + head; // The tail of that block only needs input up to this one
+                LockSupport.unpark(worker);
+            }
+            block++;
+        }
+
+        /**
+         * Computes tails as the audio thread asks for them, skipping to the newest if behind
+         */
+        private void runWorker() {
+            while (running) {
+                long want = requested;
+                if (want <= done) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                int t = (int) (want % (head + 1));
+                int base = t * 2 * bins;
+                tailBlock.set(t, -1); // Not ready while it is written
+                Arrays.fill(tailRe, base, base + 2 * bins, 0.0);
+                Arrays.fill(tailIm, base, base + 2 * bins, 0.0);
+                accumulate(want, head, partitions, tailRe, tailIm, base);
+                tailBlock.set(t, want); // Publish
+                done = want;
+            }
+        }
+    }
+}
@@ -1,12 +1,19 @@
 
 
 import com.jsyn.Synthesizer;
-import com.jsyn.unitgen.EnvelopeDAHDSR;
 
 
 /**
  * Envelope class for generating an envelope for a voice
  * the envelope controls the amplitude of the voice over time
+ *
+ * Setters only store the value and bump a version; the audio thread copies changed
+ * values into the envelope unit at the start of the next block (see {@link #apply()}),
+ * so changing the envelope or triggering it does not allocate.
+ *
+ * The unit is a ControlRateEnvelope. The gate and the velocity are kept apart: trigger
+ * starts and releases the envelope and the velocity scales its output, so a soft note
+ * still triggers and a retrigger does not lose the velocity.
  */
 public class Envelope {
     /*
@@ -16,7 +23,22 @@ public class Envelope {
      * release is the time it takes for the envelope to reach 0 from the sustain level
      */
 
-    private EnvelopeDAHDSR envelope; // The envelope
+    private ControlRateEnvelope envelope; // The envelope
+
+    // Values waiting for the audio thread, published by bumping version
+    private double attack;
+    private double decay;
+    private double sustain;
+    private double release;
+    private double amplitude = 1.0;
+    private double velocity = 1.0;
+    private EnvelopeCurve curve = EnvelopeCurve.EXPONENTIAL;
+    private boolean gate = false;
+    private int gateOns = 0; // Counts trigger(true), so a retrigger in one block is not lost
+    private volatile int version = 0;
+    private int appliedVersion = -1; // Audio thread only
+    private int appliedGateOns = 0; // Audio thread only
+    private boolean appliedGate = false; // Audio thread only
 
     /**
      * Creates a new Envelope object.
@@ -24,7 +46,7 @@ public class Envelope {
      * @param synth the synthesizer to add the envelope to
      */
     public Envelope(Synthesizer synth) {
-        this.envelope = new EnvelopeDAHDSR(); // Create the envelope
+        this.envelope = new ControlRateEnvelope(); // Create the envelope
         synth.add(envelope);
         
         // Set default envelope parameters to reduce clicking
@@ -42,14 +64,15 @@ public class Envelope {
     public void setAttack(double sec) {
         if (sec < 0 || sec > 10.0)  throw new IllegalArgumentException("Attack time must be between 0 and 127");
         double safeAttack = Math.min(Math.max(sec, 0.0), 10.0); // Ensure the attack time is within the valid range
-        envelope.attack.set(safeAttack); // Set the attack time of the envelope
+        attack = safeAttack; // Applied by the audio thread
+        version++;
     }
     /**
      * Gets the attack time of the envelope.
      * 
      * @return the attack time in seconds
      */
-    public double getAttack(){return this.envelope.attack.get();}
+    public double getAttack(){return attack;}
     /**
      * Sets the decay time of the envelope.
      * 
@@ -58,14 +81,15 @@ public class Envelope {
     public void setDecay(double sec) {
         if (sec < 0 || sec > 10.0)  throw new IllegalArgumentException("Decay time must be between 0 and 127");
         double safeDecay = Math.min(Math.max(sec, 0.0), 10.0); // Ensure the decay time is within the valid range
-        envelope.decay.set(safeDecay); // Set the decay time of the envelope
+        decay = safeDecay; // Applied by the audio thread
+        version++;
     }
     /**
      * Gets the decay time of the envelope.
      * 
      * @return the decay time in seconds
      */
-    public double getDecay(){return this.envelope.decay.get();}
+    public double getDecay(){return decay;}
     /**
      * Sets the sustain level of the envelope.
      * 
@@ -74,14 +98,15 @@ public class Envelope {
     public void setSustain(double level) {
         if (level < 0 || level > 10.0)  throw new IllegalArgumentException("Sustain level must be between 0 and 10");
         double safeSustain = Math.min(Math.max(level, 0.0), 10.0); // Ensure the sustain level is within the valid range
-        envelope.sustain.set(safeSustain); // Set the sustain level of the envelope 
+        sustain = safeSustain; // Applied by the audio thread
+        version++;
     }
     /**
      * Gets the sustain level of the envelope.
      * 
      * @return the sustain level
      */
-    public double getSustain(){return this.envelope.sustain.get();}
+    public double getSustain(){return sustain;}
     /**
      * Sets the release time of the envelope.
      * 
@@ -90,14 +115,15 @@ public class Envelope {
     public void setRelease(double sec) {
         if (sec < 0 || sec > 10.0) throw new IllegalArgumentException("Release time must be between 0 and 10");
         double safeRelease = Math.min(Math.max(sec, 0.0), 10.0); // Ensure the release time is within the valid range
-        envelope.release.set(safeRelease); // Set the release time of the envelope
+        release = safeRelease; // Applied by the audio thread
+        version++;
     }
     /**
      * Gets the release time of the envelope.
      * 
      * @return the release time in seconds
      */
-    public double getRelease(){return this.envelope.release.get();}
+    public double getRelease(){return release;}
 
    /**
     * Sets the amplitude of the envelope.
@@ -107,14 +133,15 @@ public class Envelope {
     public void setAmplitude(double amp) {
         if (amp < 0 || amp > 1)  throw new IllegalArgumentException("Amplitude must be between 0 and 1");
         double safeAmplitude = Math.min(Math.max(amp, 0.0), 1.0); // Ensure the amplitude is within the valid range
-        envelope.amplitude.set(safeAmplitude); // Set the amplitude of the envelope
+        amplitude = safeAmplitude; // Applied by the audio thread
+        version++;
     }
     /**
      * Gets the amplitude of the envelope.
      * 
      * @return the amplitude
      */
-    public double getAmplitude(){return this.envelope.amplitude.get();}
+    public double getAmplitude(){return amplitude;}
 
     /**
      * Sets the velocity of the envelope.
@@ -124,8 +151,26 @@ public class Envelope {
     public void setVelocity(double velocity) {
         if (velocity < 0 || velocity > 1) throw new IllegalArgumentException("Velocity must be between 0 and 1");
         double safeVelocity = Math.min(Math.max(velocity, 0.0), 1.0); // Ensure the velocity is within the valid range
-        envelope.input.set(safeVelocity); // Set the velocity of the envelope
+        this.velocity = safeVelocity; // Applied by the audio thread
+        version++;
+    }
+
+    /**
+     * Sets the shape of the attack, decay and release segments
+     *
+     * @param curve the curve
+     */
+    public void setCurve(EnvelopeCurve curve) {
+        if (curve == null) throw new IllegalArgumentException("Envelope curve cannot be null");
+        this.curve = curve; // Applied by the audio thread
+        version++;
     }
+    /**
+     * Gets the shape of the envelope segments
+     *
+     * @return the curve
+     */
+    public EnvelopeCurve getCurve(){return curve;}
 
     //Dont need a getter for velocity because the triggerNoteOn method inside the SynthVoice class sets the velocity
     //through its call by synth.noteOn or Off inside the KeyboardController class which "plays" the synth for us by 
@@ -137,14 +182,41 @@ public class Envelope {
      * @param on true to trigger the envelope, false to release it
      */
     public void trigger(boolean on) {
-        // Use a value well above the default threshold (0.01) for reliable triggering
-        envelope.input.set(on ? 1.0 : 0.0); // Set the input of the envelope
+        gate = on; // Applied by the audio thread
+        if (on) gateOns++;
+        version++;
     }
 
+    /**
+     * Copies changed values into the envelope ports. Called by the audio thread once per block.
+     */
+    public void apply() {
+        int v = version;
+        if (v == appliedVersion) return;
+        appliedVersion = v;
+        envelope.setSegments(attack, decay, sustain, release);
+        envelope.amplitude.setValueInternal(amplitude);
+        envelope.setVelocity(velocity);
+        envelope.setCurve(curve);
+        int ons = gateOns;
+        if (ons != appliedGateOns) envelope.gateOn(); // Even if the gate went off and on again since the last block
+        else if (gate == appliedGate) return;
+        if (!gate) envelope.gateOff();
+        appliedGateOns = ons;
+        appliedGate = gate;
+    }
+
+    /**
+     * Removes the envelope from the synthesizer
+     * 
+     * @param synth the synthesizer the envelope was added to
+     */
+    public void removeFrom(Synthesizer synth) {synth.remove(envelope);}
+
     /**
      * returns the envelope.amplitude
      * 
      * @return the envelope.amplitude
      */
-    public EnvelopeDAHDSR get() {return envelope;}
+    public ControlRateEnvelope get() {return envelope;}
 }
\ No newline at end of file
@@ -0,0 +1,47 @@
+/**
+ * Enum for the shape of the envelope segments
+ *
+ */
+
+public enum EnvelopeCurve {
+    /**
+     * Straight lines between the levels
+     */
+    LINEAR("linear", 0.0),
+    /**
+     * Fast at the start of each segment and slowing towards its target, like an analog envelope
+     */
+    EXPONENTIAL("exponential", 5.0);
+
+    // Points per table, one extra so interpolation never reads past the end
+    private static final int TABLE_SIZE = 256;
+
+    private final String name; // The name of the curve
+    private final double[] table; // Segment progress (0 to 1) to fraction of the way to the target
+    // steepness is the time constants across a segment, 0 for a straight line
+    private EnvelopeCurve(String name, double steepness) {
+        this.name = name;
+        this.table = new double[TABLE_SIZE + 1];
+        for (int i = 0; i <= TABLE_SIZE; i++) {
+            double x = (double) i / TABLE_SIZE;
+            table[i] = (steepness == 0.0) ? x : (1.0 - Math.exp(-steepness * x)) / (1.0 - Math.exp(-steepness)); // Lands exactly on the target at the end
+        }
+    }// Constructor
+
+    /**
+     * Looks up how far a segment has moved towards its target
+     *
+     * @param progress the time through the segment (0.0 to 1.0)
+     * @return the fraction of the way from the start level to the target
+     */
+    public double shape(double progress) {
+        double position = progress * TABLE_SIZE;
+        int i = (int) position;
+        if (i >= TABLE_SIZE) return 1.0;
+        return table[i] + (position - i) * (table[i + 1] - table[i]);
+    }
+
+    @Override
+    public String toString(){return name;}// Returns the name of the curve
+
+}
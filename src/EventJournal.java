@@ -0,0 +1,448 @@
+import com.jsyn.Synthesizer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EventJournal records every control event (keys, notes, oscillator and envelope/filter changes)
+ * into a memory mapped file so a session can be replayed later with JournalReplay.
+ *
+ * The file is a fixed size ring: a 64 byte header followed by 24 byte records.
+ * When it is full the oldest records are overwritten, so it can stay on all the time.
+ * Each record holds the engine frame count (sample clock) at the time of the event,
+ * which lets the replay apply events at the same point in the audio.
+ *
+ * Record layout: frame (long), type (short), arg0 (short), arg1 (int), value (double).
+ */
+public class EventJournal implements Closeable {
+    /**
+     * Bytes in the file header
+     */
+    public static final int HEADER_BYTES = 64;
+    /**
+     * Bytes in each record
+     */
+    public static final int RECORD_BYTES = 24;
+    /**
+     * Record capacity used when none is given
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 18;
+    /**
+     * Version of the file format (2 packs the path, part and channel into NOTE_ON and adds the later types)
+     */
+    public static final short VERSION = 2;
+
+    private static final int MAGIC = 0x53594E4A; // "SYNJ"
+    private static final int COUNT_OFFSET = 24; // Where the total record count is kept
+
+    /**
+     * Enum for the kinds of event in the journal
+     */
+    public enum Type {
+        /**
+         * Key pressed, arg1 = key code
+         */
+        KEY_PRESSED,
+        /**
+         * Key released, arg1 = key code
+         */
+        KEY_RELEASED,
+        /**
+         * Note on, arg0 = voice, arg1 = note | path ordinal &lt;&lt; 8 | part &lt;&lt; 12 | channel &lt;&lt; 16, value = velocity
+         */
+        NOTE_ON,
+        /**
+         * Note off, arg0 = voice
+         */
+        NOTE_OFF,
+        /**
+         * Oscillator switch, arg0 = channel, arg1 = OscType ordinal
+         */
+        OSC_TYPE,
+        /**
+         * Attack change, arg0 = channel, value = seconds
+         */
+        ATTACK,
+        /**
+         * Decay change, arg0 = channel, value = seconds
+         */
+        DECAY,
+        /**
+         * Sustain change, arg0 = channel, value = level
+         */
+        SUSTAIN,
+        /**
+         * Release change, arg0 = channel, value = seconds
+         */
+        RELEASE,
+        /**
+         * Filter cutoff change, arg0 = channel, value = Hz
+         */
+        FILTER_CUTOFF,
+        /**
+         * Filter resonance change, arg0 = channel, value = resonance
+         */
+        FILTER_RESONANCE,
+        /**
+         * Filter mode change, arg0 = channel, arg1 = FilterType ordinal
+         */
+        FILTER_TYPE,
+        /**
+         * Channel expression, arg0 = channel, arg1 = Expression ordinal, value = semitones or level
+         */
+        EXPRESSION,
+        /**
+         * FM algorithm change, arg0 = channel, arg1 = FmAlgorithm ordinal
+         */
+        FM_ALGORITHM,
+        /**
+         * FM operator change, arg0 = channel, arg1 = operator | FmParam ordinal &lt;&lt; 4, value = setting
+         */
+        FM_OPERATOR,
+        /**
+         * Envelope curve change, arg0 = channel, arg1 = EnvelopeCurve ordinal
+         */
+        ENVELOPE_CURVE,
+        /**
+         * Band-limited oscillator switch, arg0 = channel, arg1 = 1 for band-limited, 0 for naive
+         */
+        BAND_LIMITED,
+        /**
+         * Pulse width change, arg0 = channel, value = width
+         */
+        PULSE_WIDTH,
+        /**
+         * Note played from the note cache, arg0 = channel, arg1 = note | path ordinal &lt;&lt; 8 | part &lt;&lt; 12, value = velocity
+         */
+        CACHED_NOTE_ON,
+        /**
+         * Part of a patch record, arg0 = channel, arg1 and value = the next two ints of the record;
+         * a patch load writes {@link #PATCH_DATA_RECORDS} of them just before its PATCH_LOAD
+         */
+        PATCH_DATA,
+        /**
+         * Patch load, arg0 = channel, arg1 = PatchSwap ordinal, the patch is in the PATCH_DATA records before it
+         */
+        PATCH_LOAD,
+        /**
+         * Modulation routing added, arg0 = ModSource ordinal, arg1 = ModDestination ordinal, value = depth
+         */
+        MOD_ROUTING,
+        /**
+         * Modulation routing depth change, arg0 = routing index, value = depth
+         */
+        MOD_DEPTH,
+        /**
+         * Modulation routing removed, arg0 = routing index
+         */
+        MOD_ROUTING_REMOVED,
+        /**
+         * Every modulation routing removed
+         */
+        MOD_ROUTINGS_CLEARED,
+        /**
+         * LFO change, arg0 = 1 for the per voice LFO or 2 for the global one, arg1 = OscType ordinal, value = Hz
+         */
+        LFO,
+        /**
+         * Filter envelope change, one record per stage: arg0 = 0 attack, 1 decay, 2 sustain, 3 release, value = seconds or level;
+         * the envelope is set when the release record is read
+         */
+        FILTER_ENVELOPE,
+        /**
+         * MPE mode switch, arg1 = 1 for on, 0 for off
+         */
+        MPE_MODE,
+        /**
+         * Part voice limit change, arg0 = channel, arg1 = voices
+         */
+        VOICE_LIMIT,
+        /**
+         * Part voice reservation change, arg0 = channel, arg1 = voices
+         */
+        RESERVED_VOICES,
+        /**
+         * Part voice stealing switch, arg0 = channel, arg1 = 1 to steal, 0 to drop
+         */
+        VOICE_STEALING
+    }
+
+    /**
+     * Number of PATCH_DATA records holding one patch
+     */
+    public static final int PATCH_DATA_RECORDS = (Patch.BYTES + 7) / 8;
+
+    /**
+     * One event read back from a journal
+     */
+    public static class Record {
+        private final long frame;
+        private final Type type;
+        private final int arg0;
+        private final int arg1;
+        private final double value;
+
+        Record(long frame, Type type, int arg0, int arg1, double value) {
+            this.frame = frame;
+            this.type = type;
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+            this.value = value;
+        }
+
+        /**
+         * Gets the engine frame the event happened at
+         *
+         * @return the frame
+         */
+        public long getFrame() {return frame;}
+
+        /**
+         * Gets the kind of event
+         *
+         * @return the type
+         */
+        public Type getType() {return type;}
+
+        /**
+         * Gets the first argument (voice)
+         *
+         * @return the argument
+         */
+        public int getArg0() {return arg0;}
+
+        /**
+         * Gets the second argument (key code, note or ordinal)
+         *
+         * @return the argument
+         */
+        public int getArg1() {return arg1;}
+
+        /**
+         * Gets the value (velocity or parameter value)
+         *
+         * @return the value
+         */
+        public double getValue() {return value;}
+
+        @Override
+        public String toString() {return String.format("%10d %-16s %4d %6d %10.4f", frame, type, arg0, arg1, value);}
+    }
+
+    // The open file
+    private FileChannel channel;
+    // The whole file mapped into memory
+    private MappedByteBuffer buffer;
+    // Number of records the ring holds
+    private int capacity;
+    // Total records written, including overwritten ones
+    private long count;
+    // Source of the sample clock, null until attached
+    private Synthesizer clock;
+    // Scratch for the patch record written by recordPatch
+    private final ByteBuffer patchRecord = ByteBuffer.allocate(PATCH_DATA_RECORDS * 8);
+
+    /**
+     * Opens a journal with the default capacity, starting it empty
+     *
+     * @param file the journal file
+     * @throws IOException if the file cannot be created
+     */
+    public EventJournal(Path file) throws IOException {this(file, DEFAULT_CAPACITY);}
+
+    /**
+     * Opens a journal, starting it empty
+     *
+     * @param file the journal file
+     * @param capacity the number of records kept before the oldest are overwritten
+     * @throws IOException if the file cannot be created
+     */
+    public EventJournal(Path file, int capacity) throws IOException {
+        if (capacity < 1 || capacity > (Integer.MAX_VALUE - HEADER_BYTES) / RECORD_BYTES) throw new IllegalArgumentException("Invalid journal capacity");
+        if (file.getParent() != null) Files.createDirectories(file.getParent()); // Make sure the folder exists
+        this.capacity = capacity;
+        long size = HEADER_BYTES + (long) capacity * RECORD_BYTES;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putShort(6, (short) RECORD_BYTES);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, 44100); // Frame rate, updated by setFrameRate
+        buffer.putInt(16, Synth.DEFAULT_MAX_VOICES); // Polyphony, updated by attach
+        buffer.putLong(COUNT_OFFSET, 0);
+    }
+
+    /**
+     * Uses a synthesizer's frame count as the clock and records its polyphony
+     *
+     * @param synth the synthesizer whose frames stamp the events
+     * @param maxVoices the polyphony of the synth
+     */
+    public synchronized void attach(Synthesizer synth, int maxVoices) {
+        clock = synth;
+        buffer.putInt(16, maxVoices);
+        buffer.putInt(12, synth.getFrameRate());
+    }
+
+    /**
+     * Records the frame rate the session is played at
+     *
+     * @param frameRate the frame rate in Hz
+     */
+    public synchronized void setFrameRate(int frameRate) {buffer.putInt(12, frameRate);}
+
+    /**
+     * Appends an event. Does not allocate.
+     *
+     * @param type the kind of event
+     * @param arg0 the first argument
+     * @param arg1 the second argument
+     * @param value the value
+     */
+    public synchronized void record(Type type, int arg0, int arg1, double value) {
+        if (buffer == null) return; // Closed
+        long frame = (clock == null) ? 0 : clock.getFrameCount();
+        int pos = HEADER_BYTES + (int) (count % capacity) * RECORD_BYTES; // Ring position
+        buffer.putLong(pos, frame);
+        buffer.putShort(pos + 8, (short) type.ordinal());
+        buffer.putShort(pos + 10, (short) arg0);
+        buffer.putInt(pos + 12, arg1);
+        buffer.putDouble(pos + 16, value);
+        count++;
+        buffer.putLong(COUNT_OFFSET, count); // Publish the record
+    }
+
+    /**
+     * Appends a patch load: the patch record in PATCH_DATA records, then a PATCH_LOAD.
+     * The records are written together, so another thread's events never split them.
+     *
+     * @param channel the channel of the part that loaded the patch
+     * @param patch the patch
+     * @param swap what happened to held notes
+     */
+    public synchronized void recordPatch(int channel, Patch patch, PatchSwap swap) {
+        patchRecord.clear();
+        patch.write(patchRecord);
+        for (int i = 0; i < PATCH_DATA_RECORDS; i++) record(Type.PATCH_DATA, channel, patchRecord.getInt(i * 8), patchRecord.getInt(i * 8 + 4)); // Ints are exact as doubles
+        record(Type.PATCH_LOAD, channel, swap.ordinal(), 0.0);
+    }
+
+    /**
+     * Gets the total number of records written
+     *
+     * @return the record count, including overwritten records
+     */
+    public synchronized long getCount() {return count;}
+
+    /**
+     * Flushes the journal to disk and closes it
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (buffer == null) return;
+        buffer.force(); // Write the mapped pages out
+        buffer = null;
+        channel.close();
+    }
+
+    /**
+     * Gets the journal file used by the synth application
+     *
+     * @return the path in the user's home folder
+     */
+    public static Path defaultPath() {return Paths.get(System.getProperty("user.home"), ".javasynth", "journal.bin");}
+
+    /**
+     * Gets where rotate keeps the previous session of a journal file
+     *
+     * @param file the journal file
+     * @return the file with ".1" before its extension, e.g. journal.1.bin
+     */
+    public static Path previousPath(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return file.resolveSibling(dot > 0 ? name.substring(0, dot) + ".1" + name.substring(dot) : name + ".1");
+    }
+
+    /**
+     * Keeps the last session before a new journal is opened on the same file,
+     * replacing the one kept before it
+     *
+     * @param file the journal file
+     * @return true if there was a session to keep
+     * @throws IOException if the file cannot be moved
+     */
+    public static boolean rotate(Path file) throws IOException {
+        if (!Files.exists(file)) return false;
+        Files.move(file, previousPath(file), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Reads the records still held in a journal file, oldest first
+     *
+     * @param file the journal file
+     * @return the records
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public static List<Record> read(Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        checkHeader(data, file);
+        int capacity = data.getInt(8);
+        long total = data.getLong(COUNT_OFFSET);
+        Type[] types = Type.values();
+        List<Record> records = new ArrayList<>();
+        for (long i = Math.max(0, total - capacity); i < total; i++) {
+            int pos = HEADER_BYTES + (int) (i % capacity) * RECORD_BYTES;
+            int type = data.getShort(pos + 8);
+            if (type < 0 || type >= types.length) throw new IOException("Unknown event type " + type + " in " + file);
+            records.add(new Record(data.getLong(pos), types[type], data.getShort(pos + 10), data.getInt(pos + 12), data.getDouble(pos + 16)));
+        }
+        return records;
+    }
+
+    /**
+     * Reads the frame rate a journal was recorded at
+     *
+     * @param file the journal file
+     * @return the frame rate in Hz
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public static int readFrameRate(Path file) throws IOException {return readHeader(file).getInt(12);}
+
+    /**
+     * Reads the polyphony a journal was recorded with
+     *
+     * @param file the journal file
+     * @return the number of voices
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public static int readMaxVoices(Path file) throws IOException {return readHeader(file).getInt(16);}
+
+    private static ByteBuffer readHeader(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && in.read(header) > 0) {}
+        }
+        checkHeader(header, file);
+        return header;
+    }
+
+    private static void checkHeader(ByteBuffer data, Path file) throws IOException {
+        if (data.limit() < HEADER_BYTES || data.getInt(0) != MAGIC) throw new IOException(file + " is not an event journal");
+        if (data.getShort(4) != VERSION) throw new IOException("Unsupported journal version " + data.getShort(4));
+        if (data.getShort(6) != RECORD_BYTES) throw new IOException("Unexpected record size in " + file);
+    }
+}
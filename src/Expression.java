@@ -0,0 +1,25 @@
+/**
+ * Enum for the per note expression dimensions (MPE)
+ * 
+ */
+
+public enum Expression {
+    /**
+     * Pitch bend in semitones, added to the voice pitch
+     */
+    PITCH_BEND("pitch bend"), 
+    /**
+     * Pressure (aftertouch), 0.0 to 1.0, a ModMatrix source
+     */
+    PRESSURE("pressure"), 
+    /**
+     * Timbre (CC 74), 0.0 to 1.0, a ModMatrix source
+     */
+    TIMBRE("timbre"); 
+
+    private final String name; // The name of the expression
+    private Expression(String name){this.name = name;}// Constructor
+    @Override
+    public String toString(){return name;}// Returns the name of the expression
+
+}
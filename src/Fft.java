@@ -0,0 +1,72 @@
+/**
+ * Fft is an in place radix 2 complex FFT of one size. The twiddle factors and the bit reversal
+ * order are computed when it is created, so transforms do not allocate and can run on the audio thread.
+ * The inverse is not scaled, divide by the size to get the original signal back.
+ */
+public class Fft {
+    private final int size;
+    private final double[] cos; // Twiddle factors, cos and sin of 2 pi k / size
+    private final double[] sin;
+    private final int[] reversed; // Bit reversed index of each position
+
+    /**
+     * Creates a new Fft
+     *
+     * @param size the transform size, a power of 2 (2 to 2^24)
+     */
+    public Fft(int size) {
+        if (size < 2 || size > (1 << 24) || Integer.bitCount(size) != 1) throw new IllegalArgumentException("FFT size must be a power of 2");
+        this.size = size;
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        for (int k = 0; k < size / 2; k++) {
+            cos[k] = Math.cos(2.0 * Math.PI * k / size);
+            sin[k] = Math.sin(2.0 * Math.PI * k / size);
+        }
+        reversed = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) reversed[i] = Integer.reverse(i) >>> (32 - bits);
+    }
+
+    /**
+     * Gets the transform size
+     *
+     * @return the number of points
+     */
+    public int getSize() {return size;}
+
+    /**
+     * Transforms in place
+     *
+     * @param re the real parts
+     * @param im the imaginary parts
+     * @param inverse true for the inverse transform (unscaled)
+     */
+    public void transform(double[] re, double[] im, boolean inverse) {
+        for (int i = 0; i < size; i++) { // Put the input in bit reversed order
+            int j = reversed[i];
+            if (j > i) {
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+        double direction = inverse ? 1.0 : -1.0;
+        for (int half = 1; half < size; half <<= 1) { // Butterflies, doubling the span each pass
+            int step = size / (half * 2); // Twiddle stride for this span
+            for (int block = 0; block < size; block += half * 2) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = direction * sin[k * step];
+                    int a = block + k;
+                    int b = a + half;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
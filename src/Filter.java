@@ -1,21 +1,21 @@
-
-
 import com.jsyn.Synthesizer;
-import com.jsyn.unitgen.FilterStateVariable;
-import com.jsyn.unitgen.LinearRamp;
 
 
 /**
- * Filter class for filtering the audio signal using a state variable filter
- * (low pass)
+ * Filter class for filtering the audio signal using a zero delay feedback
+ * state variable filter (low pass, high pass, band pass or notch)
  * 
+ * Cutoff and resonance are handed to the audio thread like the envelope values:
+ * stored, published with a version and copied into the ports by {@link #apply()}.
  */
 public class Filter {
     //The filter
-    private FilterStateVariable filter;
-    //Ramps for smooth transitions
-    private LinearRamp filterCutoffRamp; // Ramp for smooth transitions
-    private LinearRamp filterResonanceRamp; // Ramp for smooth transitions
+    private ZdfFilter filter;
+    // Values waiting for the audio thread, published by bumping version
+    private double cutoff = 1000.0;
+    private double resonance = 0.2;
+    private volatile int version = 0;
+    private int appliedVersion = 0; // Audio thread only, the ports start at the defaults above
    
     /**
      * Creates a new Filter object.
@@ -25,23 +25,13 @@ public class Filter {
     public Filter(Synthesizer synth) {
         if(synth == null) throw new IllegalArgumentException("Synthesizer cannot be null");
         // Initialize components
-        filter = new FilterStateVariable(); // The filter
-        filterCutoffRamp = new LinearRamp(); // Ramp for smooth transitions
-        filterResonanceRamp = new LinearRamp(); // Ramp for smooth transitions
-      
+        filter = new ZdfFilter(); // The filter, it smooths its own coefficient changes per block
         
         // Add components to synth
         synth.add(filter); // Add the filter to the synth
-        synth.add(filterCutoffRamp); // Add the filter cutoff ramp to the synth
-        synth.add(filterResonanceRamp); // Add the filter resonance ramp to the synth
-       
-        
-        // Set up initial connections
-        filterCutoffRamp.output.connect(filter.frequency); // Connect the filter cutoff ramp to the filter frequency
-        filterResonanceRamp.output.connect(filter.resonance); // Connect the filter resonance ramp to the filter resonance
         
         // Set default filter type
-        setFilterType("Low Pass"); // Set the default filter type
+        setFilterType(FilterType.LOW_PASS); // Set the default filter type
     }
 
     /**
@@ -52,26 +42,37 @@ public class Filter {
     public void setFrequency(double frequency) {
         if (frequency < 20 || frequency > 60000) throw new IllegalArgumentException("Frequency must be between 20 and 60000");
         double safeFrequency = Math.min(Math.max(frequency, 20.0), 60000.0); // Ensure the frequency is within the valid range
-        filter.frequency.set(safeFrequency); // Set the frequency of the filter
+        cutoff = safeFrequency; // Applied by the audio thread
+        version++;
     }
 
     /**
      * Sets the filter type
      * 
-     * @param type the filter type
+     * @param type the filter type name ("Low Pass", "High Pass", "Band Pass" or "Notch")
      */
     public void setFilterType(String type) {
         if (type == null) throw new IllegalArgumentException("Filter type cannot be null");
-        // Disconnect all filter outputs
-        filter.lowPass.disconnectAll();
-        filter.highPass.disconnectAll();
-        filter.bandPass.disconnectAll();
-        
-       
-        // No need to connect outputs to filter.output since we'll use the specific outputs directly
-        // Each output (lowPass, highPass, bandPass) is already available as a port
+        setFilterType(FilterType.fromName(type)); // Look up the type by name
     }
 
+    /**
+     * Sets the filter type
+     * 
+     * @param type the filter type
+     */
+    public void setFilterType(FilterType type) {
+        if (type == null) throw new IllegalArgumentException("Filter type cannot be null");
+        filter.setType(type); // Select the output, no connections change
+    }
+
+    /**
+     * Gets the filter type
+     * 
+     * @return the filter type
+     */
+    public FilterType getFilterType() {return filter.getType();}
+
     /**
      * Sets the filter cutoff frequency
      * 
@@ -80,7 +81,8 @@ public class Filter {
     public void setFilterCutoff(double freq) {
         if (freq < 20 || freq > 60000) throw new IllegalArgumentException("Frequency must be between 20 and 60000");
         double safeFreq = Math.min(60000.0, Math.max(20.0, freq)); // Ensure the frequency is within the valid range
-        this.filterCutoffRamp.input.set(safeFreq); // Set the cutoff frequency of the filter 
+        cutoff = safeFreq; // Applied by the audio thread
+        version++;
     }
 
     /**
@@ -90,8 +92,46 @@ public class Filter {
      */
     public void setFilterResonance(double resonance){
         if (resonance < 0 || resonance > 1) throw new IllegalArgumentException("Resonance must be between 0 and 1");
-        double safeResonance = Math.min(0.9, resonance * 0.3);
-        this.filterResonanceRamp.input.set(safeResonance);
+        this.resonance = resonance; // Applied by the audio thread
+        version++;
+    }
+
+    /**
+     * Sets the cutoff from the audio thread (modulation), clamping instead of throwing
+     * 
+     * @param freq the cutoff frequency
+     */
+    public void setModulatedCutoff(double freq) {
+        filter.frequency.setValueInternal(Math.min(60000.0, Math.max(20.0, freq))); // Takes effect in this block
+    }
+
+    /**
+     * Sets the resonance from the audio thread (modulation), clamping instead of throwing
+     * 
+     * @param resonance the resonance (0.0 to 1.0)
+     */
+    public void setModulatedResonance(double resonance) {
+        filter.resonance.setValueInternal(Math.min(1.0, Math.max(0.0, resonance))); // Takes effect in this block
+    }
+
+    /**
+     * Copies a changed cutoff and resonance into the filter ports. Called by the audio thread once per block.
+     */
+    public void apply() {
+        int v = version;
+        if (v == appliedVersion) return;
+        appliedVersion = v;
+        filter.frequency.setValueInternal(cutoff);
+        filter.resonance.setValueInternal(resonance);
+    }
+
+    /**
+     * Removes the filter from the synthesizer
+     * 
+     * @param synth the synthesizer the filter was added to
+     */
+    public void removeFrom(Synthesizer synth) {
+        synth.remove(filter); // Remove the filter from the synth
     }
 
     /**
@@ -99,6 +139,6 @@ public class Filter {
      * 
      * @return the filter
      */
-    public FilterStateVariable get() {return filter;}
+    public ZdfFilter get() {return filter;}
  
 }
@@ -0,0 +1,39 @@
+/**
+ * Enum for the filter modes
+ * 
+ */
+
+public enum FilterType {
+    /**
+     * Low pass filter
+     */
+    LOW_PASS("Low Pass"), 
+    /**
+     * High pass filter
+     */
+    HIGH_PASS("High Pass"), 
+    /**
+     * Band pass filter
+     */
+    BAND_PASS("Band Pass"), 
+    /**
+     * Notch (band reject) filter
+     */
+    NOTCH("Notch"); 
+
+    private final String name; // The name of the filter type
+    private FilterType(String name){this.name = name;}// Constructor
+    @Override
+    public String toString(){return name;}// Returns the name of the filter type
+
+    /**
+     * Finds the filter type with a name
+     *
+     * @param name the name, as returned by toString
+     * @return the filter type
+     */
+    public static FilterType fromName(String name) {
+        for (FilterType type : values()) if (type.name.equalsIgnoreCase(name)) return type;
+        throw new IllegalArgumentException("Unknown filter type: " + name);
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Enum for FM algorithms, which operators modulate which and which ones are heard.
+ * Operators are numbered from 0 and an operator is only modulated by higher numbered ones,
+ * so one pass from the highest operator down computes a whole frame.
+ */
+public enum FmAlgorithm {
+    /**
+     * 4 operators in one stack, 3 modulates 2 modulates 1 modulates 0
+     */
+    STACK_4("4 op stack", 4, new int[][] {{1}, {2}, {3}, {}}, 0b0001),
+    /**
+     * Two 2 operator stacks, 1 into 0 and 3 into 2
+     */
+    TWO_STACKS_4("2 x 2 op", 4, new int[][] {{1}, {}, {3}, {}}, 0b0101),
+    /**
+     * Operators 1, 2 and 3 all modulate 0
+     */
+    BRANCH_4("3 into 1", 4, new int[][] {{1, 2, 3}, {}, {}, {}}, 0b0001),
+    /**
+     * 4 unmodulated operators mixed together, like drawbars
+     */
+    ADDITIVE_4("4 carriers", 4, new int[][] {{}, {}, {}, {}}, 0b1111),
+    /**
+     * 6 operators in one stack
+     */
+    STACK_6("6 op stack", 6, new int[][] {{1}, {2}, {3}, {4}, {5}, {}}, 0b000001),
+    /**
+     * A 2 operator stack beside a 4 operator stack, 1 into 0 and 5 into 4 into 3 into 2
+     */
+    STACKS_2_4("2 + 4 op", 6, new int[][] {{1}, {}, {3}, {4}, {5}, {}}, 0b000101),
+    /**
+     * Three 2 operator stacks, 1 into 0, 3 into 2 and 5 into 4
+     */
+    THREE_STACKS_6("3 x 2 op", 6, new int[][] {{1}, {}, {3}, {}, {5}, {}}, 0b010101);
+
+    /**
+     * Most operators an algorithm uses
+     */
+    public static final int MAX_OPERATORS = 6;
+
+    private final String name; // The name of the algorithm
+    private final int operators; // Operators used
+    private final int[][] modulators; // Operators modulating each operator
+    private final int carriers; // Bit per operator that is heard
+
+    private FmAlgorithm(String name, int operators, int[][] modulators, int carriers) {
+        this.name = name;
+        this.operators = operators;
+        this.modulators = modulators;
+        this.carriers = carriers;
+    }
+
+    /**
+     * Gets the number of operators
+     *
+     * @return the operator count (4 or 6)
+     */
+    public int getOperators() {return operators;}
+
+    /**
+     * Gets the operators that modulate an operator
+     *
+     * @param operator the operator
+     * @return the modulating operators, all higher numbered (do not modify)
+     */
+    int[] getModulators(int operator) {return modulators[operator];}
+
+    /**
+     * Checks whether an operator is heard
+     *
+     * @param operator the operator
+     * @return true if the operator is a carrier
+     */
+    public boolean isCarrier(int operator) {return (carriers & (1 << operator)) != 0;}
+
+    /**
+     * Gets the number of carriers
+     *
+     * @return the carrier count
+     */
+    public int getCarrierCount() {return Integer.bitCount(carriers);}
+
+    @Override
+    public String toString() {return name;}
+}
@@ -0,0 +1,256 @@
+/**
+ * FmEngine computes one voice of FM (phase modulation) synthesis. All of the voice's
+ * operators, their feedback and their envelopes are rendered in one loop over plain arrays,
+ * reading a sine table shared by every voice, so a 6 operator voice is still a single unit
+ * in the JSyn graph. It is driven by a VoiceOscillator set to OscType.FM.
+ *
+ * The patch and the gate are written by the control thread and picked up by the audio
+ * thread at the start of the next block, like the rest of the voice's controls.
+ * Operator envelopes step once per block and are ramped across it.
+ */
+public class FmEngine {
+    // Shared sine table, one extra point so interpolation never wraps
+    private static final int TABLE_BITS = 12;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+    private static final double[] SINE = new double[TABLE_SIZE + 1];
+    static {
+        for (int i = 0; i <= TABLE_SIZE; i++) SINE[i] = Math.sin(2.0 * Math.PI * i / TABLE_SIZE);
+    }
+
+    /**
+     * Settings per operator, the stride of a patch array
+     */
+    public static final int PARAMS = FmParam.values().length;
+
+    private static final int RATIO = FmParam.RATIO.ordinal();
+    private static final int LEVEL = FmParam.LEVEL.ordinal();
+    private static final int ATTACK = FmParam.ATTACK.ordinal();
+    private static final int DECAY = FmParam.DECAY.ordinal();
+    private static final int SUSTAIN = FmParam.SUSTAIN.ordinal();
+    private static final int RELEASE = FmParam.RELEASE.ordinal();
+    private static final int FEEDBACK = FmParam.FEEDBACK.ordinal();
+    private static final int OPS = FmAlgorithm.MAX_OPERATORS;
+    private static final double INV_TWO_PI = 1.0 / (2.0 * Math.PI);
+
+    // Envelope stages
+    private static final int STAGE_IDLE = 0;
+    private static final int STAGE_ATTACK = 1;
+    private static final int STAGE_DECAY = 2;
+    private static final int STAGE_SUSTAIN = 3;
+    private static final int STAGE_RELEASE = 4;
+
+    // Patch waiting for the audio thread, published by bumping patchVersion
+    private FmAlgorithm pendingAlgorithm = FmAlgorithm.STACK_4;
+    private final double[] pendingParams = new double[OPS * PARAMS];
+    private volatile int patchVersion = 0;
+    // Gate waiting for the audio thread, published by bumping gateVersion
+    private volatile boolean gate = false;
+    private volatile int gateVersion = 0;
+
+    // Audio thread state
+    private int appliedPatchVersion = -1;
+    private int appliedGateVersion = 0;
+    private FmAlgorithm algorithm = FmAlgorithm.STACK_4;
+    private final double[] params = new double[OPS * PARAMS];
+    private final boolean[] carrier = new boolean[OPS];
+    private double carrierGain = 1.0; // Keeps the sum of the carriers at the level of one
+    private final double[] phase = new double[OPS]; // 0.0 to 1.0
+    private final double[] envelope = new double[OPS]; // Current envelope level
+    private final double[] envelopeStep = new double[OPS]; // Per frame ramp in this block
+    private final int[] stage = new int[OPS];
+    private final double[] output = new double[OPS]; // Operator outputs for the current frame
+    private final double[] previous1 = new double[OPS]; // Last two outputs, for feedback
+    private final double[] previous2 = new double[OPS];
+
+    /**
+     * Creates a new FmEngine with the default patch
+     */
+    public FmEngine() {
+        FmParam[] settings = FmParam.values();
+        for (int op = 0; op < OPS; op++) {
+            for (int p = 0; p < PARAMS; p++) pendingParams[op * PARAMS + p] = settings[p].getDefault();
+        }
+    }
+
+    /**
+     * Sets the patch. Takes effect at the next block and does not allocate.
+     *
+     * @param algorithm the algorithm
+     * @param settings the operator settings, operator op's FmParam p at [op * PARAMS + p]
+     */
+    public void setPatch(FmAlgorithm algorithm, double[] settings) {
+        if (algorithm == null) throw new IllegalArgumentException("Algorithm cannot be null");
+        if (settings == null || settings.length != OPS * PARAMS) throw new IllegalArgumentException("Settings must hold " + PARAMS + " values for each of " + OPS + " operators");
+        pendingAlgorithm = algorithm;
+        System.arraycopy(settings, 0, pendingParams, 0, pendingParams.length);
+        patchVersion++; // Publish
+    }
+
+    /**
+     * Starts or releases the operator envelopes
+     *
+     * @param on true for note on, false for note off
+     */
+    public void setGate(boolean on) {
+        gate = on;
+        gateVersion++; // Publish, a note on while on restarts the attack
+    }
+
+    /**
+     * Checks whether any operator is still sounding, as of the last block rendered
+     *
+     * @return true if an envelope is running
+     */
+    public boolean isSounding() {
+        for (int op = 0; op < OPS; op++) {
+            if (stage[op] != STAGE_IDLE) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Renders a block. Called by the audio thread.
+     *
+     * @param frequencies the note frequency per frame in Hz
+     * @param amplitudes the voice amplitude per frame
+     * @param outputs the buffer to write
+     * @param start the start index
+     * @param limit the limit index
+     * @param frameRate the frame rate in Hz
+     */
+    public void render(double[] frequencies, double[] amplitudes, double[] outputs, int start, int limit, double frameRate) {
+        applyPatch();
+        applyGate();
+        int operators = algorithm.getOperators();
+        if (!isSounding()) { // Nothing to hear, skip the operators
+            for (int i = start; i < limit; i++) outputs[i] = 0.0;
+            return;
+        }
+        int frames = limit - start;
+        for (int op = 0; op < operators; op++) { // Step the envelopes once for the block and ramp to the new level
+            double from = envelope[op];
+            double to = advanceEnvelope(op, frames, frameRate);
+            envelopeStep[op] = (to - from) / frames;
+        }
+        double framePeriod = 1.0 / frameRate;
+        for (int i = start; i < limit; i++) {
+            double increment = frequencies[i] * framePeriod; // Note frequency in cycles per frame
+            double sum = 0.0;
+            for (int op = operators - 1; op >= 0; op--) { // Modulators first, they are numbered higher
+                int p = op * PARAMS;
+                int[] modulators = algorithm.getModulators(op);
+                double modulation = 0.0;
+                for (int m = 0; m < modulators.length; m++) modulation += output[modulators[m]];
+                double feedback = params[p + FEEDBACK];
+                if (feedback > 0.0) modulation += feedback * Math.PI * 0.5 * (previous1[op] + previous2[op]);
+                double level = envelope[op] + envelopeStep[op];
+                envelope[op] = level;
+                double wave = sine(phase[op] + modulation * INV_TWO_PI) * level;
+                previous2[op] = previous1[op];
+                previous1[op] = wave;
+                double value = wave * params[p + LEVEL];
+                output[op] = value;
+                if (carrier[op]) sum += value;
+                double next = phase[op] + increment * params[p + RATIO];
+                phase[op] = (next >= 1.0) ? next - (int) next : next;
+            }
+            outputs[i] = sum * carrierGain * amplitudes[i];
+        }
+    }
+
+    /**
+     * Copies a newly published patch into the audio thread's arrays
+     */
+    private void applyPatch() {
+        int v = patchVersion;
+        if (v == appliedPatchVersion) return;
+        appliedPatchVersion = v;
+        algorithm = pendingAlgorithm;
+        System.arraycopy(pendingParams, 0, params, 0, params.length);
+        for (int op = 0; op < OPS; op++) {
+            carrier[op] = op < algorithm.getOperators() && algorithm.isCarrier(op);
+            if (op >= algorithm.getOperators()) { // Unused by this algorithm, silence it
+                stage[op] = STAGE_IDLE;
+                envelope[op] = 0.0;
+            }
+        }
+        carrierGain = 1.0 / algorithm.getCarrierCount();
+    }
+
+    /**
+     * Starts or releases the envelopes after a gate change
+     */
+    private void applyGate() {
+        int v = gateVersion;
+        if (v == appliedGateVersion) return;
+        appliedGateVersion = v;
+        boolean on = gate;
+        for (int op = 0; op < OPS; op++) {
+            if (on) {
+                if (stage[op] == STAGE_IDLE) { // A fresh note starts every operator in phase
+                    phase[op] = 0.0;
+                    previous1[op] = 0.0;
+                    previous2[op] = 0.0;
+                }
+                stage[op] = STAGE_ATTACK; // Attack from the current level, no click
+            } else if (stage[op] != STAGE_IDLE) {
+                stage[op] = STAGE_RELEASE;
+            }
+        }
+    }
+
+    /**
+     * Moves an operator envelope on by a block
+     *
+     * @return the level at the end of the block
+     */
+    private double advanceEnvelope(int op, int frames, double frameRate) {
+        int p = op * PARAMS;
+        double level = envelope[op];
+        switch (stage[op]) {
+            case STAGE_ATTACK:
+                level += frames / Math.max(1.0, params[p + ATTACK] * frameRate);
+                if (level >= 1.0) {
+                    level = 1.0;
+                    stage[op] = STAGE_DECAY;
+                }
+                break;
+            case STAGE_DECAY:
+                level -= frames / Math.max(1.0, params[p + DECAY] * frameRate);
+                if (level <= params[p + SUSTAIN]) {
+                    level = params[p + SUSTAIN];
+                    stage[op] = STAGE_SUSTAIN;
+                }
+                break;
+            case STAGE_SUSTAIN:
+                level = params[p + SUSTAIN];
+                break;
+            case STAGE_RELEASE:
+                level -= frames / Math.max(1.0, params[p + RELEASE] * frameRate);
+                if (level <= 0.0) {
+                    level = 0.0;
+                    stage[op] = STAGE_IDLE;
+                }
+                break;
+            default:
+                level = 0.0;
+                break;
+        }
+        return level;
+    }
+
+    /**
+     * Reads the shared sine table with linear interpolation
+     *
+     * @param cycles the phase in cycles, any value
+     * @return the sine
+     */
+    private static double sine(double cycles) {
+        double x = cycles * TABLE_SIZE;
+        int i = (int) Math.floor(x);
+        double fraction = x - i;
+        i &= TABLE_MASK;
+        return SINE[i] + fraction * (SINE[i + 1] - SINE[i]);
+    }
+}
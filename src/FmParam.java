@@ -0,0 +1,69 @@
+/**
+ * Enum for the settings of one FM operator
+ */
+public enum FmParam {
+    /**
+     * Frequency as a multiple of the note frequency (0.0 to 32.0)
+     */
+    RATIO("ratio", 0.0, 32.0, 1.0),
+    /**
+     * Output level (0.0 to 10.0), the gain of a carrier or the modulation index in radians of a modulator
+     */
+    LEVEL("level", 0.0, 10.0, 1.0),
+    /**
+     * Attack time in seconds (0 to 10)
+     */
+    ATTACK("attack", 0.0, 10.0, 0.01),
+    /**
+     * Time in seconds to decay from full level to 0 (0 to 10)
+     */
+    DECAY("decay", 0.0, 10.0, 0.3),
+    /**
+     * Sustain level (0.0 to 1.0)
+     */
+    SUSTAIN("sustain", 0.0, 1.0, 0.7),
+    /**
+     * Time in seconds to release from full level to 0 (0 to 10)
+     */
+    RELEASE("release", 0.0, 10.0, 0.3),
+    /**
+     * Self modulation (0.0 to 1.0), 1.0 is an index of pi
+     */
+    FEEDBACK("feedback", 0.0, 1.0, 0.0);
+
+    private final String name; // The name of the setting
+    private final double min; // Lowest value
+    private final double max; // Highest value
+    private final double defaultValue; // Value of a new patch
+
+    private FmParam(String name, double min, double max, double defaultValue) {
+        this.name = name;
+        this.min = min;
+        this.max = max;
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Gets the lowest value
+     *
+     * @return the minimum
+     */
+    public double getMin() {return min;}
+
+    /**
+     * Gets the highest value
+     *
+     * @return the maximum
+     */
+    public double getMax() {return max;}
+
+    /**
+     * Gets the value of a new patch
+     *
+     * @return the default value
+     */
+    public double getDefault() {return defaultValue;}
+
+    @Override
+    public String toString() {return name;}
+}
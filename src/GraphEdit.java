@@ -0,0 +1,253 @@
+import com.jsyn.Synthesizer;
+import com.jsyn.engine.SynthesisEngine;
+import com.jsyn.ports.PortBlockPart;
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.ports.UnitOutputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import com.softsynth.shared.time.ScheduledCommand;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * GraphEdit is a batch of changes to the unit graph: units to add or remove and ports to
+ * connect or disconnect. The edits are collected on the control thread, checked when the
+ * batch is committed, and then applied by the audio thread in one pass between two blocks,
+ * so no block is ever rendered with half of the batch done. A batch of 50 edits costs the
+ * audio thread one command, the same as a batch of 1.
+ *
+ * JSyn queues every connect and disconnect as its own command, so a sequence of single calls
+ * from the UI thread can be split across blocks; use a GraphEdit instead whenever more than
+ * one connection changes at once. A batch of connection changes that is made over and over
+ * can be built once and committed again with {@link #recommit()}, so the batch and its edits
+ * are not allocated again. JSyn still allocates: each commit queues one engine command with
+ * its time stamp, and when the batch is applied every connect and disconnect queues one JSyn
+ * command of its own, on the audio thread.
+ */
+public class GraphEdit {
+    private enum Kind {ADD, REMOVE, CONNECT, DISCONNECT}
+
+    /**
+     * One change in the batch
+     */
+    private static class Edit {
+        final Kind kind;
+        final UnitGenerator unit; // For ADD and REMOVE
+        final UnitOutputPort output; // For CONNECT and DISCONNECT
+        final int outputPart;
+        final UnitInputPort input;
+        final int inputPart;
+
+        Edit(Kind kind, UnitGenerator unit, UnitOutputPort output, int outputPart, UnitInputPort input, int inputPart) {
+            this.kind = kind;
+            this.unit = unit;
+            this.output = output;
+            this.outputPart = outputPart;
+            this.input = input;
+            this.inputPart = inputPart;
+        }
+    }
+
+    private final Synthesizer synth; // The synth whose graph is edited
+    private final List<Edit> edits = new ArrayList<>();
+    private boolean committed = false;
+    private volatile boolean applied = false; // Set by the audio thread
+    private final ScheduledCommand applyCommand = this::apply; // Made once, a commit queues no new lambda
+
+    /**
+     * Creates an empty batch
+     *
+     * @param synth the synthesizer whose graph is edited
+     */
+    public GraphEdit(Synthesizer synth) {
+        if (synth == null) throw new IllegalArgumentException("Synthesizer cannot be null");
+        this.synth = synth;
+    }
+
+    /**
+     * Adds a unit to the synth. Units are added before any connection is made.
+     *
+     * @param unit the unit
+     * @return this batch
+     */
+    public GraphEdit add(UnitGenerator unit) {
+        if (unit == null) throw new IllegalArgumentException("Unit cannot be null");
+        return append(new Edit(Kind.ADD, unit, null, 0, null, 0));
+    }
+
+    /**
+     * Removes a unit from the synth. Units are removed after every connection change,
+     * so disconnect the unit in the same batch.
+     *
+     * @param unit the unit
+     * @return this batch
+     */
+    public GraphEdit remove(UnitGenerator unit) {
+        if (unit == null) throw new IllegalArgumentException("Unit cannot be null");
+        return append(new Edit(Kind.REMOVE, unit, null, 0, null, 0));
+    }
+
+    /**
+     * Connects part 0 of an output to part 0 of an input
+     *
+     * @param output the output port
+     * @param input the input port
+     * @return this batch
+     */
+    public GraphEdit connect(UnitOutputPort output, UnitInputPort input) {return connect(output, 0, input, 0);}
+
+    /**
+     * Connects a part of an output to a part of an input
+     *
+     * @param output the output port
+     * @param outputPart the part of the output
+     * @param input the input port
+     * @param inputPart the part of the input
+     * @return this batch
+     */
+    public GraphEdit connect(UnitOutputPort output, int outputPart, UnitInputPort input, int inputPart) {
+        checkPorts(output, outputPart, input, inputPart);
+        return append(new Edit(Kind.CONNECT, null, output, outputPart, input, inputPart));
+    }
+
+    /**
+     * Disconnects part 0 of an output from part 0 of an input. Nothing happens if they are not connected.
+     *
+     * @param output the output port
+     * @param input the input port
+     * @return this batch
+     */
+    public GraphEdit disconnect(UnitOutputPort output, UnitInputPort input) {return disconnect(output, 0, input, 0);}
+
+    /**
+     * Disconnects a part of an output from a part of an input. Nothing happens if they are not connected.
+     *
+     * @param output the output port
+     * @param outputPart the part of the output
+     * @param input the input port
+     * @param inputPart the part of the input
+     * @return this batch
+     */
+    public GraphEdit disconnect(UnitOutputPort output, int outputPart, UnitInputPort input, int inputPart) {
+        checkPorts(output, outputPart, input, inputPart);
+        return append(new Edit(Kind.DISCONNECT, null, output, outputPart, input, inputPart));
+    }
+
+    /**
+     * Checks the batch and hands it to the audio thread, which applies all of it at the start
+     * of the next block. Nothing is applied if a check fails.
+     *
+     * @throws IllegalArgumentException if a connection uses a unit that is not in the synth or being added
+     * @throws IllegalStateException if the batch was already committed
+     */
+    public synchronized void commit() {
+        if (committed) throw new IllegalStateException("Graph edit was already committed");
+        checkConnections();
+        committed = true;
+        for (int i = 0; i < edits.size(); i++) if (edits.get(i).kind == Kind.ADD) synth.add(edits.get(i).unit); // Not connected yet, so nothing pulls them
+        queue();
+    }
+
+    /**
+     * Hands a batch the audio thread has applied to it again, for a rewire that is repeated
+     * with the same connections. The edits are checked again without building anything new;
+     * the engine command that carries the batch and the JSyn command each edit queues when
+     * it is applied are still allocated.
+     *
+     * @throws IllegalArgumentException if a connection uses a unit that is no longer in the synth
+     * @throws IllegalStateException if the batch was never committed, is still waiting for the audio thread, or adds or removes units
+     */
+    public synchronized void recommit() {
+        if (!committed || !applied) throw new IllegalStateException("Graph edit is not applied yet");
+        for (int i = 0; i < edits.size(); i++) {
+            Kind kind = edits.get(i).kind;
+            if (kind == Kind.ADD || kind == Kind.REMOVE) throw new IllegalStateException("Only connection changes can be committed again");
+        }
+        checkConnections();
+        queue();
+    }
+
+    /**
+     * Checks if the audio thread has applied the batch
+     *
+     * @return true once every edit is in the graph
+     */
+    public boolean isApplied() {return applied;}
+
+    /**
+     * Gets the number of edits in the batch
+     *
+     * @return the edit count
+     */
+    public synchronized int size() {return edits.size();}
+
+    /**
+     * Checks if a part of an output feeds a part of an input
+     *
+     * @param output the output port
+     * @param outputPart the part of the output
+     * @param input the input port
+     * @param inputPart the part of the input
+     * @return true if they are connected
+     */
+    public static boolean isConnected(UnitOutputPort output, int outputPart, UnitInputPort input, int inputPart) {
+        PortBlockPart from = (PortBlockPart) output.getConnectablePart(outputPart);
+        PortBlockPart to = (PortBlockPart) input.getConnectablePart(inputPart);
+        for (int i = 0; i < from.getConnectionCount(); i++) if (from.getConnection(i) == to) return true;
+        return false;
+    }
+
+    /**
+     * Checks every connection uses a unit in the synth or added by the batch
+     */
+    private void checkConnections() {
+        for (int i = 0; i < edits.size(); i++) {
+            Edit edit = edits.get(i);
+            if (edit.kind != Kind.CONNECT && edit.kind != Kind.DISCONNECT) continue;
+            checkInSynth(edit.output.getUnitGenerator());
+            checkInSynth(edit.input.getUnitGenerator());
+        }
+    }
+
+    /**
+     * Has the audio thread apply the batch at the start of the next block
+     */
+    private void queue() {
+        applied = false;
+        if (synth instanceof SynthesisEngine) ((SynthesisEngine) synth).queueCommand(applyCommand);
+        else apply(); // No engine to race with
+    }
+
+    /**
+     * Applies every connection change, then the removals. Audio thread, run between two blocks.
+     * The port calls queue their commands for the current block, which the engine runs before
+     * it renders anything.
+     */
+    private void apply() {
+        for (int i = 0; i < edits.size(); i++) {
+            Edit edit = edits.get(i);
+            if (edit.kind == Kind.DISCONNECT) edit.output.disconnect(edit.outputPart, edit.input, edit.inputPart);
+            else if (edit.kind == Kind.CONNECT) edit.output.connect(edit.outputPart, edit.input, edit.inputPart);
+        }
+        for (int i = 0; i < edits.size(); i++) if (edits.get(i).kind == Kind.REMOVE) synth.remove(edits.get(i).unit);
+        applied = true;
+    }
+
+    private synchronized GraphEdit append(Edit edit) {
+        if (committed) throw new IllegalStateException("Graph edit was already committed");
+        edits.add(edit);
+        return this;
+    }
+
+    private void checkPorts(UnitOutputPort output, int outputPart, UnitInputPort input, int inputPart) {
+        if (output == null || input == null) throw new IllegalArgumentException("Ports cannot be null");
+        if (outputPart < 0 || outputPart >= output.getNumParts()) throw new IllegalArgumentException("Output part must be between 0 and " + (output.getNumParts() - 1));
+        if (inputPart < 0 || inputPart >= input.getNumParts()) throw new IllegalArgumentException("Input part must be between 0 and " + (input.getNumParts() - 1));
+    }
+
+    private void checkInSynth(UnitGenerator unit) {
+        if (unit == null) throw new IllegalArgumentException("Port does not belong to a unit");
+        if (unit.getSynthesizer() == synth) return;
+        for (int i = 0; i < edits.size(); i++) if (edits.get(i).kind == Kind.ADD && edits.get(i).unit == unit) return; // Added by this batch
+        throw new IllegalArgumentException(unit + " is not in the synth");
+    }
+}
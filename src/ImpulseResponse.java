@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * ImpulseResponse holds a mono or stereo impulse response for the ConvolutionReverb.
+ * WAV files (16, 24 or 32 bit PCM, or 32 bit float) are read through a memory mapping
+ * of the file, so a long response is decoded straight from the page cache without
+ * copying the file into the heap first.
+ */
+public class ImpulseResponse {
+    // Samples by channel
+    private final double[][] samples;
+    // Frame rate the response was recorded at
+    private final int frameRate;
+
+    /**
+     * Creates a new ImpulseResponse
+     *
+     * @param samples the samples of each channel (1 or 2 channels of the same length)
+     * @param frameRate the frame rate in Hz
+     */
+    public ImpulseResponse(double[][] samples, int frameRate) {
+        if (samples == null || samples.length < 1 || samples.length > 2) throw new IllegalArgumentException("Impulse response must have 1 or 2 channels");
+        if (samples[0].length < 1) throw new IllegalArgumentException("Impulse response cannot be empty");
+        if (samples.length == 2 && samples[1].length != samples[0].length) throw new IllegalArgumentException("Channels must be the same length");
+        if (frameRate < 1000 || frameRate > 384000) throw new IllegalArgumentException("Frame rate must be between 1000 and 384000");
+        this.samples = samples;
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Loads a WAV file
+     *
+     * @param file the WAV file
+     * @return the impulse response
+     * @throws IOException if the file cannot be read or is not a supported WAV file
+     */
+    public static ImpulseResponse load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < 12 || buffer.getInt(0) != 0x46464952 || buffer.getInt(8) != 0x45564157) throw new IOException(file + " is not a WAV file"); // "RIFF", "WAVE"
+            int format = -1, channels = 0, rate = 0, bits = 0;
+            int position = 12;
+            while (position + 8 <= buffer.limit()) { // Walk the chunks
+                int id = buffer.getInt(position);
+                int length = buffer.getInt(position + 4);
+                int body = position + 8;
+                if (length < 0 || body + (long) length > buffer.limit()) throw new IOException("Truncated chunk in " + file);
+                if (id == 0x20746D66) { // "fmt "
+                    format = buffer.getShort(body) & 0xFFFF;
+                    channels = buffer.getShort(body + 2);
+                    rate = buffer.getInt(body + 4);
+                    bits = buffer.getShort(body + 14);
+                    if (format == 0xFFFE && length >= 26) format = buffer.getShort(body + 24) & 0xFFFF; // WAVE_FORMAT_EXTENSIBLE sub format
+                } else if (id == 0x61746164) { // "data"
+                    if (format < 0) throw new IOException("Data before format in " + file);
+                    return decode(buffer, body, length, format, channels, rate, bits, file);
+                }
+                position = body + length + (length & 1); // Chunks are padded to even sizes
+            }
+            throw new IOException("No audio data in " + file);
+        }
+    }
+
+    /**
+     * Decodes the data chunk into doubles
+     */
+    private static ImpulseResponse decode(MappedByteBuffer buffer, int offset, int length, int format, int channels, int rate, int bits, Path file) throws IOException {
+        if (channels < 1 || channels > 2) throw new IOException("Impulse response must be mono or stereo in " + file);
+        boolean pcm = format == 1 && (bits == 16 || bits == 24 || bits == 32);
+        boolean floating = format == 3 && bits == 32;
+        if (!pcm && !floating) throw new IOException("Unsupported sample format " + format + "/" + bits + " bit in " + file);
+        int bytes = bits / 8;
+        int frames = length / (bytes * channels);
+        if (frames < 1) throw new IOException("No audio data in " + file);
+        double[][] samples = new double[channels][frames];
+        int position = offset;
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < channels; c++) {
+                double value;
+                if (floating) value = buffer.getFloat(position);
+                else if (bits == 16) value = buffer.getShort(position) / 32768.0;
+                else if (bits == 24) value = ((buffer.get(position) & 0xFF) | (buffer.get(position + 1) & 0xFF) << 8 | buffer.get(position + 2) << 16) / 8388608.0;
+                else value = buffer.getInt(position) / 2147483648.0;
+                samples[c][f] = value;
+                position += bytes;
+            }
+        }
+        try {
+            return new ImpulseResponse(samples, rate);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid impulse response in " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Converts the response to another frame rate with a PolyphaseResampler
+     *
+     * @param rate the new frame rate in Hz
+     * @return this response if the rate is the same, otherwise a resampled copy
+     */
+    public ImpulseResponse resample(int rate) {
+        if (rate == frameRate) return this;
+        double[][] converted = new double[samples.length][];
+        for (int c = 0; c < samples.length; c++) {
+            PolyphaseResampler resampler = new PolyphaseResampler(frameRate, rate, 1);
+            int delay = (int) Math.round(resampler.getLatencyFrames()); // Flush the filter so the tail is not cut
+            double[] input = Arrays.copyOf(samples[c], samples[c].length + delay);
+            double[] output = new double[resampler.getMaxOutputFrames(input.length)];
+            int frames = resampler.process(input, 0, input.length, output, 0);
+            int skip = (int) Math.round(resampler.getLatencyFrames() * rate / frameRate); // Line the response back up with time 0
+            converted[c] = Arrays.copyOfRange(output, Math.min(skip, frames - 1), frames);
+        }
+        return new ImpulseResponse(converted, rate);
+    }
+
+    /**
+     * Gets the number of channels
+     *
+     * @return 1 or 2
+     */
+    public int getChannels() {return samples.length;}
+
+    /**
+     * Gets the length
+     *
+     * @return the length in frames
+     */
+    public int getFrames() {return samples[0].length;}
+
+    /**
+     * Gets the frame rate
+     *
+     * @return the frame rate in Hz
+     */
+    public int getFrameRate() {return frameRate;}
+
+    /**
+     * Gets the samples of a channel, mono responses give the same channel for both
+     *
+     * @param channel the channel (0 or 1)
+     * @return the samples (do not modify)
+     */
+    public double[] getChannel(int channel) {
+        if (channel < 0 || channel > 1) throw new IllegalArgumentException("Channel must be 0 or 1");
+        return samples[Math.min(channel, samples.length - 1)];
+    }
+}
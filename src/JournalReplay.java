@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * JournalReplay plays an EventJournal back into a synth driven by the offline renderer.
+ * Events are applied at the start of the engine buffer that reaches their recorded frame,
+ * keeping the spacing they had in the recorded session, so a glitch can be reproduced and
+ * profiled as often as needed.
+ *
+ * Note events are replayed with their recorded voice. Raw key events are only listed
+ * (the notes they played are in the journal already).
+ */
+public class JournalReplay {
+    // The recorded events, oldest first
+    private List<EventJournal.Record> records;
+    // Next event to apply
+    private int next = 0;
+    // Renderer frame minus recorded frame, set by the first buffer
+    private long frameOffset;
+    // Patch record collected from PATCH_DATA records, and the channel they came from
+    private final ByteBuffer patchRecord = ByteBuffer.allocate(EventJournal.PATCH_DATA_RECORDS * 8);
+    private int patchChannel = -1;
+    // Filter envelope collected from FILTER_ENVELOPE records
+    private final double[] filterEnvelope = new double[4];
+
+    /**
+     * Creates a new JournalReplay
+     *
+     * @param records the events to replay, oldest first
+     */
+    public JournalReplay(List<EventJournal.Record> records) {
+        if (records == null) throw new IllegalArgumentException("Records cannot be null");
+        this.records = records;
+    }
+
+    /**
+     * Reads a journal file for replay
+     *
+     * @param file the journal file
+     * @return the replay
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public static JournalReplay load(Path file) throws IOException {return new JournalReplay(EventJournal.read(file));}
+
+    /**
+     * Starts again from the first event
+     */
+    public void reset() {
+        next = 0;
+        patchRecord.clear();
+    }
+
+    /**
+     * Checks if every event has been applied
+     *
+     * @return true when the replay is finished
+     */
+    public boolean isDone() {return next >= records.size();}
+
+    /**
+     * Gets the number of events in the replay
+     *
+     * @return the event count
+     */
+    public int getEventCount() {return records.size();}
+
+    /**
+     * Gets the number of frames between the first and the last event
+     *
+     * @return the length of the session in frames
+     */
+    public long getLengthFrames() {return records.isEmpty() ? 0 : records.get(records.size() - 1).getFrame() - records.get(0).getFrame();}
+
+    /**
+     * Applies every event due by the next buffer and renders that buffer
+     *
+     * @param synth the synth to play into
+     * @param renderer the renderer driving the synth
+     */
+    public void renderBuffer(Synth synth, OfflineRenderer renderer) {
+        long now = renderer.getFrameCount();
+        if (next == 0 && !records.isEmpty()) frameOffset = now - records.get(0).getFrame(); // First event plays now
+        while (next < records.size() && records.get(next).getFrame() + frameOffset <= now) {
+            apply(synth, records.get(next++));
+        }
+        renderer.renderBuffers(1);
+    }
+
+    /**
+     * Replays every event and then renders a tail so the last notes can finish
+     *
+     * @param synth the synth to play into
+     * @param renderer the renderer driving the synth
+     * @param tailSeconds the audio time to render after the last event
+     */
+    public void replay(Synth synth, OfflineRenderer renderer, double tailSeconds) {
+        if (tailSeconds < 0) throw new IllegalArgumentException("Tail cannot be negative");
+        while (!isDone()) renderBuffer(synth, renderer);
+        renderer.renderSeconds(tailSeconds);
+    }
+
+    /**
+     * Applies one recorded event to a synth
+     *
+     * @param synth the synth
+     * @param record the event
+     */
+    void apply(Synth synth, EventJournal.Record record) {
+        Part part = synth.getPart(record.getArg0() & 0xF); // Settings carry the channel in arg0
+        switch (record.getType()) {
+            case NOTE_ON:
+                int note = record.getArg1() & 0xFF; // Low byte is the note, then the path, the part and the channel
+                NotePath path = NotePath.values()[(record.getArg1() >>> 8) & 0xF];
+                Part notePart = synth.getPart((record.getArg1() >>> 12) & 0xF);
+                synth.playNote(record.getArg0(), notePart, (record.getArg1() >>> 16) & 0xF, note, record.getValue(), path);
+                break;
+            case CACHED_NOTE_ON: // Played from the cache again if the replay has one, on a voice otherwise
+                synth.startNote(synth.getPart((record.getArg1() >>> 12) & 0xF), record.getArg0(), record.getArg1() & 0xFF, record.getValue(), NotePath.values()[(record.getArg1() >>> 8) & 0xF]);
+                break;
+            case NOTE_OFF: synth.noteOff(record.getArg0()); break;
+            case OSC_TYPE: part.setOscType(OscType.values()[record.getArg1()]); break;
+            case ATTACK: part.setAttack(record.getValue()); break;
+            case DECAY: part.setDecay(record.getValue()); break;
+            case SUSTAIN: part.setSustain(record.getValue()); break;
+            case RELEASE: part.setRelease(record.getValue()); break;
+            case FILTER_CUTOFF: part.setFilterCutoff(record.getValue()); break;
+            case FILTER_RESONANCE: part.setFilterResonance(record.getValue()); break;
+            case FILTER_TYPE: part.setFilterType(FilterType.values()[record.getArg1()]); break;
+            case EXPRESSION: synth.setChannelExpression(record.getArg0(), Expression.values()[record.getArg1()], record.getValue()); break;
+            case FM_ALGORITHM: part.setFmAlgorithm(FmAlgorithm.values()[record.getArg1()]); break;
+            case FM_OPERATOR: part.setFmOperator(record.getArg1() & 0xF, FmParam.values()[record.getArg1() >> 4], record.getValue()); break;
+            case ENVELOPE_CURVE: part.setEnvelopeCurve(EnvelopeCurve.values()[record.getArg1()]); break;
+            case BAND_LIMITED: part.setBandLimited(record.getArg1() != 0); break;
+            case PULSE_WIDTH: part.setPulseWidth(record.getValue()); break;
+            case PATCH_DATA:
+                if (record.getArg0() != patchChannel) patchRecord.clear(); // Another part's load was cut short
+                patchChannel = record.getArg0();
+                if (patchRecord.remaining() >= 8) patchRecord.putInt(record.getArg1()).putInt((int) record.getValue());
+                break;
+            case PATCH_LOAD:
+                if (record.getArg0() == patchChannel && !patchRecord.hasRemaining()) { // Skipped if the ring overwrote part of the record
+                    patchRecord.flip();
+                    part.setPatch(Patch.read(patchRecord), PatchSwap.values()[record.getArg1()]);
+                }
+                patchRecord.clear();
+                patchChannel = -1;
+                break;
+            case MOD_ROUTING: synth.getModMatrix().addRouting(ModSource.values()[record.getArg0()], ModDestination.values()[record.getArg1()], record.getValue()); break;
+            case MOD_DEPTH: // Skipped if the ring overwrote the routing it changes
+                if (record.getArg0() < synth.getModMatrix().getRoutingCount()) synth.getModMatrix().setDepth(record.getArg0(), record.getValue());
+                break;
+            case MOD_ROUTING_REMOVED:
+                if (record.getArg0() < synth.getModMatrix().getRoutingCount()) synth.getModMatrix().removeRouting(record.getArg0());
+                break;
+            case MOD_ROUTINGS_CLEARED: synth.getModMatrix().clearRoutings(); break;
+            case LFO:
+                if (record.getArg0() == 1) synth.getModMatrix().setLfo1(record.getValue(), OscType.values()[record.getArg1()]);
+                else synth.getModMatrix().setLfo2(record.getValue(), OscType.values()[record.getArg1()]);
+                break;
+            case FILTER_ENVELOPE:
+                filterEnvelope[record.getArg0() & 3] = record.getValue();
+                if (record.getArg0() == 3) synth.getModMatrix().setFilterEnvelope(filterEnvelope[0], filterEnvelope[1], filterEnvelope[2], filterEnvelope[3]); // Release comes last
+                break;
+            case MPE_MODE: synth.setMpeMode(record.getArg1() != 0); break;
+            case VOICE_LIMIT: part.setVoiceLimit(record.getArg1()); break;
+            case RESERVED_VOICES: part.setReservedVoices(record.getArg1()); break;
+            case VOICE_STEALING: part.setVoiceStealing(record.getArg1() != 0); break;
+            default: break; // Key events are already replayed as notes
+        }
+    }
+
+    /**
+     * Replays a journal and prints how long the engine took to render it
+     *
+     * @param args the journal file (default ~/.javasynth/journal.bin), then optional
+     *             --dump (list the events), --repeat N (replay N times for profiling)
+     *             and --tail seconds (audio rendered after the last event)
+     */
+    public static void main(String[] args) throws IOException {
+        Path file = EventJournal.defaultPath();
+        boolean dump = false;
+        int repeat = 1;
+        double tail = 1.0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dump": dump = true; break;
+                case "--repeat": repeat = Integer.parseInt(args[++i]); break;
+                case "--tail": tail = Double.parseDouble(args[++i]); break;
+                default: file = Paths.get(args[i]); break;
+            }
+        }
+        JournalReplay replay = load(file);
+        int frameRate = EventJournal.readFrameRate(file);
+        int maxVoices = EventJournal.readMaxVoices(file);
+        System.out.println("# " + file + ": " + replay.getEventCount() + " events over " + replay.getLengthFrames() + " frames, " + maxVoices + " voices at " + frameRate + " Hz");
+        if (dump) for (EventJournal.Record record : replay.records) System.out.println(record);
+        for (int run = 0; run < repeat; run++) {
+            Synth synth = new Synth(maxVoices); // Fresh synth so every run starts from the same state
+            OfflineRenderer renderer = synth.startOffline(frameRate);
+            replay.reset();
+            long startFrame = renderer.getFrameCount();
+            long worstNanos = 0;
+            long start = System.nanoTime();
+            while (!replay.isDone()) {
+                long bufferStart = System.nanoTime();
+                replay.renderBuffer(synth, renderer);
+                worstNanos = Math.max(worstNanos, System.nanoTime() - bufferStart);
+            }
+            renderer.renderSeconds(tail);
+            long elapsed = System.nanoTime() - start;
+            double audioSeconds = (double) (renderer.getFrameCount() - startFrame) / frameRate;
+            System.out.printf("run %d: %.3f s of audio in %.3f s (%.1fx real time), slowest buffer %d us%n", run, audioSeconds, elapsed / 1e9, audioSeconds / (elapsed / 1e9), worstNanos / 1000);
+        }
+    }
+}
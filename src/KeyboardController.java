@@ -1,24 +1,56 @@
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * KeyboardController handles mapping computer keyboard keys to MIDI notes
  * and interfaces with the synthesizer to trigger notes.
+ * Keys are looked up in arrays indexed by key code, so key events do not box or allocate.
+ *
+ * Auto repeat on Linux sends a release and a press with the same time stamp for a held key.
+ * A release is therefore held back for a short repeat window: a press of the same key whose
+ * time stamp falls inside the window cancels it and the note plays on, otherwise a release
+ * thread lets the note go when the window has passed. The layout can be loaded from a file.
  */
 public class KeyboardController implements KeyListener {
-    // Map to store key codes to MIDI note numbers
-    private Map<Integer, Integer> keyToMidiMap;
+    // Key codes that can be mapped (0 to 255)
+    private static final int KEY_CODES = 256;
+
+    /**
+     * Default repeat window in milliseconds
+     */
+    public static final int DEFAULT_REPEAT_WINDOW = 25;
+
+    // MIDI note number by key code, -1 if the key is not mapped (replaced whole when a layout is loaded)
+    private volatile int[] keyToMidiMap;
     
     // Reference to the Synth object
     private Synth synth;
     
-    // Currently active notes (key code -> voice index)
-    private Map<Integer, Integer> activeNotes;
+    // Currently active notes (voice index by key code, -1 if the key is not held)
+    private int[] activeNotes;
     
     // Default velocity for key presses
     private double defaultVelocity = 0.7;
+
+    // Release held back per key: event time in ms and arrival time in ns, -1 if none
+    private long[] releaseWhen;
+    private long[] releaseArrival;
+    // Number of keys with a release held back
+    private int pendingReleases = 0;
+    // Time a release waits for a repeat press, 0 to release at once
+    private int repeatWindowMillis = DEFAULT_REPEAT_WINDOW;
+    // Repeat presses swallowed so far
+    private long suppressedRepeats = 0;
+    // Thread that lets held back releases go, started with the first one
+    private Thread releaseThread;
     
     /**
      * Creates a new KeyboardController with a reference to the synth
@@ -27,7 +59,11 @@ public class KeyboardController implements KeyListener {
      */
     public KeyboardController(Synth synth) {
         this.synth = synth;
-        this.activeNotes = new HashMap<>(); // Map to store active notes
+        this.activeNotes = new int[KEY_CODES]; // Voice index of each held key
+        Arrays.fill(activeNotes, -1); // No key held
+        this.releaseWhen = new long[KEY_CODES];
+        this.releaseArrival = new long[KEY_CODES];
+        Arrays.fill(releaseWhen, -1); // No release held back
         initializeKeyMap(); // Initialize the key map
     }
     
@@ -41,41 +77,42 @@ public class KeyboardController implements KeyListener {
      * Where A is C3, W is C#3, S is D3, etc.
      */
     private void initializeKeyMap() {
-        keyToMidiMap = new HashMap<>(); // Initialize the key map
+        keyToMidiMap = new int[KEY_CODES]; // Initialize the key map
+        Arrays.fill(keyToMidiMap, -1); // No key mapped
         
         // Lower row (A-;') - white keys
-        keyToMidiMap.put(KeyEvent.VK_A, 60); // C3 (middle C)
-        keyToMidiMap.put(KeyEvent.VK_S, 62); // D3
-        keyToMidiMap.put(KeyEvent.VK_D, 64); // E3
-        keyToMidiMap.put(KeyEvent.VK_F, 65); // F3
-        keyToMidiMap.put(KeyEvent.VK_G, 67); // G3
-        keyToMidiMap.put(KeyEvent.VK_H, 69); // A3
-        keyToMidiMap.put(KeyEvent.VK_J, 71); // B3
-        keyToMidiMap.put(KeyEvent.VK_K, 72); // C4
-        keyToMidiMap.put(KeyEvent.VK_L, 74); // D4
-        keyToMidiMap.put(KeyEvent.VK_SEMICOLON, 76); // E4
-        keyToMidiMap.put(KeyEvent.VK_QUOTE, 77); // F4
+        keyToMidiMap[KeyEvent.VK_A] = 60; // C3 (middle C)
+        keyToMidiMap[KeyEvent.VK_S] = 62; // D3
+        keyToMidiMap[KeyEvent.VK_D] = 64; // E3
+        keyToMidiMap[KeyEvent.VK_F] = 65; // F3
+        keyToMidiMap[KeyEvent.VK_G] = 67; // G3
+        keyToMidiMap[KeyEvent.VK_H] = 69; // A3
+        keyToMidiMap[KeyEvent.VK_J] = 71; // B3
+        keyToMidiMap[KeyEvent.VK_K] = 72; // C4
+        keyToMidiMap[KeyEvent.VK_L] = 74; // D4
+        keyToMidiMap[KeyEvent.VK_SEMICOLON] = 76; // E4
+        keyToMidiMap[KeyEvent.VK_QUOTE] = 77; // F4
         
         // Upper row (Q-]) - black keys and additional white keys
-        keyToMidiMap.put(KeyEvent.VK_W, 61); // C#3
-        keyToMidiMap.put(KeyEvent.VK_E, 63); // D#3
-        keyToMidiMap.put(KeyEvent.VK_R, 66); // F#3
-        keyToMidiMap.put(KeyEvent.VK_T, 68); // G#3
-        keyToMidiMap.put(KeyEvent.VK_Y, 70); // A#3
-        keyToMidiMap.put(KeyEvent.VK_I, 73); // C#4
-        keyToMidiMap.put(KeyEvent.VK_O, 75); // D#4
-        keyToMidiMap.put(KeyEvent.VK_P, 78); // F#4
-        keyToMidiMap.put(KeyEvent.VK_OPEN_BRACKET, 80); // G#4
-        keyToMidiMap.put(KeyEvent.VK_CLOSE_BRACKET, 82); // A#4
+        keyToMidiMap[KeyEvent.VK_W] = 61; // C#3
+        keyToMidiMap[KeyEvent.VK_E] = 63; // D#3
+        keyToMidiMap[KeyEvent.VK_R] = 66; // F#3
+        keyToMidiMap[KeyEvent.VK_T] = 68; // G#3
+        keyToMidiMap[KeyEvent.VK_Y] = 70; // A#3
+        keyToMidiMap[KeyEvent.VK_I] = 73; // C#4
+        keyToMidiMap[KeyEvent.VK_O] = 75; // D#4
+        keyToMidiMap[KeyEvent.VK_P] = 78; // F#4
+        keyToMidiMap[KeyEvent.VK_OPEN_BRACKET] = 80; // G#4
+        keyToMidiMap[KeyEvent.VK_CLOSE_BRACKET] = 82; // A#4
         
         // Additional keys for more range
-        keyToMidiMap.put(KeyEvent.VK_Z, 48); // C2
-        keyToMidiMap.put(KeyEvent.VK_X, 50); // D2
-        keyToMidiMap.put(KeyEvent.VK_C, 52); // E2
-        keyToMidiMap.put(KeyEvent.VK_V, 53); // F2
-        keyToMidiMap.put(KeyEvent.VK_B, 55); // G2
-        keyToMidiMap.put(KeyEvent.VK_N, 57); // A2
-        keyToMidiMap.put(KeyEvent.VK_M, 59); // B2
+        keyToMidiMap[KeyEvent.VK_Z] = 48; // C2
+        keyToMidiMap[KeyEvent.VK_X] = 50; // D2
+        keyToMidiMap[KeyEvent.VK_C] = 52; // E2
+        keyToMidiMap[KeyEvent.VK_V] = 53; // F2
+        keyToMidiMap[KeyEvent.VK_B] = 55; // G2
+        keyToMidiMap[KeyEvent.VK_N] = 57; // A2
+        keyToMidiMap[KeyEvent.VK_M] = 59; // B2
     }
 
     /**
@@ -86,7 +123,7 @@ public class KeyboardController implements KeyListener {
      */
     public int getMidiNoteForKey(int keyCode) {
         if (keyCode < 0 || keyCode > 255) throw new IllegalArgumentException("Key code must be between 0 and 255");
-        return keyToMidiMap.getOrDefault(keyCode, -1); // returns the value of the key code or -1 if it is not mapped
+        return keyToMidiMap[keyCode]; // returns the value of the key code or -1 if it is not mapped
     } 
     
     /**
@@ -97,7 +134,149 @@ public class KeyboardController implements KeyListener {
      */
     public boolean isNoteMappedKey(int keyCode) {
         if (keyCode < 0 || keyCode > 255) throw new IllegalArgumentException("Key code must be between 0 and 255");
-        return keyToMidiMap.containsKey(keyCode); // returns true if the key code is mapped to a MIDI note
+        return keyToMidiMap[keyCode] >= 0; // returns true if the key code is mapped to a MIDI note
+    }
+
+    /**
+     * Maps a key to a MIDI note
+     *
+     * @param keyCode the key code (0 to 255)
+     * @param note the MIDI note (0 to 127), or -1 to unmap the key
+     */
+    public synchronized void setKeyMapping(int keyCode, int note) {
+        if (keyCode < 0 || keyCode > 255) throw new IllegalArgumentException("Key code must be between 0 and 255");
+        if (note < -1 || note > 127) throw new IllegalArgumentException("Note must be between 0 and 127, or -1");
+        keyToMidiMap[keyCode] = note;
+    }
+
+    /**
+     * Replaces the layout with one read from a properties file. Each entry maps a key, by its
+     * KeyEvent name with or without "VK_" (e.g. {@code A}, {@code VK_SEMICOLON}) or by its key
+     * code, to a MIDI note, e.g. {@code Z = 36}. Keys not in the file are unmapped.
+     *
+     * @param file the layout file
+     * @throws IOException if the file cannot be read or has an invalid entry
+     */
+    public void loadLayout(Path file) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        int[] layout = new int[KEY_CODES];
+        Arrays.fill(layout, -1);
+        for (String key : props.stringPropertyNames()) {
+            int keyCode = parseKeyCode(key.trim());
+            if (keyCode < 0 || keyCode >= KEY_CODES) throw new IOException("Unknown key \"" + key + "\" in " + file);
+            try {
+                int note = Integer.parseInt(props.getProperty(key).trim());
+                if (note < 0 || note > 127) throw new IOException("Note for " + key + " must be between 0 and 127 in " + file);
+                layout[keyCode] = note;
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid note for " + key + " in " + file, e);
+            }
+        }
+        synchronized (this) {
+            keyToMidiMap = layout; // Held keys keep their voices and still release
+        }
+    }
+
+    /**
+     * Gets the per user file a keyboard layout is loaded from at start up
+     *
+     * @return the path of the layout file
+     */
+    public static Path defaultLayoutPath() {return Paths.get(System.getProperty("user.home"), ".javasynth", "keys.properties");}
+
+    /**
+     * Looks up a key code by number or by KeyEvent constant name
+     *
+     * @return the key code, or -1 if there is no such key
+     */
+    private static int parseKeyCode(String key) {
+        if (!key.isEmpty() && Character.isDigit(key.charAt(0))) {
+            try {
+                return Integer.parseInt(key);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        String name = key.toUpperCase().startsWith("VK_") ? key.toUpperCase() : "VK_" + key.toUpperCase();
+        try {
+            return KeyEvent.class.getField(name).getInt(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sets how long a release waits for an auto repeat press before the note is let go
+     *
+     * @param millis the repeat window in milliseconds (0 to 200), 0 to release at once
+     */
+    public synchronized void setRepeatWindow(int millis) {
+        if (millis < 0 || millis > 200) throw new IllegalArgumentException("Repeat window must be between 0 and 200 ms");
+        repeatWindowMillis = millis;
+        if (millis == 0) flushReleases(Long.MAX_VALUE); // Nothing waits any more
+    }
+
+    /**
+     * Gets the repeat window
+     *
+     * @return the repeat window in milliseconds
+     */
+    public int getRepeatWindow() {return repeatWindowMillis;}
+
+    /**
+     * Gets the number of auto repeat presses that were swallowed
+     *
+     * @return the suppressed repeat count
+     */
+    public long getSuppressedRepeats() {return suppressedRepeats;}
+
+    /**
+     * Lets go of every held back release that arrived before a time
+     *
+     * @param nanos the System.nanoTime before which releases are due
+     */
+    synchronized void flushReleases(long nanos) {
+        if (pendingReleases == 0) return;
+        for (int keyCode = 0; keyCode < KEY_CODES; keyCode++) {
+            if (releaseWhen[keyCode] >= 0 && releaseArrival[keyCode] <= nanos) release(keyCode);
+        }
+    }
+
+    /**
+     * Releases the note of a held key
+     */
+    private void release(int keyCode) {
+        if (releaseWhen[keyCode] >= 0) {
+            releaseWhen[keyCode] = -1;
+            pendingReleases--;
+        }
+        int voiceIndex = activeNotes[keyCode]; // Get the voice index
+        if (voiceIndex == -1) return;
+        if (voiceIndex >= 0) synth.noteOff(voiceIndex); // Release the note, a cached note ends by itself
+        activeNotes[keyCode] = -1; // Remove the note from the active notes
+    }
+
+    /**
+     * Starts the thread that lets held back releases go once their window has passed
+     */
+    private void startReleaseThread() {
+        releaseThread = new Thread(() -> {
+            while (true) {
+                long wait;
+                synchronized (this) {
+                    long window = repeatWindowMillis * 1_000_000L;
+                    flushReleases(System.nanoTime() - window);
+                    wait = (pendingReleases > 0) ? window / 2 + 1 : 0; // Due within half a window of the deadline
+                }
+                if (wait > 0) LockSupport.parkNanos(wait);
+                else LockSupport.park(); // Nothing held back, wait for a release
+            }
+        }, "key-release");
+        releaseThread.setDaemon(true);
+        releaseThread.start();
     }
     
     /**
@@ -106,20 +285,29 @@ public class KeyboardController implements KeyListener {
      * @param e the KeyEvent
      */
     @Override
-    public void keyPressed(KeyEvent e) {
+    public synchronized void keyPressed(KeyEvent e) {
         int keyCode = e.getKeyCode(); // Get the key code
+        EventJournal journal = synth.getJournal();
+        if (journal != null) journal.record(EventJournal.Type.KEY_PRESSED, 0, keyCode, 0.0); // Journal the raw key
+        if (keyCode < 0 || keyCode >= KEY_CODES) return; // Keys outside the table are never mapped
+        if (releaseWhen[keyCode] >= 0) { // The key was released a moment ago
+            if (e.getWhen() - releaseWhen[keyCode] <= repeatWindowMillis) { // Auto repeat, keep the note playing
+                releaseWhen[keyCode] = -1;
+                pendingReleases--;
+                suppressedRepeats++;
+                return;
+            }
+            release(keyCode); // A real second press, end the first note before the new one
+        }
         // Check if this key is already active (to avoid retriggering)
-        if (activeNotes.containsKey(keyCode)) return; // Return if the key is already active
+        if (activeNotes[keyCode] != -1) return; // Return if the key is already active
         // Check if this key maps to a MIDI note
         if (isNoteMappedKey(keyCode)) {
             int midiNote = getMidiNoteForKey(keyCode); // Get the MIDI note number
             
-            // Find an available voice and trigger the note
-            int voiceIndex = synth.getAvailableVoice(); 
-            if (voiceIndex >= 0) { // If a voice is available
-                synth.noteOn(voiceIndex, midiNote, defaultVelocity); // Trigger the note
-                activeNotes.put(keyCode, voiceIndex); // Add the note to the active notes
-            }
+            // Play the note on part 0, on a free voice or from the note cache
+            int voiceIndex = synth.noteOnChannel(0, midiNote, defaultVelocity, NotePath.KEYBOARD);
+            if (voiceIndex != -1) activeNotes[keyCode] = voiceIndex; // Voice index, or Synth.CACHED_NOTE
         }
     }
     
@@ -129,15 +317,22 @@ public class KeyboardController implements KeyListener {
      * @param e the KeyEvent
      */
     @Override
-    public void keyReleased(KeyEvent e) {
+    public synchronized void keyReleased(KeyEvent e) {
         int keyCode = e.getKeyCode(); // Get the key code
+        EventJournal journal = synth.getJournal();
+        if (journal != null) journal.record(EventJournal.Type.KEY_RELEASED, 0, keyCode, 0.0); // Journal the raw key
         
         // Check if this key is active
-        if (activeNotes.containsKey(keyCode)) {
-            int voiceIndex = activeNotes.get(keyCode); // Get the voice index
-            synth.noteOff(voiceIndex); // Release the note
-            activeNotes.remove(keyCode); // Remove the note from the active notes
+        if (keyCode < 0 || keyCode >= KEY_CODES || activeNotes[keyCode] == -1 || releaseWhen[keyCode] >= 0) return;
+        if (repeatWindowMillis == 0) {
+            release(keyCode); // No repeat window, release at once
+            return;
         }
+        releaseWhen[keyCode] = e.getWhen(); // Hold the release back in case a repeat press follows
+        releaseArrival[keyCode] = System.nanoTime();
+        pendingReleases++;
+        if (releaseThread == null) startReleaseThread();
+        else LockSupport.unpark(releaseThread); // Wake it to time the window
     }
     
     /**
@@ -0,0 +1,210 @@
+import com.jsyn.devices.AudioDeviceFactory;
+import com.jsyn.devices.AudioDeviceManager;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * LatencyCalibrator finds the smallest device buffer that plays without glitches on this machine.
+ * It starts the synth at each candidate buffer size with every voice playing a sawtooth
+ * (the worst case load), watches the buffers with an AudioBlockMonitor and keeps the
+ * smallest size with no underruns and almost no late blocks.
+ */
+public class LatencyCalibrator {
+    /**
+     * Buffer sizes tried when none are given
+     */
+    public static final int[] DEFAULT_CANDIDATES = {64, 128, 256, 512, 1024, 2048, 4096};
+    /**
+     * Largest share of late blocks a buffer size may have and still count as stable
+     */
+    public static final double MAX_LATE_RATIO = 0.001;
+
+    // Devices to calibrate
+    private AudioDeviceManager devices;
+    // Frame rate to calibrate at
+    private int frameRate;
+    // Number of voices playing during each probe
+    private int voices;
+    // Seconds each candidate is played for
+    private double probeSeconds = 3.0;
+    // Seconds at the start of each probe that are not measured
+    private double warmupSeconds = 0.5;
+    // Results of the last calibration
+    private List<ProbeResult> results = new ArrayList<>();
+
+    /**
+     * Result of playing one buffer size
+     */
+    public static class ProbeResult {
+        private final int bufferFrames;
+        private final long blocks;
+        private final long lateBlocks;
+        private final long underruns;
+
+        ProbeResult(int bufferFrames, long blocks, long lateBlocks, long underruns) {
+            this.bufferFrames = bufferFrames;
+            this.blocks = blocks;
+            this.lateBlocks = lateBlocks;
+            this.underruns = underruns;
+        }
+
+        /**
+         * Gets the buffer size
+         *
+         * @return the buffer size in frames
+         */
+        public int getBufferFrames() {return bufferFrames;}
+
+        /**
+         * Gets the number of buffers checked
+         *
+         * @return the number of buffers checked
+         */
+        public long getBlocks() {return blocks;}
+
+        /**
+         * Gets the number of late buffers
+         *
+         * @return the number of late buffers
+         */
+        public long getLateBlocks() {return lateBlocks;}
+
+        /**
+         * Gets the number of underruns
+         *
+         * @return the number of underruns
+         */
+        public long getUnderruns() {return underruns;}
+
+        /**
+         * Checks if the buffer size is stable
+         *
+         * @return true if the buffer size played without underruns and with almost no late buffers
+         */
+        public boolean isStable() {return blocks > 0 && underruns == 0 && lateBlocks <= blocks * MAX_LATE_RATIO;}
+
+        @Override
+        public String toString() {
+            return String.format("%5d frames: %6d blocks, %4d late, %4d underruns%s", bufferFrames, blocks, lateBlocks, underruns, isStable() ? " (stable)" : "");
+        }
+    }
+
+    /**
+     * Creates a new LatencyCalibrator
+     *
+     * @param devices the device manager to calibrate
+     * @param frameRate the frame rate in Hz
+     * @param voices the number of voices playing during each probe
+     */
+    public LatencyCalibrator(AudioDeviceManager devices, int frameRate, int voices) {
+        if (devices == null) throw new IllegalArgumentException("Device manager cannot be null");
+        if (voices < 1 || voices > Synth.MAX_POLYPHONY) throw new IllegalArgumentException("Voices must be between 1 and " + Synth.MAX_POLYPHONY);
+        new AudioConfig(frameRate, AudioConfig.DEVICE_DEFAULT_BUFFER); // Validates the frame rate
+        this.devices = devices;
+        this.frameRate = frameRate;
+        this.voices = voices;
+    }
+
+    /**
+     * Sets how long each buffer size is played for
+     *
+     * @param seconds the probe length in seconds
+     */
+    public void setProbeSeconds(double seconds) {
+        if (seconds <= 0) throw new IllegalArgumentException("Probe time must be positive");
+        probeSeconds = seconds;
+    }
+
+    /**
+     * Sets how long the start of each probe is ignored for
+     *
+     * @param seconds the warm up time in seconds
+     */
+    public void setWarmupSeconds(double seconds) {
+        if (seconds < 0) throw new IllegalArgumentException("Warm up time cannot be negative");
+        warmupSeconds = seconds;
+    }
+
+    /**
+     * Plays the synth at one buffer size under full load
+     *
+     * @param bufferFrames the buffer size in frames
+     * @return what the monitor saw
+     * @throws InterruptedException if interrupted while playing
+     */
+    public ProbeResult probe(int bufferFrames) throws InterruptedException {
+        Synth synth = new Synth(voices, devices); // Fresh engine for every probe
+        synth.setAudioConfig(new AudioConfig(frameRate, bufferFrames));
+        synth.setOscType(OscType.SAWTOOTH); // Richest waveform
+        for (int i = 0; i < voices; i++) synth.noteOn(synth.getAvailableVoice(), 36 + (i % 48), 0.5); // Every voice busy
+        AudioBlockMonitor monitor = new AudioBlockMonitor(synth.getSynthesizer(), bufferFrames, (long) (warmupSeconds * frameRate));
+        synth.getSynthesizer().addAudioTask(monitor);
+        synth.startEngine();
+        try {
+            Thread.sleep((long) ((warmupSeconds + probeSeconds) * 1000));
+        } finally {
+            synth.stop();
+        }
+        return new ProbeResult(bufferFrames, monitor.getBlocks(), monitor.getLateBlocks(), monitor.getUnderruns());
+    }
+
+    /**
+     * Probes the candidates from smallest to largest and stops at the first stable one
+     *
+     * @param candidates the buffer sizes to try
+     * @return the config with the smallest stable buffer, or the largest candidate if none were stable
+     * @throws InterruptedException if interrupted while playing
+     */
+    public AudioConfig calibrate(int[] candidates) throws InterruptedException {
+        if (candidates == null || candidates.length == 0) throw new IllegalArgumentException("At least one candidate is needed");
+        int[] sorted = candidates.clone();
+        Arrays.sort(sorted);
+        results.clear();
+        for (int frames : sorted) {
+            ProbeResult result = probe(frames);
+            results.add(result);
+            if (result.isStable()) return new AudioConfig(frameRate, frames);
+        }
+        return new AudioConfig(frameRate, sorted[sorted.length - 1]); // Nothing was stable, use the safest setting
+    }
+
+    /**
+     * Gets the results of the last calibration
+     *
+     * @return the probe results in the order they ran
+     */
+    public List<ProbeResult> getResults() {return results;}
+
+    /**
+     * Calibrates the default audio device (or the null device with --null) and saves the result
+     *
+     * @param args [--null] [--voices N] [--rate HZ] [--seconds S]
+     * @throws Exception if calibration or saving fails
+     */
+    public static void main(String[] args) throws Exception {
+        boolean useNull = false;
+        int voices = Synth.DEFAULT_MAX_VOICES;
+        int rate = 44100;
+        double seconds = 3.0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--null")) useNull = true;
+            else if (args[i].equals("--voices")) voices = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--rate")) rate = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--seconds")) seconds = Double.parseDouble(args[++i]);
+            else throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+        AudioDeviceManager devices = useNull ? new NullAudioDevice() : AudioDeviceFactory.createAudioDeviceManager();
+        LatencyCalibrator calibrator = new LatencyCalibrator(devices, rate, voices);
+        calibrator.setProbeSeconds(seconds);
+        AudioConfig config = calibrator.calibrate(DEFAULT_CANDIDATES);
+        for (ProbeResult result : calibrator.getResults()) System.out.println(result);
+        try {
+            config.save(AudioConfig.defaultPath());
+            System.out.println("Saved " + config + " to " + AudioConfig.defaultPath());
+        } catch (IOException e) {
+            System.err.println("Could not save audio settings: " + e.getMessage());
+        }
+    }
+}
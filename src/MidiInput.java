@@ -0,0 +1,120 @@
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+
+/**
+ * MidiInput plays MIDI note messages on the synth part of their channel,
+ * so one synth can be driven as a 16 part multi-timbral sound module.
+ * Pitch bend, channel pressure, polyphonic aftertouch and CC 74 are passed on as
+ * per-channel expression, which in MPE mode is per-note expression.
+ */
+public class MidiInput implements Receiver {
+    /**
+     * MPE timbre controller (CC 74)
+     */
+    public static final int TIMBRE_CC = 74;
+
+    // The synth the notes are played on
+    private Synth synth;
+    // Pitch bend range in semitones, -1 until set to follow the synth's MPE mode
+    private double bendRange = -1;
+
+    /**
+     * Creates a new MidiInput
+     *
+     * @param synth the synth to play
+     */
+    public MidiInput(Synth synth) {
+        if (synth == null) throw new IllegalArgumentException("Synth cannot be null");
+        this.synth = synth;
+    }
+
+    /**
+     * Handles a MIDI message. Note on and note off are played, everything else is ignored.
+     *
+     * @param message the MIDI message
+     * @param timeStamp the time stamp in microseconds (not used, notes play right away)
+     */
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        if (!(message instanceof ShortMessage)) return;
+        ShortMessage sm = (ShortMessage) message;
+        int channel = sm.getChannel();
+        int note = sm.getData1();
+        int velocity = sm.getData2();
+        switch (sm.getCommand()) {
+            case ShortMessage.NOTE_ON:
+                if (velocity > 0) {
+                    synth.noteOnChannel(channel, note, velocity / 127.0, NotePath.MIDI); // Dropped if the part has no voice
+                    break;
+                }
+                synth.noteOffChannel(channel, note); // Note on with velocity 0 is a note off
+                break;
+            case ShortMessage.NOTE_OFF: synth.noteOffChannel(channel, note); break;
+            case ShortMessage.PITCH_BEND:
+                double bend = ((note | (velocity << 7)) - 8192) / 8192.0; // 14 bit, centre 8192
+                synth.setChannelExpression(channel, Expression.PITCH_BEND, bend * getBendRange());
+                break;
+            case ShortMessage.CHANNEL_PRESSURE: synth.setChannelExpression(channel, Expression.PRESSURE, note / 127.0); break;
+            case ShortMessage.POLY_PRESSURE: synth.setNoteExpression(channel, note, Expression.PRESSURE, velocity / 127.0); break;
+            case ShortMessage.CONTROL_CHANGE:
+                if (note == TIMBRE_CC) synth.setChannelExpression(channel, Expression.TIMBRE, velocity / 127.0);
+                break;
+            default: break;
+        }
+    }
+
+    /**
+     * Sets the pitch bend range
+     *
+     * @param semitones the bend at full deflection (0 to 96)
+     */
+    public void setBendRange(double semitones) {
+        if (semitones < 0 || semitones > 96) throw new IllegalArgumentException("Bend range must be between 0 and 96");
+        bendRange = semitones;
+    }
+
+    /**
+     * Gets the pitch bend range. Unless set, 48 semitones in MPE mode and 2 otherwise.
+     *
+     * @return the bend at full deflection in semitones
+     */
+    public double getBendRange() {
+        if (bendRange >= 0) return bendRange;
+        return synth.isMpeMode() ? 48.0 : 2.0;
+    }
+
+    /**
+     * Nothing to release
+     */
+    @Override
+    public void close() {}
+
+    /**
+     * Connects every MIDI input device on the system to a synth
+     *
+     * @param synth the synth to play
+     * @return the number of devices connected
+     */
+    public static int connectAll(Synth synth) {
+        int connected = 0;
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            try {
+                MidiDevice device = MidiSystem.getMidiDevice(info);
+                if (device.getMaxTransmitters() == 0) continue; // Output only device
+                if (device instanceof Sequencer || device instanceof Synthesizer) continue; // Not an input port
+                device.open();
+                device.getTransmitter().setReceiver(new MidiInput(synth));
+                connected++;
+            } catch (MidiUnavailableException e) {
+                System.err.println("Could not open MIDI device " + info.getName() + ": " + e.getMessage());
+            }
+        }
+        return connected;
+    }
+}
@@ -0,0 +1,273 @@
+import com.jsyn.Synthesizer;
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.ports.UnitOutputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import java.util.Arrays;
+
+/**
+ * MixBus sums every voice into one stereo signal.
+ * Each voice connects to its own part of the input port and gets a gain and a pan.
+ * The gain and pan are turned into left/right multipliers when they are set (control rate),
+ * so the per-sample work is one multiply-add per channel for each attached voice. The audio
+ * thread ramps each slot from the multipliers of the last block to the new ones across the
+ * block, so gain and pan changes do not step (zipper noise).
+ * The output has two parts (left, right) which are the only connections into the LineOut.
+ * When stems are recorded each slot is also summed into the stem it is routed to.
+ */
+public class MixBus extends UnitGenerator {
+    /**
+     * One input part per voice slot
+     */
+    public UnitInputPort input;
+    /**
+     * Stereo output, part 0 is left and part 1 is right
+     */
+    public UnitOutputPort output;
+
+    // Gain of each slot
+    private double[] gain;
+    // Pan of each slot (-1.0 left to 1.0 right)
+    private double[] pan;
+    // Left and right multipliers derived from gain and pan
+    private double[] gainLeft;
+    private double[] gainRight;
+    // Slots that currently have a voice attached
+    private boolean[] attached;
+    // Bumped whenever a slot is attached or detached
+    private volatile int layoutVersion = 0;
+    // Optional meter watching for the first audible block of each note
+    private volatile NoteLatencyMeter latencyMeter;
+    // Optional stem sums, and the stem each slot is routed to (-1 for none)
+    private volatile StemRecorder stems;
+    private int[] slotStem;
+
+    // Audio thread copy of the attached slots
+    private int[] activeSlots;
+    private boolean[] active;
+    // Multipliers each slot ended the last block on, ramped towards gainLeft/gainRight
+    private double[] appliedLeft;
+    private double[] appliedRight;
+    private int activeCount = 0;
+    private int seenLayoutVersion = -1;
+
+    /**
+     * Creates a new MixBus
+     *
+     * @param numSlots the number of voice slots
+     */
+    public MixBus(int numSlots) {
+        if (numSlots < 1) throw new IllegalArgumentException("Mix bus needs at least one slot");
+        addPort(input = new UnitInputPort(numSlots, "Input")); // One part per voice
+        addPort(output = new UnitOutputPort(2, "Output")); // Left and right
+        gain = new double[numSlots];
+        pan = new double[numSlots];
+        gainLeft = new double[numSlots];
+        gainRight = new double[numSlots];
+        attached = new boolean[numSlots];
+        activeSlots = new int[numSlots];
+        active = new boolean[numSlots];
+        appliedLeft = new double[numSlots];
+        appliedRight = new double[numSlots];
+        slotStem = new int[numSlots];
+        Arrays.fill(slotStem, -1);
+        for (int i = 0; i < numSlots; i++) {
+            gain[i] = 1.0; // Unity gain
+            updateSlotGains(i); // Centre pan
+        }
+    }
+
+    /**
+     * Adds a slot to the mix
+     *
+     * @param slot the slot index
+     */
+    public void attach(int slot) {
+        checkSlot(slot);
+        attached[slot] = true;
+        layoutVersion++; // Tell the audio thread to rebuild its slot list
+    }
+
+    /**
+     * Removes a slot from the mix
+     *
+     * @param slot the slot index
+     */
+    public void detach(int slot) {
+        checkSlot(slot);
+        attached[slot] = false;
+        layoutVersion++; // Tell the audio thread to rebuild its slot list
+    }
+
+    /**
+     * Sets the gain of a slot
+     *
+     * @param slot the slot index
+     * @param value the gain (0.0 to 1.0)
+     */
+    public void setGain(int slot, double value) {
+        checkSlot(slot);
+        if (value < 0 || value > 1) throw new IllegalArgumentException("Gain must be between 0 and 1");
+        gain[slot] = value;
+        updateSlotGains(slot);
+    }
+
+    /**
+     * Gets the gain of a slot
+     *
+     * @param slot the slot index
+     * @return the gain
+     */
+    public double getGain(int slot) {checkSlot(slot); return gain[slot];}
+
+    /**
+     * Sets the pan of a slot
+     *
+     * @param slot the slot index
+     * @param value the pan (-1.0 left to 1.0 right)
+     */
+    public void setPan(int slot, double value) {
+        checkSlot(slot);
+        if (value < -1 || value > 1) throw new IllegalArgumentException("Pan must be between -1 and 1");
+        pan[slot] = value;
+        updateSlotGains(slot);
+    }
+
+    /**
+     * Gets the pan of a slot
+     *
+     * @param slot the slot index
+     * @return the pan
+     */
+    public double getPan(int slot) {checkSlot(slot); return pan[slot];}
+
+    /**
+     * Sets the meter that is given each slot's output until its note is heard
+     *
+     * @param meter the latency meter, or null to stop measuring
+     */
+    public void setLatencyMeter(NoteLatencyMeter meter) {latencyMeter = meter;}
+
+    /**
+     * Sets the recorder whose stems the slots are summed into
+     *
+     * @param recorder the stem recorder, or null to stop summing stems
+     */
+    public void setStems(StemRecorder recorder) {stems = recorder;}
+
+    /**
+     * Routes a slot to a stem
+     *
+     * @param slot the slot index
+     * @param stem the stem index, or -1 to leave the slot out of the stems
+     */
+    public void setSlotStem(int slot, int stem) {
+        checkSlot(slot);
+        if (stem < -1) throw new IllegalArgumentException("Stem cannot be below -1");
+        slotStem[slot] = stem;
+    }
+
+    /**
+     * Gets the stem a slot is routed to
+     *
+     * @param slot the slot index
+     * @return the stem index, -1 for none
+     */
+    public int getSlotStem(int slot) {checkSlot(slot); return slotStem[slot];}
+
+    /**
+     * Gets the number of slots
+     *
+     * @return the number of slots
+     */
+    public int getNumSlots() {return gain.length;}
+
+    /**
+     * Sums the attached slots into the stereo output
+     *
+     * @param start the start index
+     * @param limit the limit index
+     */
+    @Override
+    public void generate(int start, int limit) {
+        if (seenLayoutVersion != layoutVersion) rebuildActiveSlots(); // Slots changed since last block
+        double[] left = output.getValues(0);
+        double[] right = output.getValues(1);
+        for (int i = start; i < limit; i++) {
+            left[i] = 0.0;
+            right[i] = 0.0;
+        }
+        NoteLatencyMeter meter = latencyMeter;
+        StemRecorder recorder = stems;
+        if (recorder != null) recorder.clearStems(start, limit);
+        for (int k = 0; k < activeCount; k++) {
+            int slot = activeSlots[k];
+            double[] in = input.getValues(slot); // Voice signal for this block
+            double fromLeft = appliedLeft[slot];
+            double fromRight = appliedRight[slot];
+            double toLeft = gainLeft[slot];
+            double toRight = gainRight[slot];
+            double stepLeft = (toLeft - fromLeft) / (limit - start); // Reach the new gains on the last frame
+            double stepRight = (toRight - fromRight) / (limit - start);
+            double gl = fromLeft;
+            double gr = fromRight;
+            for (int i = start; i < limit; i++) {
+                gl += stepLeft;
+                gr += stepRight;
+                left[i] += in[i] * gl;
+                right[i] += in[i] * gr;
+            }
+            appliedLeft[slot] = toLeft; // Exactly, so a settled slot has no step left
+            appliedRight[slot] = toRight;
+            int stem = slotStem[slot];
+            if (recorder != null && stem >= 0 && stem < recorder.getStemCount()) { // The same sum again, into the slot's stem
+                double[] stemLeft = recorder.getStemLeft(stem);
+                double[] stemRight = recorder.getStemRight(stem);
+                gl = fromLeft; // The same ramp again
+                gr = fromRight;
+                for (int i = start; i < limit; i++) {
+                    gl += stepLeft;
+                    gr += stepRight;
+                    stemLeft[i] += in[i] * gl;
+                    stemRight[i] += in[i] * gr;
+                }
+            }
+            if (meter != null && meter.isPending(slot)) {
+                // The engine frame count has already moved past this block
+                long blockFrame = getSynthesisEngine().getFrameCount() - Synthesizer.FRAMES_PER_BLOCK;
+                meter.checkBlock(slot, in, start, limit, blockFrame);
+            }
+        }
+    }
+
+    /**
+     * Copies the attached flags into the dense slot list used by generate
+     */
+    private void rebuildActiveSlots() {
+        seenLayoutVersion = layoutVersion;
+        int count = 0;
+        for (int i = 0; i < attached.length; i++) {
+            if (attached[i] && !active[i]) { // A new voice starts on its own gains, there is nothing to ramp from
+                appliedLeft[i] = gainLeft[i];
+                appliedRight[i] = gainRight[i];
+            }
+            active[i] = attached[i];
+            if (active[i]) activeSlots[count++] = i;
+        }
+        activeCount = count;
+    }
+
+    /**
+     * Recomputes the left/right multipliers of a slot using an equal power pan law
+     *
+     * @param slot the slot index
+     */
+    private void updateSlotGains(int slot) {
+        double angle = (pan[slot] + 1.0) * Math.PI / 4.0; // 0 (left) to PI/2 (right)
+        gainLeft[slot] = gain[slot] * Math.cos(angle);
+        gainRight[slot] = gain[slot] * Math.sin(angle);
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= gain.length) throw new IllegalArgumentException("Slot index out of bounds");
+    }
+}
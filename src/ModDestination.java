@@ -0,0 +1,29 @@
+/**
+ * Enum for the parameters the ModMatrix can modulate
+ * 
+ */
+
+public enum ModDestination {
+    /**
+     * Oscillator pitch, depth in semitones
+     */
+    PITCH("pitch"), 
+    /**
+     * Filter cutoff, depth in octaves
+     */
+    CUTOFF("cutoff"), 
+    /**
+     * Filter resonance, depth added to the resonance (0.0 to 1.0)
+     */
+    RESONANCE("resonance"), 
+    /**
+     * Voice amplitude, depth is how far the source can pull the gain down from 1.0
+     */
+    AMPLITUDE("amplitude"); 
+
+    private final String name; // The name of the destination
+    private ModDestination(String name){this.name = name;}// Constructor
+    @Override
+    public String toString(){return name;}// Returns the name of the destination
+
+}
@@ -0,0 +1,621 @@
+import com.jsyn.Synthesizer;
+import com.jsyn.unitgen.UnitGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ModMatrix routes modulation sources (two LFOs, a filter envelope, velocity and key tracking)
+ * to voice parameters (pitch, cutoff, resonance and amplitude) without adding units to the voices.
+ *
+ * Routings are compiled into flat arrays (source, destination, operation and two coefficients
+ * per routing) whenever they change. The audio thread evaluates that table for every voice once
+ * per control period of CONTROL_BLOCKS blocks and then steps each parameter linearly towards
+ * its new value on every block, so the cost is voices x routings per control period.
+ *
+ * Per note expression (MPE pitch bend, pressure and timbre) is kept as the latest value per
+ * voice. Any number of updates between two blocks collapse into one, and a voice whose expression
+ * changed is re-evaluated on the next block, so dense controller streams never queue up.
+ * Pitch bend is added to the pitch, pressure and timbre are sources for the routings.
+ *
+ * The matrix is started before the LineOut so it writes the voice ports ahead of the voices
+ * being pulled in each block. A destination with no routing is left alone. Being the first unit
+ * of each block, it also has every voice apply its pending note and patch changes.
+ */
+public class ModMatrix extends UnitGenerator {
+    /**
+     * Blocks in one control period (8 blocks of 8 frames, about 1.5 ms at 44.1 kHz)
+     */
+    public static final int CONTROL_BLOCKS = 8;
+
+    // Operations in the compiled table
+    private static final int OP_ADD = 0; // Destination += a * source + b
+    private static final int OP_SCALE = 1; // Destination *= a * source + b
+
+    private static final int SOURCES = ModSource.values().length;
+    private static final int DESTS = ModDestination.values().length;
+    private static final int PITCH = ModDestination.PITCH.ordinal();
+    private static final int CUTOFF = ModDestination.CUTOFF.ordinal();
+    private static final int RESONANCE = ModDestination.RESONANCE.ordinal();
+    private static final int AMPLITUDE = ModDestination.AMPLITUDE.ordinal();
+    private static final int EXPRESSIONS = Expression.values().length;
+    private static final int BEND = Expression.PITCH_BEND.ordinal();
+
+    /**
+     * A routing as set by the user
+     */
+    private static class Routing {
+        ModSource source;
+        ModDestination dest;
+        double depth;
+        Routing(ModSource source, ModDestination dest, double depth) {this.source = source; this.dest = dest; this.depth = depth;}
+    }
+
+    /**
+     * Routings compiled into the flat tables read by the audio thread
+     */
+    private static class Program {
+        final int[] source;
+        final int[] dest;
+        final int[] op;
+        final double[] a;
+        final double[] b;
+        final boolean[] used = new boolean[DESTS]; // Destinations with at least one routing
+
+        Program(List<Routing> routings) {
+            int n = routings.size();
+            source = new int[n];
+            dest = new int[n];
+            op = new int[n];
+            a = new double[n];
+            b = new double[n];
+            for (int r = 0; r < n; r++) {
+                Routing routing = routings.get(r);
+                source[r] = routing.source.ordinal();
+                dest[r] = routing.dest.ordinal();
+                used[dest[r]] = true;
+                if (routing.dest == ModDestination.AMPLITUDE) {
+                    // Gain of 1 - depth at the bottom of the source and 1 at the top
+                    op[r] = OP_SCALE;
+                    double scale = routing.source.isBipolar() ? 0.5 : 1.0; // Bipolar sources are moved to 0..1
+                    double offset = routing.source.isBipolar() ? 0.5 : 0.0;
+                    a[r] = routing.depth * scale;
+                    b[r] = 1.0 - routing.depth + routing.depth * offset;
+                } else {
+                    op[r] = OP_ADD;
+                    a[r] = routing.depth;
+                    b[r] = 0.0;
+                }
+            }
+        }
+    }
+
+    // Routings as set by the user, only touched by the control thread
+    private List<Routing> routings = new ArrayList<>();
+    // Compiled routings read by the audio thread
+    private volatile Program program = new Program(routings);
+
+    // Voices by slot, with a version bumped whenever one is attached or detached
+    private SynthVoice[] voices;
+    private volatile int layoutVersion = 0;
+    // Note state by slot, published by bumping noteVersion
+    private int[] note;
+    private double[] velocity;
+    private boolean[] gate;
+    private int[] noteSerial;
+    private volatile int noteVersion = 0;
+    // Latest expression by slot, published by bumping expressionVersion
+    private double[] expression;
+    private int[] expressionSerial;
+    private volatile int expressionVersion = 0;
+    // Set once any voice is bent, from then on the pitch is always written
+    private volatile boolean bendUsed = false;
+
+    // Settings
+    private volatile double lfo1Rate = 5.0; // Hz
+    private volatile double lfo2Rate = 0.5; // Hz
+    private volatile OscType lfo1Shape = OscType.SINE;
+    private volatile OscType lfo2Shape = OscType.TRIANGLE;
+    private volatile double envAttack = 0.01; // Filter envelope, seconds
+    private volatile double envDecay = 0.3;
+    private volatile double envSustain = 0.0; // Level
+    private volatile double envRelease = 0.3;
+    private double[] baseCutoff; // Per voice, Hz
+    private double[] baseResonance; // Per voice
+    // Journal the setting changes are recorded to, set by the Synth
+    private volatile EventJournal journal;
+
+    // Audio thread state
+    private int[] activeSlots;
+    private int activeCount = 0;
+    private int seenLayoutVersion = -1;
+    private int seenNoteVersion = 0;
+    private int[] seenNoteSerial;
+    private int seenExpressionVersion = 0;
+    private int[] seenExpressionSerial;
+    private Program seenProgram = null;
+    private int blockInPeriod = 0; // Block within the control period
+    private double lfo2Phase = 0.0;
+    private double[] lfo1Phase;
+    private double[] envLevel;
+    private int[] envStage; // 0 idle, 1 attack, 2 decay, 3 sustain, 4 release
+    private double[] sources; // Source values, SOURCES per voice
+    private double[] acc = new double[DESTS]; // Scratch sums for one voice
+    private double[] current; // Parameter values written to the ports, DESTS per voice
+    private double[] step; // Change per block towards the next control value, DESTS per voice
+
+    /**
+     * Creates a new ModMatrix
+     *
+     * @param maxVoices the number of voice slots
+     */
+    public ModMatrix(int maxVoices) {
+        if (maxVoices < 1) throw new IllegalArgumentException("Mod matrix needs at least one voice");
+        voices = new SynthVoice[maxVoices];
+        note = new int[maxVoices];
+        velocity = new double[maxVoices];
+        gate = new boolean[maxVoices];
+        noteSerial = new int[maxVoices];
+        seenNoteSerial = new int[maxVoices];
+        expression = new double[maxVoices * EXPRESSIONS];
+        expressionSerial = new int[maxVoices];
+        seenExpressionSerial = new int[maxVoices];
+        activeSlots = new int[maxVoices];
+        lfo1Phase = new double[maxVoices];
+        envLevel = new double[maxVoices];
+        envStage = new int[maxVoices];
+        sources = new double[maxVoices * SOURCES];
+        current = new double[maxVoices * DESTS];
+        step = new double[maxVoices * DESTS];
+        baseCutoff = new double[maxVoices];
+        baseResonance = new double[maxVoices];
+        Arrays.fill(baseCutoff, 2000.0);
+        Arrays.fill(baseResonance, 0.5);
+    }
+
+    /**
+     * Adds a routing
+     *
+     * @param source the modulation source
+     * @param dest the destination
+     * @param depth the depth in the destination's units (see ModDestination)
+     * @return the index of the routing
+     */
+    public int addRouting(ModSource source, ModDestination dest, double depth) {
+        if (source == null || dest == null) throw new IllegalArgumentException("Source and destination cannot be null");
+        checkDepth(dest, depth);
+        routings.add(new Routing(source, dest, depth));
+        compile();
+        journal(EventJournal.Type.MOD_ROUTING, source.ordinal(), dest.ordinal(), depth);
+        return routings.size() - 1;
+    }
+
+    /**
+     * Changes the depth of a routing
+     *
+     * @param index the routing index
+     * @param depth the new depth
+     */
+    public void setDepth(int index, double depth) {
+        checkRouting(index);
+        checkDepth(routings.get(index).dest, depth);
+        routings.get(index).depth = depth;
+        compile();
+        journal(EventJournal.Type.MOD_DEPTH, index, 0, depth);
+    }
+
+    /**
+     * Removes a routing. Later routings move down one index.
+     *
+     * @param index the routing index
+     */
+    public void removeRouting(int index) {
+        checkRouting(index);
+        routings.remove(index);
+        compile();
+        journal(EventJournal.Type.MOD_ROUTING_REMOVED, index, 0, 0.0);
+    }
+
+    /**
+     * Removes every routing
+     */
+    public void clearRoutings() {
+        routings.clear();
+        compile();
+        journal(EventJournal.Type.MOD_ROUTINGS_CLEARED, 0, 0, 0.0);
+    }
+
+    /**
+     * Gets the number of routings
+     *
+     * @return the routing count
+     */
+    public int getRoutingCount() {return routings.size();}
+
+    /**
+     * Sets the per voice LFO
+     *
+     * @param rate the rate in Hz (0.01 to 50)
+     * @param shape the waveform
+     */
+    public void setLfo1(double rate, OscType shape) {
+        checkLfo(rate, shape);
+        lfo1Rate = rate;
+        lfo1Shape = shape;
+        journal(EventJournal.Type.LFO, 1, shape.ordinal(), rate);
+    }
+
+    /**
+     * Sets the global LFO
+     *
+     * @param rate the rate in Hz (0.01 to 50)
+     * @param shape the waveform
+     */
+    public void setLfo2(double rate, OscType shape) {
+        checkLfo(rate, shape);
+        lfo2Rate = rate;
+        lfo2Shape = shape;
+        journal(EventJournal.Type.LFO, 2, shape.ordinal(), rate);
+    }
+
+    /**
+     * Sets the filter envelope
+     *
+     * @param attack the attack time in seconds
+     * @param decay the decay time in seconds
+     * @param sustain the sustain level (0.0 to 1.0)
+     * @param release the release time in seconds
+     */
+    public void setFilterEnvelope(double attack, double decay, double sustain, double release) {
+        if (attack < 0 || attack > 10 || decay < 0 || decay > 10 || release < 0 || release > 10) throw new IllegalArgumentException("Envelope times must be between 0 and 10");
+        if (sustain < 0 || sustain > 1) throw new IllegalArgumentException("Sustain level must be between 0 and 1");
+        envAttack = attack;
+        envDecay = decay;
+        envSustain = sustain;
+        envRelease = release;
+        journal(EventJournal.Type.FILTER_ENVELOPE, 0, 0, attack);
+        journal(EventJournal.Type.FILTER_ENVELOPE, 1, 0, decay);
+        journal(EventJournal.Type.FILTER_ENVELOPE, 2, 0, sustain);
+        journal(EventJournal.Type.FILTER_ENVELOPE, 3, 0, release); // Replayed as one change on this record
+    }
+
+    /**
+     * Sets the journal routing, LFO and filter envelope changes are recorded to
+     *
+     * @param journal the event journal, or null to stop recording
+     */
+    void setJournal(EventJournal journal) {this.journal = journal;}
+
+    /**
+     * Records a setting change if a journal is set
+     */
+    private void journal(EventJournal.Type type, int arg0, int arg1, double value) {
+        EventJournal j = journal;
+        if (j != null) j.record(type, arg0, arg1, value);
+    }
+
+    /**
+     * Sets the cutoff that CUTOFF modulation is applied around for a voice
+     *
+     * @param slot the voice slot
+     * @param hz the cutoff in Hz
+     */
+    public void setBaseCutoff(int slot, double hz) {checkSlot(slot); baseCutoff[slot] = hz;}
+
+    /**
+     * Sets the resonance that RESONANCE modulation is added to for a voice
+     *
+     * @param slot the voice slot
+     * @param resonance the resonance (0.0 to 1.0)
+     */
+    public void setBaseResonance(int slot, double resonance) {checkSlot(slot); baseResonance[slot] = resonance;}
+
+    /**
+     * Connects a voice to the matrix
+     *
+     * @param slot the voice slot
+     * @param voice the voice
+     */
+    public void attachVoice(int slot, SynthVoice voice) {
+        checkSlot(slot);
+        voices[slot] = voice;
+        layoutVersion++; // Tell the audio thread to rebuild its voice list
+    }
+
+    /**
+     * Disconnects a voice from the matrix
+     *
+     * @param slot the voice slot
+     */
+    public void detachVoice(int slot) {
+        checkSlot(slot);
+        voices[slot] = null;
+        layoutVersion++; // Tell the audio thread to rebuild its voice list
+    }
+
+    /**
+     * Starts the per voice sources for a new note
+     *
+     * @param slot the voice slot
+     * @param midiNote the MIDI note
+     * @param vel the velocity (0.0 to 1.0)
+     */
+    public void noteOn(int slot, int midiNote, double vel) {
+        checkSlot(slot);
+        note[slot] = midiNote;
+        velocity[slot] = vel;
+        gate[slot] = true;
+        noteSerial[slot]++; // Restarts LFO 1 and the filter envelope
+        noteVersion++; // Publish
+    }
+
+    /**
+     * Releases the filter envelope of a voice
+     *
+     * @param slot the voice slot
+     */
+    public void noteOff(int slot) {
+        checkSlot(slot);
+        gate[slot] = false;
+        noteVersion++; // Publish
+    }
+
+    /**
+     * Sets the latest expression of a voice. Only the newest value before each block is used,
+     * so this can be called at any rate. Does not allocate.
+     *
+     * @param slot the voice slot
+     * @param type the expression dimension
+     * @param value semitones for pitch bend, 0.0 to 1.0 for pressure and timbre
+     */
+    public void setExpression(int slot, Expression type, double value) {
+        checkSlot(slot);
+        expression[slot * EXPRESSIONS + type.ordinal()] = value;
+        expressionSerial[slot]++;
+        if (type == Expression.PITCH_BEND && value != 0.0 && !bendUsed) bendUsed = true;
+        expressionVersion++; // Publish
+    }
+
+    /**
+     * Gets the latest expression of a voice
+     *
+     * @param slot the voice slot
+     * @param type the expression dimension
+     * @return the value
+     */
+    public double getExpression(int slot, Expression type) {
+        checkSlot(slot);
+        return expression[slot * EXPRESSIONS + type.ordinal()];
+    }
+
+    /**
+     * Gets the value the matrix last wrote for a destination
+     *
+     * @param slot the voice slot
+     * @param dest the destination
+     * @return the value in Hz for pitch and cutoff, otherwise the resonance or gain
+     */
+    public double getValue(int slot, ModDestination dest) {
+        checkSlot(slot);
+        return current[slot * DESTS + dest.ordinal()];
+    }
+
+    /**
+     * Runs once per block: evaluates the routings at the start of each control period
+     * and steps the parameters of every voice
+     *
+     * @param start the start index
+     * @param limit the limit index
+     */
+    @Override
+    public void generate(int start, int limit) {
+        if (seenLayoutVersion != layoutVersion) rebuildActiveSlots(); // Voices changed since last block
+        for (int k = 0; k < activeCount; k++) { // Note and patch changes first, modulation on top
+            SynthVoice voice = voices[activeSlots[k]];
+            if (voice != null) voice.applyControl(); // Null if detached since the last rebuild
+        }
+        Program prog = program;
+        if (prog != seenProgram) { // Routings changed, put dropped destinations back to their base values
+            if (seenProgram != null) restoreUnused(seenProgram, prog);
+            seenProgram = prog;
+            blockInPeriod = 0; // Evaluate the new table now
+        }
+        double frameRate = getSynthesisEngine().getFrameRate();
+        if (seenNoteVersion != noteVersion) { // New notes jump straight to their values
+            seenNoteVersion = noteVersion;
+            for (int k = 0; k < activeCount; k++) {
+                int slot = activeSlots[k];
+                if (seenNoteSerial[slot] != noteSerial[slot]) {
+                    seenNoteSerial[slot] = noteSerial[slot];
+                    lfo1Phase[slot] = 0.0;
+                    envLevel[slot] = 0.0;
+                    envStage[slot] = 1; // Attack
+                    seenExpressionSerial[slot] = expressionSerial[slot]; // Includes the expression sent before the note
+                    evaluate(prog, slot, 0.0, frameRate, 0);
+                }
+            }
+        }
+        if (seenExpressionVersion != expressionVersion) { // Expression changed, use the latest value of each voice
+            seenExpressionVersion = expressionVersion;
+            for (int k = 0; k < activeCount; k++) {
+                int slot = activeSlots[k];
+                if (seenExpressionSerial[slot] != expressionSerial[slot]) {
+                    seenExpressionSerial[slot] = expressionSerial[slot];
+                    evaluate(prog, slot, 0.0, frameRate, CONTROL_BLOCKS - blockInPeriod); // Arrive with the rest of the period
+                }
+            }
+        }
+        if (blockInPeriod == 0) { // Start of a control period
+            double dt = (double) CONTROL_BLOCKS * Synthesizer.FRAMES_PER_BLOCK / frameRate;
+            lfo2Phase = advance(lfo2Phase, lfo2Rate, dt);
+            for (int k = 0; k < activeCount; k++) evaluate(prog, activeSlots[k], dt, frameRate, CONTROL_BLOCKS);
+        }
+        blockInPeriod = (blockInPeriod + 1) % CONTROL_BLOCKS;
+        for (int k = 0; k < activeCount; k++) write(prog, activeSlots[k]);
+    }
+
+    /**
+     * Advances the sources of a voice and computes the next value of each used destination
+     *
+     * @param prog the compiled routings
+     * @param slot the voice slot
+     * @param dt the time since the last evaluation in seconds
+     * @param frameRate the frame rate
+     * @param blocks the number of blocks to step towards the values over, 0 to set them now
+     */
+    private void evaluate(Program prog, int slot, double dt, double frameRate, int blocks) {
+        // Sources
+        lfo1Phase[slot] = advance(lfo1Phase[slot], lfo1Rate, dt);
+        advanceEnvelope(slot, dt);
+        int s = slot * SOURCES;
+        sources[s + ModSource.LFO1.ordinal()] = shape(lfo1Shape, lfo1Phase[slot]);
+        sources[s + ModSource.LFO2.ordinal()] = shape(lfo2Shape, lfo2Phase);
+        sources[s + ModSource.FILTER_ENV.ordinal()] = envLevel[slot];
+        sources[s + ModSource.VELOCITY.ordinal()] = velocity[slot];
+        sources[s + ModSource.KEY_TRACK.ordinal()] = (note[slot] - 60) / 12.0;
+        int e = slot * EXPRESSIONS;
+        sources[s + ModSource.PRESSURE.ordinal()] = expression[e + Expression.PRESSURE.ordinal()];
+        sources[s + ModSource.TIMBRE.ordinal()] = expression[e + Expression.TIMBRE.ordinal()];
+
+        // Routings
+        acc[PITCH] = expression[e + BEND]; // Semitones, starting from the note's pitch bend
+        acc[CUTOFF] = 0.0; // Octaves
+        acc[RESONANCE] = 0.0;
+        acc[AMPLITUDE] = 1.0; // Gain
+        int[] src = prog.source, dst = prog.dest, op = prog.op;
+        double[] a = prog.a, b = prog.b;
+        for (int r = 0; r < src.length; r++) {
+            double term = a[r] * sources[s + src[r]] + b[r];
+            if (op[r] == OP_ADD) acc[dst[r]] += term;
+            else acc[dst[r]] *= term;
+        }
+
+        // Destination values
+        double nyquist = frameRate * 0.45;
+        int d = slot * DESTS;
+        setTarget(d + PITCH, Math.min(nyquist, 440.0 * Math.pow(2, (note[slot] - 69 + acc[PITCH]) / 12.0)), blocks);
+        setTarget(d + CUTOFF, Math.max(20.0, Math.min(nyquist, baseCutoff[slot] * Math.pow(2, acc[CUTOFF]))), blocks);
+        setTarget(d + RESONANCE, Math.max(0.0, Math.min(1.0, baseResonance[slot] + acc[RESONANCE])), blocks);
+        setTarget(d + AMPLITUDE, Math.max(0.0, Math.min(1.0, acc[AMPLITUDE])), blocks);
+    }
+
+    private void setTarget(int index, double target, int blocks) {
+        if (blocks <= 0) {
+            current[index] = target;
+            step[index] = 0.0;
+        } else {
+            step[index] = (target - current[index]) / blocks; // Reach the target by the end of the period
+        }
+    }
+
+    /**
+     * Steps the used destinations of a voice and writes them to its ports
+     */
+    private void write(Program prog, int slot) {
+        SynthVoice voice = voices[slot];
+        if (voice == null) return;
+        int d = slot * DESTS;
+        boolean[] used = prog.used;
+        for (int i = 0; i < DESTS; i++) current[d + i] += step[d + i];
+        if (used[PITCH] || bendUsed) voice.getOscillator().frequency.setValueInternal(current[d + PITCH]);
+        if (used[CUTOFF]) voice.getFilter().setModulatedCutoff(current[d + CUTOFF]);
+        if (used[RESONANCE]) voice.getFilter().setModulatedResonance(current[d + RESONANCE]);
+        if (used[AMPLITUDE]) voice.getEnvelope().get().amplitude.setValueInternal(current[d + AMPLITUDE]);
+    }
+
+    /**
+     * Writes the base values for destinations the old table used and the new one does not
+     */
+    private void restoreUnused(Program old, Program prog) {
+        for (int k = 0; k < activeCount; k++) {
+            int slot = activeSlots[k];
+            SynthVoice voice = voices[slot];
+            if (voice == null) continue;
+            if (old.used[PITCH] && !prog.used[PITCH]) voice.getOscillator().frequency.setValueInternal(440.0 * Math.pow(2, (note[slot] - 69) / 12.0));
+            if (old.used[CUTOFF] && !prog.used[CUTOFF]) voice.getFilter().setModulatedCutoff(baseCutoff[slot]);
+            if (old.used[RESONANCE] && !prog.used[RESONANCE]) voice.getFilter().setModulatedResonance(baseResonance[slot]);
+            if (old.used[AMPLITUDE] && !prog.used[AMPLITUDE]) voice.getEnvelope().get().amplitude.setValueInternal(1.0);
+        }
+    }
+
+    /**
+     * Moves the filter envelope of a voice forward
+     */
+    private void advanceEnvelope(int slot, double dt) {
+        double level = envLevel[slot];
+        int stage = envStage[slot];
+        if (stage != 0 && stage != 4 && !gate[slot]) stage = 4; // Note released
+        switch (stage) {
+            case 1: // Attack
+                level += (envAttack <= 0) ? 1.0 : dt / envAttack;
+                if (level >= 1.0) {level = 1.0; stage = 2;}
+                break;
+            case 2: // Decay
+                level -= (envDecay <= 0) ? 1.0 : dt * (1.0 - envSustain) / envDecay;
+                if (level <= envSustain) {level = envSustain; stage = 3;}
+                break;
+            case 3: // Sustain
+                level = envSustain;
+                break;
+            case 4: // Release
+                level -= (envRelease <= 0) ? 1.0 : dt / envRelease;
+                if (level <= 0.0) {level = 0.0; stage = 0;}
+                break;
+            default: break; // Idle
+        }
+        envLevel[slot] = level;
+        envStage[slot] = stage;
+    }
+
+    private static double advance(double phase, double rate, double dt) {
+        phase += rate * dt;
+        return phase - Math.floor(phase); // Keep the phase between 0 and 1
+    }
+
+    /**
+     * Gets the value of an LFO waveform at a phase
+     *
+     * @param type the waveform
+     * @param phase the phase (0.0 to 1.0)
+     * @return the value (-1.0 to 1.0)
+     */
+    private static double shape(OscType type, double phase) {
+        switch (type) {
+            case SQUARE: return phase < 0.5 ? 1.0 : -1.0;
+            case SAWTOOTH: return 2.0 * phase - 1.0;
+            case TRIANGLE: return 1.0 - 4.0 * Math.abs(phase - 0.5);
+            default: return Math.sin(2.0 * Math.PI * phase);
+        }
+    }
+
+    /**
+     * Copies the attached voices into the dense slot list used by generate
+     */
+    private void rebuildActiveSlots() {
+        seenLayoutVersion = layoutVersion;
+        int count = 0;
+        for (int i = 0; i < voices.length; i++) if (voices[i] != null) activeSlots[count++] = i;
+        activeCount = count;
+    }
+
+    private void compile() {program = new Program(routings);} // Publish a new table
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= voices.length) throw new IllegalArgumentException("Voice slot out of bounds");
+    }
+
+    private void checkRouting(int index) {
+        if (index < 0 || index >= routings.size()) throw new IllegalArgumentException("Routing index out of bounds");
+    }
+
+    private static void checkDepth(ModDestination dest, double depth) {
+        if (dest == ModDestination.AMPLITUDE && (depth < 0 || depth > 1)) throw new IllegalArgumentException("Amplitude depth must be between 0 and 1");
+        if (Math.abs(depth) > 48) throw new IllegalArgumentException("Depth must be between -48 and 48");
+    }
+
+    private static void checkLfo(double rate, OscType shape) {
+        if (rate < 0.01 || rate > 50) throw new IllegalArgumentException("LFO rate must be between 0.01 and 50");
+        if (shape == null) throw new IllegalArgumentException("LFO shape cannot be null");
+        if (shape == OscType.FM) throw new IllegalArgumentException("LFO shape must be a waveform");
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Enum for the modulation sources of the ModMatrix
+ * 
+ */
+
+public enum ModSource {
+    /**
+     * Per voice LFO, restarted by every note (-1.0 to 1.0)
+     */
+    LFO1("lfo 1", true), 
+    /**
+     * Global LFO shared by every voice (-1.0 to 1.0)
+     */
+    LFO2("lfo 2", true), 
+    /**
+     * Per voice filter envelope (0.0 to 1.0)
+     */
+    FILTER_ENV("filter envelope", false), 
+    /**
+     * Note velocity (0.0 to 1.0)
+     */
+    VELOCITY("velocity", false), 
+    /**
+     * Octaves above middle C (note 60), negative below it
+     */
+    KEY_TRACK("key track", false), 
+    /**
+     * Per note pressure (0.0 to 1.0)
+     */
+    PRESSURE("pressure", false), 
+    /**
+     * Per note timbre, MPE CC 74 (0.0 to 1.0)
+     */
+    TIMBRE("timbre", false); 
+
+    private final String name; // The name of the source
+    private final boolean bipolar; // True if the source swings around 0
+    private ModSource(String name, boolean bipolar){this.name = name; this.bipolar = bipolar;}// Constructor
+    /**
+     * Checks if the source swings between -1.0 and 1.0
+     *
+     * @return true for bipolar sources
+     */
+    public boolean isBipolar(){return bipolar;}
+    @Override
+    public String toString(){return name;}// Returns the name of the source
+
+}
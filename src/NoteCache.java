@@ -0,0 +1,386 @@
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * NoteCache keeps pre-rendered notes of one-shot patches (sustain 0, so a note dies away on
+ * its own) and plays them back through a CachePlayer instead of running the oscillator,
+ * envelope and filter of a voice again. A cached note always plays its whole attack and decay
+ * and ignores the note off, where a voice would start its release early if the key came up
+ * during the attack or decay; the cache is meant for drum and pluck style parts where that
+ * difference is not wanted anyway.
+ *
+ * Entries are keyed by the patch, the note and the velocity quantized to a number of steps.
+ * A note is rendered at its step's velocity and played back scaled to the exact velocity,
+ * which matches the voice because velocity only scales the envelope. The samples are kept
+ * off-heap in direct buffers under a memory budget, and the least recently played entries
+ * are evicted first.
+ *
+ * A note that misses is played by a voice as usual and rendered for next time on a worker
+ * thread with its own engine, or on the calling thread when rendering offline.
+ * Notes with modulation routings or channel pitch bend are never cached.
+ */
+public class NoteCache {
+    /**
+     * Memory budget used when none is given
+     */
+    public static final long DEFAULT_BUDGET_BYTES = 64L << 20;
+    /**
+     * Velocity steps used when none are given
+     */
+    public static final int DEFAULT_VELOCITY_STEPS = 8;
+    /**
+     * Longest note rendered, in seconds
+     */
+    public static final double MAX_NOTE_SECONDS = 10.0;
+
+    // Audio after the end of the decay that is still rendered, for the filter to ring out
+    private static final double TAIL_SECONDS = 0.02;
+    // Renders that may wait for the worker
+    private static final int QUEUE_LIMIT = 64;
+
+    /**
+     * A rendered note
+     */
+    private static class Entry {
+        final Patch patch;
+        final FloatBuffer samples;
+        final long bytes;
+        final long renderNanos; // Time the render took, saved again by every hit
+        Entry(Patch patch, FloatBuffer samples, long bytes, long renderNanos) {this.patch = patch; this.samples = samples; this.bytes = bytes; this.renderNanos = renderNanos;}
+    }
+
+    /**
+     * Copies the left channel of the render engine's mix bus into a buffer, block by block.
+     * The voice is panned to the centre, so the player sends the same samples to both channels.
+     */
+    private static class Recorder extends UnitGenerator {
+        final UnitInputPort input;
+        FloatBuffer target; // Filled until it has no room left
+        Recorder() {addPort(input = new UnitInputPort("Input"));}
+
+        @Override
+        public void generate(int start, int limit) {
+            FloatBuffer samples = target;
+            if (samples == null) return;
+            double[] in = input.getValues();
+            for (int i = start; i < limit && samples.hasRemaining(); i++) samples.put((float) in[i]);
+        }
+    }
+
+    /**
+     * A note waiting for the worker
+     */
+    private static class Request {
+        final Patch patch;
+        final int note;
+        final int step;
+        final long key;
+        Request(Patch patch, int note, int step, long key) {this.patch = patch; this.note = note; this.step = step; this.key = key;}
+    }
+
+    // Entries in play order, least recently played first
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    // Player the hits are sent to
+    private final CachePlayer player;
+    private final long budgetBytes;
+    private final int velocitySteps;
+    private long usedBytes = 0;
+
+    // Metrics
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long savedNanos = 0;
+
+    // Rendering
+    private volatile boolean renderOnWorker = true;
+    private final ArrayDeque<Request> queue = new ArrayDeque<>();
+    private final Set<Long> queued = new HashSet<>();
+    private Thread worker;
+    private volatile int renderFrameRate = 48000; // Engine rate the worker renders at
+    // Engine the notes are rendered with, used under renderLock by whichever thread renders
+    private final Object renderLock = new Object();
+    private Synth renderSynth;
+    private OfflineRenderer renderer;
+    private Recorder recorder;
+
+    /**
+     * Creates a new NoteCache
+     *
+     * @param player the player cache hits are played on
+     * @param budgetBytes the memory the rendered notes may use
+     * @param velocitySteps the number of velocity steps cached per note (1 to 127)
+     */
+    public NoteCache(CachePlayer player, long budgetBytes, int velocitySteps) {
+        if (player == null) throw new IllegalArgumentException("Player cannot be null");
+        if (budgetBytes < 1) throw new IllegalArgumentException("Budget must be positive");
+        if (velocitySteps < 1 || velocitySteps > 127) throw new IllegalArgumentException("Velocity steps must be between 1 and 127");
+        this.player = player;
+        this.budgetBytes = budgetBytes;
+        this.velocitySteps = velocitySteps;
+    }
+
+    /**
+     * Checks if a patch can be cached. Cached notes ignore the note off, see the class comment.
+     *
+     * @param patch the patch
+     * @return true if its notes end on their own
+     */
+    public static boolean isOneShot(Patch patch) {
+        return patch.getSustain() == 0.0 && patch.getAttack() + patch.getDecay() + TAIL_SECONDS <= MAX_NOTE_SECONDS;
+    }
+
+    /**
+     * Plays a note from the cache if it is there. On a miss the note is queued for rendering,
+     * or rendered now and played when rendering offline.
+     *
+     * @param patch the patch the note is played with
+     * @param note the MIDI note number
+     * @param velocity the velocity (0.0 to 1.0)
+     * @param frameRate the engine frame rate
+     * @return true if the cache played the note, false if a voice has to play it
+     */
+    public boolean play(Patch patch, int note, double velocity, int frameRate) {
+        if (!isOneShot(patch) || velocity <= 0.0) return false;
+        int step = Math.max(1, (int) Math.ceil(velocity * velocitySteps)); // 1 to velocitySteps
+        long key = key(patch, note, step);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key); // Moves it to the recent end
+            if (entry != null && !entry.patch.equals(patch)) entry = null; // Another patch with the same hash
+            if (entry == null) {
+                misses++;
+                if (renderOnWorker) {
+                    renderFrameRate = frameRate;
+                    queueRender(new Request(patch, note, step, key));
+                    return false;
+                }
+            }
+        }
+        boolean hit = entry != null;
+        if (!hit) {
+            entry = render(patch, note, step, frameRate); // Offline, so this note already sounds like the next hits
+            if (entry == null) return false;
+            store(key, entry);
+        }
+        if (!player.play(entry.samples, velocity / stepVelocity(step))) return false; // Every playback slot is busy
+        if (hit) {
+            synchronized (this) {
+                hits++;
+                savedNanos += entry.renderNanos;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets where missed notes are rendered
+     *
+     * @param worker true for a worker thread, false for the calling thread (offline rendering)
+     */
+    public void setRenderOnWorker(boolean worker) {renderOnWorker = worker;}
+
+    /**
+     * Waits until the worker has rendered every queued note
+     *
+     * @param timeoutMillis the longest time to wait
+     * @return true if the queue is empty
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitRenders(long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (!queued.isEmpty()) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Drops every cached note
+     */
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Gets the number of notes played from the cache
+     *
+     * @return the hit count
+     */
+    public synchronized long getHits() {return hits;}
+
+    /**
+     * Gets the number of cacheable notes that were not in the cache
+     *
+     * @return the miss count
+     */
+    public synchronized long getMisses() {return misses;}
+
+    /**
+     * Gets the share of cacheable notes played from the cache
+     *
+     * @return the hit rate (0.0 to 1.0)
+     */
+    public synchronized double getHitRate() {return (hits + misses == 0) ? 0.0 : (double) hits / (hits + misses);}
+
+    /**
+     * Gets the number of notes evicted to stay within the budget
+     *
+     * @return the eviction count
+     */
+    public synchronized long getEvictions() {return evictions;}
+
+    /**
+     * Gets the memory used by the rendered notes
+     *
+     * @return the bytes in use
+     */
+    public synchronized long getUsedBytes() {return usedBytes;}
+
+    /**
+     * Gets the memory budget
+     *
+     * @return the budget in bytes
+     */
+    public long getBudgetBytes() {return budgetBytes;}
+
+    /**
+     * Gets the number of cached notes
+     *
+     * @return the entry count
+     */
+    public synchronized int getEntryCount() {return entries.size();}
+
+    /**
+     * Gets the render time the hits did not have to spend, measured when each note was rendered
+     *
+     * @return the CPU time saved in nanoseconds
+     */
+    public synchronized long getCpuSavedNanos() {return savedNanos;}
+
+    /**
+     * Gets the player the cache plays on
+     *
+     * @return the player
+     */
+    public CachePlayer getPlayer() {return player;}
+
+    /**
+     * Gets the velocity steps
+     *
+     * @return the number of velocity steps cached per note
+     */
+    public int getVelocitySteps() {return velocitySteps;}
+
+    /**
+     * Queues a note for the worker, starting the worker if needed. Caller holds the lock.
+     */
+    private void queueRender(Request request) {
+        if (queue.size() >= QUEUE_LIMIT || !queued.add(request.key)) return; // Already waiting, or too far behind
+        queue.add(request);
+        if (worker == null) {
+            worker = new Thread(this::runWorker, "note-cache");
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY); // Never competes with the audio thread
+            worker.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Renders queued notes until the program ends
+     */
+    private void runWorker() {
+        while (true) {
+            Request request;
+            synchronized (this) {
+                while (queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                request = queue.peek();
+            }
+            Entry entry = render(request.patch, request.note, request.step, renderFrameRate);
+            if (entry != null) store(request.key, entry);
+            synchronized (this) {
+                queue.remove();
+                queued.remove(request.key);
+                notifyAll(); // Wake awaitRenders
+            }
+        }
+    }
+
+    /**
+     * Renders a note at its step's velocity into a direct buffer
+     *
+     * @return the entry, or null if the note is bigger than the budget
+     */
+    private Entry render(Patch patch, int note, int step, int frameRate) {
+        int frames = (int) Math.ceil((patch.getAttack() + patch.getDecay() + TAIL_SECONDS) * frameRate);
+        long bytes = (long) frames * Float.BYTES;
+        if (bytes > budgetBytes) return null;
+        synchronized (renderLock) {
+            if (renderSynth == null || renderer.getFrameRate() != frameRate) {
+                renderSynth = new Synth(1); // One voice is all a render needs
+                recorder = new Recorder();
+                renderSynth.getSynthesizer().add(recorder);
+                renderSynth.getMixBus().output.connect(0, recorder.input, 0);
+                renderer = renderSynth.startOffline(frameRate);
+                recorder.start(); // Pulled every block
+            }
+            long start = System.nanoTime();
+            renderSynth.setPatch(patch);
+            renderer.renderBuffers(1); // The silent voice takes the patch
+            FloatBuffer samples = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            renderSynth.noteOn(0, note, stepVelocity(step));
+            recorder.target = samples; // The note starts with the next block
+            while (samples.hasRemaining()) renderer.renderBuffers(1);
+            recorder.target = null;
+            renderSynth.noteOff(0);
+            renderer.renderSeconds(patch.getRelease() + TAIL_SECONDS); // Silence the voice before the next render
+            samples.flip();
+            return new Entry(patch, samples, bytes, Math.max(1, System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Adds a rendered note, evicting the least recently played notes to make room
+     */
+    private synchronized void store(long key, Entry entry) {
+        Entry old = entries.remove(key);
+        if (old != null) usedBytes -= old.bytes;
+        Iterator<Map.Entry<Long, Entry>> oldest = entries.entrySet().iterator();
+        while (usedBytes + entry.bytes > budgetBytes && oldest.hasNext()) {
+            usedBytes -= oldest.next().getValue().bytes;
+            oldest.remove(); // Playbacks still holding the buffer keep it alive
+            evictions++;
+        }
+        entries.put(key, entry);
+        usedBytes += entry.bytes;
+    }
+
+    /**
+     * Gets the velocity a step is rendered at, the top of its range
+     */
+    private double stepVelocity(int step) {return (double) step / velocitySteps;}
+
+    /**
+     * Packs the patch hash, the note and the velocity step into one key
+     */
+    private static long key(Patch patch, int note, int step) {return ((long) patch.hashCode() << 32) | (note << 8) | step;}
+}
@@ -0,0 +1,274 @@
+import com.jsyn.Synthesizer;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * NoteLatencyMeter measures the time from a note event arriving (key press, MIDI note on,
+ * sequencer call) to the first block in which that voice's output crosses a threshold.
+ * Synth.noteOn stamps the ingress and the MixBus checks each pending voice as it sums it.
+ * Results go into fixed histograms per path and per voice, so collecting never allocates.
+ *
+ * With the sample clock (offline rendering) the latency is counted in frames, which makes it
+ * exact and repeatable for regression checks. With the wall clock (live playing) it is the time
+ * until the block was rendered plus the output latency of the device.
+ */
+public class NoteLatencyMeter {
+    /**
+     * Number of histogram buckets, 4 per octave of microseconds (covers about 1 second)
+     */
+    public static final int BUCKETS = 80;
+
+    // Synthesizer the frames and rate are read from
+    private Synthesizer synth;
+    // Output level that counts as audible
+    private double threshold;
+    // True to count frames, false to use the wall clock
+    private boolean sampleClock;
+    // Output latency added to wall clock measurements, in nanoseconds
+    private long outputLatencyNanos = 0;
+
+    // Pending note per voice: ingress time (0 = nothing pending), frame and path
+    private AtomicLongArray pendingNanos;
+    private long[] pendingFrame;
+    private int[] pendingPath;
+
+    // Results per path and per voice
+    private Histogram[] pathHistograms;
+    private Histogram[] voiceHistograms;
+
+    /**
+     * Fixed size log histogram of latencies in microseconds. Recording takes no lock, so the
+     * audio thread never waits for a reader: every total is an atomic, and a reader that runs
+     * while a latency is being added may see it in some totals and not yet in others.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Adds a latency. Called by the audio thread.
+         *
+         * @param micros the latency in microseconds
+         */
+        void record(long micros) {
+            if (micros < 0) micros = 0;
+            buckets.incrementAndGet(bucketOf(micros));
+            sum.addAndGet(micros);
+            if (micros < min.get()) min.accumulateAndGet(micros, Math::min);
+            if (micros > max.get()) max.accumulateAndGet(micros, Math::max);
+            count.incrementAndGet(); // Last, so a counted latency is in the buckets
+        }
+
+        /**
+         * Gets the number of latencies recorded
+         *
+         * @return the count
+         */
+        public long getCount() {return count.get();}
+
+        /**
+         * Gets the mean latency
+         *
+         * @return the mean in microseconds, 0 if nothing was recorded
+         */
+        public double getMean() {
+            long n = count.get();
+            return n == 0 ? 0.0 : (double) sum.get() / n;
+        }
+
+        /**
+         * Gets the smallest latency
+         *
+         * @return the minimum in microseconds, 0 if nothing was recorded
+         */
+        public long getMin() {return count.get() == 0 ? 0 : min.get();}
+
+        /**
+         * Gets the largest latency
+         *
+         * @return the maximum in microseconds
+         */
+        public long getMax() {return max.get();}
+
+        /**
+         * Gets a percentile, rounded up to the top of its bucket (at most 19% high)
+         *
+         * @param p the percentile (0 to 100)
+         * @return the latency in microseconds, 0 if nothing was recorded
+         */
+        public long getPercentile(double p) {
+            if (p < 0 || p > 100) throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            long[] snapshot = new long[BUCKETS]; // One read of each bucket, so the ranks add up
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = buckets.get(i);
+            if (total == 0) return 0;
+            long top = max.get();
+            long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total)); // Rank of the wanted sample
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return Math.min(top, bucketTop(i));
+            }
+            return top;
+        }
+
+        void clear() {
+            for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+            count.set(0);
+            sum.set(0);
+            min.set(Long.MAX_VALUE);
+            max.set(0);
+        }
+
+        /**
+         * Finds the bucket of a latency: the octave (highest bit) and the next two bits
+         */
+        private static int bucketOf(long micros) {
+            if (micros < 4) return (int) micros; // 0 to 3 get their own buckets
+            int octave = 63 - Long.numberOfLeadingZeros(micros); // 2 or more
+            int quarter = (int) ((micros >>> (octave - 2)) & 3); // Next two bits
+            return Math.min(BUCKETS - 1, (octave - 1) * 4 + quarter);
+        }
+
+        /**
+         * Gets the largest latency that falls in a bucket
+         */
+        private static long bucketTop(int bucket) {
+            if (bucket < 4) return bucket;
+            int octave = bucket / 4 + 1;
+            int quarter = bucket % 4;
+            return ((4L + quarter + 1) << (octave - 2)) - 1;
+        }
+    }
+
+    /**
+     * Creates a new NoteLatencyMeter
+     *
+     * @param synth the synthesizer being measured
+     * @param voices the number of voice slots
+     * @param threshold the output level that counts as audible (0.0 to 1.0)
+     * @param sampleClock true to count frames (offline), false to use the wall clock (live)
+     */
+    public NoteLatencyMeter(Synthesizer synth, int voices, double threshold, boolean sampleClock) {
+        if (synth == null) throw new IllegalArgumentException("Synthesizer cannot be null");
+        if (voices < 1) throw new IllegalArgumentException("Voices must be positive");
+        if (threshold <= 0 || threshold > 1) throw new IllegalArgumentException("Threshold must be between 0 and 1");
+        this.synth = synth;
+        this.threshold = threshold;
+        this.sampleClock = sampleClock;
+        pendingNanos = new AtomicLongArray(voices);
+        pendingFrame = new long[voices];
+        pendingPath = new int[voices];
+        pathHistograms = new Histogram[NotePath.values().length];
+        for (int i = 0; i < pathHistograms.length; i++) pathHistograms[i] = new Histogram();
+        voiceHistograms = new Histogram[voices];
+        for (int i = 0; i < voices; i++) voiceHistograms[i] = new Histogram();
+    }
+
+    /**
+     * Sets the device output latency added to wall clock measurements
+     *
+     * @param seconds the output latency in seconds
+     */
+    public void setOutputLatency(double seconds) {
+        if (seconds < 0) throw new IllegalArgumentException("Output latency cannot be negative");
+        outputLatencyNanos = (long) (seconds * 1e9);
+    }
+
+    /**
+     * Stamps a note event arriving for a voice. Called by Synth.noteOn.
+     *
+     * @param voice the voice slot
+     * @param path where the note came from
+     */
+    public void noteIngress(int voice, NotePath path) {
+        pendingFrame[voice] = synth.getFrameCount(); // Next frame the engine will render
+        pendingPath[voice] = path.ordinal();
+        pendingNanos.set(voice, Math.max(1, System.nanoTime())); // Publish last
+    }
+
+    /**
+     * Checks if a voice is waiting for its first audible block. Called by the audio thread.
+     *
+     * @param voice the voice slot
+     * @return true if a note is pending
+     */
+    public boolean isPending(int voice) {return pendingNanos.get(voice) != 0;}
+
+    /**
+     * Checks a block of a voice's output and records the latency if it crosses the threshold.
+     * Called by the audio thread.
+     *
+     * @param voice the voice slot
+     * @param samples the voice output
+     * @param start the start index
+     * @param limit the limit index
+     * @param blockFrame the frame of the sample at index start
+     */
+    public void checkBlock(int voice, double[] samples, int start, int limit, long blockFrame) {
+        long ingressNanos = pendingNanos.get(voice);
+        if (ingressNanos == 0) return;
+        for (int i = start; i < limit; i++) {
+            if (Math.abs(samples[i]) >= threshold) {
+                long nanos;
+                if (sampleClock) {
+                    long frames = Math.max(0, blockFrame + (i - start) - pendingFrame[voice]);
+                    nanos = frames * 1_000_000_000L / synth.getFrameRate();
+                } else {
+                    nanos = System.nanoTime() - ingressNanos + outputLatencyNanos;
+                }
+                long micros = nanos / 1000;
+                pathHistograms[pendingPath[voice]].record(micros);
+                voiceHistograms[voice].record(micros);
+                pendingNanos.compareAndSet(voice, ingressNanos, 0); // Done, unless a newer note arrived
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the results for a path
+     *
+     * @param path the note path
+     * @return the histogram of latencies
+     */
+    public Histogram getPathHistogram(NotePath path) {return pathHistograms[path.ordinal()];}
+
+    /**
+     * Gets the results for a voice
+     *
+     * @param voice the voice slot
+     * @return the histogram of latencies
+     */
+    public Histogram getVoiceHistogram(int voice) {return voiceHistograms[voice];}
+
+    /**
+     * Clears every result and pending note
+     */
+    public void reset() {
+        for (Histogram h : pathHistograms) h.clear();
+        for (Histogram h : voiceHistograms) h.clear();
+        for (int i = 0; i < pendingNanos.length(); i++) pendingNanos.set(i, 0);
+    }
+
+    /**
+     * Prints the distribution per path and per voice
+     *
+     * @param out the stream to print to
+     */
+    public void report(PrintStream out) {
+        out.println("# note latency (" + (sampleClock ? "sample clock" : "wall clock") + "), microseconds: count, min, p50, p90, p99, max");
+        for (NotePath path : NotePath.values()) print(out, "path " + path, pathHistograms[path.ordinal()]);
+        for (int i = 0; i < voiceHistograms.length; i++) {
+            if (voiceHistograms[i].getCount() > 0) print(out, "voice " + i, voiceHistograms[i]);
+        }
+    }
+
+    private static void print(PrintStream out, String label, Histogram h) {
+        out.printf("%-16s %6d %8d %8d %8d %8d %8d%n", label, h.getCount(), h.getMin(), h.getPercentile(50), h.getPercentile(90), h.getPercentile(99), h.getMax());
+    }
+}
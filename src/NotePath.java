@@ -0,0 +1,25 @@
+/**
+ * Enum for the ways a note can reach the synth
+ * 
+ */
+
+public enum NotePath {
+    /**
+     * Computer keyboard through the KeyboardController
+     */
+    KEYBOARD("keyboard"), 
+    /**
+     * MIDI note on
+     */
+    MIDI("midi"), 
+    /**
+     * Sequencer or any other code calling Synth.noteOn
+     */
+    SEQUENCER("sequencer"); 
+
+    private final String name; // The name of the path
+    private NotePath(String name){this.name = name;}// Constructor
+    @Override
+    public String toString(){return name;}// Returns the name of the path
+
+}
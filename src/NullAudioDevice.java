@@ -0,0 +1,134 @@
+import com.jsyn.devices.AudioDeviceInputStream;
+import com.jsyn.devices.AudioDeviceManager;
+import com.jsyn.devices.AudioDeviceOutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * NullAudioDevice is an AudioDeviceManager with one output device that throws the audio away.
+ * Its output stream consumes frames in real time and blocks the engine when its buffer is full,
+ * just like a sound card would, so timing and latency can be measured on a machine with no audio hardware.
+ */
+public class NullAudioDevice implements AudioDeviceManager {
+    // Suggested output latency in seconds
+    private double suggestedOutputLatency = 0.010;
+    // Total time the output stream has blocked waiting for room, written by the audio thread
+    private volatile long waitNanos = 0;
+
+    @Override
+    public int getDeviceCount() {return 1;}
+
+    @Override
+    public String getDeviceName(int deviceID) {return "Null Output";}
+
+    @Override
+    public String getName() {return "Null";}
+
+    @Override
+    public int getDefaultInputDeviceID() {return 0;}
+
+    @Override
+    public int getDefaultOutputDeviceID() {return 0;}
+
+    @Override
+    public int getMaxInputChannels(int deviceID) {return 0;}
+
+    @Override
+    public int getMaxOutputChannels(int deviceID) {return 2;}
+
+    @Override
+    public double getDefaultLowInputLatency(int deviceID) {return 0.0;}
+
+    @Override
+    public double getDefaultHighInputLatency(int deviceID) {return 0.0;}
+
+    @Override
+    public double getDefaultLowOutputLatency(int deviceID) {return 0.005;}
+
+    @Override
+    public double getDefaultHighOutputLatency(int deviceID) {return 0.1;}
+
+    @Override
+    public int setSuggestedInputLatency(double latency) {return 0;}
+
+    @Override
+    public int setSuggestedOutputLatency(double latency) {
+        suggestedOutputLatency = latency;
+        return 0;
+    }
+
+    @Override
+    public AudioDeviceOutputStream createOutputStream(int deviceID, int frameRate, int samplesPerFrame) {
+        return new NullOutputStream(this, frameRate, samplesPerFrame, Math.max(1, (int) Math.round(suggestedOutputLatency * frameRate)));
+    }
+
+    /**
+     * Gets the total time the output has blocked the engine waiting for the device to play.
+     * The time between two buffers minus this wait is the time spent rendering.
+     *
+     * @return the wait in nanoseconds
+     */
+    public long getWaitNanos() {return waitNanos;}
+
+    @Override
+    public AudioDeviceInputStream createInputStream(int deviceID, int frameRate, int samplesPerFrame) {
+        throw new UnsupportedOperationException("The null device has no input");
+    }
+
+    /**
+     * Output stream that plays frames against the wall clock and blocks while its buffer is full
+     */
+    private static class NullOutputStream implements AudioDeviceOutputStream {
+        private final NullAudioDevice device; // Counts the time spent waiting
+        private final int frameRate; // Frames played per second
+        private final int samplesPerFrame; // Channels per frame
+        private final int bufferFrames; // Frames the device can hold
+        private long startNanos; // Time frame 0 was (or would have been) played
+        private long framesWritten = 0; // Frames written so far
+
+        NullOutputStream(NullAudioDevice device, int frameRate, int samplesPerFrame, int bufferFrames) {
+            this.device = device;
+            this.frameRate = frameRate;
+            this.samplesPerFrame = samplesPerFrame;
+            this.bufferFrames = bufferFrames;
+        }
+
+        @Override
+        public void start() {startNanos = System.nanoTime();}
+
+        @Override
+        public void stop() {}
+
+        @Override
+        public double getLatency() {return (double) bufferFrames / frameRate;}
+
+        @Override
+        public void write(double value) {write(1);}
+
+        @Override
+        public void write(double[] buffer) {write(buffer.length / samplesPerFrame);}
+
+        @Override
+        public void write(double[] buffer, int start, int count) {write(count / samplesPerFrame);}
+
+        @Override
+        public void close() {}
+
+        /**
+         * Queues frames, waiting until the device has played enough to make room
+         *
+         * @param frames the number of frames written
+         */
+        private void write(int frames) {
+            long now = System.nanoTime();
+            long played = (now - startNanos) * frameRate / 1_000_000_000L; // Frames the device has played
+            // The device ran dry and played silence, so it restarts from what we write now
+            if (played > framesWritten) startNanos = now - framesWritten * 1_000_000_000L / frameRate;
+            framesWritten += frames;
+            long queued = framesWritten - Math.min(played, framesWritten - frames);
+            if (queued > bufferFrames) { // Wait for room
+                LockSupport.parkNanos((queued - bufferFrames) * 1_000_000_000L / frameRate);
+                device.waitNanos += System.nanoTime() - now; // Only the audio thread writes
+            }
+        }
+    }
+}
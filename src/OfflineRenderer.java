@@ -0,0 +1,86 @@
+import com.jsyn.Synthesizer;
+import com.jsyn.devices.AudioDeviceManager;
+import com.jsyn.engine.SynthesisEngine;
+
+/**
+ * OfflineRenderer drives a JSyn synthesizer without an audio device.
+ * Audio is computed on the calling thread, one engine buffer at a time, as fast as the CPU allows.
+ * This makes rendering deterministic and usable on headless machines (tests, benchmarks, replay).
+ */
+public class OfflineRenderer {
+    // The engine being driven
+    private SynthesisEngine engine;
+    // Frames computed by one call to generateNextBuffer
+    private int framesPerBuffer;
+
+    /**
+     * Creates a new OfflineRenderer. The synthesizer must not have been started.
+     *
+     * @param synth the synthesizer to drive
+     * @param frameRate the frame rate to render at
+     */
+    public OfflineRenderer(Synthesizer synth, int frameRate) {
+        if (synth == null) throw new IllegalArgumentException("Synthesizer cannot be null");
+        if (frameRate < 8000 || frameRate > 384000) throw new IllegalArgumentException("Frame rate must be between 8000 and 384000");
+        if (!(synth instanceof SynthesisEngine)) throw new IllegalArgumentException("Synthesizer must be a JSyn SynthesisEngine");
+        if (synth.isRunning()) throw new IllegalStateException("Synthesizer is already running");
+        engine = (SynthesisEngine) synth;
+        // A non real time start sets the frame rate and allocates the engine buffers without opening
+        // a device. Stop the engine thread right away so only this class advances time.
+        engine.setRealTime(false);
+        engine.start(frameRate, AudioDeviceManager.USE_DEFAULT_DEVICE, 0, AudioDeviceManager.USE_DEFAULT_DEVICE, 2);
+        engine.stop();
+        long before = engine.getFrameCount();
+        engine.generateNextBuffer(); // Render one buffer to learn the buffer size (and run pending commands)
+        framesPerBuffer = (int) (engine.getFrameCount() - before);
+    }
+
+    /**
+     * Renders a number of engine buffers
+     *
+     * @param buffers the number of buffers to render
+     */
+    public void renderBuffers(int buffers) {
+        if (buffers < 0) throw new IllegalArgumentException("Buffer count cannot be negative");
+        for (int i = 0; i < buffers; i++) engine.generateNextBuffer();
+    }
+
+    /**
+     * Renders at least the given number of frames, rounded up to whole buffers
+     *
+     * @param frames the number of frames to render
+     */
+    public void renderFrames(long frames) {
+        if (frames < 0) throw new IllegalArgumentException("Frame count cannot be negative");
+        long target = engine.getFrameCount() + frames;
+        while (engine.getFrameCount() < target) engine.generateNextBuffer();
+    }
+
+    /**
+     * Renders at least the given amount of audio time
+     *
+     * @param seconds the time to render in seconds
+     */
+    public void renderSeconds(double seconds) {renderFrames((long) Math.ceil(seconds * engine.getFrameRate()));}
+
+    /**
+     * Gets the number of frames rendered so far (the sample clock)
+     *
+     * @return the frame count
+     */
+    public long getFrameCount() {return engine.getFrameCount();}
+
+    /**
+     * Gets the number of frames computed per engine buffer
+     *
+     * @return the buffer size in frames
+     */
+    public int getFramesPerBuffer() {return framesPerBuffer;}
+
+    /**
+     * Gets the frame rate being rendered at
+     *
+     * @return the frame rate
+     */
+    public int getFrameRate() {return engine.getFrameRate();}
+}
@@ -19,7 +19,11 @@ public enum OscType {
     /**
      * Triangle oscillator
      */
-    TRIANGLE("triangle"); 
+    TRIANGLE("triangle"),
+    /**
+     * FM voice, operators and algorithm set by the part's FM patch
+     */
+    FM("fm"); 
 
     private final String name; // The name of the oscillator
     private OscType(String name){this.name = name;}// Constructor
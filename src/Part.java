@@ -0,0 +1,527 @@
+import com.softsynth.shared.time.ScheduledCommand;
+
+/**
+ * Part is one timbre of the synth, played on one MIDI channel.
+ * Each part has its own patch (oscillator, ADSR, filter and FM operators) and shares the synth's voice pool
+ * with the other parts. A part can be limited to a number of voices and can reserve voices
+ * so the other parts cannot take them.
+ *
+ * Changing a setting updates the voices the part is currently using, and is applied
+ * to any other voice the next time the part plays a note on it. A whole Patch can be loaded
+ * with {@link #setPatch(Patch, PatchSwap)}, which voices take in one piece at a block boundary.
+ */
+public class Part {
+    /**
+     * Number of parts, one per MIDI channel
+     */
+    public static final int NUM_PARTS = 16;
+
+    // The synth the part plays on
+    private Synth synth;
+    // MIDI channel (0 to 15)
+    private int channel;
+    // Bumped on every patch change so voices know to reload it
+    private int patchVersion = 0;
+
+    // Patch
+    private OscType oscType = OscType.SINE; // Oscillator type
+    private boolean bandLimited = false; // PolyBLEP square, sawtooth and triangle
+    private double pulseWidth = 0.5; // Fraction of the square's cycle spent high
+    private double attack = 0.05; // Attack time in seconds
+    private double decay = 0.1; // Decay time in seconds
+    private double sustain = 0.7; // Sustain level
+    private double release = 0.2; // Release time in seconds
+    private EnvelopeCurve envelopeCurve = EnvelopeCurve.EXPONENTIAL; // Envelope segment shape
+    private double filterCutoff = 2000.0; // Filter cutoff in Hz
+    private double filterResonance = 0.5; // Filter resonance
+    private FilterType filterType = FilterType.LOW_PASS; // Filter mode
+    private FmAlgorithm fmAlgorithm = FmAlgorithm.STACK_4; // FM algorithm
+    private double[] fmSettings = new double[FmAlgorithm.MAX_OPERATORS * FmEngine.PARAMS]; // FM operator settings, see FmEngine
+    private Patch patch = null; // The patch last loaded with setPatch, null once a setter has changed a value
+    // The loaded patch as the audio thread sees it, switched between two blocks by publishCommand
+    private volatile Patch livePatch = null;
+    private volatile int liveSerial = 0;
+    private volatile Patch queuedPatch = null;
+    private final ScheduledCommand publishCommand = this::publishQueued; // Made once, queued on every load
+    private Patch snapshot = null; // The settings as a patch, made by getPatch for the current patch version
+    private int snapshotVersion = -1;
+    private boolean noteCacheEnabled = false; // Play notes from the synth's NoteCache when it can
+
+    // Voice allocation
+    private int voiceLimit; // Most voices the part may use at once
+    private int reservedVoices = 0; // Voices kept free for this part
+    private boolean voiceStealing = false; // Reuse the oldest voice when at the limit
+
+    /**
+     * Creates a new Part. Parts are created by the Synth, use {@link Synth#getPart(int)}.
+     *
+     * @param synth the synth the part plays on
+     * @param channel the MIDI channel (0 to 15)
+     */
+    Part(Synth synth, int channel) {
+        if (synth == null) throw new IllegalArgumentException("Synth cannot be null");
+        if (channel < 0 || channel >= NUM_PARTS) throw new IllegalArgumentException("Channel must be between 0 and 15");
+        this.synth = synth;
+        this.channel = channel;
+        this.voiceLimit = synth.getMaxVoices(); // No limit beyond the pool
+        for (int op = 0; op < FmAlgorithm.MAX_OPERATORS; op++) {
+            for (FmParam param : FmParam.values()) fmSettings[op * FmEngine.PARAMS + param.ordinal()] = param.getDefault();
+        }
+    }
+
+    /**
+     * Sets the oscillator type
+     *
+     * @param type the new oscillator type
+     */
+    public void setOscType(OscType type) {
+        if (type == null) throw new IllegalArgumentException("Oscillator type cannot be null");
+        oscType = type;
+        changed(EventJournal.Type.OSC_TYPE, type.ordinal(), 0.0);
+    }
+
+    /**
+     * Sets whether the square, sawtooth and triangle are band-limited. The band-limited
+     * waveforms alias far less on high notes for a little more CPU.
+     *
+     * @param bandLimited true for the band-limited waveforms, false for the naive ones
+     */
+    public void setBandLimited(boolean bandLimited) {
+        this.bandLimited = bandLimited;
+        changed(EventJournal.Type.BAND_LIMITED, bandLimited ? 1 : 0, 0.0);
+    }
+
+    /**
+     * Sets the pulse width of the square
+     *
+     * @param width the fraction of the cycle spent high (0.05 to 0.95), 0.5 for a square
+     */
+    public void setPulseWidth(double width) {
+        if (width < 0.05 || width > 0.95) throw new IllegalArgumentException("Pulse width must be between 0.05 and 0.95");
+        pulseWidth = width;
+        changed(EventJournal.Type.PULSE_WIDTH, 0, width);
+    }
+
+    /**
+     * Sets the attack time
+     *
+     * @param sec the attack time in seconds
+     */
+    public void setAttack(double sec) {
+        if (sec < 0 || sec > 10.0) throw new IllegalArgumentException("Attack time must be between 0 and 10");
+        attack = sec;
+        changed(EventJournal.Type.ATTACK, 0, sec);
+    }
+
+    /**
+     * Sets the decay time
+     *
+     * @param sec the decay time in seconds
+     */
+    public void setDecay(double sec) {
+        if (sec < 0 || sec > 10.0) throw new IllegalArgumentException("Decay time must be between 0 and 10");
+        decay = sec;
+        changed(EventJournal.Type.DECAY, 0, sec);
+    }
+
+    /**
+     * Sets the sustain level
+     *
+     * @param level the sustain level
+     */
+    public void setSustain(double level) {
+        if (level < 0 || level > 10.0) throw new IllegalArgumentException("Sustain level must be between 0 and 10");
+        sustain = level;
+        changed(EventJournal.Type.SUSTAIN, 0, level);
+    }
+
+    /**
+     * Sets the release time
+     *
+     * @param sec the release time in seconds
+     */
+    public void setRelease(double sec) {
+        if (sec < 0 || sec > 10.0) throw new IllegalArgumentException("Release time must be between 0 and 10");
+        release = sec;
+        changed(EventJournal.Type.RELEASE, 0, sec);
+    }
+
+    /**
+     * Sets the shape of the envelope segments
+     *
+     * @param curve the curve
+     */
+    public void setEnvelopeCurve(EnvelopeCurve curve) {
+        if (curve == null) throw new IllegalArgumentException("Envelope curve cannot be null");
+        envelopeCurve = curve;
+        changed(EventJournal.Type.ENVELOPE_CURVE, curve.ordinal(), 0.0);
+    }
+
+    /**
+     * Sets the filter cutoff
+     *
+     * @param freq the cutoff frequency in Hz
+     */
+    public void setFilterCutoff(double freq) {
+        if (freq < 20 || freq > 60000) throw new IllegalArgumentException("Frequency must be between 20 and 60000");
+        filterCutoff = freq;
+        changed(EventJournal.Type.FILTER_CUTOFF, 0, freq);
+    }
+
+    /**
+     * Sets the filter resonance
+     *
+     * @param resonance the resonance (0.0 to 1.0)
+     */
+    public void setFilterResonance(double resonance) {
+        if (resonance < 0 || resonance > 1) throw new IllegalArgumentException("Resonance must be between 0 and 1");
+        filterResonance = resonance;
+        changed(EventJournal.Type.FILTER_RESONANCE, 0, resonance);
+    }
+
+    /**
+     * Sets the filter mode
+     *
+     * @param type the filter type
+     */
+    public void setFilterType(FilterType type) {
+        if (type == null) throw new IllegalArgumentException("Filter type cannot be null");
+        filterType = type;
+        changed(EventJournal.Type.FILTER_TYPE, type.ordinal(), 0.0);
+    }
+
+    /**
+     * Sets the FM algorithm, used when the oscillator type is FM
+     *
+     * @param algorithm the algorithm
+     */
+    public void setFmAlgorithm(FmAlgorithm algorithm) {
+        if (algorithm == null) throw new IllegalArgumentException("Algorithm cannot be null");
+        fmAlgorithm = algorithm;
+        changed(EventJournal.Type.FM_ALGORITHM, algorithm.ordinal(), 0.0);
+    }
+
+    /**
+     * Sets one setting of an FM operator
+     *
+     * @param operator the operator (0 to 5)
+     * @param param the setting
+     * @param value the value, in the setting's range
+     */
+    public void setFmOperator(int operator, FmParam param, double value) {
+        if (operator < 0 || operator >= FmAlgorithm.MAX_OPERATORS) throw new IllegalArgumentException("Operator must be between 0 and " + (FmAlgorithm.MAX_OPERATORS - 1));
+        if (param == null) throw new IllegalArgumentException("FM setting cannot be null");
+        if (value < param.getMin() || value > param.getMax()) throw new IllegalArgumentException("FM " + param + " must be between " + param.getMin() + " and " + param.getMax());
+        fmSettings[operator * FmEngine.PARAMS + param.ordinal()] = value;
+        changed(EventJournal.Type.FM_OPERATOR, operator | param.ordinal() << 4, value);
+    }
+
+    /**
+     * Loads a patch, keeping held notes on the old patch
+     *
+     * @param patch the patch
+     */
+    public void setPatch(Patch patch) {setPatch(patch, PatchSwap.HOLD);}
+
+    /**
+     * Loads a patch in one step. Voices that are not sounding take the whole patch at the
+     * start of the next block, held notes keep the old patch or crossfade to the new one.
+     *
+     * @param patch the patch
+     * @param swap what happens to held notes
+     */
+    public void setPatch(Patch patch, PatchSwap swap) {
+        if (patch == null) throw new IllegalArgumentException("Patch cannot be null");
+        if (swap == null) throw new IllegalArgumentException("Patch swap cannot be null");
+        oscType = patch.getOscType();
+        bandLimited = patch.isBandLimited();
+        pulseWidth = patch.getPulseWidth();
+        attack = patch.getAttack();
+        decay = patch.getDecay();
+        sustain = patch.getSustain();
+        release = patch.getRelease();
+        envelopeCurve = patch.getEnvelopeCurve();
+        filterCutoff = patch.getFilterCutoff();
+        filterResonance = patch.getFilterResonance();
+        filterType = patch.getFilterType();
+        fmAlgorithm = patch.getFmAlgorithm();
+        System.arraycopy(patch.getFmSettings(), 0, fmSettings, 0, fmSettings.length);
+        this.patch = patch;
+        patchVersion++;
+        EventJournal journal = synth.getJournal();
+        if (journal != null) journal.recordPatch(channel, patch, swap); // Replayed through setPatch, so held notes swap the same way
+        synth.swapPartPatch(this, swap);
+    }
+
+    /**
+     * Gets the current settings as a patch
+     *
+     * @return the patch last loaded, or a new patch holding the current settings
+     */
+    public Patch getPatch() {
+        if (patch != null) return patch;
+        if (snapshotVersion != patchVersion) { // Made once per change, notes ask for it too
+            snapshot = new Patch(oscType, bandLimited, pulseWidth, attack, decay, sustain, release, envelopeCurve, filterCutoff, filterResonance, filterType, fmAlgorithm, fmSettings);
+            snapshotVersion = patchVersion;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Sets whether the part's notes are played from the synth's NoteCache. Only one-shot
+     * patches (sustain 0) are cached, other notes are played by voices as usual.
+     *
+     * @param enabled true to use the cache
+     */
+    public void setNoteCacheEnabled(boolean enabled) {noteCacheEnabled = enabled;}
+
+    /**
+     * Checks if the part's notes are played from the note cache
+     *
+     * @return true if the cache is used
+     */
+    public boolean isNoteCacheEnabled() {return noteCacheEnabled;}
+
+    /**
+     * Sets the most voices the part may use at once
+     *
+     * @param limit the voice limit (1 to the synth's polyphony)
+     */
+    public void setVoiceLimit(int limit) {
+        if (limit < 1 || limit > synth.getMaxVoices()) throw new IllegalArgumentException("Voice limit must be between 1 and " + synth.getMaxVoices());
+        voiceLimit = limit;
+        journal(EventJournal.Type.VOICE_LIMIT, limit);
+    }
+
+    /**
+     * Reserves voices for this part. Other parts cannot take the last free voices while
+     * this part is using fewer than its reservation.
+     *
+     * @param voices the number of voices to reserve (0 to the voice limit)
+     */
+    public void setReservedVoices(int voices) {
+        if (voices < 0 || voices > voiceLimit) throw new IllegalArgumentException("Reserved voices must be between 0 and the voice limit");
+        reservedVoices = voices;
+        journal(EventJournal.Type.RESERVED_VOICES, voices);
+    }
+
+    /**
+     * Sets whether a note played at the voice limit takes over the part's oldest voice
+     *
+     * @param stealing true to steal, false to drop the note
+     */
+    public void setVoiceStealing(boolean stealing) {
+        voiceStealing = stealing;
+        journal(EventJournal.Type.VOICE_STEALING, stealing ? 1 : 0);
+    }
+
+    /**
+     * Gets the MIDI channel
+     *
+     * @return the channel (0 to 15)
+     */
+    public int getChannel() {return channel;}
+
+    /**
+     * Gets the oscillator type
+     *
+     * @return the oscillator type
+     */
+    public OscType getOscType() {return oscType;}
+
+    /**
+     * Checks if the square, sawtooth and triangle are band-limited
+     *
+     * @return true for the band-limited waveforms
+     */
+    public boolean isBandLimited() {return bandLimited;}
+
+    /**
+     * Gets the pulse width of the square
+     *
+     * @return the fraction of the cycle spent high
+     */
+    public double getPulseWidth() {return pulseWidth;}
+
+    /**
+     * Gets the attack time
+     *
+     * @return the attack time in seconds
+     */
+    public double getAttack() {return attack;}
+
+    /**
+     * Gets the decay time
+     *
+     * @return the decay time in seconds
+     */
+    public double getDecay() {return decay;}
+
+    /**
+     * Gets the sustain level
+     *
+     * @return the sustain level
+     */
+    public double getSustain() {return sustain;}
+
+    /**
+     * Gets the release time
+     *
+     * @return the release time in seconds
+     */
+    public double getRelease() {return release;}
+
+    /**
+     * Gets the shape of the envelope segments
+     *
+     * @return the curve
+     */
+    public EnvelopeCurve getEnvelopeCurve() {return envelopeCurve;}
+
+    /**
+     * Gets the filter cutoff
+     *
+     * @return the cutoff frequency in Hz
+     */
+    public double getFilterCutoff() {return filterCutoff;}
+
+    /**
+     * Gets the filter resonance
+     *
+     * @return the resonance
+     */
+    public double getFilterResonance() {return filterResonance;}
+
+    /**
+     * Gets the filter mode
+     *
+     * @return the filter type
+     */
+    public FilterType getFilterType() {return filterType;}
+
+    /**
+     * Gets the FM algorithm
+     *
+     * @return the algorithm
+     */
+    public FmAlgorithm getFmAlgorithm() {return fmAlgorithm;}
+
+    /**
+     * Gets one setting of an FM operator
+     *
+     * @param operator the operator (0 to 5)
+     * @param param the setting
+     * @return the value
+     */
+    public double getFmOperator(int operator, FmParam param) {
+        if (operator < 0 || operator >= FmAlgorithm.MAX_OPERATORS) throw new IllegalArgumentException("Operator must be between 0 and " + (FmAlgorithm.MAX_OPERATORS - 1));
+        if (param == null) throw new IllegalArgumentException("FM setting cannot be null");
+        return fmSettings[operator * FmEngine.PARAMS + param.ordinal()];
+    }
+
+    /**
+     * Gets the voice limit
+     *
+     * @return the most voices the part may use at once
+     */
+    public int getVoiceLimit() {return voiceLimit;}
+
+    /**
+     * Gets the number of reserved voices
+     *
+     * @return the reservation
+     */
+    public int getReservedVoices() {return reservedVoices;}
+
+    /**
+     * Checks if the part steals its oldest voice at the limit
+     *
+     * @return true if stealing is on
+     */
+    public boolean isVoiceStealing() {return voiceStealing;}
+
+    /**
+     * Gets the patch version, bumped whenever the patch changes
+     *
+     * @return the version
+     */
+    int getPatchVersion() {return patchVersion;}
+
+    /**
+     * Copies the patch onto a voice
+     *
+     * @param voice the voice to set up
+     */
+    void applyTo(SynthVoice voice) {
+        if (patch != null) {
+            voice.followPatch(this); // Taken whole by the audio thread
+            return;
+        }
+        voice.cancelPatch(); // The values below replace any patch still waiting
+        voice.setCurrentOscType(oscType); // Does nothing if the type is the same
+        voice.setOscillatorShape(bandLimited, pulseWidth);
+        Envelope envelope = voice.getEnvelope();
+        envelope.setAttack(attack);
+        envelope.setDecay(decay);
+        envelope.setSustain(sustain);
+        envelope.setRelease(release);
+        envelope.setCurve(envelopeCurve);
+        Filter filter = voice.getFilter();
+        filter.setFilterCutoff(filterCutoff);
+        filter.setFilterResonance(filterResonance);
+        filter.setFilterType(filterType);
+        voice.setFmPatch(fmAlgorithm, fmSettings); // Copied, the voice picks it up at the next block
+    }
+
+    /**
+     * Journals a voice allocation setting, which leaves the patch alone
+     */
+    private void journal(EventJournal.Type type, int arg1) {
+        EventJournal journal = synth.getJournal();
+        if (journal != null) journal.record(type, channel, arg1, 0.0);
+    }
+
+    /**
+     * Journals a patch change and pushes the patch to the part's voices
+     */
+    private void changed(EventJournal.Type type, int arg1, double value) {
+        patch = null; // No longer the loaded patch
+        patchVersion++;
+        EventJournal journal = synth.getJournal();
+        if (journal != null) journal.record(type, channel, arg1, value);
+        synth.updatePartVoices(this);
+    }
+
+    /**
+     * Hands the loaded patch to the audio thread, which switches every voice following the part
+     * to it in the same block. Called by the Synth once held notes have stopped following.
+     */
+    void publishPatch() {
+        queuedPatch = patch;
+        synth.queueAudioCommand(publishCommand);
+    }
+
+    /**
+     * Gets the patch the voices following the part play. Audio thread.
+     *
+     * @return the patch, or null before the first load
+     */
+    Patch getLivePatch() {return livePatch;}
+
+    /**
+     * Gets the number of patches published so far. Audio thread.
+     *
+     * @return the count
+     */
+    int getLiveSerial() {return liveSerial;}
+
+    /**
+     * Switches the live patch. Audio thread, run between two blocks.
+     */
+    private void publishQueued() {
+        Patch queued = queuedPatch;
+        if (queued == null || queued == livePatch) return; // Already published by an earlier command
+        livePatch = queued;
+        liveSerial++;
+    }
+}
@@ -0,0 +1,367 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Patch is an immutable snapshot of everything a part plays with: oscillator (with its band-limiting
+ * and pulse width), ADSR and its curve,
+ * filter and FM operators. A patch is loaded onto a part with {@link Part#setPatch(Patch, PatchSwap)}
+ * in one step instead of a setter call per value, and each voice picks the whole patch up at once
+ * at the start of a block.
+ *
+ * Patches are stored in a compact binary record of {@link #BYTES} bytes (see {@link PatchBank}).
+ * Values are kept at float precision, the precision of the record, so a patch read back from a
+ * file is equal to the one written.
+ *
+ * Record layout: OscType, EnvelopeCurve, FilterType and FmAlgorithm ordinals (one byte each, the
+ * OscType byte has bit 7 set when band-limited), attack, decay, sustain, release, cutoff and
+ * resonance (float), the FM operator settings (float, operator op's FmParam p at
+ * op * FmEngine.PARAMS + p), then the pulse width (float). Version 1 records end before the pulse width.
+ */
+public final class Patch {
+    /**
+     * Bytes in one patch record
+     */
+    public static final int BYTES = 4 + 6 * 4 + FmAlgorithm.MAX_OPERATORS * FmEngine.PARAMS * 4 + 4;
+
+    // Bit of the OscType byte that marks a band-limited oscillator
+    private static final int BAND_LIMITED_BIT = 0x80;
+
+    /**
+     * The patch every part starts with
+     */
+    public static final Patch DEFAULT = new Patch(OscType.SINE, false, 0.5, 0.05, 0.1, 0.7, 0.2, EnvelopeCurve.EXPONENTIAL, 2000.0, 0.5, FilterType.LOW_PASS, FmAlgorithm.STACK_4, defaultFmSettings());
+
+    private final OscType oscType;
+    private final boolean bandLimited;
+    private final double pulseWidth;
+    private final double attack;
+    private final double decay;
+    private final double sustain;
+    private final double release;
+    private final EnvelopeCurve envelopeCurve;
+    private final double filterCutoff;
+    private final double filterResonance;
+    private final FilterType filterType;
+    private final FmAlgorithm fmAlgorithm;
+    private final double[] fmSettings; // Never handed out, see getFmSettings
+    private final int hash;
+
+    /**
+     * Creates a new Patch, checking every value against the ranges of the Part setters
+     */
+    Patch(OscType oscType, boolean bandLimited, double pulseWidth, double attack, double decay, double sustain, double release, EnvelopeCurve envelopeCurve,
+            double filterCutoff, double filterResonance, FilterType filterType, FmAlgorithm fmAlgorithm, double[] fmSettings) {
+        if (oscType == null) throw new IllegalArgumentException("Oscillator type cannot be null");
+        if (pulseWidth < 0.05 || pulseWidth > 0.95) throw new IllegalArgumentException("Pulse width must be between 0.05 and 0.95");
+        if (attack < 0 || attack > 10.0) throw new IllegalArgumentException("Attack time must be between 0 and 10");
+        if (decay < 0 || decay > 10.0) throw new IllegalArgumentException("Decay time must be between 0 and 10");
+        if (sustain < 0 || sustain > 10.0) throw new IllegalArgumentException("Sustain level must be between 0 and 10");
+        if (release < 0 || release > 10.0) throw new IllegalArgumentException("Release time must be between 0 and 10");
+        if (envelopeCurve == null) throw new IllegalArgumentException("Envelope curve cannot be null");
+        if (filterCutoff < 20 || filterCutoff > 60000) throw new IllegalArgumentException("Frequency must be between 20 and 60000");
+        if (filterResonance < 0 || filterResonance > 1) throw new IllegalArgumentException("Resonance must be between 0 and 1");
+        if (filterType == null) throw new IllegalArgumentException("Filter type cannot be null");
+        if (fmAlgorithm == null) throw new IllegalArgumentException("Algorithm cannot be null");
+        if (fmSettings == null || fmSettings.length != FmAlgorithm.MAX_OPERATORS * FmEngine.PARAMS) throw new IllegalArgumentException("FM settings must have " + FmAlgorithm.MAX_OPERATORS * FmEngine.PARAMS + " values");
+        FmParam[] params = FmParam.values();
+        this.fmSettings = new double[fmSettings.length];
+        for (int i = 0; i < fmSettings.length; i++) {
+            FmParam param = params[i % FmEngine.PARAMS];
+            double value = fmSettings[i];
+            if (value < param.getMin() || value > param.getMax()) throw new IllegalArgumentException("FM " + param + " must be between " + param.getMin() + " and " + param.getMax());
+            this.fmSettings[i] = (float) value;
+        }
+        this.oscType = oscType;
+        this.bandLimited = bandLimited;
+        this.pulseWidth = (float) pulseWidth;
+        this.attack = (float) attack;
+        this.decay = (float) decay;
+        this.sustain = (float) sustain;
+        this.release = (float) release;
+        this.envelopeCurve = envelopeCurve;
+        this.filterCutoff = (float) filterCutoff;
+        this.filterResonance = (float) filterResonance;
+        this.filterType = filterType;
+        this.fmAlgorithm = fmAlgorithm;
+        int h = Arrays.hashCode(this.fmSettings);
+        h = 31 * h + Arrays.hashCode(new double[] {this.pulseWidth, this.attack, this.decay, this.sustain, this.release, this.filterCutoff, this.filterResonance});
+        h = 31 * h + (((oscType.ordinal() | (bandLimited ? BAND_LIMITED_BIT : 0)) << 24) | (envelopeCurve.ordinal() << 16) | (filterType.ordinal() << 8) | fmAlgorithm.ordinal());
+        this.hash = h; // Worked out once, patches are used as keys
+    }
+
+    /**
+     * Returns a copy with another oscillator type
+     *
+     * @param type the oscillator type
+     * @return the new patch
+     */
+    public Patch withOscType(OscType type) {return new Patch(type, bandLimited, pulseWidth, attack, decay, sustain, release, envelopeCurve, filterCutoff, filterResonance, filterType, fmAlgorithm, fmSettings);}
+
+    /**
+     * Returns a copy with another oscillator
+     *
+     * @param type the oscillator type
+     * @param bandLimited true for the band-limited square, sawtooth and triangle
+     * @param pulseWidth the pulse width of the square (0.05 to 0.95)
+     * @return the new patch
+     */
+    public Patch withOscillator(OscType type, boolean bandLimited, double pulseWidth) {return new Patch(type, bandLimited, pulseWidth, attack, decay, sustain, release, envelopeCurve, filterCutoff, filterResonance, filterType, fmAlgorithm, fmSettings);}
+
+    /**
+     * Returns a copy with another envelope
+     *
+     * @param attack the attack time in seconds
+     * @param decay the decay time in seconds
+     * @param sustain the sustain level
+     * @param release the release time in seconds
+     * @return the new patch
+     */
+    public Patch withEnvelope(double attack, double decay, double sustain, double release) {return new Patch(oscType, bandLimited, pulseWidth, attack, decay, sustain, release, envelopeCurve, filterCutoff, filterResonance, filterType, fmAlgorithm, fmSettings);}
+
+    /**
+     * Returns a copy with another envelope curve
+     *
+     * @param curve the curve
+     * @return the new patch
+     */
+    public Patch withEnvelopeCurve(EnvelopeCurve curve) {return new Patch(oscType, bandLimited, pulseWidth, attack, decay, sustain, release, curve, filterCutoff, filterResonance, filterType, fmAlgorithm, fmSettings);}
+
+    /**
+     * Returns a copy with another filter
+     *
+     * @param type the filter type
+     * @param cutoff the cutoff frequency in Hz
+     * @param resonance the resonance (0.0 to 1.0)
+     * @return the new patch
+     */
+    public Patch withFilter(FilterType type, double cutoff, double resonance) {return new Patch(oscType, bandLimited, pulseWidth, attack, decay, sustain, release, envelopeCurve, cutoff, resonance, type, fmAlgorithm, fmSettings);}
+
+    /**
+     * Returns a copy with another FM algorithm
+     *
+     * @param algorithm the algorithm
+     * @return the new patch
+     */
+    public Patch withFmAlgorithm(FmAlgorithm algorithm) {return new Patch(oscType, bandLimited, pulseWidth, attack, decay, sustain, release, envelopeCurve, filterCutoff, filterResonance, filterType, algorithm, fmSettings);}
+
+    /**
+     * Returns a copy with one FM operator setting changed
+     *
+     * @param operator the operator (0 to 5)
+     * @param param the setting
+     * @param value the value, in the setting's range
+     * @return the new patch
+     */
+    public Patch withFmOperator(int operator, FmParam param, double value) {
+        if (operator < 0 || operator >= FmAlgorithm.MAX_OPERATORS) throw new IllegalArgumentException("Operator must be between 0 and " + (FmAlgorithm.MAX_OPERATORS - 1));
+        if (param == null) throw new IllegalArgumentException("FM setting cannot be null");
+        double[] settings = fmSettings.clone();
+        settings[operator * FmEngine.PARAMS + param.ordinal()] = value;
+        return new Patch(oscType, bandLimited, pulseWidth, attack, decay, sustain, release, envelopeCurve, filterCutoff, filterResonance, filterType, fmAlgorithm, settings);
+    }
+
+    /**
+     * Gets the oscillator type
+     *
+     * @return the oscillator type
+     */
+    public OscType getOscType() {return oscType;}
+
+    /**
+     * Checks if the square, sawtooth and triangle are band-limited
+     *
+     * @return true for the band-limited waveforms
+     */
+    public boolean isBandLimited() {return bandLimited;}
+
+    /**
+     * Gets the pulse width of the square
+     *
+     * @return the fraction of the cycle spent high
+     */
+    public double getPulseWidth() {return pulseWidth;}
+
+    /**
+     * Gets the attack time
+     *
+     * @return the attack time in seconds
+     */
+    public double getAttack() {return attack;}
+
+    /**
+     * Gets the decay time
+     *
+     * @return the decay time in seconds
+     */
+    public double getDecay() {return decay;}
+
+    /**
+     * Gets the sustain level
+     *
+     * @return the sustain level
+     */
+    public double getSustain() {return sustain;}
+
+    /**
+     * Gets the release time
+     *
+     * @return the release time in seconds
+     */
+    public double getRelease() {return release;}
+
+    /**
+     * Gets the shape of the envelope segments
+     *
+     * @return the curve
+     */
+    public EnvelopeCurve getEnvelopeCurve() {return envelopeCurve;}
+
+    /**
+     * Gets the filter cutoff
+     *
+     * @return the cutoff frequency in Hz
+     */
+    public double getFilterCutoff() {return filterCutoff;}
+
+    /**
+     * Gets the filter resonance
+     *
+     * @return the resonance
+     */
+    public double getFilterResonance() {return filterResonance;}
+
+    /**
+     * Gets the filter mode
+     *
+     * @return the filter type
+     */
+    public FilterType getFilterType() {return filterType;}
+
+    /**
+     * Gets the FM algorithm
+     *
+     * @return the algorithm
+     */
+    public FmAlgorithm getFmAlgorithm() {return fmAlgorithm;}
+
+    /**
+     * Gets one setting of an FM operator
+     *
+     * @param operator the operator (0 to 5)
+     * @param param the setting
+     * @return the value
+     */
+    public double getFmOperator(int operator, FmParam param) {
+        if (operator < 0 || operator >= FmAlgorithm.MAX_OPERATORS) throw new IllegalArgumentException("Operator must be between 0 and " + (FmAlgorithm.MAX_OPERATORS - 1));
+        if (param == null) throw new IllegalArgumentException("FM setting cannot be null");
+        return fmSettings[operator * FmEngine.PARAMS + param.ordinal()];
+    }
+
+    /**
+     * Gets the FM operator settings without copying them, for the voices. Must not be changed.
+     *
+     * @return the settings, see {@link FmEngine#setPatch(FmAlgorithm, double[])}
+     */
+    double[] getFmSettings() {return fmSettings;}
+
+    /**
+     * Writes the patch record at the buffer's position
+     *
+     * @param buffer the buffer, with at least BYTES remaining
+     */
+    public void write(ByteBuffer buffer) {
+        buffer.put((byte) (oscType.ordinal() | (bandLimited ? BAND_LIMITED_BIT : 0)));
+        buffer.put((byte) envelopeCurve.ordinal());
+        buffer.put((byte) filterType.ordinal());
+        buffer.put((byte) fmAlgorithm.ordinal());
+        buffer.putFloat((float) attack);
+        buffer.putFloat((float) decay);
+        buffer.putFloat((float) sustain);
+        buffer.putFloat((float) release);
+        buffer.putFloat((float) filterCutoff);
+        buffer.putFloat((float) filterResonance);
+        for (double value : fmSettings) buffer.putFloat((float) value);
+        buffer.putFloat((float) pulseWidth);
+    }
+
+    /**
+     * Reads a patch record at the buffer's position
+     *
+     * @param buffer the buffer, with at least BYTES remaining
+     * @return the patch
+     * @throws IllegalArgumentException if the record holds an unknown type or a value out of range
+     */
+    public static Patch read(ByteBuffer buffer) {return read(buffer, PatchBank.VERSION);}
+
+    /**
+     * Reads a patch record written by a version of the bank format. Version 1 patches play the
+     * naive oscillators with a pulse width of 0.5, as they did before.
+     *
+     * @param buffer the buffer, with at least {@link #recordBytes(int)} remaining
+     * @param version the bank format version
+     * @return the patch
+     * @throws IllegalArgumentException if the record holds an unknown type or a value out of range
+     */
+    static Patch read(ByteBuffer buffer, int version) {
+        byte osc = buffer.get();
+        boolean bandLimited = (osc & BAND_LIMITED_BIT) != 0;
+        OscType oscType = ordinal(OscType.values(), (byte) (osc & ~BAND_LIMITED_BIT), "oscillator type");
+        EnvelopeCurve curve = ordinal(EnvelopeCurve.values(), buffer.get(), "envelope curve");
+        FilterType filterType = ordinal(FilterType.values(), buffer.get(), "filter type");
+        FmAlgorithm algorithm = ordinal(FmAlgorithm.values(), buffer.get(), "FM algorithm");
+        double attack = buffer.getFloat();
+        double decay = buffer.getFloat();
+        double sustain = buffer.getFloat();
+        double release = buffer.getFloat();
+        double cutoff = buffer.getFloat();
+        double resonance = buffer.getFloat();
+        double[] settings = new double[FmAlgorithm.MAX_OPERATORS * FmEngine.PARAMS];
+        for (int i = 0; i < settings.length; i++) settings[i] = buffer.getFloat();
+        double pulseWidth = version >= 2 ? buffer.getFloat() : 0.5;
+        return new Patch(oscType, bandLimited, pulseWidth, attack, decay, sustain, release, curve, cutoff, resonance, filterType, algorithm, settings);
+    }
+
+    /**
+     * Gets the size of a patch record in a version of the bank format
+     *
+     * @param version the bank format version
+     * @return the record size in bytes
+     */
+    static int recordBytes(int version) {return version >= 2 ? BYTES : BYTES - 4;}
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof Patch)) return false;
+        Patch p = (Patch) other;
+        return hash == p.hash && oscType == p.oscType && bandLimited == p.bandLimited && pulseWidth == p.pulseWidth && envelopeCurve == p.envelopeCurve && filterType == p.filterType && fmAlgorithm == p.fmAlgorithm
+                && attack == p.attack && decay == p.decay && sustain == p.sustain && release == p.release
+                && filterCutoff == p.filterCutoff && filterResonance == p.filterResonance && Arrays.equals(fmSettings, p.fmSettings);
+    }
+
+    @Override
+    public int hashCode() {return hash;}
+
+    @Override
+    public String toString() {return String.format("%s%s adsr %.3f/%.3f/%.3f/%.3f %s, %s %.0f Hz q %.2f, fm %s", oscType, bandLimited ? " (band-limited)" : "", attack, decay, sustain, release, envelopeCurve, filterType, filterCutoff, filterResonance, fmAlgorithm);}
+
+    /**
+     * Looks up an enum constant from a stored ordinal
+     */
+    private static <T> T ordinal(T[] values, byte stored, String what) {
+        int index = stored & 0xFF;
+        if (index >= values.length) throw new IllegalArgumentException("Unknown " + what + " " + index);
+        return values[index];
+    }
+
+    /**
+     * Gets the default FM operator settings
+     */
+    private static double[] defaultFmSettings() {
+        double[] settings = new double[FmAlgorithm.MAX_OPERATORS * FmEngine.PARAMS];
+        for (int op = 0; op < FmAlgorithm.MAX_OPERATORS; op++) {
+            for (FmParam param : FmParam.values()) settings[op * FmEngine.PARAMS + param.ordinal()] = param.getDefault();
+        }
+        return settings;
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PatchBank reads and writes files of patches. The file is a 16 byte header followed by one
+ * fixed size Patch record per patch, and is read through a memory mapping, so a bank of
+ * thousands of patches loads in a few milliseconds.
+ *
+ * Header layout: magic "SYNP" (int), version (short), record size (short), patch count (int).
+ * Banks are written in the current version; version 1 banks, from before patches had a pulse
+ * width, still load.
+ */
+public class PatchBank {
+    /**
+     * Bytes in the file header
+     */
+    public static final int HEADER_BYTES = 16;
+    /**
+     * Version of the file format
+     */
+    public static final short VERSION = 2;
+
+    private static final int MAGIC = 0x53594E50; // "SYNP"
+
+    private PatchBank() {} // Static methods only
+
+    /**
+     * Writes a bank file, replacing the file if it exists
+     *
+     * @param file the bank file
+     * @param patches the patches, in bank order
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(Path file, List<Patch> patches) throws IOException {
+        if (patches == null) throw new IllegalArgumentException("Patches cannot be null");
+        if (file.getParent() != null) Files.createDirectories(file.getParent()); // Make sure the folder exists
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + patches.size() * Patch.BYTES);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) Patch.BYTES);
+        buffer.putInt(patches.size());
+        buffer.putInt(0); // Reserved
+        for (Patch patch : patches) {
+            if (patch == null) throw new IllegalArgumentException("Patch cannot be null");
+            patch.write(buffer);
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a bank file
+     *
+     * @param file the bank file
+     * @return the patches, in bank order
+     * @throws IOException if the file cannot be read, is not a patch bank or holds an invalid patch
+     */
+    public static List<Patch> load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC) throw new IOException(file + " is not a patch bank");
+            short version = buffer.getShort(4);
+            if (version < 1 || version > VERSION) throw new IOException("Unsupported patch bank version " + version);
+            int bytes = Patch.recordBytes(version);
+            if (buffer.getShort(6) != bytes) throw new IOException("Unexpected patch size in " + file);
+            int count = buffer.getInt(8);
+            if (count < 0 || HEADER_BYTES + (long) count * bytes > buffer.limit()) throw new IOException("Truncated patch bank " + file);
+            List<Patch> patches = new ArrayList<>(count);
+            buffer.position(HEADER_BYTES);
+            for (int i = 0; i < count; i++) {
+                try {
+                    patches.add(Patch.read(buffer, version));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid patch " + i + " in " + file + ": " + e.getMessage());
+                }
+            }
+            return Collections.unmodifiableList(patches);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * Enum for what happens to held notes when a part loads a new patch
+ *
+ */
+
+public enum PatchSwap {
+    /**
+     * Held and releasing notes keep the old patch, the new one is used from the next note
+     */
+    HOLD("hold"),
+    /**
+     * Held notes are started again on free voices with the new patch while the old voices
+     * release over the synth's crossfade time (notes that cannot get a voice keep the old patch)
+     */
+    CROSSFADE("crossfade");
+
+    private final String name; // The name of the swap
+    private PatchSwap(String name){this.name = name;}// Constructor
+    @Override
+    public String toString(){return name;}// Returns the name of the swap
+
+}
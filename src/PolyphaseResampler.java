@@ -0,0 +1,205 @@
+import java.util.Arrays;
+
+/**
+ * PolyphaseResampler converts interleaved audio from one frame rate to another by a rational
+ * ratio L/M (for example 24000 to 48000 is 2/1, 44100 to 48000 is 160/147).
+ *
+ * The low pass filter is a Kaiser windowed sinc designed once for the ratio and split into
+ * L phases of tapsPerPhase coefficients, so every output frame costs tapsPerPhase multiply-adds
+ * per channel whatever the ratio. The cutoff is at the lower of the two Nyquist frequencies,
+ * which removes the images when upsampling and the aliases when downsampling.
+ *
+ * Processing keeps a short history per channel and does not allocate.
+ */
+public class PolyphaseResampler {
+    /**
+     * Default filter length per phase, about 80 dB of stop band rejection
+     */
+    public static final int DEFAULT_TAPS = 32;
+
+    // Kaiser window shape, higher is more rejection and a wider transition
+    private static final double KAISER_BETA = 8.0;
+
+    private final int inputRate;
+    private final int outputRate;
+    private final int channels;
+    private final int up; // L
+    private final int down; // M
+    private final int taps; // Coefficients per phase
+    // Coefficients by phase, phase p at [p * taps, p * taps + taps), newest input first
+    private final double[] kernel;
+    // Last taps input frames per channel, written twice so a window never wraps
+    private final double[][] history;
+    private int writeIndex = 0; // Next history position
+    private int phase = 0; // Position of the next output between two inputs, in 1/L input frames
+
+    /**
+     * Creates a new PolyphaseResampler with the default filter length
+     *
+     * @param inputRate the input frame rate in Hz
+     * @param outputRate the output frame rate in Hz
+     * @param channels the samples per frame
+     */
+    public PolyphaseResampler(int inputRate, int outputRate, int channels) {this(inputRate, outputRate, channels, DEFAULT_TAPS);}
+
+    /**
+     * Creates a new PolyphaseResampler
+     *
+     * @param inputRate the input frame rate in Hz
+     * @param outputRate the output frame rate in Hz
+     * @param channels the samples per frame
+     * @param tapsPerPhase the filter length per phase (4 to 256) at unity ratio, scaled up when downsampling
+     */
+    public PolyphaseResampler(int inputRate, int outputRate, int channels, int tapsPerPhase) {
+        if (inputRate < 1000 || inputRate > 384000) throw new IllegalArgumentException("Input rate must be between 1000 and 384000");
+        if (outputRate < 1000 || outputRate > 384000) throw new IllegalArgumentException("Output rate must be between 1000 and 384000");
+        if (channels < 1) throw new IllegalArgumentException("Channels must be positive");
+        if (tapsPerPhase < 4 || tapsPerPhase > 256) throw new IllegalArgumentException("Taps per phase must be between 4 and 256");
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.channels = channels;
+        int gcd = gcd(inputRate, outputRate);
+        up = outputRate / gcd;
+        down = inputRate / gcd;
+        // Downsampling lowers the cutoff, so the filter needs more input frames for the same transition
+        taps = (int) Math.ceil(tapsPerPhase * Math.max(1.0, (double) down / up));
+        kernel = design(up, down, taps);
+        history = new double[channels][2 * taps];
+    }
+
+    /**
+     * Designs the windowed sinc filter and splits it into phases
+     */
+    private static double[] design(int up, int down, int taps) {
+        int length = up * taps;
+        double cutoff = 0.5 * Math.min(1.0, (double) up / down) / up; // Cycles per sample at the upsampled rate
+        double centre = (length - 1) / 2.0;
+        double[] prototype = new double[length];
+        double i0Beta = besselI0(KAISER_BETA);
+        for (int n = 0; n < length; n++) {
+            double x = n - centre;
+            double sinc = (x == 0) ? 2.0 * cutoff : Math.sin(2.0 * Math.PI * cutoff * x) / (Math.PI * x);
+            double r = 2.0 * n / (length - 1) - 1.0;
+            double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0.0, 1.0 - r * r))) / i0Beta;
+            prototype[n] = sinc * window * up; // Gain of L makes up for the zeros stuffed between inputs
+        }
+        double[] kernel = new double[length];
+        for (int p = 0; p < up; p++) {
+            for (int k = 0; k < taps; k++) kernel[p * taps + k] = prototype[p + k * up]; // Tap k multiplies the input k frames back
+        }
+        return kernel;
+    }
+
+    /**
+     * Resamples interleaved frames. The output buffer must hold {@link #getMaxOutputFrames(int)} frames.
+     *
+     * @param input the interleaved input samples
+     * @param inputStart the first input sample
+     * @param inputFrames the number of input frames
+     * @param output the buffer for the interleaved output samples
+     * @param outputStart the first output sample to write
+     * @return the number of output frames written
+     */
+    public int process(double[] input, int inputStart, int inputFrames, double[] output, int outputStart) {
+        int out = outputStart;
+        int frames = 0;
+        for (int f = 0; f < inputFrames; f++) {
+            int in = inputStart + f * channels;
+            for (int c = 0; c < channels; c++) { // Store the frame twice so a window is always contiguous
+                double[] h = history[c];
+                h[writeIndex] = input[in + c];
+                h[writeIndex + taps] = input[in + c];
+            }
+            writeIndex = (writeIndex + 1) % taps;
+            int newest = writeIndex + taps - 1; // The frame just stored
+            while (phase < up) { // Every output that falls before the next input frame
+                int k0 = phase * taps;
+                for (int c = 0; c < channels; c++) {
+                    double[] h = history[c];
+                    double sum = 0.0;
+                    for (int k = 0; k < taps; k++) sum += kernel[k0 + k] * h[newest - k];
+                    output[out + c] = sum;
+                }
+                out += channels;
+                frames++;
+                phase += down;
+            }
+            phase -= up;
+        }
+        return frames;
+    }
+
+    /**
+     * Gets the most output frames a call to process can write
+     *
+     * @param inputFrames the number of input frames
+     * @return the output frames to make room for
+     */
+    public int getMaxOutputFrames(int inputFrames) {return (int) (((long) inputFrames * up + down - 1) / down) + 1;}
+
+    /**
+     * Clears the history, as if silence had been played
+     */
+    public void reset() {
+        for (double[] h : history) Arrays.fill(h, 0.0);
+        writeIndex = 0;
+        phase = 0;
+    }
+
+    /**
+     * Gets the delay the filter adds
+     *
+     * @return the delay in input frames
+     */
+    public double getLatencyFrames() {return (up * taps - 1) / 2.0 / up;}
+
+    /**
+     * Gets the input frame rate
+     *
+     * @return the rate in Hz
+     */
+    public int getInputRate() {return inputRate;}
+
+    /**
+     * Gets the output frame rate
+     *
+     * @return the rate in Hz
+     */
+    public int getOutputRate() {return outputRate;}
+
+    /**
+     * Gets the interpolation factor L
+     *
+     * @return the number of phases
+     */
+    public int getUpFactor() {return up;}
+
+    /**
+     * Gets the decimation factor M
+     *
+     * @return the input frames per L output frames
+     */
+    public int getDownFactor() {return down;}
+
+    /**
+     * Gets the filter length per phase
+     *
+     * @return the taps per phase
+     */
+    public int getTapsPerPhase() {return taps;}
+
+    private static int gcd(int a, int b) {return b == 0 ? a : gcd(b, a % b);}
+
+    /**
+     * Modified Bessel function of the first kind, order 0, for the Kaiser window
+     */
+    private static double besselI0(double x) {
+        double sum = 1.0, term = 1.0;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2.0 * k)) * (x / (2.0 * k));
+            sum += term;
+            if (term < sum * 1e-12) break;
+        }
+        return sum;
+    }
+}
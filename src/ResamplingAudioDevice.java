@@ -0,0 +1,166 @@
+import com.jsyn.devices.AudioDeviceInputStream;
+import com.jsyn.devices.AudioDeviceManager;
+import com.jsyn.devices.AudioDeviceOutputStream;
+import java.io.IOException;
+
+/**
+ * ResamplingAudioDevice lets the engine run at an internal frame rate different from the
+ * output device's. It wraps another AudioDeviceManager; when an output rate is set, the output
+ * stream it hands the engine converts the mixed audio from the engine rate to the device rate
+ * with a PolyphaseResampler before writing it to the real device. The resampler is the last
+ * stage, after the voice mix and the LineOut, so the whole graph runs at the internal rate.
+ *
+ * With no output rate set, or the same rate as the engine, streams are passed straight through.
+ */
+public class ResamplingAudioDevice implements AudioDeviceManager {
+    // The real devices
+    private AudioDeviceManager devices;
+    // Device frame rate, 0 to use the engine's rate
+    private int outputFrameRate = 0;
+    // Filter length per phase for new streams
+    private int tapsPerPhase = PolyphaseResampler.DEFAULT_TAPS;
+
+    /**
+     * Creates a new ResamplingAudioDevice
+     *
+     * @param devices the device manager to play through
+     */
+    public ResamplingAudioDevice(AudioDeviceManager devices) {
+        if (devices == null) throw new IllegalArgumentException("Device manager cannot be null");
+        this.devices = devices;
+    }
+
+    /**
+     * Sets the frame rate the output device is opened at. Applies to streams created afterwards.
+     *
+     * @param frameRate the device rate in Hz, or 0 to use the engine's rate
+     */
+    public void setOutputFrameRate(int frameRate) {
+        if (frameRate != 0 && (frameRate < 8000 || frameRate > 192000)) throw new IllegalArgumentException("Frame rate must be between 8000 and 192000");
+        this.outputFrameRate = frameRate;
+    }
+
+    /**
+     * Gets the frame rate the output device is opened at
+     *
+     * @return the device rate in Hz, or 0 for the engine's rate
+     */
+    public int getOutputFrameRate() {return outputFrameRate;}
+
+    /**
+     * Sets the resampling filter length. Applies to streams created afterwards.
+     *
+     * @param taps the taps per phase (4 to 256)
+     */
+    public void setTapsPerPhase(int taps) {
+        if (taps < 4 || taps > 256) throw new IllegalArgumentException("Taps per phase must be between 4 and 256");
+        this.tapsPerPhase = taps;
+    }
+
+    @Override
+    public AudioDeviceOutputStream createOutputStream(int deviceID, int frameRate, int samplesPerFrame) {
+        if (outputFrameRate == 0 || outputFrameRate == frameRate) return devices.createOutputStream(deviceID, frameRate, samplesPerFrame);
+        AudioDeviceOutputStream device = devices.createOutputStream(deviceID, outputFrameRate, samplesPerFrame);
+        if (device == null) return null;
+        return new ResamplingOutputStream(device, new PolyphaseResampler(frameRate, outputFrameRate, samplesPerFrame, tapsPerPhase), samplesPerFrame);
+    }
+
+    @Override
+    public AudioDeviceInputStream createInputStream(int deviceID, int frameRate, int samplesPerFrame) {
+        return devices.createInputStream(deviceID, frameRate, samplesPerFrame); // Input is not resampled
+    }
+
+    @Override
+    public int getDeviceCount() {return devices.getDeviceCount();}
+
+    @Override
+    public String getDeviceName(int deviceID) {return devices.getDeviceName(deviceID);}
+
+    @Override
+    public String getName() {return devices.getName();}
+
+    @Override
+    public int getDefaultInputDeviceID() {return devices.getDefaultInputDeviceID();}
+
+    @Override
+    public int getDefaultOutputDeviceID() {return devices.getDefaultOutputDeviceID();}
+
+    @Override
+    public int getMaxInputChannels(int deviceID) {return devices.getMaxInputChannels(deviceID);}
+
+    @Override
+    public int getMaxOutputChannels(int deviceID) {return devices.getMaxOutputChannels(deviceID);}
+
+    @Override
+    public double getDefaultLowInputLatency(int deviceID) {return devices.getDefaultLowInputLatency(deviceID);}
+
+    @Override
+    public double getDefaultHighInputLatency(int deviceID) {return devices.getDefaultHighInputLatency(deviceID);}
+
+    @Override
+    public double getDefaultLowOutputLatency(int deviceID) {return devices.getDefaultLowOutputLatency(deviceID);}
+
+    @Override
+    public double getDefaultHighOutputLatency(int deviceID) {return devices.getDefaultHighOutputLatency(deviceID);}
+
+    @Override
+    public int setSuggestedInputLatency(double latency) {return devices.setSuggestedInputLatency(latency);}
+
+    @Override
+    public int setSuggestedOutputLatency(double latency) {return devices.setSuggestedOutputLatency(latency);}
+
+    /**
+     * Output stream that resamples what the engine writes and passes it to the device
+     */
+    private static class ResamplingOutputStream implements AudioDeviceOutputStream {
+        private final AudioDeviceOutputStream device; // The real output
+        private final PolyphaseResampler resampler;
+        private final int samplesPerFrame;
+        private double[] resampled = new double[0]; // Grown to the engine's buffer size on the first write
+        private final double[] frame; // Samples written one at a time
+        private int frameFill = 0;
+
+        ResamplingOutputStream(AudioDeviceOutputStream device, PolyphaseResampler resampler, int samplesPerFrame) {
+            this.device = device;
+            this.resampler = resampler;
+            this.samplesPerFrame = samplesPerFrame;
+            this.frame = new double[samplesPerFrame];
+        }
+
+        @Override
+        public void start() {
+            resampler.reset();
+            device.start();
+        }
+
+        @Override
+        public void stop() {device.stop();}
+
+        @Override
+        public double getLatency() {return device.getLatency() + resampler.getLatencyFrames() / resampler.getInputRate();}
+
+        @Override
+        public void write(double value) throws IOException {
+            frame[frameFill++] = value;
+            if (frameFill == samplesPerFrame) { // A whole frame
+                frameFill = 0;
+                write(frame, 0, samplesPerFrame);
+            }
+        }
+
+        @Override
+        public void write(double[] buffer) throws IOException {write(buffer, 0, buffer.length);}
+
+        @Override
+        public void write(double[] buffer, int start, int count) throws IOException {
+            int frames = count / samplesPerFrame;
+            int needed = resampler.getMaxOutputFrames(frames) * samplesPerFrame;
+            if (resampled.length < needed) resampled = new double[needed]; // Only until the buffer size is known
+            int written = resampler.process(buffer, start, frames, resampled, 0);
+            device.write(resampled, 0, written * samplesPerFrame);
+        }
+
+        @Override
+        public void close() throws IOException {device.close();}
+    }
+}
@@ -0,0 +1,613 @@
+import com.jsyn.Synthesizer;
+import com.sun.management.OperatingSystemMXBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * SoakTest drives a Synth for a long session with synthetic players and watches for slow
+ * degradation. Each player plays chords at a given density on its own part, switches the
+ * oscillator and moves the envelope and filter sliders. It runs on the offline renderer
+ * (faster than real time) or on the NullAudioDevice (real time, with the audio thread).
+ *
+ * Every sample period it records the heap left after a full collection, the thread count,
+ * the number of units in the engine, the process CPU load and the render time percentiles
+ * of the buffers since the last sample. The drift report fits a line through each series
+ * after the warm up and flags a leak when the heap, threads or units keep growing and
+ * creeping cost when render time or CPU load rise over the run. It is written as JSON.
+ */
+public class SoakTest {
+    /**
+     * Heap growth that counts as a leak, in bytes per hour, once the growth over the run is also over LEAK_MIN_BYTES
+     */
+    public static final double LEAK_BYTES_PER_HOUR = 8.0 * 1024 * 1024;
+    /**
+     * Smallest heap growth over a run that is reported as a leak
+     */
+    public static final double LEAK_MIN_BYTES = 16.0 * 1024 * 1024;
+    /**
+     * Rise of render time or CPU load over the run, relative to its early level, that counts as creeping cost
+     */
+    public static final double CREEP_RATIO = 0.25;
+    /**
+     * Rise of the 99th percentile render time over the run, relative to its early level, that counts as creeping cost
+     */
+    public static final double TAIL_CREEP_RATIO = 1.0;
+
+    // Time between player steps in seconds
+    private static final double STEP_SECONDS = 0.01;
+
+    /**
+     * A synthetic player, all rates are per second and random (Poisson) around their mean
+     */
+    public static class Player {
+        private final int channel;
+        private final double notesPerSecond;
+        private final int maxChord;
+        private final double oscSwitchesPerSecond;
+        private final double sliderMovesPerSecond;
+
+        /**
+         * Creates a new Player
+         *
+         * @param channel the part it plays (0 to 15)
+         * @param notesPerSecond the chords started per second
+         * @param maxChord the most notes in a chord (1 to 16), each chord has 1 to maxChord notes
+         * @param oscSwitchesPerSecond the oscillator switches per second
+         * @param sliderMovesPerSecond the envelope and filter slider moves per second
+         */
+        public Player(int channel, double notesPerSecond, int maxChord, double oscSwitchesPerSecond, double sliderMovesPerSecond) {
+            if (channel < 0 || channel >= Part.NUM_PARTS) throw new IllegalArgumentException("Channel must be between 0 and 15");
+            if (notesPerSecond < 0 || oscSwitchesPerSecond < 0 || sliderMovesPerSecond < 0) throw new IllegalArgumentException("Rates cannot be negative");
+            if (maxChord < 1 || maxChord > 16) throw new IllegalArgumentException("Chord size must be between 1 and 16");
+            this.channel = channel;
+            this.notesPerSecond = notesPerSecond;
+            this.maxChord = maxChord;
+            this.oscSwitchesPerSecond = oscSwitchesPerSecond;
+            this.sliderMovesPerSecond = sliderMovesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "{\"channel\": %d, \"notesPerSecond\": %.3f, \"maxChord\": %d, \"oscSwitchesPerSecond\": %.3f, \"sliderMovesPerSecond\": %.3f}",
+                    channel, notesPerSecond, maxChord, oscSwitchesPerSecond, sliderMovesPerSecond);
+        }
+    }
+
+    /**
+     * Resources and render cost at one point of the run
+     */
+    public static class Sample {
+        private final double seconds;
+        private final long heapBytes;
+        private final int threads;
+        private final int units;
+        private final double cpuLoad;
+        private final double renderMean;
+        private final long renderP50;
+        private final long renderP99;
+        private final long renderMax;
+        private final long notes;
+
+        Sample(double seconds, long heapBytes, int threads, int units, double cpuLoad, double renderMean, long renderP50, long renderP99, long renderMax, long notes) {
+            this.seconds = seconds;
+            this.heapBytes = heapBytes;
+            this.threads = threads;
+            this.units = units;
+            this.cpuLoad = cpuLoad;
+            this.renderMean = renderMean;
+            this.renderP50 = renderP50;
+            this.renderP99 = renderP99;
+            this.renderMax = renderMax;
+            this.notes = notes;
+        }
+
+        /**
+         * Gets the session time of the sample
+         *
+         * @return the time in seconds of audio
+         */
+        public double getSeconds() {return seconds;}
+
+        /**
+         * Gets the heap in use after a full garbage collection
+         *
+         * @return the heap in bytes
+         */
+        public long getHeapBytes() {return heapBytes;}
+
+        /**
+         * Gets the number of live threads
+         *
+         * @return the thread count
+         */
+        public int getThreads() {return threads;}
+
+        /**
+         * Gets the number of units in the engine
+         *
+         * @return the unit count, -1 if the engine does not say
+         */
+        public int getUnits() {return units;}
+
+        /**
+         * Gets the CPU load of the process since the last sample
+         *
+         * @return the load (0.0 to 1.0 of all cores), -1 if not available
+         */
+        public double getCpuLoad() {return cpuLoad;}
+
+        /**
+         * Gets the mean time to render a buffer since the last sample
+         *
+         * @return the time in microseconds
+         */
+        public double getRenderMean() {return renderMean;}
+
+        /**
+         * Gets the median time to render a buffer since the last sample
+         *
+         * @return the time in microseconds
+         */
+        public long getRenderP50() {return renderP50;}
+
+        /**
+         * Gets the 99th percentile time to render a buffer since the last sample
+         *
+         * @return the time in microseconds
+         */
+        public long getRenderP99() {return renderP99;}
+
+        /**
+         * Gets the longest time to render a buffer since the last sample
+         *
+         * @return the time in microseconds
+         */
+        public long getRenderMax() {return renderMax;}
+
+        /**
+         * Gets the notes played so far
+         *
+         * @return the note count
+         */
+        public long getNotes() {return notes;}
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "{\"seconds\": %.2f, \"heapBytes\": %d, \"threads\": %d, \"units\": %d, \"cpuLoad\": %.4f, \"renderMeanMicros\": %.2f, \"renderP50Micros\": %d, \"renderP99Micros\": %d, \"renderMaxMicros\": %d, \"notes\": %d}",
+                    seconds, heapBytes, threads, units, cpuLoad, renderMean, renderP50, renderP99, renderMax, notes);
+        }
+    }
+
+    // The synth being driven
+    private final Synth synth;
+    // Offline renderer, null when running on the null device
+    private final OfflineRenderer renderer;
+    // Null device, null when running offline
+    private final NullAudioDevice device;
+    private final List<Player> players = new ArrayList<>();
+    private double sampleSeconds = 60.0;
+    private double warmupSeconds = -1.0; // -1 for a tenth of the run
+    private Random random = new Random(1234); // Fixed seed so runs compare
+    private final List<Sample> samples = new ArrayList<>();
+    private double runSeconds = 0.0;
+    private long notes = 0;
+    // Render times of the buffers since the last sample, filled by whichever thread renders
+    private volatile NoteLatencyMeter.Histogram window = new NoteLatencyMeter.Histogram();
+    // Null device render timing, audio thread only
+    private long lastBufferNanos = -1;
+    private long lastWaitNanos = 0;
+
+    /**
+     * Creates a soak test on the offline renderer
+     *
+     * @param synth the synth, started with {@link Synth#startOffline(int)}
+     * @param renderer its renderer
+     */
+    public SoakTest(Synth synth, OfflineRenderer renderer) {
+        if (synth == null || renderer == null) throw new IllegalArgumentException("Synth and renderer cannot be null");
+        this.synth = synth;
+        this.renderer = renderer;
+        this.device = null;
+    }
+
+    /**
+     * Creates a soak test on the null audio device. The engine is started by {@link #run(double)}.
+     *
+     * @param synth the synth, created with the device
+     * @param device the null device
+     */
+    public SoakTest(Synth synth, NullAudioDevice device) {
+        if (synth == null || device == null) throw new IllegalArgumentException("Synth and device cannot be null");
+        this.synth = synth;
+        this.renderer = null;
+        this.device = device;
+    }
+
+    /**
+     * Adds a synthetic player
+     *
+     * @param player the player
+     */
+    public void addPlayer(Player player) {
+        if (player == null) throw new IllegalArgumentException("Player cannot be null");
+        players.add(player);
+    }
+
+    /**
+     * Sets the time between samples
+     *
+     * @param seconds the period in seconds (0.1 to 3600)
+     */
+    public void setSampleSeconds(double seconds) {
+        if (seconds < 0.1 || seconds > 3600) throw new IllegalArgumentException("Sample period must be between 0.1 and 3600 seconds");
+        sampleSeconds = seconds;
+    }
+
+    /**
+     * Sets the time at the start of the run left out of the drift fit
+     *
+     * @param seconds the warm up in seconds, or -1 for a tenth of the run
+     */
+    public void setWarmupSeconds(double seconds) {
+        if (seconds < 0 && seconds != -1.0) throw new IllegalArgumentException("Warm up cannot be negative");
+        warmupSeconds = seconds;
+    }
+
+    /**
+     * Sets the seed of the players' random choices
+     *
+     * @param seed the seed
+     */
+    public void setSeed(long seed) {random = new Random(seed);}
+
+    /**
+     * Runs the session, sampling as it goes
+     *
+     * @param seconds the length of the session in seconds of audio
+     * @throws InterruptedException if interrupted while running on the null device
+     */
+    public void run(double seconds) throws InterruptedException {
+        if (seconds <= 0) throw new IllegalArgumentException("Length must be positive");
+        if (players.isEmpty()) throw new IllegalArgumentException("At least one player is needed");
+        runSeconds = seconds;
+        samples.clear();
+        notes = 0;
+        PriorityQueue<double[]> releases = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0])); // Time, channel, note
+        synth.getVoices(); // Build every voice first, so a filling pool is not taken for a leak
+        if (device != null) {
+            synth.getSynthesizer().addAudioTask(this::timeBuffer);
+            synth.startEngine();
+        }
+        long startNanos = System.nanoTime();
+        long cpuStart = processCpuNanos();
+        double nextSample = 0.0;
+        try {
+            for (double now = 0.0; now < seconds; now += STEP_SECONDS) {
+                for (Player player : players) play(player, now, releases);
+                while (!releases.isEmpty() && releases.peek()[0] <= now) {
+                    double[] release = releases.poll();
+                    synth.noteOffChannel((int) release[1], (int) release[2]);
+                }
+                if (renderer != null) renderStep();
+                else Thread.sleep(Math.max(0, (long) ((now + STEP_SECONDS) * 1000) - (System.nanoTime() - startNanos) / 1_000_000)); // Keep to the wall clock
+                if (now >= nextSample) {
+                    long wall = System.nanoTime();
+                    long cpu = processCpuNanos();
+                    takeSample(now, cpu < 0 ? -1.0 : (double) (cpu - cpuStart) / (wall - startNanos) / Runtime.getRuntime().availableProcessors());
+                    startNanos = wall;
+                    cpuStart = cpu;
+                    nextSample += sampleSeconds;
+                }
+            }
+        } finally {
+            if (device != null) synth.stop();
+        }
+    }
+
+    /**
+     * Gets the samples of the last run
+     *
+     * @return the samples in time order
+     */
+    public List<Sample> getSamples() {return Collections.unmodifiableList(samples);}
+
+    /**
+     * Checks the last run for leaks: heap, threads or engine units growing after the warm up
+     *
+     * @return true if something leaked
+     */
+    public boolean isLeaking() {
+        return heapLeaking() || countGrowing(Sample::getThreads) || countGrowing(Sample::getUnits);
+    }
+
+    /**
+     * Checks the last run for creeping cost: render time or CPU load rising after the warm up
+     *
+     * @return true if the cost rose by more than CREEP_RATIO
+     */
+    public boolean isCreeping() {
+        return creeping(Sample::getRenderMean, CREEP_RATIO) || creeping(s -> s.getRenderP99(), TAIL_CREEP_RATIO) || creeping(Sample::getCpuLoad, CREEP_RATIO);
+    }
+
+    /**
+     * Builds the drift report of the last run
+     *
+     * @return the report as JSON
+     */
+    public String getReport() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"mode\": \"").append(renderer != null ? "offline" : "null").append("\",\n");
+        json.append(String.format(Locale.ROOT, "  \"seconds\": %.2f,\n  \"sampleSeconds\": %.2f,\n  \"warmupSeconds\": %.2f,\n", runSeconds, sampleSeconds, warmup()));
+        json.append("  \"players\": ").append(players).append(",\n");
+        json.append("  \"samples\": [\n");
+        for (int i = 0; i < samples.size(); i++) json.append("    ").append(samples.get(i)).append(i + 1 < samples.size() ? ",\n" : "\n");
+        json.append("  ],\n  \"drift\": {\n");
+        json.append("    \"heapBytes\": ").append(drift(s -> s.getHeapBytes(), heapLeaking())).append(",\n");
+        json.append("    \"threads\": ").append(drift(s -> s.getThreads(), countGrowing(Sample::getThreads))).append(",\n");
+        json.append("    \"units\": ").append(drift(s -> s.getUnits(), countGrowing(Sample::getUnits))).append(",\n");
+        json.append("    \"renderMeanMicros\": ").append(drift(Sample::getRenderMean, creeping(Sample::getRenderMean, CREEP_RATIO))).append(",\n");
+        json.append("    \"renderP99Micros\": ").append(drift(s -> s.getRenderP99(), creeping(s -> s.getRenderP99(), TAIL_CREEP_RATIO))).append(",\n");
+        json.append("    \"cpuLoad\": ").append(drift(Sample::getCpuLoad, creeping(Sample::getCpuLoad, CREEP_RATIO))).append("\n");
+        json.append("  },\n  \"leak\": ").append(isLeaking()).append(",\n  \"creep\": ").append(isCreeping()).append("\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Writes the drift report
+     *
+     * @param file the report file
+     * @throws IOException if the file cannot be written
+     */
+    public void writeReport(Path file) throws IOException {
+        if (file.getParent() != null) Files.createDirectories(file.getParent()); // Make sure the folder exists
+        Files.write(file, getReport().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Fits a least squares line through a series
+     *
+     * @param x the times
+     * @param y the values
+     * @return the slope in value per unit of x, 0 with fewer than two points
+     */
+    static double slope(double[] x, double[] y) {
+        int n = x.length;
+        if (n < 2) return 0.0;
+        double mx = 0.0, my = 0.0;
+        for (int i = 0; i < n; i++) {
+            mx += x[i] / n;
+            my += y[i] / n;
+        }
+        double sxy = 0.0, sxx = 0.0;
+        for (int i = 0; i < n; i++) {
+            sxy += (x[i] - mx) * (y[i] - my);
+            sxx += (x[i] - mx) * (x[i] - mx);
+        }
+        return sxx == 0.0 ? 0.0 : sxy / sxx;
+    }
+
+    /**
+     * Adds a sample, used by the tests to check the drift rules
+     */
+    void addSample(Sample sample) {
+        samples.add(sample);
+        runSeconds = Math.max(runSeconds, sample.getSeconds());
+    }
+
+    /**
+     * Plays one step of a player
+     */
+    private void play(Player player, double now, PriorityQueue<double[]> releases) {
+        Part part = synth.getPart(player.channel);
+        for (int chord = poisson(player.notesPerSecond * STEP_SECONDS); chord > 0; chord--) {
+            int size = 1 + random.nextInt(player.maxChord);
+            int root = 36 + random.nextInt(48);
+            double length = 0.05 + random.nextDouble() * 1.5; // Staccato to held
+            for (int n = 0; n < size; n++) {
+                int note = Math.min(127, root + n * (3 + random.nextInt(2))); // Stacked thirds
+                int voice = synth.getAvailableVoice(part);
+                if (voice < 0) break; // The part is full
+                synth.noteOn(voice, part, note, 0.3 + random.nextDouble() * 0.7, NotePath.SEQUENCER);
+                releases.add(new double[] {now + length, player.channel, note});
+                notes++;
+            }
+        }
+        for (int i = poisson(player.oscSwitchesPerSecond * STEP_SECONDS); i > 0; i--) {
+            OscType[] types = OscType.values();
+            part.setOscType(types[random.nextInt(types.length)]);
+        }
+        for (int i = poisson(player.sliderMovesPerSecond * STEP_SECONDS); i > 0; i--) {
+            switch (random.nextInt(6)) { // The sliders of the UI
+                case 0: part.setAttack(0.001 + random.nextDouble() * 0.5); break;
+                case 1: part.setDecay(0.01 + random.nextDouble()); break;
+                case 2: part.setSustain(random.nextDouble()); break;
+                case 3: part.setRelease(0.01 + random.nextDouble()); break;
+                case 4: part.setFilterCutoff(200.0 + random.nextDouble() * 8000.0); break;
+                default: part.setFilterResonance(0.1 + random.nextDouble() * 0.8); break;
+            }
+        }
+    }
+
+    /**
+     * Renders one step offline, timing every buffer
+     */
+    private void renderStep() {
+        long target = renderer.getFrameCount() + (long) Math.ceil(STEP_SECONDS * synth.getSynthesizer().getFrameRate());
+        while (renderer.getFrameCount() < target) {
+            long start = System.nanoTime();
+            renderer.renderBuffers(1);
+            window.record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Times the last buffer on the null device: the time since the previous buffer less the
+     * time the device blocked. Audio task, run at the start of every buffer.
+     */
+    private void timeBuffer() {
+        long now = System.nanoTime();
+        long wait = device.getWaitNanos();
+        if (lastBufferNanos >= 0) window.record(Math.max(0, now - lastBufferNanos - (wait - lastWaitNanos)) / 1000);
+        lastBufferNanos = now;
+        lastWaitNanos = wait;
+    }
+
+    /**
+     * Records the resources now and the render times since the last sample
+     */
+    private void takeSample(double now, double cpuLoad) {
+        NoteLatencyMeter.Histogram buffers = window;
+        window = new NoteLatencyMeter.Histogram(); // The renderer moves on to a fresh window
+        samples.add(new Sample(now, liveHeap(), ManagementFactory.getThreadMXBean().getThreadCount(), unitCount(synth.getSynthesizer()), cpuLoad,
+                buffers.getMean(), buffers.getPercentile(50), buffers.getPercentile(99), buffers.getMax(), notes));
+    }
+
+    private int poisson(double mean) {
+        double limit = Math.exp(-mean);
+        int k = 0;
+        for (double p = random.nextDouble(); p > limit; p *= random.nextDouble()) k++;
+        return k;
+    }
+
+    private double warmup() {return warmupSeconds >= 0 ? warmupSeconds : runSeconds / 10.0;}
+
+    /**
+     * Picks a series out of the samples after the warm up
+     */
+    private double[][] series(ToDoubleFunction<Sample> value) {
+        List<Sample> kept = new ArrayList<>();
+        for (Sample s : samples) if (s.getSeconds() >= warmup() && value.applyAsDouble(s) >= 0) kept.add(s);
+        double[][] xy = new double[2][kept.size()];
+        for (int i = 0; i < kept.size(); i++) {
+            xy[0][i] = kept.get(i).getSeconds() / 3600.0; // Hours
+            xy[1][i] = value.applyAsDouble(kept.get(i));
+        }
+        return xy;
+    }
+
+    private boolean heapLeaking() {
+        double[][] xy = series(s -> s.getHeapBytes());
+        if (xy[0].length < 3) return false;
+        double perHour = slope(xy[0], xy[1]);
+        return perHour > LEAK_BYTES_PER_HOUR && perHour * (xy[0][xy[0].length - 1] - xy[0][0]) > LEAK_MIN_BYTES;
+    }
+
+    private boolean countGrowing(ToDoubleFunction<Sample> value) {
+        double[][] xy = series(value);
+        int n = xy[1].length;
+        if (n < 4) return false;
+        int tail = n - Math.max(1, n / 4);
+        double before = 0.0, last = 0.0; // A pool that has filled stops rising, a leak is still rising in the last quarter
+        for (int i = 0; i < n; i++) {
+            if (i < tail) before = Math.max(before, xy[1][i]);
+            else last = Math.max(last, xy[1][i]);
+        }
+        return last > before;
+    }
+
+    private boolean creeping(ToDoubleFunction<Sample> value, double ratio) {
+        double[][] xy = series(value);
+        int n = xy[0].length;
+        if (n < 3) return false;
+        double early = 0.0;
+        for (int i = 0; i < Math.max(1, n / 4); i++) early += xy[1][i] / Math.max(1, n / 4); // Level of the first quarter
+        double rise = slope(xy[0], xy[1]) * (xy[0][n - 1] - xy[0][0]);
+        return early > 0 && rise > early * ratio;
+    }
+
+    private String drift(ToDoubleFunction<Sample> value, boolean flagged) {
+        double[][] xy = series(value);
+        int n = xy[0].length;
+        double first = n > 0 ? xy[1][0] : 0.0;
+        double last = n > 0 ? xy[1][n - 1] : 0.0;
+        return String.format(Locale.ROOT, "{\"first\": %.4f, \"last\": %.4f, \"slopePerHour\": %.4f, \"flagged\": %b}", first, last, slope(xy[0], xy[1]), flagged);
+    }
+
+    /**
+     * Gets the heap still in use after a full collection
+     */
+    private static long liveHeap() {
+        System.gc(); // Once a sample, so garbage does not hide a leak
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof OperatingSystemMXBean) return ((OperatingSystemMXBean) os).getProcessCpuTime();
+        return -1;
+    }
+
+    /**
+     * Counts the units in the engine. JSyn keeps them in a private list, -1 if it cannot be read.
+     */
+    static int unitCount(Synthesizer engine) {
+        try {
+            Field field = engine.getClass().getDeclaredField("allUnitList");
+            field.setAccessible(true);
+            List<?> units = (List<?>) field.get(engine);
+            return units.size(); // Read without the engine's lock, a count one unit off is fine for a trend
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Runs a soak test and writes the drift report
+     *
+     * @param args [--null] [--hours H] [--seconds S] [--players N] [--density CHORDS_PER_SECOND] [--chord MAX_NOTES]
+     *             [--osc-rate PER_SECOND] [--slider-rate PER_SECOND] [--voices N] [--sample SECONDS] [--report FILE]
+     * @throws Exception if the run or the report fails
+     */
+    public static void main(String[] args) throws Exception {
+        boolean useNull = false;
+        double seconds = 3600.0;
+        int playerCount = 4;
+        double density = 2.0;
+        int chord = 4;
+        double oscRate = 0.2;
+        double sliderRate = 5.0;
+        int voices = 64;
+        double sample = 60.0;
+        Path report = Paths.get("soak-report.json");
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--null")) useNull = true;
+            else if (args[i].equals("--hours")) seconds = Double.parseDouble(args[++i]) * 3600.0;
+            else if (args[i].equals("--seconds")) seconds = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--players")) playerCount = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--density")) density = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--chord")) chord = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--osc-rate")) oscRate = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--slider-rate")) sliderRate = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--voices")) voices = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--sample")) sample = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--report")) report = Paths.get(args[++i]);
+            else throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+        SoakTest soak;
+        if (useNull) {
+            NullAudioDevice device = new NullAudioDevice();
+            soak = new SoakTest(new Synth(voices, device), device);
+        } else {
+            Synth synth = new Synth(voices);
+            soak = new SoakTest(synth, synth.startOffline(48000));
+        }
+        for (int p = 0; p < playerCount; p++) soak.addPlayer(new Player(p % Part.NUM_PARTS, density, chord, oscRate, sliderRate));
+        soak.setSampleSeconds(sample);
+        soak.run(seconds);
+        soak.writeReport(report);
+        for (Sample s : soak.getSamples()) System.out.println(s);
+        System.out.println("Leak: " + soak.isLeaking() + ", creeping cost: " + soak.isCreeping() + ", report in " + report);
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Enum for how voices are split into stems when rendering stems offline
+ *
+ */
+
+public enum StemLayout {
+    /**
+     * One stem per part, a voice goes to the stem of the part playing on it
+     */
+    PART("part"),
+    /**
+     * The voice slots are split into equal groups of neighbouring voices, one stem per group
+     */
+    VOICE_GROUP("voice group");
+
+    private final String name; // The name of the layout
+    private StemLayout(String name){this.name = name;}// Constructor
+    @Override
+    public String toString(){return name;}// Returns the name of the layout
+
+}
@@ -0,0 +1,271 @@
+import com.jsyn.Synthesizer;
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * StemRecorder writes stems and the master mix to 32 bit float stereo WAV files while the
+ * synth renders offline. The MixBus sums every voice into its stem next to the mix
+ * ({@link MixBus#setStems(StemRecorder)}), and the recorder's input takes the master after the
+ * reverb; stems are dry. Cached notes (NoteCache) are only in the master.
+ *
+ * Each file has its own I/O thread. The render thread fills direct buffers and hands full
+ * ones over on a queue that never blocks; if the I/O thread has not given a buffer back
+ * yet, another one is allocated instead of waiting, so the disk never stalls rendering.
+ */
+public class StemRecorder extends UnitGenerator {
+    /**
+     * Stereo master input, part 0 is left and part 1 is right
+     */
+    public UnitInputPort input;
+
+    // Frames in each buffer handed to an I/O thread
+    private static final int BUFFER_FRAMES = 16384;
+    // Bytes of one stereo float frame
+    private static final int FRAME_BYTES = 8;
+    // Bytes of the WAV header written before the samples
+    private static final int HEADER_BYTES = 44;
+
+    /**
+     * One output file with its I/O thread
+     */
+    private class StemFile implements Runnable {
+        final Path path;
+        final FileChannel channel;
+        final LinkedBlockingQueue<ByteBuffer> full = new LinkedBlockingQueue<>(); // Unbounded, offer never blocks
+        final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        final Thread writer;
+        ByteBuffer current; // Render thread only
+        long position = HEADER_BYTES; // I/O thread only
+        volatile IOException error;
+
+        StemFile(Path path) throws IOException {
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            channel.write(header(0), 0); // Sizes are filled in by close
+            for (int i = 0; i < 3; i++) free.add(newBuffer());
+            current = newBuffer();
+            writer = new Thread(this, "stem-writer-" + path.getFileName());
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Writes full buffers until the empty buffer that marks the end
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    ByteBuffer buffer = full.take();
+                    if (!buffer.hasRemaining()) return; // End of the recording
+                    try {
+                        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+                    } catch (IOException e) {
+                        if (error == null) error = e; // Reported by close, rendering goes on
+                    }
+                    buffer.clear();
+                    free.add(buffer);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Hands the current buffer to the I/O thread and takes a free one. Render thread only.
+         */
+        void flip() {
+            current.flip();
+            if (current.hasRemaining()) full.add(current);
+            else free.add(current);
+            ByteBuffer next = free.poll();
+            if (next == null) { // The disk is behind, do not wait for it
+                next = newBuffer();
+                allocatedBuffers++;
+            }
+            current = next;
+        }
+    }
+
+    private final List<Path> files = new ArrayList<>();
+    private final StemFile master;
+    private final StemFile[] stemFiles;
+    private final int frameRate;
+    // Sum of each stem for the current block, filled by the MixBus
+    private final double[][] stemLeft;
+    private final double[][] stemRight;
+    // Written by the render thread
+    private volatile long frames = 0;
+    private volatile int allocatedBuffers = 0;
+    private volatile boolean recording = true;
+
+    /**
+     * Creates a new StemRecorder, opening master.wav and one file per stem
+     *
+     * @param dir the folder the files are written to
+     * @param stemNames the file name of each stem, without .wav
+     * @param frameRate the frame rate of the engine
+     * @throws IOException if a file cannot be created
+     */
+    public StemRecorder(Path dir, List<String> stemNames, int frameRate) throws IOException {
+        if (dir == null || stemNames == null) throw new IllegalArgumentException("Folder and stem names cannot be null");
+        if (stemNames.isEmpty() || stemNames.size() > 128) throw new IllegalArgumentException("Stem count must be between 1 and 128");
+        if (frameRate < 1000 || frameRate > 384000) throw new IllegalArgumentException("Frame rate must be between 1000 and 384000");
+        addPort(input = new UnitInputPort(2, "Input"));
+        this.frameRate = frameRate;
+        Files.createDirectories(dir); // Make sure the folder exists
+        master = new StemFile(dir.resolve("master.wav"));
+        files.add(master.path);
+        stemFiles = new StemFile[stemNames.size()];
+        for (int s = 0; s < stemFiles.length; s++) {
+            stemFiles[s] = new StemFile(dir.resolve(stemNames.get(s) + ".wav"));
+            files.add(stemFiles[s].path);
+        }
+        stemLeft = new double[stemFiles.length][];
+        stemRight = new double[stemFiles.length][];
+        for (int s = 0; s < stemFiles.length; s++) {
+            stemLeft[s] = new double[Synthesizer.FRAMES_PER_BLOCK];
+            stemRight[s] = new double[Synthesizer.FRAMES_PER_BLOCK];
+        }
+    }
+
+    /**
+     * Gets the number of stems
+     *
+     * @return the stem count, not counting the master
+     */
+    public int getStemCount() {return stemFiles.length;}
+
+    /**
+     * Gets the files written, the master first and then the stems in order
+     *
+     * @return the file paths
+     */
+    public List<Path> getFiles() {return Collections.unmodifiableList(files);}
+
+    /**
+     * Gets the number of frames recorded
+     *
+     * @return the frames in each file
+     */
+    public long getFrames() {return frames;}
+
+    /**
+     * Gets the number of buffers allocated because an I/O thread was behind
+     *
+     * @return the extra buffers, 0 when the disks kept up
+     */
+    public int getAllocatedBuffers() {return allocatedBuffers;}
+
+    /**
+     * Gets the left channel of a stem for the current block, summed into by the MixBus
+     */
+    double[] getStemLeft(int stem) {return stemLeft[stem];}
+
+    /**
+     * Gets the right channel of a stem for the current block, summed into by the MixBus
+     */
+    double[] getStemRight(int stem) {return stemRight[stem];}
+
+    /**
+     * Clears the stem sums before the MixBus adds the voices of a block
+     *
+     * @param start the start index
+     * @param limit the limit index
+     */
+    void clearStems(int start, int limit) {
+        for (int s = 0; s < stemFiles.length; s++) {
+            for (int i = start; i < limit; i++) {
+                stemLeft[s][i] = 0.0;
+                stemRight[s][i] = 0.0;
+            }
+        }
+    }
+
+    /**
+     * Appends the block of the master and every stem to their files
+     *
+     * @param start the start index
+     * @param limit the limit index
+     */
+    @Override
+    public void generate(int start, int limit) {
+        if (!recording) return;
+        append(master, input.getValues(0), input.getValues(1), start, limit);
+        for (int s = 0; s < stemFiles.length; s++) append(stemFiles[s], stemLeft[s], stemRight[s], start, limit);
+        frames += limit - start;
+    }
+
+    /**
+     * Stops recording, waits for the I/O threads to write what is left and fills in the WAV headers
+     *
+     * @throws IOException if a file could not be written
+     */
+    public void close() throws IOException {
+        if (!recording) return;
+        recording = false;
+        IOException error = null;
+        List<StemFile> all = new ArrayList<>();
+        all.add(master);
+        Collections.addAll(all, stemFiles);
+        for (StemFile file : all) {
+            file.flip(); // What is left of the last buffer
+            file.full.add(ByteBuffer.allocate(0)); // Tells the I/O thread to finish
+        }
+        for (StemFile file : all) {
+            try {
+                file.writer.join();
+                if (file.error != null) throw file.error;
+                file.channel.write(header(frames), 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (error == null) error = new IOException("Interrupted while writing " + file.path);
+            } catch (IOException e) {
+                if (error == null) error = e;
+            } finally {
+                file.channel.close();
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    private void append(StemFile file, double[] left, double[] right, int start, int limit) {
+        ByteBuffer buffer = file.current;
+        if (buffer.remaining() < (limit - start) * FRAME_BYTES) {
+            file.flip();
+            buffer = file.current;
+        }
+        for (int i = start; i < limit; i++) {
+            buffer.putFloat((float) left[i]);
+            buffer.putFloat((float) right[i]);
+        }
+    }
+
+    private static ByteBuffer newBuffer() {return ByteBuffer.allocateDirect(BUFFER_FRAMES * FRAME_BYTES).order(ByteOrder.LITTLE_ENDIAN);}
+
+    /**
+     * Builds a 32 bit float stereo WAV header
+     */
+    private ByteBuffer header(long frames) {
+        long data = frames * FRAME_BYTES;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952).putInt((int) Math.min(0xFFFFFFFFL, 36 + data)).putInt(0x45564157); // RIFF, WAVE
+        header.putInt(0x20746D66).putInt(16).putShort((short) 3).putShort((short) 2); // fmt, IEEE float, stereo
+        header.putInt(frameRate).putInt(frameRate * FRAME_BYTES).putShort((short) FRAME_BYTES).putShort((short) 32);
+        header.putInt(0x61746164).putInt((int) Math.min(0xFFFFFFFFL, data)); // data
+        header.flip();
+        return header;
+    }
+}
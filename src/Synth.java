@@ -1,119 +1,1222 @@
 import com.jsyn.Synthesizer;
 import com.jsyn.JSyn;
+import com.jsyn.devices.AudioDeviceFactory;
+import com.jsyn.devices.AudioDeviceManager;
+import com.jsyn.engine.SynthesisEngine;
 import com.jsyn.unitgen.LineOut;
-import java.util.stream.IntStream;
+import com.softsynth.shared.time.ScheduledCommand;
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Synth class for managing the synthesizer and its components
  */
 public class Synth {
-    // Array of voices
+    /**
+     * Default number of voices when no polyphony is given
+     */
+    public static final int DEFAULT_MAX_VOICES = 8;
+    /**
+     * Largest polyphony setting accepted by the constructor
+     */
+    public static final int MAX_POLYPHONY = 512;
+    /**
+     * Returned by {@link #noteOnChannel(int, int, double, NotePath)} when the note cache played
+     * the note. The note uses no voice and ends by itself, so there is nothing to release.
+     */
+    public static final int CACHED_NOTE = -2;
+
+    // Shortest wait between two idle voice trims, in nanoseconds
+    private static final long MIN_TRIM_INTERVAL_NANOS = 100_000_000L;
+
+    // Voice pool, slots stay null until a voice is needed
     private SynthVoice[] voices;
+    // Number of voices currently built in the pool
+    private int builtVoices = 0;
+    // Idle time in nanoseconds before an inactive voice is trimmed (0 = never)
+    private long voiceIdleTimeoutNanos = 0;
+    // Control thread that trims idle voices, started with the first idle timeout
+    private Thread trimThread;
     // The synthesizer
     private Synthesizer synth;
     // The keyboard controller
     private KeyboardController keyboardController;
     // The main line out
     private LineOut mainLineOut;
+    // Convolution reverb on the master bus
+    private ConvolutionReverb reverb;
+    // The bus every voice is mixed into before the line out
+    private MixBus mixBus;
+    // The modulation matrix, run once per block ahead of the voices
+    private ModMatrix modMatrix;
     // The UI
     private SynthUI ui;
+    // Audio device settings used by start()
+    private AudioConfig audioConfig = new AudioConfig();
+    // Devices the engine plays through, resampling to the device rate when the config asks for it
+    private ResamplingAudioDevice outputDevices;
+    // Optional meter for the latency from note event to audible output
+    private NoteLatencyMeter latencyMeter;
+    // Optional journal every control event is recorded to
+    private EventJournal journal;
+    // Optional trace the voices record signal chain events in
+    private TraceRing trace;
+    // Watches every audio block for lateness once the engine is started
+    private AudioBlockMonitor blockMonitor;
+    // Optional cache of rendered one-shot notes, and the player its hits sound on
+    private NoteCache noteCache;
+    private CachePlayer cachePlayer;
+    // True once the synth is driven by an OfflineRenderer
+    private boolean offline = false;
+    // Stems being recorded offline, and how voices are routed to them
+    private StemRecorder stemRecorder;
+    private StemLayout stemLayout;
+
+    // One part per MIDI channel, part 0 is the one the keyboard and UI play
+    private Part[] parts;
+    // Channel of the part each voice slot last played for, and the patch version it has loaded
+    private int[] voicePart;
+    private int[] voicePatchVersion;
+    // Expression dimensions, cached so note events do not copy the enum values
+    private static final Expression[] EXPRESSIONS = Expression.values();
+    // MIDI channel each voice's note arrived on (differs from its part in MPE mode)
+    private int[] voiceChannel;
+    // Slot a crossfaded note moved to, followed by noteOff so the caller's handle still releases it (-1 = not moved)
+    private int[] noteMovedTo;
+    // Latest expression per MIDI channel, copied to a voice when a note starts on that channel
+    private double[] channelExpression = new double[Part.NUM_PARTS * EXPRESSIONS.length];
+    // True when channels 1 to 15 are MPE member channels playing part 0
+    private boolean mpeMode = false;
+    // Scratch counts of active voices per part, used by voice allocation
+    private int[] partActive = new int[Part.NUM_PARTS];
+    // Time over which a held note fades out when its part crossfades to a new patch
+    private double patchCrossfadeSeconds = 0.05;
+
+    /**
+     * Creates a new Synth with the default polyphony
+     */
+    public Synth() {this(DEFAULT_MAX_VOICES);}
+
+    /**
+     * Creates a new Synth. Voices are built lazily the first time they are
+     * needed, so creating a synth with a large polyphony costs no more than a small one.
+     *
+     * @param maxVoices the maximum number of voices that can sound at once (1 to MAX_POLYPHONY)
+     */
+    public Synth(int maxVoices) {this(maxVoices, null);}
 
     /**
-     * Creates a new Synth
+     * Creates a new Synth that plays through the given audio devices
+     *
+     * @param maxVoices the maximum number of voices that can sound at once (1 to MAX_POLYPHONY)
+     * @param devices the audio device manager, or null for the JSyn default
      */
-    public Synth() {
-        synth = JSyn.createSynthesizer();
+    public Synth(int maxVoices, AudioDeviceManager devices) {
+        if (maxVoices < 1 || maxVoices > MAX_POLYPHONY) throw new IllegalArgumentException("Max voices must be between 1 and " + MAX_POLYPHONY);
+        // Play through a resampling wrapper so the engine can render at its own rate
+        outputDevices = new ResamplingAudioDevice((devices == null) ? AudioDeviceFactory.createAudioDeviceManager() : devices);
+        synth = JSyn.createSynthesizer(outputDevices);
         // Create main LineOut for audio output
         mainLineOut = new LineOut(); // Create the main LineOut
         synth.add(mainLineOut); // Add the main LineOut to the synthesizer
-        // Create 8 voices and add them to the synth using streams
-        voices = IntStream.range(0, 8) // Range of indices from 0 to 7
-                .mapToObj(i -> new SynthVoice(synth, mainLineOut)) // Create a new SynthVoice for each index
-                .toArray(SynthVoice[]::new); // Convert the stream to an array
-        
+        // Create the mix bus, one slot per voice, feeding the LineOut with one connection per channel
+        mixBus = new MixBus(maxVoices);
+        synth.add(mixBus); // Add the mix bus to the synthesizer
+        // Reverb between the mix bus and the LineOut, it passes the mix through until a response is loaded
+        reverb = new ConvolutionReverb();
+        synth.add(reverb);
+        mixBus.output.connect(0, reverb.input, 0); // Left channel
+        mixBus.output.connect(1, reverb.input, 1); // Right channel
+        reverb.output.connect(0, mainLineOut.input, 0);
+        reverb.output.connect(1, mainLineOut.input, 1);
+        // Create the modulation matrix, started now so it runs before the LineOut in every block
+        modMatrix = new ModMatrix(maxVoices);
+        synth.add(modMatrix);
+        modMatrix.start();
+        // Empty voice pool, voices are created on demand
+        voices = new SynthVoice[maxVoices];
+        voicePart = new int[maxVoices]; // Every slot starts on part 0
+        voicePatchVersion = new int[maxVoices];
+        voiceChannel = new int[maxVoices];
+        noteMovedTo = new int[maxVoices];
+        Arrays.fill(noteMovedTo, -1);
+        // Create the parts, one per MIDI channel, all sharing the voice pool
+        parts = new Part[Part.NUM_PARTS];
+        for (int i = 0; i < parts.length; i++) parts[i] = new Part(this, i);
+
         // Initialize keyboard controller
         keyboardController = new KeyboardController(this);
-        
-        // Initialize UI
-        ui = new SynthUI(this, keyboardController);
     }
-    
-    
+
     /**
-     * Find an available (inactive) voice
-     * 
+     * Find an available (inactive) voice for part 0.
+     *
      * @return index of available voice, or -1 if all voices are active
      */
+    public int getAvailableVoice() {return getAvailableVoice(parts[0]);}
+
     /**
-     * Find an available (inactive) voice using Java Streams
-     * 
-     * @return index of available voice, or -1 if all voices are active
+     * Find a voice for a part. Built voices are reused first (preferring ones that already
+     * have the part's patch), a new voice is only built when every built voice is busy and
+     * the pool has room. The part's voice limit and the other parts' reservations are respected.
+     *
+     * @param part the part that wants to play a note
+     * @return index of the voice, or -1 if the part cannot have one
+     */
+    public synchronized int getAvailableVoice(Part part) {
+        if (part == null) throw new IllegalArgumentException("Part cannot be null");
+        SynthEvents.VoiceAllocation event = new SynthEvents.VoiceAllocation();
+        event.begin();
+        int built = builtVoices;
+        int voiceIndex = findVoice(part);
+        if (event.shouldCommit()) {
+            boolean stolen = voiceIndex >= 0 && voices[voiceIndex].isActive(); // Still playing its old note
+            event.voice = voiceIndex;
+            event.part = part.getChannel();
+            event.stolen = stolen;
+            event.note = stolen ? voices[voiceIndex].getCurrentNote() : -1;
+            event.built = builtVoices != built;
+            event.commit();
+        }
+        return voiceIndex;
+    }
+
+    /**
+     * Finds a voice for a part, see {@link #getAvailableVoice(Part)}
+     *
+     * @param part the part that wants to play a note
+     * @return index of the voice, or -1 if the part cannot have one
      */
-    public int getAvailableVoice() {
-        return IntStream.range(0, voices.length) // Range of indices from 0 to voices.length
-                .filter(i -> !voices[i].isActive()) // Filter out active voices
-                .findFirst() // Find the first available voice
-                .orElse(-1); // Return -1 if no available voices
+    private int findVoice(Part part) {
+        Arrays.fill(partActive, 0);
+        int free = 0; // Slots without an active voice
+        for (int i = 0; i < voices.length; i++) {
+            if (voices[i] != null && voices[i].isActive()) partActive[voicePart[i]]++;
+            else free++;
+        }
+        int channel = part.getChannel();
+        if (partActive[channel] >= part.getVoiceLimit()) return part.isVoiceStealing() ? oldestVoice(channel) : -1; // Part is at its limit
+        int owed = 0; // Free voices the other parts have reserved and not used yet
+        for (Part other : parts) {
+            if (other != part) owed += Math.max(0, other.getReservedVoices() - partActive[other.getChannel()]);
+        }
+        boolean reserved = partActive[channel] < part.getReservedVoices(); // Part is still within its own reservation
+        if (!reserved && free - owed <= 0) return part.isVoiceStealing() && partActive[channel] > 0 ? oldestVoice(channel) : -1;
+        int emptySlot = -1; // First slot without a voice
+        int idleSlot = -1; // First idle voice
+        for (int i = 0; i < voices.length; i++) {
+            if (noteMovedTo[i] >= 0) continue; // Its note was crossfaded and has not been released yet
+            if (voices[i] == null) {
+                if (emptySlot < 0) emptySlot = i; // Remember the first empty slot
+            } else if (!voices[i].isActive()) {
+                if (voicePart[i] == channel && voicePatchVersion[i] == part.getPatchVersion()) return i; // Reuse an idle voice with the patch loaded
+                if (idleSlot < 0) idleSlot = i;
+            }
+        }
+        if (idleSlot >= 0) return idleSlot; // Reuse an idle voice
+        if (emptySlot < 0) return -1; // Pool is full and every voice is active
+        voicePart[emptySlot] = channel; // Build the new voice with this part's patch
+        buildVoice(emptySlot); // Build a new voice in the empty slot
+        return emptySlot;
     }
-    
+
     /**
      * Trigger a note on the specified voice
-     * 
+     *
+     * @param voiceIndex the index of the voice to use
+     * @param note the MIDI note number
+     * @param velocity the velocity (0.0 to 1.0)
+     */
+    public void noteOn(int voiceIndex, int note, double velocity) {noteOn(voiceIndex, note, velocity, NotePath.SEQUENCER);}
+
+    /**
+     * Trigger a note on the specified voice with part 0's patch, recording where the note came from
+     *
      * @param voiceIndex the index of the voice to use
      * @param note the MIDI note number
      * @param velocity the velocity (0.0 to 1.0)
+     * @param path where the note event came from
      */
-    public void noteOn(int voiceIndex, int note, double velocity) {
+    public void noteOn(int voiceIndex, int note, double velocity, NotePath path) {noteOn(voiceIndex, parts[0], note, velocity, path);}
+
+    /**
+     * Trigger a note on the specified voice with a part's patch
+     *
+     * @param voiceIndex the index of the voice to use
+     * @param part the part the note is played on
+     * @param note the MIDI note number
+     * @param velocity the velocity (0.0 to 1.0)
+     * @param path where the note event came from
+     */
+    public void noteOn(int voiceIndex, Part part, int note, double velocity, NotePath path) {
+        if (part == null) throw new IllegalArgumentException("Part cannot be null");
+        playNote(voiceIndex, part, part.getChannel(), note, velocity, path);
+    }
+
+    /**
+     * Trigger a note on the specified voice with a part's patch and the expression of the channel it arrived on
+     *
+     * @param voiceIndex the index of the voice to use
+     * @param part the part the note is played on
+     * @param channel the MIDI channel the note arrived on
+     * @param note the MIDI note number
+     * @param velocity the velocity (0.0 to 1.0)
+     * @param path where the note event came from
+     */
+    synchronized void playNote(int voiceIndex, Part part, int channel, int note, double velocity, NotePath path) {
         if(voiceIndex < 0 || voiceIndex >= voices.length) throw new IllegalArgumentException("Voice index out of bounds");
-        if (voiceIndex >= 0 && voiceIndex < voices.length) voices[voiceIndex].triggerNoteOn(note, velocity); // Trigger the note
+        if (part == null) throw new IllegalArgumentException("Part cannot be null");
+        if (path == null) throw new IllegalArgumentException("Note path cannot be null");
+        if (channel < 0 || channel >= Part.NUM_PARTS) throw new IllegalArgumentException("Channel must be between 0 and 15");
+        if (journal != null) journal.record(EventJournal.Type.NOTE_ON, voiceIndex, note | (path.ordinal() << 8) | (part.getChannel() << 12) | (channel << 16), velocity);
+        startVoice(voiceIndex, part, channel, note, velocity, path);
+    }
+
+    /**
+     * Starts a note on a voice without journaling it
+     */
+    private void startVoice(int voiceIndex, Part part, int channel, int note, double velocity, NotePath path) {
+        SynthEvents.NoteOn event = new SynthEvents.NoteOn(); // Removed by the JIT when no recording wants it
+        event.begin();
+        noteMovedTo[voiceIndex] = -1; // The slot plays a note of its own again
+        forgetMoves(voiceIndex);
+        voicePart[voiceIndex] = part.getChannel(); // The voice now plays for this part
+        if (stemLayout == StemLayout.PART) mixBus.setSlotStem(voiceIndex, part.getChannel() < stemRecorder.getStemCount() ? part.getChannel() : -1);
+        voiceChannel[voiceIndex] = channel;
+        SynthVoice voice = getVoice(voiceIndex);
+        if (voicePatchVersion[voiceIndex] != part.getPatchVersion()) loadPatch(voiceIndex); // Voice has another part's patch
+        if (latencyMeter != null) latencyMeter.noteIngress(voiceIndex, path); // Stamp the event before it reaches the voice
+        int e = channel * EXPRESSIONS.length;
+        for (Expression type : EXPRESSIONS) modMatrix.setExpression(voiceIndex, type, channelExpression[e + type.ordinal()]); // Expression sent before the note
+        voice.triggerNoteOn(note, velocity); // Trigger the note
+        modMatrix.noteOn(voiceIndex, note, velocity); // Restart the voice's modulation sources
+        if (event.shouldCommit()) {
+            event.voice = voiceIndex;
+            event.note = note;
+            event.velocity = velocity;
+            event.part = part.getChannel();
+            event.commit();
+        }
+    }
+
+    /**
+     * Plays a note from the note cache if nothing but the patch shapes its sound
+     *
+     * @return true if the cache played the note
+     */
+    private boolean playCached(Part part, int channel, int note, double velocity) {
+        if (note < 0 || note > 127) throw new IllegalArgumentException("Note must be between 0 and 127");
+        if (velocity < 0 || velocity > 1) throw new IllegalArgumentException("Velocity must be between 0 and 1");
+        if (modMatrix.getRoutingCount() > 0) return false; // Modulated notes differ every time
+        if (channelExpression[channel * EXPRESSIONS.length + Expression.PITCH_BEND.ordinal()] != 0.0) return false;
+        return noteCache.play(part.getPatch(), note, velocity, synth.getFrameRate());
+    }
+
+    /**
+     * Plays a note on a part, finding a voice for it
+     *
+     * @param channel the MIDI channel of the part (0 to 15)
+     * @param note the MIDI note number
+     * @param velocity the velocity (0.0 to 1.0)
+     * @param path where the note event came from
+     * @return the voice playing the note, {@link #CACHED_NOTE} if the note cache played it,
+     *         or -1 if the part could not get a voice
+     */
+    public synchronized int noteOnChannel(int channel, int note, double velocity, NotePath path) {
+        return startNote(getPart(mpeMode ? 0 : channel), channel, note, velocity, path); // MPE member channels all play the zone's part
     }
-    
+
     /**
-     * Release a note on the specified voice
-     * 
+     * Plays a note on a part from the note cache if it can, or on a voice found for it.
+     * Notes played on a given voice with noteOn never use the cache, the caller holds that voice.
+     *
+     * @param part the part the note is played on
+     * @param channel the MIDI channel the note arrived on
+     * @param note the MIDI note number
+     * @param velocity the velocity (0.0 to 1.0)
+     * @param path where the note event came from
+     * @return the voice playing the note, CACHED_NOTE or -1
+     */
+    synchronized int startNote(Part part, int channel, int note, double velocity, NotePath path) {
+        if (noteCache != null && part.isNoteCacheEnabled() && playCached(part, channel, note, velocity)) {
+            if (journal != null) journal.record(EventJournal.Type.CACHED_NOTE_ON, channel, note | (path.ordinal() << 8) | (part.getChannel() << 12), velocity);
+            return CACHED_NOTE; // No voice is used
+        }
+        int voiceIndex = getAvailableVoice(part);
+        if (voiceIndex >= 0) playNote(voiceIndex, part, channel, note, velocity, path);
+        return voiceIndex;
+    }
+
+    /**
+     * Sets the expression of a MIDI channel (channel pitch bend, channel pressure or CC 74).
+     * Applies to every note playing on the channel, which in MPE mode is the one note on that
+     * member channel, and to notes started on the channel later. Does not allocate.
+     *
+     * @param channel the MIDI channel (0 to 15)
+     * @param type the expression dimension
+     * @param value semitones for pitch bend, 0.0 to 1.0 for pressure and timbre
+     */
+    public synchronized void setChannelExpression(int channel, Expression type, double value) {
+        if (channel < 0 || channel >= Part.NUM_PARTS) throw new IllegalArgumentException("Channel must be between 0 and 15");
+        if (type == null) throw new IllegalArgumentException("Expression cannot be null");
+        channelExpression[channel * EXPRESSIONS.length + type.ordinal()] = value;
+        if (journal != null) journal.record(EventJournal.Type.EXPRESSION, channel, type.ordinal(), value);
+        for (int i = 0; i < voices.length; i++) {
+            if (voices[i] != null && voices[i].isActive() && voiceChannel[i] == channel) modMatrix.setExpression(i, type, value);
+        }
+    }
+
+    /**
+     * Sets the expression of one note (polyphonic aftertouch). Does not allocate.
+     *
+     * @param channel the MIDI channel (0 to 15)
+     * @param note the MIDI note number
+     * @param type the expression dimension
+     * @param value semitones for pitch bend, 0.0 to 1.0 for pressure and timbre
+     */
+    public synchronized void setNoteExpression(int channel, int note, Expression type, double value) {
+        if (type == null) throw new IllegalArgumentException("Expression cannot be null");
+        for (int i = 0; i < voices.length; i++) {
+            SynthVoice voice = voices[i];
+            if (voice != null && voice.isActive() && voiceChannel[i] == channel && voice.getCurrentNote() == note) modMatrix.setExpression(i, type, value);
+        }
+    }
+
+    /**
+     * Turns MPE mode on or off. In MPE mode (lower zone) channel 0 is the master channel and
+     * notes on channels 1 to 15 all play part 0, each note taking its expression from its own channel.
+     *
+     * @param on true for MPE mode
+     */
+    public synchronized void setMpeMode(boolean on) {
+        mpeMode = on;
+        if (journal != null) journal.record(EventJournal.Type.MPE_MODE, 0, on ? 1 : 0, 0.0);
+    }
+
+    /**
+     * Checks if MPE mode is on
+     *
+     * @return true in MPE mode
+     */
+    public boolean isMpeMode() {return mpeMode;}
+
+    /**
+     * Releases a note playing on a part
+     *
+     * @param channel the MIDI channel of the part (0 to 15)
+     * @param note the MIDI note number
+     * @return the voice that was released, or -1 if the note was not playing
+     */
+    public synchronized int noteOffChannel(int channel, int note) {
+        getPart(channel); // Check the channel
+        for (int i = 0; i < voices.length; i++) {
+            SynthVoice voice = voices[i];
+            if (voice != null && voice.isActive() && voiceChannel[i] == channel && voice.getCurrentNote() == note) {
+                noteOff(i);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Release a note on the specified voice. If a patch crossfade moved the note to another
+     * voice, that voice is released.
+     *
      * @param voiceIndex the index of the voice to release
      */
-    public void noteOff(int voiceIndex) {
+    public synchronized void noteOff(int voiceIndex) {
         if(voiceIndex < 0 || voiceIndex >= voices.length) throw new IllegalArgumentException("Voice index out of bounds");
-        if (voiceIndex >= 0 && voiceIndex < voices.length) voices[voiceIndex].triggerNoteOff(); // Release the note
+        if (journal != null) journal.record(EventJournal.Type.NOTE_OFF, voiceIndex, 0, 0.0);
+        while (noteMovedTo[voiceIndex] >= 0) { // Follow the note to where it plays now
+            int moved = noteMovedTo[voiceIndex];
+            noteMovedTo[voiceIndex] = -1; // The old slot is free again
+            voiceIndex = moved;
+        }
+        forgetMoves(voiceIndex); // Released through another handle, see noteOffChannel
+        releaseVoice(voiceIndex);
+    }
+
+    /**
+     * Drops every crossfade move that ends at a slot, so the old slots can be used again
+     *
+     * @param index the slot
+     */
+    private void forgetMoves(int index) {
+        for (int i = 0; i < noteMovedTo.length; i++) {
+            if (noteMovedTo[i] == index) {
+                noteMovedTo[i] = -1;
+                forgetMoves(i); // Notes crossfaded more than once
+            }
+        }
+    }
+
+    /**
+     * Releases a voice without journaling it
+     */
+    private void releaseVoice(int voiceIndex) {
+        SynthEvents.NoteOff event = new SynthEvents.NoteOff();
+        event.begin();
+        if (voices[voiceIndex] != null) voices[voiceIndex].triggerNoteOff(); // Release the note
+        modMatrix.noteOff(voiceIndex); // Release the filter envelope
+        if (event.shouldCommit()) {
+            event.voice = voiceIndex;
+            event.note = voices[voiceIndex] == null ? -1 : voices[voiceIndex].getCurrentNote();
+            event.commit();
+        }
+    }
+
+    /**
+     * Sets how long a voice may stay idle before it is removed from the pool.
+     * Idle voices are trimmed by a control thread, never while a note is being allocated,
+     * and trimmed voices are rebuilt on demand.
+     *
+     * @param seconds the idle time in seconds, 0 to never trim
+     */
+    public synchronized void setVoiceIdleTimeout(double seconds) {
+        if (seconds < 0) throw new IllegalArgumentException("Idle timeout cannot be negative");
+        voiceIdleTimeoutNanos = (long) (seconds * 1_000_000_000L);
+        if (trimThread == null) {
+            if (voiceIdleTimeoutNanos > 0) startTrimThread();
+        } else {
+            LockSupport.unpark(trimThread); // Wait on the new timeout
+        }
+    }
+
+    /**
+     * Starts the thread that trims idle voices every half timeout, at most every 100 ms
+     */
+    private void startTrimThread() {
+        trimThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                long wait;
+                synchronized (this) {
+                    wait = (voiceIdleTimeoutNanos > 0) ? Math.max(voiceIdleTimeoutNanos / 2, MIN_TRIM_INTERVAL_NANOS) : 0;
+                }
+                if (wait > 0) LockSupport.parkNanos(wait);
+                else LockSupport.park(); // Trimming disabled, wait for a timeout
+                trimIdleVoices();
+            }
+        }, "voice-trim");
+        trimThread.setDaemon(true);
+        trimThread.setPriority(Thread.MIN_PRIORITY); // Never competes with the audio thread
+        trimThread.start();
+    }
+
+    /**
+     * Removes every voice that has been silent (released and faded out) longer than the idle timeout
+     *
+     * @return the number of voices removed
+     */
+    public synchronized int trimIdleVoices() {
+        if (voiceIdleTimeoutNanos <= 0) return 0; // Trimming disabled
+        long now = System.nanoTime();
+        int trimmed = 0;
+        for (int i = 0; i < voices.length; i++) {
+            SynthVoice voice = voices[i];
+            if (voice != null && !voice.isSounding() && now - voice.getLastUsedNanos() > voiceIdleTimeoutNanos) {
+                modMatrix.detachVoice(i); // Stop modulating the voice
+                voice.dispose(); // Remove the voice's units from the synth
+                voices[i] = null; // Free the slot
+                builtVoices--;
+                trimmed++;
+            }
+        }
+        return trimmed;
+    }
+
+    /**
+     * Sets the oscillator type of part 0
+     *
+     * @param type the new oscillator type
+     */
+    public void setOscType(OscType type) {parts[0].setOscType(type);}
+
+    /**
+     * Sets whether the square, sawtooth and triangle of part 0 are band-limited
+     *
+     * @param bandLimited true for the band-limited waveforms
+     */
+    public void setBandLimited(boolean bandLimited) {parts[0].setBandLimited(bandLimited);}
+
+    /**
+     * Sets the pulse width of part 0's square
+     *
+     * @param width the fraction of the cycle spent high (0.05 to 0.95)
+     */
+    public void setPulseWidth(double width) {parts[0].setPulseWidth(width);}
+
+    /**
+     * Sets the FM algorithm of part 0
+     *
+     * @param algorithm the algorithm
+     */
+    public void setFmAlgorithm(FmAlgorithm algorithm) {parts[0].setFmAlgorithm(algorithm);}
+
+    /**
+     * Sets one setting of an FM operator of part 0
+     *
+     * @param operator the operator (0 to 5)
+     * @param param the setting
+     * @param value the value, in the setting's range
+     */
+    public void setFmOperator(int operator, FmParam param, double value) {parts[0].setFmOperator(operator, param, value);}
+
+    /**
+     * Loads a patch on part 0, held notes keep the old patch
+     *
+     * @param patch the patch
+     */
+    public void setPatch(Patch patch) {parts[0].setPatch(patch);}
+
+    /**
+     * Loads a patch on part 0
+     *
+     * @param patch the patch
+     * @param swap what happens to held notes
+     */
+    public void setPatch(Patch patch, PatchSwap swap) {parts[0].setPatch(patch, swap);}
+
+    /**
+     * Gets the settings of part 0 as a patch
+     *
+     * @return the patch
+     */
+    public Patch getPatch() {return parts[0].getPatch();}
+
+    /**
+     * Sets how long a held note takes to fade out when its part crossfades to a new patch
+     *
+     * @param seconds the crossfade time (0.001 to 10 seconds)
+     */
+    public void setPatchCrossfadeTime(double seconds) {
+        if (seconds < 0.001 || seconds > 10.0) throw new IllegalArgumentException("Crossfade time must be between 0.001 and 10");
+        patchCrossfadeSeconds = seconds;
+    }
+
+    /**
+     * Gets the patch crossfade time
+     *
+     * @return the crossfade time in seconds
+     */
+    public double getPatchCrossfadeTime() {return patchCrossfadeSeconds;}
+
+    /**
+     * Sets the attack time of part 0
+     *
+     * @param sec the attack time in seconds
+     */
+    public void setAttack(double sec) {parts[0].setAttack(sec);}
+
+    /**
+     * Sets the envelope curve of part 0
+     *
+     * @param curve the curve
+     */
+    public void setEnvelopeCurve(EnvelopeCurve curve) {parts[0].setEnvelopeCurve(curve);}
+
+    /**
+     * Sets the decay time of part 0
+     *
+     * @param sec the decay time in seconds
+     */
+    public void setDecay(double sec) {parts[0].setDecay(sec);}
+
+    /**
+     * Sets the sustain level of part 0
+     *
+     * @param level the sustain level
+     */
+    public void setSustain(double level) {parts[0].setSustain(level);}
+
+    /**
+     * Sets the release time of part 0
+     *
+     * @param sec the release time in seconds
+     */
+    public void setRelease(double sec) {parts[0].setRelease(sec);}
+
+    /**
+     * Sets the filter cutoff of part 0
+     *
+     * @param freq the cutoff frequency in Hz
+     */
+    public void setFilterCutoff(double freq) {parts[0].setFilterCutoff(freq);}
+
+    /**
+     * Sets the filter resonance of part 0
+     *
+     * @param resonance the resonance (0.0 to 1.0)
+     */
+    public void setFilterResonance(double resonance) {parts[0].setFilterResonance(resonance);}
+
+    /**
+     * Gets the part played on a MIDI channel
+     *
+     * @param channel the MIDI channel (0 to 15)
+     * @return the part
+     */
+    public Part getPart(int channel) {
+        if (channel < 0 || channel >= parts.length) throw new IllegalArgumentException("Channel must be between 0 and 15");
+        return parts[channel];
+    }
+
+    /**
+     * Starts a batch of graph edits on this synth's engine, applied together at the start of a
+     * block when committed
+     *
+     * @return the empty batch
+     */
+    public GraphEdit editGraph() {return new GraphEdit(synth);}
+
+    /**
+     * Refreshes the signal chain of every built voice and retriggers the active ones
+     */
+    public void refreshVoices() {
+        for (SynthVoice voice : voices) {
+            if (voice == null) continue;
+            voice.refreshSignalChain(); // Refresh the signal chain
+            if (voice.isActive()) voice.retriggerEnvelope(); // Retrigger the envelope if the voice is active
+        }
     }
 
- 
     /**
-     * Get the array of voices
-     * 
+     * Gets the oscillator type of part 0
+     *
+     * @return the oscillator type
+     */
+    public OscType getOscType() {return parts[0].getOscType();}
+
+    /**
+     * Checks if part 0's square, sawtooth and triangle are band-limited
+     *
+     * @return true for the band-limited waveforms
+     */
+    public boolean isBandLimited() {return parts[0].isBandLimited();}
+
+    /**
+     * Gets the pulse width of part 0's square
+     *
+     * @return the fraction of the cycle spent high
+     */
+    public double getPulseWidth() {return parts[0].getPulseWidth();}
+
+    /**
+     * Gets the attack time of part 0
+     *
+     * @return the attack time in seconds
+     */
+    public double getAttack() {return parts[0].getAttack();}
+
+    /**
+     * Gets the decay time of part 0
+     *
+     * @return the decay time in seconds
+     */
+    public double getDecay() {return parts[0].getDecay();}
+
+    /**
+     * Gets the sustain level of part 0
+     *
+     * @return the sustain level
+     */
+    public double getSustain() {return parts[0].getSustain();}
+
+    /**
+     * Gets the release time of part 0
+     *
+     * @return the release time in seconds
+     */
+    public double getRelease() {return parts[0].getRelease();}
+
+    /**
+     * Gets the filter cutoff of part 0
+     *
+     * @return the cutoff frequency in Hz
+     */
+    public double getFilterCutoff() {return parts[0].getFilterCutoff();}
+
+    /**
+     * Gets the filter resonance of part 0
+     *
+     * @return the resonance
+     */
+    public double getFilterResonance() {return parts[0].getFilterResonance();}
+
+    /**
+     * Get the array of voices. This builds every voice that has not been built yet,
+     * so prefer {@link #getAvailableVoice()} and the setters above on large pools.
+     *
      * @return the array of SynthVoice instances
      */
-    public SynthVoice[] getVoices() {return voices;}
+    public SynthVoice[] getVoices() {
+        for (int i = 0; i < voices.length; i++) getVoice(i); // Make sure every slot holds a voice
+        return voices;
+    }
+
+    /**
+     * Gets the maximum number of voices
+     *
+     * @return the polyphony of the synth
+     */
+    public int getMaxVoices() {return voices.length;}
+
+    /**
+     * Gets the number of voices currently built
+     *
+     * @return the number of built voices
+     */
+    public synchronized int getBuiltVoiceCount() {return builtVoices;}
+
+    /**
+     * Sets the audio device settings used the next time the synth is started
+     *
+     * @param config the audio settings
+     */
+    public void setAudioConfig(AudioConfig config) {
+        if (config == null) throw new IllegalArgumentException("Audio config cannot be null");
+        audioConfig = config;
+    }
+
+    /**
+     * Gets the audio device settings
+     *
+     * @return the audio settings
+     */
+    public AudioConfig getAudioConfig() {return audioConfig;}
+
+    /**
+     * Sets the meter that measures the time from note event to audible output
+     *
+     * @param meter the latency meter (with at least one slot per voice), or null to stop measuring
+     */
+    public void setLatencyMeter(NoteLatencyMeter meter) {
+        latencyMeter = meter;
+        mixBus.setLatencyMeter(meter); // The bus checks each voice's output for the meter
+    }
+
+    /**
+     * Creates a latency meter for this synth and starts measuring with it
+     *
+     * @param threshold the output level that counts as audible
+     * @param sampleClock true to count frames (offline), false to use the wall clock (live)
+     * @return the new meter
+     */
+    public NoteLatencyMeter enableLatencyMeter(double threshold, boolean sampleClock) {
+        NoteLatencyMeter meter = new NoteLatencyMeter(synth, voices.length, threshold, sampleClock);
+        if (!sampleClock) meter.setOutputLatency(audioConfig.getLatencySeconds()); // The device buffer adds to what the player hears
+        setLatencyMeter(meter);
+        return meter;
+    }
+
+    /**
+     * Gets the latency meter
+     *
+     * @return the latency meter, or null when not measuring
+     */
+    public NoteLatencyMeter getLatencyMeter() {return latencyMeter;}
+
+    /**
+     * Sets the journal every control event is recorded to, stamped with this synth's frame count
+     *
+     * @param journal the event journal, or null to stop recording
+     */
+    public void setJournal(EventJournal journal) {
+        this.journal = journal;
+        modMatrix.setJournal(journal);
+        if (journal != null) journal.attach(synth, voices.length); // Events are timed by the sample clock
+    }
+
+    /**
+     * Gets the event journal
+     *
+     * @return the journal, or null when not recording
+     */
+    public EventJournal getJournal() {return journal;}
+
+    /**
+     * Sets the trace the voices record notes, retriggers, oscillator switches and rewiring in,
+     * stamped with this synth's frame count
+     *
+     * @param trace the trace ring, or null to stop tracing
+     */
+    public synchronized void setTrace(TraceRing trace) {
+        this.trace = trace;
+        if (trace != null) trace.attach(synth); // Events are timed by the sample clock
+        for (SynthVoice voice : voices) if (voice != null) voice.setTrace(trace);
+        if (blockMonitor != null) blockMonitor.setTrace(trace);
+    }
+
+    /**
+     * Gets the trace
+     *
+     * @return the trace ring, or null when not tracing
+     */
+    public TraceRing getTrace() {return trace;}
+
+    /**
+     * Gets the monitor timing the audio blocks
+     *
+     * @return the block monitor, or null before the engine is started
+     */
+    public AudioBlockMonitor getBlockMonitor() {return blockMonitor;}
+
+    /**
+     * Starts caching rendered notes of the parts that have the note cache enabled
+     * ({@link Part#setNoteCacheEnabled(boolean)}). The cached notes play on a CachePlayer
+     * mixed in front of the reverb.
+     *
+     * @param budgetBytes the memory the rendered notes may use
+     * @param velocitySteps the number of velocity steps cached per note (1 to 127)
+     * @return the new cache
+     */
+    public synchronized NoteCache enableNoteCache(long budgetBytes, int velocitySteps) {
+        if (cachePlayer == null) {
+            cachePlayer = new CachePlayer(64);
+            synth.add(cachePlayer);
+            cachePlayer.output.connect(0, reverb.input, 0); // Summed with the mix bus
+            cachePlayer.output.connect(1, reverb.input, 1);
+        }
+        noteCache = new NoteCache(cachePlayer, budgetBytes, velocitySteps);
+        noteCache.setRenderOnWorker(!offline); // Offline, a miss is rendered straight away
+        return noteCache;
+    }
+
+    /**
+     * Gets the note cache
+     *
+     * @return the cache, or null when notes are not cached
+     */
+    public NoteCache getNoteCache() {return noteCache;}
+
+    /**
+     * Gets the modulation matrix
+     *
+     * @return the modulation matrix
+     */
+    public ModMatrix getModMatrix() {return modMatrix;}
+
+    /**
+     * Gets the mix bus the voices are summed into
+     *
+     * @return the mix bus
+     */
+    public MixBus getMixBus() {return mixBus;}
+
+    /**
+     * Gets the convolution reverb on the master bus
+     *
+     * @return the reverb
+     */
+    public ConvolutionReverb getReverb() {return reverb;}
+
+    /**
+     * Gets the underlying JSyn synthesizer
+     *
+     * @return the synthesizer
+     */
+    public Synthesizer getSynthesizer() {return synth;}
+
+    /**
+     * Prepares the synth for rendering without an audio device.
+     * Use this instead of {@link #start()}.
+     *
+     * @param frameRate the frame rate to render at
+     * @return the renderer driving the synth
+     */
+    public OfflineRenderer startOffline(int frameRate) {
+        OfflineRenderer renderer = new OfflineRenderer(synth, frameRate); // Take over the engine
+        if (journal != null) journal.setFrameRate(frameRate);
+        reverb.setTailOnWorker(false); // Rendering is not paced by a device, so get every reverb block
+        offline = true;
+        if (noteCache != null) noteCache.setRenderOnWorker(false);
+        mainLineOut.start(); // Start the main LineOut so the voices are pulled
+        return renderer;
+    }
+
+    /**
+     * Starts writing stems next to the master mix while rendering offline. With
+     * {@link StemLayout#PART} parts 0 to stems-1 each get a stem (voices of other parts are
+     * only in the master), with {@link StemLayout#VOICE_GROUP} the voice slots are split
+     * into that many groups. The files are written to the folder as master.wav and
+     * part-N.wav or voices-A-B.wav by one I/O thread each.
+     *
+     * @param dir the folder to write to
+     * @param layout how voices are split into stems
+     * @param stems the number of stems (1 to 16 for parts, 1 to the voice count for groups)
+     * @return the recorder, for its files and counters
+     * @throws IOException if a file cannot be created
+     */
+    public synchronized StemRecorder recordStems(Path dir, StemLayout layout, int stems) throws IOException {
+        if (!offline) throw new IllegalStateException("Stems are recorded offline, call startOffline first");
+        if (stemRecorder != null) throw new IllegalStateException("Stems are already being recorded");
+        if (layout == null) throw new IllegalArgumentException("Stem layout cannot be null");
+        int most = layout == StemLayout.PART ? Part.NUM_PARTS : voices.length;
+        if (stems < 1 || stems > most) throw new IllegalArgumentException("Stems must be between 1 and " + most);
+        List<String> names = new ArrayList<>();
+        for (int s = 0; s < stems; s++) {
+            if (layout == StemLayout.PART) names.add("part-" + (s + 1));
+            else names.add("voices-" + (s * voices.length / stems + 1) + "-" + ((s + 1) * voices.length / stems));
+        }
+        StemRecorder recorder = new StemRecorder(dir, names, synth.getFrameRate());
+        for (int slot = 0; slot < voices.length; slot++) { // Route the voices already playing too
+            if (layout == StemLayout.VOICE_GROUP) mixBus.setSlotStem(slot, slot * stems / voices.length);
+            else mixBus.setSlotStem(slot, voicePart[slot] < stems ? voicePart[slot] : -1);
+        }
+        editGraph().add(recorder).connect(reverb.output, 0, recorder.input, 0).connect(reverb.output, 1, recorder.input, 1).commit(); // The master, after the reverb
+        recorder.start(); // Pulled every block like the LineOut
+        stemRecorder = recorder;
+        stemLayout = layout;
+        mixBus.setStems(recorder);
+        return recorder;
+    }
+
+    /**
+     * Stops recording stems and finishes the files
+     *
+     * @throws IOException if a file could not be written
+     */
+    public synchronized void finishStems() throws IOException {
+        StemRecorder recorder = stemRecorder;
+        if (recorder == null) return;
+        mixBus.setStems(null);
+        stemRecorder = null;
+        stemLayout = null;
+        recorder.stop();
+        editGraph().disconnect(reverb.output, 0, recorder.input, 0).disconnect(reverb.output, 1, recorder.input, 1).remove(recorder).commit();
+        recorder.close();
+    }
 
     /**
      * Gets keyboard controller instance
-     * 
+     *
      * @return the keyboard controller instance
      */
     public KeyboardController getKeyboardController() {return keyboardController;}
 
+    /**
+     * Gets the voice in a slot, building it first if needed
+     *
+     * @param index the slot index
+     * @return the voice
+     */
+    private SynthVoice getVoice(int index) {
+        if (voices[index] == null) buildVoice(index);
+        return voices[index];
+    }
+
+    /**
+     * Builds a voice in an empty slot and applies its part's patch to it
+     *
+     * @param index the slot index
+     */
+    private void buildVoice(int index) {
+        SynthVoice voice = new SynthVoice(synth, mixBus, index); // Create the voice graph on its bus slot
+        voices[index] = voice;
+        builtVoices++;
+        modMatrix.attachVoice(index, voice); // Modulate the new voice
+        voice.setTrace(trace);
+        loadPatch(index); // Apply the part's oscillator, ADSR and filter
+    }
+
+    /**
+     * Applies the patch of the slot's part to its voice
+     *
+     * @param index the slot index
+     */
+    private void loadPatch(int index) {
+        Part part = parts[voicePart[index]];
+        part.applyTo(voices[index]);
+        voicePatchVersion[index] = part.getPatchVersion();
+        modMatrix.setBaseCutoff(index, part.getFilterCutoff()); // Modulation is applied around the part's filter
+        modMatrix.setBaseResonance(index, part.getFilterResonance());
+    }
+
+    /**
+     * Applies a part's patch to every built voice playing for it. Called by Part when its patch changes.
+     *
+     * @param part the part that changed
+     */
+    synchronized void updatePartVoices(Part part) {
+        for (int i = 0; i < voices.length; i++) {
+            if (voices[i] != null && voicePart[i] == part.getChannel()) loadPatch(i);
+        }
+    }
+
+    /**
+     * Hands a part's newly loaded patch to its voices. Called by Part when a whole patch is loaded.
+     * Silent voices take it now, held notes keep the old patch or are crossfaded to a new voice,
+     * and releasing voices take it with their next note.
+     *
+     * @param part the part that loaded a patch
+     * @param swap what happens to held notes
+     */
+    synchronized void swapPartPatch(Part part, PatchSwap swap) {
+        int channel = part.getChannel();
+        for (int i = 0; i < voices.length; i++) {
+            SynthVoice voice = voices[i];
+            if (voice == null || voicePart[i] != channel || voicePatchVersion[i] == part.getPatchVersion()) continue; // Crossfade voices already have it
+            if (!voice.isSounding()) {
+                loadPatch(i); // Ready for its next note
+                continue;
+            }
+            voice.holdPatch(); // Keeps the old patch, the new one is published below
+            if (swap == PatchSwap.CROSSFADE && voice.isActive()) crossfade(i, part);
+        }
+        part.publishPatch(); // Once, so every voice following the part switches in the same block
+    }
+
+    /**
+     * Runs a command on the audio thread between two blocks, or now when there is no engine
+     *
+     * @param command the command
+     */
+    void queueAudioCommand(ScheduledCommand command) {
+        if (synth instanceof SynthesisEngine) ((SynthesisEngine) synth).queueCommand(command);
+        else command.run(); // No engine to race with
+    }
+
+    /**
+     * Starts a held note again on another voice with its part's patch and fades the old voice out.
+     * The caller's handle for the note stays the old slot, noteOff follows it to the new one.
+     * Not journaled, the replay loads the patch the same way and makes the same move.
+     *
+     * @param index the slot of the held note
+     * @param part the part the note plays on
+     */
+    private void crossfade(int index, Part part) {
+        SynthVoice old = voices[index];
+        int target = findVoice(part);
+        if (target < 0 || target == index || voices[target].isActive()) return; // No free voice, the note keeps the old patch
+        startVoice(target, part, voiceChannel[index], old.getCurrentNote(), old.getVelocity(), NotePath.SEQUENCER);
+        old.getEnvelope().setRelease(patchCrossfadeSeconds); // Put back when the voice loads a patch again
+        releaseVoice(index);
+        noteMovedTo[index] = target;
+    }
+
+    /**
+     * Finds the voice of a part that was triggered longest ago
+     *
+     * @param channel the part's channel
+     * @return the voice index, or -1 if the part has no active voice
+     */
+    private int oldestVoice(int channel) {
+        int oldest = -1;
+        for (int i = 0; i < voices.length; i++) {
+            SynthVoice voice = voices[i];
+            if (voice == null || !voice.isActive() || voicePart[i] != channel) continue;
+            if (oldest < 0 || voice.getLastUsedNanos() < voices[oldest].getLastUsedNanos()) oldest = i;
+        }
+        return oldest;
+    }
+
     /**
      * Start the synthesizer and show the keyboard window
+     * (the window is skipped when there is no display)
     */
-
     public void start() {
-        synth.start(); // Start the synthesizer
-        mainLineOut.start(); // Start the main LineOut
+        startEngine(); // Start the audio
+        if (GraphicsEnvironment.isHeadless()) return; // No display to show the UI on
+        if (ui == null) ui = new SynthUI(this, keyboardController); // Create the UI
         ui.show(); // Show the UI
     }
 
+    /**
+     * Start the synthesizer on the configured audio device without showing the UI
+     */
+    public void startEngine() {
+        audioConfig.applyTo(synth.getAudioDeviceManager()); // Set the device buffer size
+        outputDevices.setOutputFrameRate(audioConfig.isResampled() ? audioConfig.getFrameRate() : 0); // Resample after the LineOut
+        synth.start(audioConfig.getInternalFrameRate(), AudioDeviceManager.USE_DEFAULT_DEVICE, 0, audioConfig.getOutputDevice(), 2); // Output only
+        mainLineOut.start(); // Start the main LineOut
+        if (journal != null) journal.setFrameRate(audioConfig.getInternalFrameRate()); // Event frames count engine frames
+        startBlockMonitor();
+    }
+
+    /**
+     * Installs a fresh block monitor sized to the device buffer, so late blocks are always reported
+     */
+    private synchronized void startBlockMonitor() {
+        if (blockMonitor != null) synth.removeAudioTask(blockMonitor); // Restarted, the buffer may have changed
+        int rate = audioConfig.getInternalFrameRate();
+        double bufferSeconds = audioConfig.getLatencySeconds();
+        if (audioConfig.getBufferFrames() == AudioConfig.DEVICE_DEFAULT_BUFFER) { // The device picks, assume its default latency
+            AudioDeviceManager devices = synth.getAudioDeviceManager();
+            int device = audioConfig.getOutputDevice() == AudioDeviceManager.USE_DEFAULT_DEVICE ? devices.getDefaultOutputDeviceID() : audioConfig.getOutputDevice();
+            bufferSeconds = devices.getDefaultHighOutputLatency(device);
+        }
+        blockMonitor = new AudioBlockMonitor(synth, Math.max(1, (int) (bufferSeconds * rate)), rate); // The buffer in engine frames, skip the first second
+        blockMonitor.setTrace(trace);
+        synth.addAudioTask(blockMonitor);
+    }
+
     /**
      * Stop the synthesizer
      */
-    public void stop() {synth.stop();}
+    public void stop() {
+        synth.stop();
+        synchronized (this) {
+            if (trimThread != null) trimThread.interrupt(); // Nothing left to trim for
+            trimThread = null;
+        }
+        if (journal == null) return;
+        try {
+            journal.close(); // Flush what was recorded
+        } catch (IOException e) {
+            System.err.println("Could not close event journal: " + e.getMessage());
+        }
+    }
+
     /**
      * Main method to run the synthesizer
-     * 
-     * @param args command line arguments
+     *
+     * @param args command line arguments, optionally the maximum number of voices
      */
     public static void main(String[] args) {
-        Synth synth = new Synth(); // Create a new Synth
+        int maxVoices = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_VOICES; // Polyphony from the command line
+        Synth synth = new Synth(maxVoices); // Create a new Synth
+        if (Files.exists(AudioConfig.defaultPath())) { // Use the calibrated settings if there are any
+            try {
+                synth.setAudioConfig(AudioConfig.load(AudioConfig.defaultPath()));
+            } catch (IOException e) {
+                System.err.println("Could not load audio settings: " + e.getMessage());
+            }
+        }
+        if (Files.exists(KeyboardController.defaultLayoutPath())) { // Use the player's key layout if there is one
+            try {
+                synth.getKeyboardController().loadLayout(KeyboardController.defaultLayoutPath());
+            } catch (IOException e) {
+                System.err.println("Could not load key layout: " + e.getMessage());
+            }
+        }
+        try {
+            EventJournal.rotate(EventJournal.defaultPath()); // Keep the previous session as journal.1.bin
+            synth.setJournal(new EventJournal(EventJournal.defaultPath())); // Always keep the recent session for replay
+        } catch (IOException e) {
+            System.err.println("Could not open event journal: " + e.getMessage());
+        }
+        if (Boolean.getBoolean("synth.trace")) { // -Dsynth.trace=true records the signal chain
+            TraceRing trace = new TraceRing(8192);
+            synth.setTrace(trace);
+            trace.startDumpThread(System.err); // Dumps on an underrun
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> trace.dump(System.err))); // And on exit
+        }
         synth.start(); // Start the synthesizer
+        String reverbFile = System.getProperty("synth.reverb"); // -Dsynth.reverb=hall.wav adds a convolution reverb
+        if (reverbFile != null) {
+            try {
+                synth.getReverb().setImpulseResponse(ImpulseResponse.load(Paths.get(reverbFile))); // After start, it is resampled to the engine rate
+            } catch (IOException e) {
+                System.err.println("Could not load impulse response: " + e.getMessage());
+            }
+        }
+        MidiInput.connectAll(synth); // Play MIDI input on the part of each channel
     }
-}
\ No newline at end of file
+}
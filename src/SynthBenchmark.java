@@ -0,0 +1,928 @@
+import com.jsyn.JSyn;
+import com.jsyn.Synthesizer;
+import com.jsyn.unitgen.Add;
+import com.jsyn.unitgen.EnvelopeDAHDSR;
+import com.jsyn.unitgen.FilterStateVariable;
+import com.jsyn.unitgen.LinearRamp;
+import com.jsyn.unitgen.LineOut;
+import com.jsyn.unitgen.SawtoothOscillator;
+import com.jsyn.unitgen.SineOscillator;
+import com.jsyn.unitgen.SquareOscillator;
+import com.jsyn.unitgen.UnitGenerator;
+import com.sun.management.ThreadMXBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import jdk.jfr.Recording;
+
+/**
+ * SynthBenchmark measures the engine with the offline renderer so it runs without an audio device.
+ * Run it with `ant bench`. Each benchmark prints one line per configuration.
+ */
+public class SynthBenchmark {
+    // Frame rate used by every benchmark
+    private static final int FRAME_RATE = 48000;
+    // Polyphony levels to measure
+    private static final int[] VOICE_COUNTS = {8, 32, 128, 256, 512};
+    // Seconds of audio rendered to warm up the JIT before measuring
+    private static final double WARMUP_SECONDS = 2.0;
+    // Seconds of audio rendered while measuring
+    private static final double MEASURE_SECONDS = 5.0;
+
+    /**
+     * Runs the benchmarks
+     *
+     * @param args optional benchmark name to run only that benchmark
+     */
+    public static void main(String[] args) {
+        String only = args.length > 0 ? args[0] : null; // Benchmark to run, or all of them
+        if (only == null || only.equals("mix")) benchmarkMixBus();
+        if (only == null || only.equals("latency")) benchmarkNoteLatency();
+        if (only == null || only.equals("mod")) benchmarkModMatrix();
+        if (only == null || only.equals("filter")) benchmarkFilter();
+        if (only == null || only.equals("parts")) benchmarkParts();
+        if (only == null || only.equals("jfr")) benchmarkFlightRecorder();
+        if (only == null || only.equals("resample")) benchmarkResampling();
+        if (only == null || only.equals("fm")) benchmarkFm();
+        if (only == null || only.equals("reverb")) benchmarkReverb();
+        if (only == null || only.equals("envelope")) benchmarkEnvelope();
+        if (only == null || only.equals("patch")) benchmarkPatches();
+        if (only == null || only.equals("notecache")) benchmarkNoteCache();
+        if (only == null || only.equals("graph")) benchmarkGraphEdits();
+        if (only == null || only.equals("stems")) benchmarkStems();
+        if (only == null || only.equals("blep")) benchmarkBandLimited();
+    }
+
+    /**
+     * Compares summing N voices through the MixBus with connecting every voice
+     * to both LineOut channels (the old 2xN fan-in)
+     */
+    private static void benchmarkMixBus() {
+        System.out.println("# mix: voices, fan-in ns/frame, mix bus ns/frame, lineout connections (fan-in / bus)");
+        for (int voices : VOICE_COUNTS) {
+            double fanIn = measure(buildFanIn(voices));
+            double bus = measure(buildMixBus(voices));
+            System.out.printf("mix %4d %10.1f %10.1f %6d / %d%n", voices, fanIn, bus, voices * 2, 2);
+        }
+    }
+
+    /**
+     * Plays notes from every path on an offline loopback render and prints the
+     * note to audible output latency distribution (in audio time, so it is repeatable)
+     */
+    private static void benchmarkNoteLatency() {
+        Synth synth = new Synth(32);
+        OfflineRenderer renderer = synth.startOffline(FRAME_RATE);
+        NoteLatencyMeter meter = synth.enableLatencyMeter(0.01, true);
+        Random random = new Random(1234); // Fixed seed so runs compare
+        NotePath[] paths = NotePath.values();
+        for (int i = 0; i < 300; i++) {
+            int voice = synth.getAvailableVoice();
+            renderer.renderFrames(random.nextInt(renderer.getFramesPerBuffer())); // Notes land at any point in a buffer
+            synth.noteOn(voice, 48 + random.nextInt(36), 0.8, paths[i % paths.length]);
+            renderer.renderSeconds(0.1);
+            synth.noteOff(voice);
+            renderer.renderSeconds(synth.getRelease() + 0.05); // Let the release finish so the next note starts from silence
+        }
+        meter.report(System.out);
+    }
+
+    /**
+     * Renders 64 sounding voices with a growing number of modulation routings,
+     * to show the matrix cost rising linearly with the routing count
+     */
+    private static void benchmarkModMatrix() {
+        System.out.println("# mod: routings, ns/frame (64 voices)");
+        ModSource[] sources = ModSource.values();
+        ModDestination[] dests = {ModDestination.PITCH, ModDestination.CUTOFF, ModDestination.RESONANCE};
+        for (int routings : new int[] {0, 4, 16, 64}) {
+            Synth synth = new Synth(64);
+            OfflineRenderer renderer = synth.startOffline(FRAME_RATE);
+            for (int r = 0; r < routings; r++) synth.getModMatrix().addRouting(sources[r % sources.length], dests[r % dests.length], 0.01);
+            for (int v = 0; v < 64; v++) synth.noteOn(v, 36 + v, 0.8);
+            System.out.printf("mod %4d %10.1f%n", routings, measure(renderer));
+        }
+    }
+
+    /**
+     * Compares the JSyn state variable filter (with the two smoothing ramps each voice used to carry)
+     * against the ZdfFilter, one filtered sawtooth per voice
+     */
+    private static void benchmarkFilter() {
+        System.out.println("# filter: voices, jsyn svf + ramps ns/frame, zdf ns/frame");
+        for (int voices : new int[] {8, 16, 32, 64, 128}) {
+            double svf = measure(buildFilterGraph(voices, false));
+            double zdf = measure(buildFilterGraph(voices, true));
+            System.out.printf("filter %4d %10.1f %10.1f%n", voices, svf, zdf);
+        }
+    }
+
+    /**
+     * Builds N sawtooth oscillators, each through a filter into one MixBus slot
+     *
+     * @param voices the number of voices
+     * @param zdf true for the ZdfFilter, false for FilterStateVariable with cutoff and resonance ramps
+     * @return the renderer for the graph
+     */
+    private static OfflineRenderer buildFilterGraph(int voices, boolean zdf) {
+        Synthesizer synth = JSyn.createSynthesizer();
+        LineOut lineOut = new LineOut();
+        MixBus bus = new MixBus(voices);
+        synth.add(lineOut);
+        synth.add(bus);
+        bus.output.connect(0, lineOut.input, 0);
+        bus.output.connect(1, lineOut.input, 1);
+        for (int i = 0; i < voices; i++) {
+            SawtoothOscillator osc = new SawtoothOscillator();
+            synth.add(osc);
+            osc.frequency.set(55.0 + i);
+            osc.amplitude.set(1.0 / 64);
+            if (zdf) {
+                ZdfFilter filter = new ZdfFilter();
+                synth.add(filter);
+                filter.frequency.set(800.0 + 10 * i);
+                filter.resonance.set(0.5);
+                osc.output.connect(filter.input);
+                filter.output.connect(0, bus.input, i);
+            } else {
+                FilterStateVariable filter = new FilterStateVariable();
+                LinearRamp cutoff = new LinearRamp();
+                LinearRamp resonance = new LinearRamp();
+                synth.add(filter);
+                synth.add(cutoff);
+                synth.add(resonance);
+                cutoff.output.connect(filter.frequency);
+                resonance.output.connect(filter.resonance);
+                cutoff.input.set(800.0 + 10 * i);
+                resonance.input.set(0.15);
+                osc.output.connect(filter.input);
+                filter.output.connect(0, bus.input, i);
+            }
+            bus.attach(i);
+        }
+        OfflineRenderer renderer = new OfflineRenderer(synth, FRAME_RATE);
+        lineOut.start();
+        return renderer;
+    }
+
+    /**
+     * Compares layering bass, pad and lead as three separate synths (one engine each, like
+     * running three processes but without the per JVM overhead) against one synth with three parts.
+     * Prints the heap used by the synths and the render time of the whole layer.
+     */
+    private static void benchmarkParts() {
+        System.out.println("# parts: setup, heap MB, ns/frame (bass 2 + pad 8 + lead 2 voices)");
+        OscType[] patches = {OscType.SQUARE, OscType.TRIANGLE, OscType.SAWTOOTH};
+        int[] notes = {2, 8, 2};
+
+        long before = usedHeap();
+        Synth[] separate = new Synth[3];
+        OfflineRenderer[] renderers = new OfflineRenderer[3];
+        for (int i = 0; i < 3; i++) {
+            separate[i] = new Synth(notes[i]);
+            separate[i].setOscType(patches[i]);
+            renderers[i] = separate[i].startOffline(FRAME_RATE);
+            for (int n = 0; n < notes[i]; n++) separate[i].noteOn(n, 36 + 12 * i + n, 0.8);
+        }
+        long separateHeap = usedHeap() - before;
+        double separateTime = 0;
+        for (OfflineRenderer renderer : renderers) separateTime += measure(renderer); // Each engine renders its own buffers
+
+        before = usedHeap();
+        Synth multi = new Synth(12);
+        for (int i = 0; i < 3; i++) {
+            multi.getPart(i).setOscType(patches[i]);
+            multi.getPart(i).setVoiceLimit(notes[i]);
+        }
+        OfflineRenderer renderer = multi.startOffline(FRAME_RATE);
+        for (int i = 0; i < 3; i++) {
+            for (int n = 0; n < notes[i]; n++) multi.noteOnChannel(i, 36 + 12 * i + n, 0.8, NotePath.MIDI);
+        }
+        long multiHeap = usedHeap() - before;
+        double multiTime = measure(renderer);
+
+        System.out.printf("parts separate %8.2f %10.1f%n", separateHeap / 1e6, separateTime);
+        System.out.printf("parts multi    %8.2f %10.1f%n", multiHeap / 1e6, multiTime);
+    }
+
+    /**
+     * Measures the cost of the flight recorder events on the note path: with no recording,
+     * with a recording that has the synth events turned off, and with them on.
+     * Prints the time and the bytes allocated per note on / note off pair. Starting a
+     * recording makes the JIT recompile, so every case is warmed up before it is measured.
+     */
+    private static void benchmarkFlightRecorder() {
+        System.out.println("# jfr: recording, ns/note, bytes/note (note on + note off, 32 voices)");
+        Synth synth = new Synth(32);
+        OfflineRenderer renderer = synth.startOffline(FRAME_RATE);
+        for (int i = 0; i < 3; i++) measureNotes(synth, renderer); // Warm up
+        System.out.printf("jfr none     %8.1f %8.1f%n", measureNotes(synth, renderer), notesAllocated);
+        try (Recording recording = new Recording()) {
+            for (String name : new String[] {"synth.NoteOn", "synth.NoteOff", "synth.VoiceAllocation", "synth.GraphRewire", "synth.EnvelopeRetrigger", "synth.LateBlock"}) recording.disable(name);
+            recording.start();
+            for (int i = 0; i < 3; i++) measureNotes(synth, renderer); // Starting JFR recompiles, settle again
+            System.out.printf("jfr disabled %8.1f %8.1f%n", measureNotes(synth, renderer), notesAllocated);
+        }
+        try (Recording recording = new Recording()) {
+            for (String name : new String[] {"synth.NoteOn", "synth.NoteOff", "synth.VoiceAllocation", "synth.GraphRewire", "synth.EnvelopeRetrigger", "synth.LateBlock"}) recording.enable(name);
+            recording.start();
+            for (int i = 0; i < 3; i++) measureNotes(synth, renderer); // Starting JFR recompiles, settle again
+            System.out.printf("jfr enabled  %8.1f %8.1f%n", measureNotes(synth, renderer), notesAllocated);
+        }
+    }
+
+    /**
+     * Measures the convolution reverb on 8 voices for impulse responses of 0.5 to 10 seconds.
+     * Prints the audio thread cost (head partitions), the cost of the tail partitions the
+     * worker takes off it (measured by rendering them inline) and the share of one core the
+     * whole reverb needs in real time.
+     */
+    private static void benchmarkReverb() {
+        System.out.println("# reverb: IR seconds, partitions, audio thread ns/frame, worker ns/frame, % of a core (" + ConvolutionReverb.DEFAULT_PARTITION + " frame partitions, " + FRAME_RATE + " Hz)");
+        measureReverb(decayingNoise(1.0), false); // Compile the convolution before timing anything
+        measureReverb(decayingNoise(1.0), true);
+        double dryCost = measureReverb(null, true);
+        for (double seconds : new double[] {0.5, 1.0, 2.0, 5.0, 10.0}) {
+            ImpulseResponse ir = decayingNoise(seconds);
+            double head = measureReverb(ir, true) - dryCost;
+            double total = measureReverb(ir, false) - dryCost;
+            int partitions = (ir.getFrames() + ConvolutionReverb.DEFAULT_PARTITION - 1) / ConvolutionReverb.DEFAULT_PARTITION;
+            System.out.printf("reverb %5.1f %6d %8.1f %8.1f %6.1f%n", seconds, partitions, head, total - head, total * FRAME_RATE / 1e7);
+        }
+    }
+
+    /**
+     * Times 8 voices through the reverb, counting only the rendering thread's CPU time
+     *
+     * @param ir the response, or null for no reverb
+     * @param worker true to leave the tail to the worker
+     */
+    private static double measureReverb(ImpulseResponse ir, boolean worker) {
+        Synth synth = new Synth(8);
+        OfflineRenderer renderer = synth.startOffline(FRAME_RATE);
+        synth.getReverb().setImpulseResponse(ir);
+        synth.getReverb().setTailOnWorker(worker);
+        for (int v = 0; v < 8; v++) synth.noteOn(v, 48 + v * 3, 0.5);
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        renderer.renderSeconds(WARMUP_SECONDS);
+        long startFrame = renderer.getFrameCount();
+        long start = threads.getCurrentThreadCpuTime(); // CPU time of this thread only, the worker may share the core
+        renderer.renderSeconds(MEASURE_SECONDS);
+        long elapsed = threads.getCurrentThreadCpuTime() - start;
+        synth.getReverb().setImpulseResponse(null); // Stop the worker
+        return (double) elapsed / (renderer.getFrameCount() - startFrame);
+    }
+
+    /**
+     * Makes a stereo response of exponentially decaying noise, 60 dB down at the end
+     */
+    private static ImpulseResponse decayingNoise(double seconds) {
+        Random random = new Random(1);
+        int frames = (int) (seconds * FRAME_RATE);
+        double[][] samples = new double[2][frames];
+        for (int c = 0; c < 2; c++) {
+            for (int i = 0; i < frames; i++) samples[c][i] = random.nextGaussian() * 0.05 * Math.pow(10.0, -3.0 * i / frames);
+        }
+        return new ImpulseResponse(samples, FRAME_RATE);
+    }
+
+    /**
+     * Renders 64 FM voices with each algorithm, all operators modulating and with feedback,
+     * and prints the cost per voice and the most voices one core can render in real time.
+     * The sine oscillator is the first line, for comparison.
+     */
+    private static void benchmarkFm() {
+        System.out.println("# fm: algorithm, ns/voice frame, voices per core (64 voices, " + FRAME_RATE + " Hz)");
+        int voices = 64;
+        double sine = measureFm(voices, null) / voices;
+        System.out.printf("fm %-12s %8.1f %8d%n", "sine", sine, (int) (1e9 / FRAME_RATE / sine));
+        for (FmAlgorithm algorithm : FmAlgorithm.values()) {
+            double perVoice = measureFm(voices, algorithm) / voices;
+            System.out.printf("fm %-12s %8.1f %8d%n", algorithm, perVoice, (int) (1e9 / FRAME_RATE / perVoice));
+        }
+    }
+
+    /**
+     * Compares the per voice cost of EnvelopeDAHDSR with ControlRateEnvelope at several control
+     * periods. Every envelope is gated on and off twice a second so all segments are timed, and
+     * the cost of the bus the envelopes feed is taken off.
+     */
+    private static void benchmarkEnvelope() {
+        System.out.println("# envelope: voices, ns/voice frame for dahdsr, control 8, control 16, control 32");
+        int[] periods = {0, 8, 16, 32}; // 0 is EnvelopeDAHDSR
+        for (int period : periods) measure(buildEnvelopes(32, period)); // Compile every variant before timing any
+        for (int voices : new int[] {32, 128, 512}) {
+            double bus = measure(buildEnvelopes(voices, -1));
+            double[] perVoice = new double[periods.length];
+            for (int i = 0; i < periods.length; i++) perVoice[i] = (measure(buildEnvelopes(voices, periods[i])) - bus) / voices;
+            System.out.printf("envelope %4d %8.2f %8.2f %8.2f %8.2f%n", voices, perVoice[0], perVoice[1], perVoice[2], perVoice[3]);
+        }
+    }
+
+    /**
+     * Times loading patch banks of growing size from a file, and loading a patch on a part
+     * with 64 built voices against setting the same values one setter at a time
+     */
+    private static void benchmarkPatches() {
+        System.out.println("# patch: bank size, load ms, us/patch");
+        try {
+            Path file = Files.createTempFile("bank", ".bin");
+            for (int size : new int[] {100, 1000, 10000, 10000}) { // The first 10000 warms up
+                List<Patch> patches = new ArrayList<>();
+                for (int i = 0; i < size; i++) patches.add(Patch.DEFAULT.withOscType(OscType.values()[i % 5]).withFilter(FilterType.LOW_PASS, 100.0 + i % 5000, 0.5));
+                PatchBank.save(file, patches);
+                long start = System.nanoTime();
+                PatchBank.load(file);
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("patch %6d %8.2f %8.2f%n", size, elapsed / 1e6, elapsed / 1e3 / size);
+            }
+            Files.delete(file);
+        } catch (IOException e) {
+            System.out.println("patch bank failed: " + e.getMessage());
+        }
+        System.out.println("# patch swap: us per load with setPatch, us with one setter per value (64 voices)");
+        Synth synth = new Synth(64);
+        OfflineRenderer renderer = synth.startOffline(FRAME_RATE);
+        synth.getVoices(); // Build every voice
+        Patch[] patches = {Patch.DEFAULT.withOscType(OscType.SQUARE), Patch.DEFAULT.withOscType(OscType.SAWTOOTH).withEnvelope(0.2, 0.3, 0.5, 1.0)};
+        int loads = 20000;
+        for (int round = 0; round < 2; round++) { // The first round warms up
+            long start = System.nanoTime();
+            for (int i = 0; i < loads; i++) {
+                synth.setPatch(patches[i & 1]);
+                if (i % 64 == 0) renderer.renderBuffers(1); // Let the voices take it
+            }
+            double whole = (System.nanoTime() - start) / 1e3 / loads;
+            start = System.nanoTime();
+            for (int i = 0; i < loads; i++) {
+                Patch p = patches[i & 1];
+                synth.setOscType(p.getOscType());
+                synth.setAttack(p.getAttack());
+                synth.setDecay(p.getDecay());
+                synth.setSustain(p.getSustain());
+                synth.setRelease(p.getRelease());
+                synth.setFilterCutoff(p.getFilterCutoff());
+                synth.setFilterResonance(p.getFilterResonance());
+                if (i % 64 == 0) renderer.renderBuffers(1);
+            }
+            double setters = (System.nanoTime() - start) / 1e3 / loads;
+            if (round == 1) System.out.printf("patch swap %8.2f %8.2f%n", whole, setters);
+        }
+    }
+
+    /**
+     * Builds N envelopes, each into one MixBus slot
+     *
+     * @param voices the number of envelopes
+     * @param period the ControlRateEnvelope control period, 0 for EnvelopeDAHDSR, -1 for the bus alone
+     * @return the renderer for the graph
+     */
+    private static OfflineRenderer buildEnvelopes(int voices, int period) {
+        Synthesizer synth = JSyn.createSynthesizer();
+        LineOut lineOut = new LineOut();
+        MixBus bus = new MixBus(voices);
+        synth.add(lineOut);
+        synth.add(bus);
+        bus.output.connect(0, lineOut.input, 0);
+        bus.output.connect(1, lineOut.input, 1);
+        SquareOscillator gate = new SquareOscillator(); // Gates every EnvelopeDAHDSR
+        synth.add(gate);
+        gate.frequency.set(2.0);
+        ControlRateEnvelope[] envelopes = new ControlRateEnvelope[voices];
+        for (int i = 0; i < voices; i++) {
+            if (period == 0) {
+                EnvelopeDAHDSR envelope = new EnvelopeDAHDSR();
+                synth.add(envelope);
+                envelope.attack.set(0.05);
+                envelope.decay.set(0.1);
+                envelope.sustain.set(0.7);
+                envelope.release.set(0.2);
+                gate.output.connect(envelope.input);
+                envelope.output.connect(0, bus.input, i);
+            } else if (period > 0) {
+                ControlRateEnvelope envelope = new ControlRateEnvelope();
+                synth.add(envelope);
+                envelope.setControlPeriod(period);
+                envelope.setSegments(0.05, 0.1, 0.7, 0.2);
+                envelope.output.connect(0, bus.input, i);
+                envelopes[i] = envelope;
+            }
+            bus.attach(i);
+        }
+        if (period > 0) {
+            Gates gates = new Gates(envelopes, FRAME_RATE / 4); // Same timing as the square wave
+            synth.add(gates);
+            gates.start();
+        }
+        OfflineRenderer renderer = new OfflineRenderer(synth, FRAME_RATE);
+        lineOut.start();
+        return renderer;
+    }
+
+    /**
+     * Turns a set of ControlRateEnvelopes on and off, the ControlRateEnvelope version of a gate signal
+     */
+    private static class Gates extends UnitGenerator {
+        private final ControlRateEnvelope[] envelopes;
+        private final int frames; // Frames per half cycle
+        private int count = 0;
+        private boolean on = false;
+
+        Gates(ControlRateEnvelope[] envelopes, int frames) {
+            this.envelopes = envelopes;
+            this.frames = frames;
+        }
+
+        @Override
+        public void generate(int start, int limit) {
+            count -= limit - start;
+            if (count > 0) return;
+            count += frames;
+            on = !on;
+            for (ControlRateEnvelope envelope : envelopes) {
+                if (on) envelope.gateOn();
+                else envelope.gateOff();
+            }
+        }
+    }
+
+    /**
+     * Times a synth playing a chord of FM voices, or sine voices when the algorithm is null
+     */
+    private static double measureFm(int voices, FmAlgorithm algorithm) {
+        Synth synth = new Synth(voices);
+        if (algorithm != null) {
+            synth.setOscType(OscType.FM);
+            synth.setFmAlgorithm(algorithm);
+            for (int op = 0; op < FmAlgorithm.MAX_OPERATORS; op++) {
+                synth.setFmOperator(op, FmParam.RATIO, op + 1.0);
+                synth.setFmOperator(op, FmParam.LEVEL, 2.0);
+                synth.setFmOperator(op, FmParam.FEEDBACK, 0.3);
+            }
+        }
+        OfflineRenderer renderer = synth.startOffline(FRAME_RATE);
+        for (int v = 0; v < voices; v++) synth.noteOn(v, 36 + v % 48, 0.5);
+        return measure(renderer);
+    }
+
+    /**
+     * Renders 128 voices at each internal rate and resamples to 48 kHz. Prints the render time
+     * and the resampler time per second of output, how much of a 1 kHz tone and of a tone at
+     * 40% of the lower rate is left after fitting the tone (images, aliases and distortion),
+     * and, when downsampling, how far a tone above the output Nyquist is pushed down.
+     */
+    private static void benchmarkResampling() {
+        System.out.println("# resample: internal Hz, render ms/s, resample ms/s, 1 kHz residual dB, edge residual dB, stop band dB (128 voices, 48000 Hz out)");
+        int[] rates = {24000, 32000, 44100, 48000, 96000};
+        for (int rate : rates) {
+            Synth synth = new Synth(128);
+            synth.setOscType(OscType.SAWTOOTH);
+            OfflineRenderer renderer = synth.startOffline(rate);
+            for (int v = 0; v < 128; v++) synth.noteOn(v, 36 + v % 48, 0.5);
+            double render = measure(renderer) * rate / 1e6; // ms to render one second of output
+            if (rate == FRAME_RATE) {
+                System.out.printf("resample %6d %8.1f %8s %8s %8s %8s%n", rate, render, "-", "-", "-", "-");
+                continue;
+            }
+            double resample = measureResampler(rate) / 1e6;
+            double band = 0.4 * Math.min(rate, FRAME_RATE);
+            String stop = (rate > FRAME_RATE) ? String.format("%8.1f", toneGainDb(rate, 0.6 * FRAME_RATE)) : "-";
+            System.out.printf("resample %6d %8.1f %8.2f %8.1f %8.1f %8s%n", rate, render, resample, toneResidualDb(rate, 1000.0), toneResidualDb(rate, band), stop);
+        }
+    }
+
+    /**
+     * Times a stereo resampler and returns the nanoseconds per second of output
+     */
+    private static double measureResampler(int rate) {
+        PolyphaseResampler resampler = new PolyphaseResampler(rate, FRAME_RATE, 2);
+        double[] input = new double[256 * 2]; // One engine buffer
+        for (int i = 0; i < input.length; i++) input[i] = Math.sin(i * 0.1);
+        double[] output = new double[resampler.getMaxOutputFrames(256) * 2];
+        long frames = 0;
+        for (int i = 0; i < 20000; i++) frames += resampler.process(input, 0, 256, output, 0); // Warm up
+        frames = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < 20000; i++) frames += resampler.process(input, 0, 256, output, 0);
+        long elapsed = System.nanoTime() - start;
+        return (double) elapsed / frames * FRAME_RATE;
+    }
+
+    /**
+     * Resamples one second of a sine
+     */
+    private static double[] resampleTone(int rate, double toneHz) {
+        PolyphaseResampler resampler = new PolyphaseResampler(rate, FRAME_RATE, 1);
+        double[] input = new double[rate];
+        for (int i = 0; i < input.length; i++) input[i] = 0.5 * Math.sin(2.0 * Math.PI * toneHz * i / rate);
+        double[] output = new double[resampler.getMaxOutputFrames(input.length)];
+        int frames = resampler.process(input, 0, input.length, output, 0);
+        return Arrays.copyOf(output, frames);
+    }
+
+    /**
+     * Fits the tone to the resampled sine and returns what is left, relative to the tone
+     */
+    private static double toneResidualDb(int rate, double toneHz) {
+        double[] signal = resampleTone(rate, toneHz);
+        double w = 2.0 * Math.PI * toneHz / FRAME_RATE;
+        int start = FRAME_RATE / 20; // Skip the filter's start up
+        double ss = 0, sc = 0, cc = 0, ys = 0, yc = 0;
+        for (int i = start; i < signal.length; i++) {
+            double s = Math.sin(w * i), c = Math.cos(w * i);
+            ss += s * s; sc += s * c; cc += c * c; ys += signal[i] * s; yc += signal[i] * c;
+        }
+        double det = ss * cc - sc * sc;
+        double a = (ys * cc - yc * sc) / det, b = (yc * ss - ys * sc) / det; // Least squares sine and cosine parts
+        double tone = 0, residual = 0;
+        for (int i = start; i < signal.length; i++) {
+            double fit = a * Math.sin(w * i) + b * Math.cos(w * i);
+            tone += fit * fit;
+            residual += (signal[i] - fit) * (signal[i] - fit);
+        }
+        return 10.0 * Math.log10(residual / tone);
+    }
+
+    /**
+     * Returns the level of a resampled sine relative to the input
+     */
+    private static double toneGainDb(int rate, double toneHz) {
+        double[] signal = resampleTone(rate, toneHz);
+        double power = 0;
+        for (int i = FRAME_RATE / 20; i < signal.length; i++) power += signal[i] * signal[i];
+        power /= signal.length - FRAME_RATE / 20;
+        return 10.0 * Math.log10(power / (0.5 * 0.5 / 2)); // Against the input sine's power
+    }
+
+    // Bytes allocated per note by the last measureNotes call
+    private static double notesAllocated;
+
+    /**
+     * Plays notes without rendering and returns the time per note on / note off pair
+     */
+    private static double measureNotes(Synth synth, OfflineRenderer renderer) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int notes = 200000;
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < notes; i++) {
+            int voice = synth.getAvailableVoice();
+            synth.noteOn(voice, 36 + i % 48, 0.8);
+            synth.noteOff(voice);
+        }
+        long elapsed = System.nanoTime() - start;
+        notesAllocated = (double) (threads.getThreadAllocatedBytes(thread) - bytes) / notes;
+        renderer.renderBuffers(1); // Let the voices apply what was played
+        return (double) elapsed / notes;
+    }
+
+    /**
+     * Gets the heap in use after a garbage collection
+     *
+     * @return the used heap in bytes
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Builds N oscillators, each through an Add into both LineOut channels
+     *
+     * @param voices the number of voices
+     * @return the renderer for the graph
+     */
+    private static OfflineRenderer buildFanIn(int voices) {
+        Synthesizer synth = JSyn.createSynthesizer();
+        LineOut lineOut = new LineOut();
+        synth.add(lineOut);
+        for (int i = 0; i < voices; i++) {
+            Add mixer = addVoice(synth, i);
+            mixer.output.connect(0, lineOut.input, 0); // Left channel
+            mixer.output.connect(0, lineOut.input, 1); // Right channel
+        }
+        OfflineRenderer renderer = new OfflineRenderer(synth, FRAME_RATE);
+        lineOut.start();
+        return renderer;
+    }
+
+    /**
+     * Builds N oscillators, each through an Add into one MixBus slot
+     *
+     * @param voices the number of voices
+     * @return the renderer for the graph
+     */
+    private static OfflineRenderer buildMixBus(int voices) {
+        Synthesizer synth = JSyn.createSynthesizer();
+        LineOut lineOut = new LineOut();
+        MixBus bus = new MixBus(voices);
+        synth.add(lineOut);
+        synth.add(bus);
+        bus.output.connect(0, lineOut.input, 0);
+        bus.output.connect(1, lineOut.input, 1);
+        for (int i = 0; i < voices; i++) {
+            Add mixer = addVoice(synth, i);
+            mixer.output.connect(0, bus.input, i);
+            bus.attach(i);
+            bus.setPan(i, (i % 2 == 0) ? -0.5 : 0.5); // Spread the voices
+        }
+        OfflineRenderer renderer = new OfflineRenderer(synth, FRAME_RATE);
+        lineOut.start();
+        return renderer;
+    }
+
+    /**
+     * Adds a sine oscillator and an Add stage, like the tail of a SynthVoice
+     *
+     * @param synth the synthesizer
+     * @param index the voice index, used to spread the pitches
+     * @return the Add unit to connect to the output
+     */
+    private static Add addVoice(Synthesizer synth, int index) {
+        SineOscillator osc = new SineOscillator();
+        Add mixer = new Add();
+        synth.add(osc);
+        synth.add(mixer);
+        osc.frequency.set(110.0 + index);
+        osc.amplitude.set(1.0 / 64);
+        osc.output.connect(mixer.inputA);
+        return mixer;
+    }
+
+    /**
+     * Warms up and then times a renderer
+     *
+     * @param renderer the renderer to time
+     * @return the average render time per frame in nanoseconds
+     */
+    static double measure(OfflineRenderer renderer) {
+        renderer.renderSeconds(WARMUP_SECONDS); // Let the JIT compile the hot paths
+        long startFrame = renderer.getFrameCount();
+        long start = System.nanoTime();
+        renderer.renderSeconds(MEASURE_SECONDS);
+        long elapsed = System.nanoTime() - start;
+        return (double) elapsed / (renderer.getFrameCount() - startFrame);
+    }
+
+    /**
+     * Plays a dense one-shot drum pattern (a note every 5 ms over 8 notes and 4 velocities)
+     * on voices, then from the NoteCache, and prints the render cost of each
+     */
+    private static void benchmarkNoteCache() {
+        System.out.println("# notecache: ns/frame with voices, ns/frame with the cache, hit rate, cache MB");
+        Patch drum = Patch.DEFAULT.withOscType(OscType.SQUARE).withEnvelope(0.001, 0.08, 0.0, 0.05).withFilter(FilterType.LOW_PASS, 3000.0, 0.6);
+        double[] cost = new double[2];
+        NoteCache cache = null;
+        for (int cached = 0; cached < 2; cached++) {
+            Synth synth = new Synth(64);
+            OfflineRenderer renderer = synth.startOffline(FRAME_RATE);
+            synth.setPatch(drum);
+            if (cached == 1) {
+                cache = synth.enableNoteCache(NoteCache.DEFAULT_BUDGET_BYTES, 4);
+                synth.getPart(0).setNoteCacheEnabled(true);
+            }
+            Random random = new Random(1234); // Same pattern both times
+            int[] held = new int[32]; // Voices of the last 32 hits
+            Arrays.fill(held, -1);
+            long frames = 0;
+            long elapsed = 0;
+            for (int round = 0; round < 2; round++) { // The first round warms up and fills the cache
+                long start = System.nanoTime();
+                for (int hit = 0; hit < 1000; hit++) {
+                    int old = held[hit % held.length];
+                    if (old >= 0) synth.noteOff(old); // Released after its decay has finished
+                    held[hit % held.length] = synth.noteOnChannel(0, 36 + random.nextInt(8), 0.25 * (1 + random.nextInt(4)), NotePath.SEQUENCER); // CACHED_NOTE on a hit
+                    renderer.renderSeconds(0.005);
+                }
+                if (round == 1) {
+                    elapsed = System.nanoTime() - start;
+                    frames = (long) (1000 * 0.005 * FRAME_RATE);
+                }
+            }
+            cost[cached] = (double) elapsed / frames;
+        }
+        System.out.printf("notecache %10.1f %10.1f %8.3f %8.2f%n", cost[0], cost[1], cache.getHitRate(), cache.getUsedBytes() / 1048576.0);
+    }
+
+    /**
+     * Rewires a growing number of oscillators into a sum, one call at a time and as one GraphEdit,
+     * while another thread renders. Prints how many rendered buffers saw a half wired graph and
+     * the control thread cost of each rewire.
+     */
+    private static void benchmarkGraphEdits() {
+        System.out.println("# graph: edits per rewire, half wired buffers (single calls / batch), us per rewire (single / batch)");
+        for (int count : new int[] {4, 16, 64, 256}) {
+            Synth synth = new Synth(8);
+            OfflineRenderer renderer = synth.startOffline(FRAME_RATE);
+            Add sum = new Add();
+            SineOscillator[] oscs = new SineOscillator[count];
+            for (int i = 0; i < count; i++) synth.getSynthesizer().add(oscs[i] = new SineOscillator());
+            synth.getSynthesizer().add(sum);
+            AtomicInteger partial = new AtomicInteger();
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread render = new Thread(() -> {
+                while (running.get()) {
+                    renderer.renderBuffers(1);
+                    int wired = 0; // The connections are only changed by this thread, between buffers
+                    for (SineOscillator osc : oscs) if (GraphEdit.isConnected(osc.output, 0, sum.inputA, 0)) wired++;
+                    if (wired != 0 && wired != oscs.length) partial.incrementAndGet();
+                }
+            }, "graph-bench-render");
+            render.start();
+            int rewires = 400;
+            int[] halfWired = new int[2];
+            double[] cost = new double[2];
+            for (int batch = 0; batch < 2; batch++) {
+                partial.set(0);
+                long start = System.nanoTime();
+                for (int r = 0; r < rewires; r++) {
+                    boolean connect = r % 2 == 0;
+                    if (batch == 0) {
+                        for (SineOscillator osc : oscs) {
+                            if (connect) osc.output.connect(sum.inputA);
+                            else osc.output.disconnect(sum.inputA);
+                        }
+                    } else {
+                        GraphEdit edit = synth.editGraph();
+                        for (SineOscillator osc : oscs) {
+                            if (connect) edit.connect(osc.output, sum.inputA);
+                            else edit.disconnect(osc.output, sum.inputA);
+                        }
+                        edit.commit();
+                    }
+                    LockSupport.parkNanos(100000); // A UI gesture every 0.1 ms
+                }
+                cost[batch] = (System.nanoTime() - start) / 1e3 / rewires - 100.0;
+                halfWired[batch] = partial.get();
+            }
+            running.set(false);
+            try {
+                render.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.printf("graph %4d %6d / %d %10.1f / %.1f%n", count, halfWired[0], halfWired[1], cost[0], cost[1]);
+        }
+    }
+
+    /**
+     * Renders 32 voices over 16 parts as the mix only, then writing stems of each part or voice
+     * group next to the master, and prints the render cost and the buffers the I/O threads made
+     * the render thread allocate
+     */
+    private static void benchmarkStems() {
+        System.out.println("# stems: layout, stems, ns/frame mix only, ns/frame with stems, extra buffers");
+        Path dir;
+        try {
+            dir = Files.createTempDirectory("stems");
+        } catch (IOException e) {
+            System.out.println("stems failed: " + e.getMessage());
+            return;
+        }
+        Object[][] configs = {{StemLayout.PART, 4}, {StemLayout.PART, 16}, {StemLayout.VOICE_GROUP, 8}, {StemLayout.VOICE_GROUP, 32}};
+        for (Object[] config : configs) {
+            StemLayout layout = (StemLayout) config[0];
+            int stems = (Integer) config[1];
+            double[] cost = new double[2];
+            int extra = 0;
+            for (int recorded = 0; recorded < 2; recorded++) {
+                Synth synth = new Synth(32);
+                OfflineRenderer renderer = synth.startOffline(FRAME_RATE);
+                for (int v = 0; v < 32; v++) synth.noteOn(v, synth.getPart(v % 16), 36 + v, 0.5, NotePath.SEQUENCER);
+                try {
+                    StemRecorder recorder = recorded == 1 ? synth.recordStems(dir, layout, stems) : null;
+                    cost[recorded] = measure(renderer);
+                    synth.finishStems();
+                    if (recorder != null) {
+                        extra = recorder.getAllocatedBuffers();
+                        for (Path file : recorder.getFiles()) Files.delete(file);
+                    }
+                } catch (IOException e) {
+                    System.out.println("stems failed: " + e.getMessage());
+                    return;
+                }
+            }
+            System.out.printf("stems %-11s %3d %10.1f %10.1f %6d%n", layout, stems, cost[0], cost[1], extra);
+        }
+        try {
+            Files.delete(dir);
+        } catch (IOException e) {
+            System.out.println("stems failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compares the naive, band-limited and oversampled (naive at 2x and 4x, then a
+     * PolyphaseResampler down to 48 kHz) square, sawtooth and triangle: the cost of one
+     * oscillator sample, the alias level of a 3 kHz tone, and the synth's cost with 128 voices
+     */
+    private static void benchmarkBandLimited() {
+        System.out.println("# blep: shape, mode, ns/sample one oscillator, alias dB at 3 kHz (below the harmonics), synth ns/frame 128 voices");
+        OscType[] shapes = {OscType.SQUARE, OscType.SAWTOOTH, OscType.TRIANGLE};
+        String[] modes = {"naive", "blep", "2x", "4x"};
+        for (OscType shape : shapes) {
+            for (String mode : modes) {
+                int oversample = mode.equals("4x") ? 4 : mode.equals("2x") ? 2 : 1;
+                boolean blep = mode.equals("blep");
+                String synthCost = "-";
+                if (oversample == 1) {
+                    Synth synth = new Synth(128);
+                    synth.setOscType(shape);
+                    synth.setBandLimited(blep);
+                    OfflineRenderer renderer = synth.startOffline(FRAME_RATE);
+                    for (int v = 0; v < 128; v++) synth.noteOn(v, 36 + v % 60, 0.5);
+                    synthCost = String.format("%10.1f", measure(renderer));
+                }
+                double[] tone = renderOscillator(shape, blep, oversample, ALIAS_CYCLES * (double) FRAME_RATE / ALIAS_FRAMES, ALIAS_FRAMES);
+                System.out.printf("blep %-8s %-5s %8.2f %8.1f %10s%n", shape, mode, timeOscillator(shape, blep, oversample), aliasDb(tone, ALIAS_CYCLES), synthCost);
+            }
+        }
+    }
+
+    // Frames in the alias measurement
+    private static final int ALIAS_FRAMES = 16384;
+    // Cycles of the tone in the measurement, a prime so no alias lands on a harmonic
+    private static final int ALIAS_CYCLES = 1031;
+
+    /**
+     * Renders one oscillator at 48 kHz, oversampled by running it at a multiple of the rate and resampling
+     */
+    private static double[] renderOscillator(OscType shape, boolean blep, int oversample, double hz, int frames) {
+        int rate = FRAME_RATE * oversample;
+        PolyphaseResampler resampler = oversample > 1 ? new PolyphaseResampler(rate, FRAME_RATE, 1) : null;
+        int skip = resampler != null ? (int) Math.ceil(resampler.getLatencyFrames()) + 64 : 0; // Past the filter's start up
+        double[] input = new double[(frames + skip) * oversample + 256];
+        double increment = 2.0 * hz / rate;
+        double phase = 0.0;
+        for (int i = 0; i < input.length; i++) {
+            phase += increment;
+            if (phase >= 1.0) phase -= 2.0;
+            input[i] = blep ? VoiceOscillator.bandLimited(shape, phase, increment, 0.5) : VoiceOscillator.naive(shape, phase, 0.5);
+        }
+        if (resampler == null) return Arrays.copyOf(input, frames);
+        double[] output = new double[resampler.getMaxOutputFrames(input.length)];
+        resampler.process(input, 0, input.length, output, 0);
+        return Arrays.copyOfRange(output, skip, skip + frames);
+    }
+
+    /**
+     * Times one oscillator playing a 440 Hz tone and returns the nanoseconds per output sample
+     */
+    private static double timeOscillator(OscType shape, boolean blep, int oversample) {
+        int rate = FRAME_RATE * oversample;
+        PolyphaseResampler resampler = oversample > 1 ? new PolyphaseResampler(rate, FRAME_RATE, 1) : null;
+        double[] block = new double[256 * oversample];
+        double[] output = new double[resampler != null ? resampler.getMaxOutputFrames(block.length) : 0];
+        double increment = 2.0 * 440.0 / rate;
+        double phase = 0.0;
+        double sink = 0.0;
+        long start = 0;
+        int blocks = 20000;
+        for (int pass = 0; pass < 2; pass++) { // The first pass warms up the JIT
+            if (pass == 1) start = System.nanoTime();
+            for (int b = 0; b < blocks; b++) {
+                for (int i = 0; i < block.length; i++) {
+                    phase += increment;
+                    if (phase >= 1.0) phase -= 2.0;
+                    block[i] = blep ? VoiceOscillator.bandLimited(shape, phase, increment, 0.5) : VoiceOscillator.naive(shape, phase, 0.5);
+                }
+                if (resampler != null) resampler.process(block, 0, block.length, output, 0);
+                sink += block[b % block.length];
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0.123) System.out.println(); // Keeps the loop from being optimised away
+        return (double) elapsed / (blocks * 256.0);
+    }
+
+    /**
+     * Measures the energy between the harmonics of a tone with exactly cycles periods in the
+     * signal, relative to the energy of the harmonics, with a Hann window
+     */
+    private static double aliasDb(double[] signal, int cycles) {
+        int n = signal.length;
+        Fft fft = new Fft(n);
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int i = 0; i < n; i++) re[i] = signal[i] * (0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / n));
+        fft.transform(re, im, false);
+        double harmonics = 0.0, alias = 0.0;
+        for (int bin = 1; bin < n / 2; bin++) {
+            double power = re[bin] * re[bin] + im[bin] * im[bin];
+            int nearest = Math.round((float) bin / cycles) * cycles; // Closest harmonic
+            if (nearest > 0 && Math.abs(bin - nearest) <= 2) harmonics += power;
+            else alias += power;
+        }
+        return 10.0 * Math.log10(alias / harmonics);
+    }
+}
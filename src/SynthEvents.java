@@ -0,0 +1,100 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * SynthEvents holds the Java Flight Recorder events of the synth, so the engine shows up
+ * in the same recording as GC pauses, allocation and thread activity.
+ *
+ * Every event is in the "Synth" category and can be turned on or off like any JFR event,
+ * e.g. {@code -XX:StartFlightRecording:settings=default,+synth.NoteOn#enabled=false}.
+ * Stack traces are off because the events fire on every note. When no recording has an
+ * event enabled, creating it is optimized away and begin/commit do nothing
+ * (see the {@code jfr} lines of {@code ant bench}).
+ */
+public final class SynthEvents {
+    private SynthEvents() {} // Only holds the event classes
+
+    /**
+     * A note was started on a voice
+     */
+    @Name("synth.NoteOn")
+    @Label("Note On")
+    @Category("Synth")
+    @StackTrace(false)
+    public static class NoteOn extends Event {
+        @Label("Voice") public int voice;
+        @Label("Note") public int note;
+        @Label("Velocity") public double velocity;
+        @Label("Part") public int part;
+    }
+
+    /**
+     * A voice released its note
+     */
+    @Name("synth.NoteOff")
+    @Label("Note Off")
+    @Category("Synth")
+    @StackTrace(false)
+    public static class NoteOff extends Event {
+        @Label("Voice") public int voice;
+        @Label("Note") public int note;
+    }
+
+    /**
+     * A part was given a voice, or was refused one
+     */
+    @Name("synth.VoiceAllocation")
+    @Label("Voice Allocation")
+    @Category("Synth")
+    @StackTrace(false)
+    public static class VoiceAllocation extends Event {
+        @Label("Voice") @Description("-1 if no voice was available") public int voice;
+        @Label("Part") public int part;
+        @Label("Note") @Description("Note of the stolen voice, -1 if no voice was stolen") public int note;
+        @Label("Stolen") public boolean stolen;
+        @Label("Built") @Description("A new voice graph was built") public boolean built;
+    }
+
+    /**
+     * A voice's signal chain was changed
+     */
+    @Name("synth.GraphRewire")
+    @Label("Graph Rewire")
+    @Category("Synth")
+    @StackTrace(false)
+    public static class GraphRewire extends Event {
+        @Label("Voice") public int voice;
+        @Label("Note") public int note;
+        @Label("Operation") @Description("setCurrentOscType or refreshSignalChain") public String operation;
+    }
+
+    /**
+     * A voice's envelope was forced to restart
+     */
+    @Name("synth.EnvelopeRetrigger")
+    @Label("Envelope Retrigger")
+    @Category("Synth")
+    @StackTrace(false)
+    public static class EnvelopeRetrigger extends Event {
+        @Label("Voice") public int voice;
+        @Label("Note") public int note;
+    }
+
+    /**
+     * An engine buffer started with too little headroom, or after its frames were due
+     */
+    @Name("synth.LateBlock")
+    @Label("Late Block")
+    @Category("Synth")
+    @StackTrace(false)
+    public static class LateBlock extends Event {
+        @Label("Frame") public long frame;
+        @Label("Headroom") @Timespan(Timespan.NANOSECONDS) public long headroom;
+        @Label("Underrun") @Description("The device ran out of frames") public boolean underrun;
+    }
+}
@@ -1,4 +1,35 @@
 import static org.junit.jupiter.api.Assertions.*;
+import com.jsyn.JSyn;
+import com.jsyn.Synthesizer;
+import com.jsyn.engine.SynthesisEngine;
+import com.jsyn.ports.PortBlockPart;
+import com.jsyn.unitgen.Add;
+import com.jsyn.unitgen.SineOscillator;
+import com.jsyn.unitgen.UnitOscillator;
+import com.softsynth.shared.time.ScheduledCommand;
+import com.sun.management.ThreadMXBean;
+import java.awt.Canvas;
+import java.awt.Component;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeEach;
 
@@ -97,4 +128,1384 @@ public class SynthTest {
         // Test that an IllegalArgumentException is thrown when the release is out of range
         assertThrows(IllegalArgumentException.class, () -> envelope.setRelease(100.0));
     }
-}
\ No newline at end of file
+
+    // 5. Voice pool
+    @Test
+    public void testVoicesBuiltLazily() {
+        Synth bigSynth = new Synth(256); // Create a synth with a large pool
+        assertEquals(256, bigSynth.getMaxVoices()); // Check the polyphony setting
+        assertEquals(0, bigSynth.getBuiltVoiceCount()); // Check that no voices are built up front
+        int first = bigSynth.getAvailableVoice(); // Ask for a voice
+        assertEquals(0, first); // Check that the first slot is used
+        assertEquals(1, bigSynth.getBuiltVoiceCount()); // Check that only one voice was built
+        assertEquals(first, bigSynth.getAvailableVoice()); // Check that the idle voice is reused
+        bigSynth.noteOn(first, 60, 0.7); // Play a note on the voice
+        assertEquals(1, bigSynth.getAvailableVoice()); // Check that a second voice is built when the first is busy
+        assertEquals(2, bigSynth.getBuiltVoiceCount()); // Check the built voice count
+    }
+    @Test
+    public void testPoolFull() {
+        Synth smallSynth = new Synth(2); // Create a synth with two voices
+        smallSynth.noteOn(smallSynth.getAvailableVoice(), 60, 0.7); // Use the first voice
+        smallSynth.noteOn(smallSynth.getAvailableVoice(), 62, 0.7); // Use the second voice
+        assertEquals(-1, smallSynth.getAvailableVoice()); // Check that no voice is available
+    }
+    @Test
+    public void testIdleVoicesTrimmed() throws InterruptedException {
+        Synth smallSynth = new Synth(4); // Create a synth with four voices
+        smallSynth.getAvailableVoice(); // Build a voice
+        smallSynth.setVoiceIdleTimeout(0.001); // Trim voices idle for more than 1 ms
+        Thread.sleep(10); // Let the voice go idle
+        assertEquals(1, smallSynth.trimIdleVoices()); // Check that the idle voice was trimmed
+        assertEquals(0, smallSynth.getBuiltVoiceCount()); // Check that the pool is empty again
+    }
+    @Test
+    public void testReleasingVoiceNotTrimmed() throws InterruptedException {
+        Synth smallSynth = new Synth(4);
+        OfflineRenderer renderer = smallSynth.startOffline(48000);
+        smallSynth.setRelease(2.0); // A long tail
+        int index = smallSynth.getAvailableVoice();
+        smallSynth.noteOn(index, 60, 0.7);
+        renderer.renderSeconds(0.1);
+        smallSynth.noteOff(index);
+        renderer.renderBuffers(1);
+        smallSynth.setVoiceIdleTimeout(0.001);
+        Thread.sleep(10);
+        assertEquals(0, smallSynth.trimIdleVoices()); // Check the release tail is not cut off
+        renderer.renderSeconds(3.0);
+        Thread.sleep(10);
+        smallSynth.trimIdleVoices(); // The trim thread may have got there first
+        assertEquals(0, smallSynth.getBuiltVoiceCount()); // Trimmed once it has faded out
+    }
+    @Test
+    public void testIdleVoicesTrimmedOffNoteOn() throws InterruptedException {
+        Synth smallSynth = new Synth(4);
+        smallSynth.getAvailableVoice(); // Build a voice
+        smallSynth.setVoiceIdleTimeout(0.001);
+        Thread.sleep(10);
+        smallSynth.getAvailableVoice(); // Allocating a voice does not trim the idle one
+        assertEquals(1, smallSynth.getBuiltVoiceCount());
+        long deadline = System.nanoTime() + 2_000_000_000L;
+        while (smallSynth.getBuiltVoiceCount() > 0 && System.nanoTime() < deadline) Thread.sleep(10);
+        assertEquals(0, smallSynth.getBuiltVoiceCount()); // Check the trim thread removed them
+        smallSynth.stop();
+    }
+    @Test
+    public void testNewVoicesUseCurrentSettings() {
+        Synth smallSynth = new Synth(4); // Create a synth with four voices
+        smallSynth.setOscType(OscType.SQUARE); // Switch oscillator before any voice exists
+        smallSynth.setRelease(0.5); // Change release before any voice exists
+        SynthVoice built = smallSynth.getVoices()[0]; // Build the voices
+        assertEquals(OscType.SQUARE, built.getCurrentOscType()); // Check the oscillator type was applied
+        assertEquals(0.5, built.getEnvelope().getRelease(), 0.0001); // Check the release was applied
+    }
+    @Test
+    public void testPolyphonyOutOfRange() {
+        // Test that an IllegalArgumentException is thrown when the polyphony is out of range
+        assertThrows(IllegalArgumentException.class, () -> new Synth(0));
+        assertThrows(IllegalArgumentException.class, () -> new Synth(Synth.MAX_POLYPHONY + 1));
+    }
+
+    // 6. Mix bus
+    @Test
+    public void testVoicePannedOnMixBus() {
+        OfflineRenderer renderer = synth.startOffline(48000); // Render without an audio device
+        int voiceIndex = synth.getAvailableVoice(); // Get a voice
+        synth.getVoices()[voiceIndex].setPan(-1.0); // Pan the voice hard left
+        synth.noteOn(voiceIndex, 69, 1.0); // Play a note
+        renderer.renderSeconds(0.1); // Render past the attack
+        double[] left = synth.getMixBus().output.getValues(0); // Last block on the left channel
+        double[] right = synth.getMixBus().output.getValues(1); // Last block on the right channel
+        double leftPeak = 0.0;
+        double rightPeak = 0.0;
+        for (int i = 0; i < left.length; i++) {
+            leftPeak = Math.max(leftPeak, Math.abs(left[i]));
+            rightPeak = Math.max(rightPeak, Math.abs(right[i]));
+        }
+        assertTrue(leftPeak > 0.0); // Check that the voice is heard on the left
+        assertEquals(0.0, rightPeak, 0.0); // Check that nothing reaches the right
+    }
+    @Test
+    public void testMixBusGainRamps() {
+        MixBus bus = new MixBus(1);
+        bus.attach(0);
+        Arrays.fill(bus.input.getValues(0), 1.0); // A constant signal shows the gain
+        bus.generate(0, Synthesizer.FRAMES_PER_BLOCK);
+        double before = bus.output.getValues(0)[Synthesizer.FRAMES_PER_BLOCK - 1];
+        bus.setGain(0, 0.0);
+        bus.generate(0, Synthesizer.FRAMES_PER_BLOCK);
+        double[] left = bus.output.getValues(0);
+        assertTrue(left[0] > 0.0 && left[0] < before); // Check the first frame is part way down, not a step
+        for (int i = 1; i < Synthesizer.FRAMES_PER_BLOCK; i++) assertTrue(left[i] < left[i - 1]); // Falls every frame
+        assertEquals(0.0, left[Synthesizer.FRAMES_PER_BLOCK - 1], 1e-12); // Reaches the new gain by the end of the block
+        bus.generate(0, Synthesizer.FRAMES_PER_BLOCK);
+        assertEquals(0.0, bus.output.getValues(0)[0], 0.0); // And stays there
+    }
+    @Test
+    public void testPanOutOfRange() {
+        // Test that an IllegalArgumentException is thrown when the pan is out of range
+        assertThrows(IllegalArgumentException.class, () -> voice.setPan(1.5));
+    }
+
+    // 7. Audio configuration
+    @Test
+    public void testAudioConfigSaveAndLoad() throws IOException {
+        AudioConfig config = new AudioConfig(48000, 256); // 48 kHz with a 256 frame buffer
+        Path file = Files.createTempFile("audio", ".properties");
+        config.save(file); // Save the config
+        AudioConfig loaded = AudioConfig.load(file); // Load it back
+        assertEquals(48000, loaded.getFrameRate()); // Check the frame rate
+        assertEquals(256, loaded.getBufferFrames()); // Check the buffer size
+        Files.delete(file);
+    }
+    @Test
+    public void testAudioConfigOutOfRange() {
+        // Test that an IllegalArgumentException is thrown when the settings are out of range
+        assertThrows(IllegalArgumentException.class, () -> new AudioConfig(1000, 256));
+        assertThrows(IllegalArgumentException.class, () -> new AudioConfig(48000, 4));
+    }
+    @Test
+    public void testCalibrationOnNullDevice() throws InterruptedException {
+        LatencyCalibrator calibrator = new LatencyCalibrator(new NullAudioDevice(), 48000, 8); // Headless device
+        calibrator.setProbeSeconds(0.5); // Short probes
+        calibrator.setWarmupSeconds(0.1);
+        AudioConfig config = calibrator.calibrate(new int[] {2048, 4096}); // Two generous buffer sizes
+        assertEquals(48000, config.getFrameRate()); // Check the frame rate is kept
+        assertTrue(config.getBufferFrames() == 2048 || config.getBufferFrames() == 4096); // Check a candidate was picked
+        assertTrue(calibrator.getResults().get(0).getBlocks() > 0); // Check that buffers were watched
+    }
+
+    // 8. Note latency
+    @Test
+    public void testNoteLatencyMeasuredOffline() {
+        OfflineRenderer renderer = synth.startOffline(48000); // Render without an audio device
+        synth.setAttack(0.0); // Fastest attack
+        NoteLatencyMeter meter = synth.enableLatencyMeter(0.01, true); // Count frames
+        synth.noteOn(synth.getAvailableVoice(), 69, 1.0, NotePath.KEYBOARD); // Play a note from the keyboard path
+        renderer.renderSeconds(0.1); // Render until the note is heard
+        NoteLatencyMeter.Histogram keyboard = meter.getPathHistogram(NotePath.KEYBOARD);
+        assertEquals(1, keyboard.getCount()); // Check the note was measured once
+        assertTrue(keyboard.getMax() < 5000); // Check it was heard within 5 ms of audio
+        assertEquals(0, meter.getPathHistogram(NotePath.MIDI).getCount()); // Check other paths are empty
+        assertEquals(1, meter.getVoiceHistogram(0).getCount()); // Check the voice result
+    }
+    @Test
+    public void testLatencyHistogramReadWhileRecording() throws InterruptedException {
+        NoteLatencyMeter.Histogram histogram = new NoteLatencyMeter.Histogram();
+        Thread writer = new Thread(() -> {for (int i = 0; i < 100000; i++) histogram.record(i % 1000);}); // The audio thread
+        writer.start();
+        while (writer.isAlive()) assertTrue(histogram.getPercentile(99) <= histogram.getMax() || histogram.getCount() == 0); // Readers never block it
+        writer.join();
+        assertEquals(100000, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(999, histogram.getMax());
+        assertEquals(499.5, histogram.getMean(), 1e-9);
+    }
+
+    // 9. Event journal
+    @Test
+    public void testJournalReplayReproducesSession() throws IOException {
+        Path file = Files.createTempFile("journal", ".bin");
+        Synth recorded = new Synth(4);
+        OfflineRenderer renderer = recorded.startOffline(48000);
+        EventJournal journal = new EventJournal(file, 64);
+        recorded.setJournal(journal); // Record everything played below
+        double[] expected = new double[40];
+        for (int b = 0; b < expected.length; b++) {
+            if (b == 0) recorded.noteOn(0, 60, 0.8, NotePath.KEYBOARD); // Events on different buffers
+            if (b == 5) recorded.setOscType(OscType.SAWTOOTH);
+            if (b == 9) recorded.setFilterCutoff(800.0);
+            if (b == 12) recorded.noteOn(1, 67, 0.5, NotePath.MIDI);
+            if (b == 20) recorded.setRelease(0.5);
+            if (b == 25) recorded.noteOff(0);
+            renderer.renderBuffers(1);
+            expected[b] = blockSum(recorded);
+        }
+        journal.close();
+        assertEquals(6, EventJournal.read(file).size()); // Check every event was journaled
+        assertEquals(EventJournal.Type.NOTE_ON, EventJournal.read(file).get(3).getType()); // Check the order
+
+        Synth replayed = new Synth(4);
+        OfflineRenderer replayRenderer = replayed.startOffline(EventJournal.readFrameRate(file));
+        JournalReplay replay = JournalReplay.load(file);
+        double[] actual = new double[expected.length];
+        for (int b = 0; b < actual.length; b++) {
+            replay.renderBuffer(replayed, replayRenderer);
+            actual[b] = blockSum(replayed);
+        }
+        assertTrue(replay.isDone()); // Check every event was applied
+        assertNotEquals(0.0, expected[15]); // Check the session made sound
+        assertArrayEquals(expected, actual); // Check the replay sounds the same, buffer for buffer
+        assertEquals(OscType.SAWTOOTH, replayed.getOscType()); // Check the settings were replayed
+        assertEquals(0.5, replayed.getRelease());
+        Files.delete(file);
+    }
+    @Test
+    public void testJournalKeepsNewestRecords() throws IOException {
+        Path file = Files.createTempFile("journal", ".bin");
+        EventJournal journal = new EventJournal(file, 4); // Room for 4 records
+        for (int i = 0; i < 10; i++) journal.record(EventJournal.Type.KEY_PRESSED, 0, i, 0.0);
+        journal.close();
+        List<EventJournal.Record> records = EventJournal.read(file);
+        assertEquals(4, records.size()); // Check the ring only keeps its capacity
+        assertEquals(6, records.get(0).getArg1()); // Check the oldest records were overwritten
+        assertEquals(9, records.get(3).getArg1());
+        Files.delete(file);
+    }
+    @Test
+    public void testJournalRotationKeepsPreviousSession() throws IOException {
+        Path folder = Files.createTempDirectory("journal");
+        Path file = folder.resolve("journal.bin");
+        assertFalse(EventJournal.rotate(file)); // Nothing to keep on the first start
+        EventJournal journal = new EventJournal(file, 4);
+        journal.record(EventJournal.Type.KEY_PRESSED, 0, 7, 0.0);
+        journal.close();
+        assertTrue(EventJournal.rotate(file));
+        new EventJournal(file, 4).close(); // The next session starts empty
+        Path previous = EventJournal.previousPath(file);
+        assertEquals("journal.1.bin", previous.getFileName().toString());
+        assertEquals(0, EventJournal.read(file).size());
+        assertEquals(7, EventJournal.read(previous).get(0).getArg1()); // Check the last session survived
+        Files.delete(file);
+        Files.delete(previous);
+        Files.delete(folder);
+    }
+    @Test
+    public void testJournalRejectsOtherVersion() throws IOException {
+        Path file = Files.createTempFile("journal", ".bin");
+        new EventJournal(file, 4).close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 1}), 4); // A version 1 header, before NOTE_ON carried the channel
+        }
+        assertThrows(IOException.class, () -> EventJournal.read(file));
+        Files.delete(file);
+    }
+    @Test
+    public void testJournalReplaysMatrixAndVoiceSettings() throws IOException {
+        Path file = Files.createTempFile("journal", ".bin");
+        Synth recorded = new Synth(8);
+        recorded.setJournal(new EventJournal(file, 64));
+        recorded.getModMatrix().addRouting(ModSource.LFO1, ModDestination.PITCH, 0.5);
+        recorded.getModMatrix().addRouting(ModSource.VELOCITY, ModDestination.AMPLITUDE, 0.5);
+        recorded.getModMatrix().setDepth(1, 0.25);
+        recorded.getModMatrix().removeRouting(0);
+        recorded.getModMatrix().setLfo1(2.0, OscType.TRIANGLE);
+        recorded.getModMatrix().setFilterEnvelope(0.1, 0.2, 0.3, 0.4);
+        recorded.setMpeMode(true);
+        recorded.getPart(2).setVoiceLimit(4);
+        recorded.getPart(2).setReservedVoices(2);
+        recorded.getPart(2).setVoiceStealing(false);
+        recorded.getJournal().close();
+        recorded.setJournal(null);
+        Synth replayed = new Synth(8);
+        OfflineRenderer renderer = replayed.startOffline(EventJournal.readFrameRate(file));
+        JournalReplay.load(file).replay(replayed, renderer, 0.0);
+        assertEquals(1, replayed.getModMatrix().getRoutingCount()); // Check the routings were added, changed and removed in order
+        assertTrue(replayed.isMpeMode());
+        assertEquals(4, replayed.getPart(2).getVoiceLimit());
+        assertEquals(2, replayed.getPart(2).getReservedVoices());
+        assertFalse(replayed.getPart(2).isVoiceStealing());
+        Files.delete(file);
+    }
+
+    // 10. Modulation matrix
+    @Test
+    public void testModMatrixKeyTrackAndVelocity() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        ModMatrix matrix = synth.getModMatrix();
+        matrix.addRouting(ModSource.KEY_TRACK, ModDestination.CUTOFF, 1.0); // Cutoff follows the keyboard
+        matrix.addRouting(ModSource.VELOCITY, ModDestination.AMPLITUDE, 1.0); // Gain follows velocity
+        synth.noteOn(0, 72, 0.5); // One octave above middle C at half velocity
+        renderer.renderSeconds(0.05);
+        assertEquals(4000.0, matrix.getValue(0, ModDestination.CUTOFF), 1e-6); // Check the cutoff moved up an octave
+        assertEquals(0.5, matrix.getValue(0, ModDestination.AMPLITUDE), 1e-6); // Check the gain
+        assertEquals(0.5, voice.getEnvelope().get().amplitude.getValue(), 1e-6); // Check the gain reached the voice
+    }
+    @Test
+    public void testModMatrixLfoStaysInRange() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        ModMatrix matrix = synth.getModMatrix();
+        matrix.setLfo2(10.0, OscType.SINE);
+        matrix.addRouting(ModSource.LFO2, ModDestination.PITCH, 12.0); // One octave vibrato
+        synth.noteOn(0, 69, 1.0);
+        double min = Double.MAX_VALUE, max = 0;
+        for (int i = 0; i < 200; i++) {
+            renderer.renderBuffers(1);
+            double pitch = matrix.getValue(0, ModDestination.PITCH);
+            min = Math.min(min, pitch);
+            max = Math.max(max, pitch);
+        }
+        assertTrue(min >= 220.0 - 1e-6 && min < 240.0); // Check it swings down close to an octave
+        assertTrue(max <= 880.0 + 1e-6 && max > 800.0); // Check it swings up close to an octave
+        assertThrows(IllegalArgumentException.class, () -> matrix.addRouting(ModSource.LFO1, ModDestination.AMPLITUDE, 2.0));
+    }
+
+    // 11. ZDF filter
+    @Test
+    public void testZdfFilterModes() {
+        assertTrue(filterPeak(FilterType.LOW_PASS, 100.0, 0.0) > 0.9); // Check low pass keeps lows
+        assertTrue(filterPeak(FilterType.LOW_PASS, 10000.0, 0.0) < 0.02); // and cuts highs
+        assertTrue(filterPeak(FilterType.HIGH_PASS, 10000.0, 0.0) > 0.9); // Check high pass keeps highs
+        assertTrue(filterPeak(FilterType.HIGH_PASS, 100.0, 0.0) < 0.02); // and cuts lows
+        assertTrue(filterPeak(FilterType.BAND_PASS, 1000.0, 0.0) > 0.45); // Check band pass keeps the cutoff
+        assertTrue(filterPeak(FilterType.BAND_PASS, 10000.0, 0.0) < 0.2);
+        assertTrue(filterPeak(FilterType.NOTCH, 1000.0, 0.0) < 0.05); // Check notch removes the cutoff
+        assertTrue(filterPeak(FilterType.NOTCH, 10000.0, 0.0) > 0.9);
+    }
+    @Test
+    public void testZdfFilterStableAtFullResonance() {
+        double peak = filterPeak(FilterType.LOW_PASS, 1000.0, 1.0); // Tone right on the cutoff
+        assertTrue(peak > 1.0 && peak < 50.0); // Check it resonates without blowing up
+        assertThrows(IllegalArgumentException.class, () -> new Filter(synth.getSynthesizer()).setFilterType("Comb"));
+    }
+
+    // 12. Multi-timbral parts
+    @Test
+    public void testPartsHaveTheirOwnPatch() {
+        Synth multi = new Synth(8);
+        multi.getPart(1).setOscType(OscType.SQUARE); // Bass
+        multi.getPart(2).setOscType(OscType.SAWTOOTH); // Lead
+        multi.getPart(2).setAttack(0.5);
+        int bass = multi.noteOnChannel(1, 36, 0.8, NotePath.MIDI);
+        int lead = multi.noteOnChannel(2, 72, 0.8, NotePath.MIDI);
+        assertEquals(OscType.SQUARE, multi.getVoices()[bass].getCurrentOscType()); // Check each voice got its part's patch
+        assertEquals(OscType.SAWTOOTH, multi.getVoices()[lead].getCurrentOscType());
+        assertEquals(0.5, multi.getVoices()[lead].getEnvelope().getAttack(), 1e-9);
+        assertEquals(OscType.SINE, multi.getOscType()); // Check part 0 is unchanged
+        assertEquals(lead, multi.noteOffChannel(2, 72)); // Check the note is released on its part
+        assertEquals(-1, multi.noteOffChannel(1, 72)); // Check another part's note is not released
+    }
+    @Test
+    public void testPartVoiceLimitAndReservation() {
+        Synth multi = new Synth(4);
+        multi.getPart(1).setVoiceLimit(2);
+        multi.getPart(2).setReservedVoices(2); // Keep two voices for part 2
+        assertTrue(multi.noteOnChannel(1, 60, 0.8, NotePath.MIDI) >= 0);
+        int older = multi.noteOnChannel(1, 62, 0.8, NotePath.MIDI);
+        assertTrue(older >= 0);
+        assertEquals(-1, multi.noteOnChannel(1, 64, 0.8, NotePath.MIDI)); // Check the limit
+        assertEquals(-1, multi.noteOnChannel(0, 64, 0.8, NotePath.MIDI)); // Check the reservation holds the last two voices
+        assertTrue(multi.noteOnChannel(2, 48, 0.8, NotePath.MIDI) >= 0); // Check part 2 can use its reservation
+        assertTrue(multi.noteOnChannel(2, 50, 0.8, NotePath.MIDI) >= 0);
+        multi.getPart(1).setVoiceStealing(true);
+        multi.noteOffChannel(1, 60); // Release and play again so note 62 has the oldest voice
+        multi.noteOnChannel(1, 60, 0.8, NotePath.MIDI);
+        assertEquals(older, multi.noteOnChannel(1, 65, 0.8, NotePath.MIDI)); // Check the oldest voice is stolen at the limit
+        assertEquals(65, multi.getVoices()[older].getCurrentNote());
+    }
+    @Test
+    public void testMidiInputPlaysChannelPart() throws InvalidMidiDataException {
+        Synth multi = new Synth(4);
+        multi.getPart(9).setOscType(OscType.TRIANGLE);
+        MidiInput midi = new MidiInput(multi);
+        midi.send(new ShortMessage(ShortMessage.NOTE_ON, 9, 60, 100), -1);
+        SynthVoice played = multi.getVoices()[0];
+        assertTrue(played.isActive()); // Check the note is playing
+        assertEquals(OscType.TRIANGLE, played.getCurrentOscType()); // Check it uses channel 10's part
+        midi.send(new ShortMessage(ShortMessage.NOTE_ON, 9, 60, 0), -1); // Velocity 0 is a note off
+        assertFalse(played.isActive());
+    }
+
+    // 13. MPE expression
+    @Test
+    public void testMpeBendOnlyMovesItsNote() throws InvalidMidiDataException {
+        Synth mpe = new Synth(4);
+        OfflineRenderer renderer = mpe.startOffline(48000);
+        mpe.setMpeMode(true);
+        MidiInput midi = new MidiInput(mpe);
+        int a = mpe.noteOnChannel(1, 69, 0.8, NotePath.MIDI); // Two notes on their own member channels
+        int b = mpe.noteOnChannel(2, 69, 0.8, NotePath.MIDI);
+        midi.send(new ShortMessage(ShortMessage.PITCH_BEND, 1, 0, 0x50), -1); // 8192 + 2048, a quarter of 48 semitones
+        renderer.renderSeconds(0.05);
+        ModMatrix matrix = mpe.getModMatrix();
+        assertEquals(12.0, matrix.getExpression(a, Expression.PITCH_BEND), 1e-9);
+        assertEquals(880.0, matrix.getValue(a, ModDestination.PITCH), 1e-6); // Check the bent note went up an octave
+        assertEquals(440.0, matrix.getValue(b, ModDestination.PITCH), 1e-6); // Check the other note did not move
+        assertEquals(a, mpe.noteOffChannel(1, 69));
+    }
+    @Test
+    public void testDenseExpressionIsCoalesced() {
+        Synth mpe = new Synth(16);
+        OfflineRenderer renderer = mpe.startOffline(48000);
+        mpe.setMpeMode(true);
+        for (int ch = 1; ch < 16; ch++) mpe.noteOnChannel(ch, 48 + ch, 0.8, NotePath.MIDI);
+        renderer.renderBuffers(1);
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) { // Far more updates than one buffer can apply
+            mpe.setChannelExpression(1 + i % 15, Expression.PITCH_BEND, (i % 100) / 100.0);
+            mpe.setChannelExpression(1 + i % 15, Expression.PRESSURE, (i % 128) / 127.0);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue(allocated < 64 * 1024, "Expression updates allocated " + allocated + " bytes"); // Check nothing was queued (well under a byte per update)
+        mpe.setChannelExpression(3, Expression.PITCH_BEND, 12.0);
+        renderer.renderSeconds(0.05);
+        int voice = mpe.noteOffChannel(3, 51);
+        assertEquals(2.0 * 440.0 * Math.pow(2, (51 - 69) / 12.0), mpe.getModMatrix().getValue(voice, ModDestination.PITCH), 1e-6); // Check only the latest bend is used
+    }
+
+    // 14. Allocation-free steady state
+    @Test
+    public void testPlayingNotesDoesNotAllocate() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        int[] note = {0};
+        assertAllocationFree(renderer, 2, () -> { // Control and audio thread are both this thread offline
+            int v = synth.getAvailableVoice();
+            synth.noteOn(v, 48 + note[0]++ % 24, 0.8);
+            renderer.renderBuffers(1);
+            synth.noteOff(v);
+            renderer.renderBuffers(1);
+        });
+    }
+    @Test
+    public void testSwitchingOscillatorsAndSlidersDoesNotAllocate() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        for (int i = 0; i < 4; i++) synth.noteOn(i, 60 + i, 0.8); // Patch changes reach playing voices
+        OscType[] types = OscType.values();
+        int[] step = {0};
+        assertAllocationFree(renderer, 1, () -> {
+            int i = step[0]++;
+            synth.setOscType(types[i % types.length]);
+            synth.setAttack((i % 100) / 100.0);
+            synth.setDecay((i % 50) / 100.0);
+            synth.setSustain((i % 10) / 10.0);
+            synth.setRelease((i % 20) / 100.0);
+            synth.setFilterCutoff(200.0 + i % 5000);
+            renderer.renderBuffers(1);
+        });
+        assertEquals(types[(step[0] - 1) % types.length], voice.getCurrentOscType()); // Check the last switch reached the voices
+    }
+    @Test
+    public void testKeyboardDoesNotAllocate() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        Component source = new Canvas();
+        KeyEvent press = new KeyEvent(source, KeyEvent.KEY_PRESSED, 0, 0, KeyEvent.VK_A, 'a');
+        KeyEvent release = new KeyEvent(source, KeyEvent.KEY_RELEASED, 0, 0, KeyEvent.VK_A, 'a');
+        KeyboardController keys = synth.getKeyboardController();
+        assertAllocationFree(renderer, 2, () -> {
+            keys.keyPressed(press);
+            keys.keyPressed(press); // Auto repeat is ignored
+            renderer.renderBuffers(1);
+            keys.keyReleased(release);
+            renderer.renderBuffers(1);
+        });
+        assertEquals(60, voice.getCurrentNote()); // Check the key played its note
+    }
+    @Test
+    public void testRewireOnlyAllocatesJSynCommands() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        synth.noteOn(0, 60, 0.8);
+        SineOscillator[] oscs = new SineOscillator[5]; // Five connections like the voice's, made one JSyn call at a time
+        Add[] sums = new Add[5];
+        for (int i = 0; i < 5; i++) {
+            synth.getSynthesizer().add(oscs[i] = new SineOscillator());
+            synth.getSynthesizer().add(sums[i] = new Add());
+            oscs[i].output.connect(sums[i].inputA);
+        }
+        SynthesisEngine engine = (SynthesisEngine) synth.getSynthesizer();
+        ScheduledCommand nothing = () -> {};
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int runs = 2000;
+        long commit = 0; // refreshSignalChain itself, per rewire
+        long queue = 0; // One bare JSyn command
+        long rewire = 0; // Refresh and apply
+        long direct = 0; // The same number of edits as JSyn calls
+        for (int round = 0; round < 10; round++) {
+            commit = 0;
+            queue = 0;
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int r = 0; r < runs; r++) {
+                long start = threads.getThreadAllocatedBytes(thread);
+                voice.refreshSignalChain(); // Ten edits in one committed batch
+                commit += threads.getThreadAllocatedBytes(thread) - start;
+                renderer.renderBuffers(1);
+            }
+            long middle = threads.getThreadAllocatedBytes(thread);
+            for (int r = 0; r < runs; r++) {
+                for (int i = 0; i < 5; i++) oscs[i].output.disconnect(sums[i].inputA);
+                for (int i = 0; i < 5; i++) oscs[i].output.connect(sums[i].inputA);
+                renderer.renderBuffers(1);
+            }
+            long end = threads.getThreadAllocatedBytes(thread);
+            for (int r = 0; r < runs; r++) {
+                long start = threads.getThreadAllocatedBytes(thread);
+                engine.queueCommand(nothing);
+                queue += threads.getThreadAllocatedBytes(thread) - start;
+            }
+            renderer.renderBuffers(1);
+            rewire = (middle - before) / runs;
+            direct = (end - middle) / runs;
+            commit /= runs;
+            queue /= runs;
+            if (commit < queue + 256 && rewire < direct + 2048) return;
+        }
+        assertTrue(commit < queue + 256, "refreshSignalChain allocated " + commit + " bytes, a JSyn command " + queue); // Committed again, a rebuilt batch of ten edits is over 500 bytes
+        assertTrue(rewire < direct + 2048, "A rewire allocated " + rewire + " bytes, the same edits as JSyn calls " + direct); // Applying costs JSyn's command per edit
+    }
+
+    // 15. Trace ring
+    @Test
+    public void testTraceRecordsVoiceEvents() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        TraceRing trace = new TraceRing(64);
+        synth.setTrace(trace);
+        renderer.renderSeconds(0.01);
+        long frame = renderer.getFrameCount();
+        synth.noteOn(0, 64, 0.5);
+        renderer.renderBuffers(1);
+        synth.noteOff(0);
+        synth.setOscType(OscType.SQUARE);
+        voice.refreshSignalChain();
+        List<TraceRing.Entry> all = trace.snapshot();
+        List<TraceRing.Entry> entries = new ArrayList<>();
+        for (TraceRing.Entry e : all) if (e.getVoice() == 0) entries.add(e); // The oscillator switch reaches every voice of the part
+        TraceRing.Entry on = entries.get(0);
+        assertEquals(TraceRing.Type.NOTE_ON, on.getType());
+        assertEquals(frame, on.getFrame()); // Check the sample clock stamp
+        assertEquals(0, on.getVoice());
+        assertEquals(64, on.getArg());
+        assertEquals(0.5, on.getValue(), 1e-9);
+        assertEquals(TraceRing.Type.NOTE_OFF, entries.get(1).getType());
+        assertEquals(TraceRing.Type.OSC_SWITCH, entries.get(2).getType());
+        assertEquals(OscType.SQUARE.ordinal(), entries.get(2).getArg());
+        assertEquals(TraceRing.Type.REFRESH, entries.get(3).getType());
+        assertEquals(5, entries.stream().filter(e -> e.getType() == TraceRing.Type.CONNECT).count()); // Check every reconnection is traced
+        synth.setTrace(null);
+        synth.noteOn(0, 64, 0.5);
+        assertEquals(all.size(), trace.getCount()); // Check nothing is recorded when tracing is off
+    }
+    @Test
+    public void testTraceRingKeepsNewestWithoutAllocating() {
+        TraceRing trace = new TraceRing(16);
+        for (int i = 0; i < 100; i++) trace.record(TraceRing.Type.NOTE_ON, i % 8, i, 1.0);
+        List<TraceRing.Entry> entries = trace.snapshot();
+        assertEquals(16, entries.size()); // Check the oldest were overwritten
+        assertEquals(84, entries.get(0).getArg());
+        assertEquals(99, entries.get(15).getSequence());
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) trace.record(TraceRing.Type.RETRIGGER, i % 8, i, 0.0);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue(allocated < 100000, "Tracing allocated " + allocated + " bytes"); // Any allocation per event is at least 16 bytes
+    }
+
+    // 16. Flight recorder events
+    @Test
+    public void testFlightRecorderEvents() throws IOException {
+        Path file = Files.createTempFile("synth", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("synth.NoteOn");
+            recording.enable("synth.VoiceAllocation");
+            recording.enable("synth.GraphRewire");
+            recording.disable("synth.NoteOff"); // Turned off in the settings
+            recording.start();
+            int v = synth.getAvailableVoice();
+            synth.noteOn(v, 67, 0.6);
+            synth.noteOff(v);
+            synth.getVoices()[v].refreshSignalChain();
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        Map<String, RecordedEvent> byName = new HashMap<>();
+        for (RecordedEvent e : events) byName.put(e.getEventType().getName(), e);
+        RecordedEvent on = byName.get("synth.NoteOn");
+        assertNotNull(on);
+        assertEquals(67, on.getInt("note"));
+        assertEquals(0, on.getInt("voice"));
+        assertFalse(on.getDuration().isNegative()); // Check the event is timed
+        assertFalse(byName.get("synth.VoiceAllocation").getBoolean("stolen"));
+        assertEquals("refreshSignalChain", byName.get("synth.GraphRewire").getString("operation"));
+        assertFalse(byName.containsKey("synth.NoteOff")); // Check a disabled event is not recorded
+    }
+
+    // 17. Internal rate and resampling
+    @Test
+    public void testResamplerKeepsToneClean() {
+        PolyphaseResampler resampler = new PolyphaseResampler(24000, 48000, 1);
+        assertEquals(2, resampler.getUpFactor()); // Check the ratio is reduced
+        assertEquals(1, resampler.getDownFactor());
+        double[] input = new double[24000];
+        for (int i = 0; i < input.length; i++) input[i] = 0.5 * Math.sin(2.0 * Math.PI * 1000.0 * i / 24000);
+        double[] output = new double[resampler.getMaxOutputFrames(input.length)];
+        int frames = 0;
+        for (int start = 0; start < input.length; start += 256) frames += resampler.process(input, start, Math.min(256, input.length - start), output, frames); // Engine sized pieces
+        assertEquals(48000, frames); // Check one second in gives one second out
+        assertTrue(toneResidualDb(output, 1000, frames, 1000.0 / 48000) < -60.0); // Check the tone has no images or distortion
+        PolyphaseResampler odd = new PolyphaseResampler(44100, 48000, 2);
+        assertEquals(160, odd.getUpFactor());
+        assertEquals(147, odd.getDownFactor());
+        // Test that an IllegalArgumentException is thrown when the settings are out of range
+        assertThrows(IllegalArgumentException.class, () -> new PolyphaseResampler(48000, 500, 2));
+        assertThrows(IllegalArgumentException.class, () -> new PolyphaseResampler(48000, 24000, 2, 1));
+    }
+    @Test
+    public void testEngineRendersAtInternalRate() throws InterruptedException {
+        Synth resampled = new Synth(8, new NullAudioDevice()); // Headless device playing 48000 frames a second
+        AudioConfig config = new AudioConfig(48000, 2048);
+        config.setInternalFrameRate(24000);
+        assertTrue(config.isResampled());
+        resampled.setAudioConfig(config);
+        resampled.startEngine();
+        try {
+            Thread.sleep(200); // Let the device buffer fill
+            long start = resampled.getSynthesizer().getFrameCount();
+            Thread.sleep(500);
+            long frames = resampled.getSynthesizer().getFrameCount() - start;
+            assertEquals(24000, resampled.getSynthesizer().getFrameRate()); // Check the engine runs at the internal rate
+            assertTrue(frames > 6000 && frames < 18000, "Engine rendered " + frames + " frames in 0.5 s"); // Paced by the device at half speed
+        } finally {
+            resampled.stop();
+        }
+        assertThrows(IllegalArgumentException.class, () -> config.setInternalFrameRate(1000));
+    }
+
+    // 18. Keyboard repeat and layouts
+    @Test
+    public void testAutoRepeatIsSuppressed() {
+        synth.setTrace(new TraceRing(256));
+        KeyboardController keys = synth.getKeyboardController();
+        keys.setRepeatWindow(200); // Long enough that the release thread never fires during the test
+        Component source = new Canvas();
+        keys.keyPressed(new KeyEvent(source, KeyEvent.KEY_PRESSED, 1000, 0, KeyEvent.VK_S, 's'));
+        for (int i = 0; i < 20; i++) { // Held key, Linux style release and press pairs
+            keys.keyReleased(new KeyEvent(source, KeyEvent.KEY_RELEASED, 1100 + i * 30, 0, KeyEvent.VK_S, 's'));
+            keys.keyPressed(new KeyEvent(source, KeyEvent.KEY_PRESSED, 1100 + i * 30, 0, KeyEvent.VK_S, 's'));
+        }
+        assertEquals(20, keys.getSuppressedRepeats()); // Check every repeat was swallowed
+        assertTrue(voice.isActive()); // Check the note is still playing
+        long notes = synth.getTrace().snapshot().stream().filter(e -> e.getType() == TraceRing.Type.NOTE_ON || e.getType() == TraceRing.Type.NOTE_OFF).count();
+        assertEquals(1, notes); // Check the voice was started once and never released
+        keys.keyReleased(new KeyEvent(source, KeyEvent.KEY_RELEASED, 2000, 0, KeyEvent.VK_S, 's'));
+        keys.flushReleases(System.nanoTime()); // The window has passed
+        assertFalse(voice.isActive()); // Check the real release let the note go
+        keys.keyPressed(new KeyEvent(source, KeyEvent.KEY_PRESSED, 3000, 0, KeyEvent.VK_S, 's'));
+        keys.keyReleased(new KeyEvent(source, KeyEvent.KEY_RELEASED, 3100, 0, KeyEvent.VK_S, 's'));
+        keys.keyPressed(new KeyEvent(source, KeyEvent.KEY_PRESSED, 3400, 0, KeyEvent.VK_S, 's'));
+        assertEquals(20, keys.getSuppressedRepeats()); // Check a press after the window plays again
+        assertThrows(IllegalArgumentException.class, () -> keys.setRepeatWindow(-1));
+    }
+    @Test
+    public void testKeyLayoutLoadsFromFile() throws IOException {
+        Path file = Files.createTempFile("keys", ".properties");
+        Files.writeString(file, "# Bass layout\nZ = 36\nVK_SEMICOLON = 40\n81 = 41\n");
+        KeyboardController keys = synth.getKeyboardController();
+        keys.loadLayout(file);
+        assertEquals(36, keys.getMidiNoteForKey(KeyEvent.VK_Z)); // Check a key by name
+        assertEquals(40, keys.getMidiNoteForKey(KeyEvent.VK_SEMICOLON)); // Check a VK_ name
+        assertEquals(41, keys.getMidiNoteForKey(KeyEvent.VK_Q)); // Check a key code
+        assertFalse(keys.isNoteMappedKey(KeyEvent.VK_A)); // Check keys left out are unmapped
+        Files.writeString(file, "NOT_A_KEY = 60\n");
+        assertThrows(IOException.class, () -> keys.loadLayout(file)); // Check a bad layout is refused
+        assertEquals(36, keys.getMidiNoteForKey(KeyEvent.VK_Z)); // Check the old layout is kept
+        Files.delete(file);
+    }
+
+    // 19. FM voices
+    @Test
+    public void testFmCarrierIsASine() {
+        FmEngine fm = new FmEngine();
+        double[] settings = new double[FmAlgorithm.MAX_OPERATORS * FmEngine.PARAMS];
+        for (int op = 0; op < FmAlgorithm.MAX_OPERATORS; op++) {
+            settings[op * FmEngine.PARAMS + FmParam.RATIO.ordinal()] = 1.0;
+            settings[op * FmEngine.PARAMS + FmParam.LEVEL.ordinal()] = (op == 0) ? 1.0 : 0.0; // Modulators off
+            settings[op * FmEngine.PARAMS + FmParam.SUSTAIN.ordinal()] = 1.0; // Full level at once
+        }
+        fm.setPatch(FmAlgorithm.STACK_4, settings);
+        fm.setGate(true);
+        double[] frequencies = new double[8], amplitudes = new double[8], out = new double[8];
+        Arrays.fill(frequencies, 480.0);
+        Arrays.fill(amplitudes, 1.0);
+        fm.render(frequencies, amplitudes, out, 0, 8, 48000); // The attack takes one block
+        for (int b = 1; b < 100; b++) {
+            fm.render(frequencies, amplitudes, out, 0, 8, 48000);
+            for (int i = 0; i < 8; i++) assertEquals(Math.sin(2.0 * Math.PI * 0.01 * (b * 8 + i)), out[i], 1e-5); // 480 Hz is 0.01 cycles a frame
+        }
+        settings[FmEngine.PARAMS + FmParam.LEVEL.ordinal()] = 3.0; // Operator 1 modulates the carrier
+        fm.setPatch(FmAlgorithm.STACK_4, settings);
+        double difference = 0.0;
+        for (int b = 100; b < 200; b++) {
+            fm.render(frequencies, amplitudes, out, 0, 8, 48000);
+            for (int i = 0; i < 8; i++) {
+                assertTrue(Math.abs(out[i]) <= 1.0 + 1e-9); // Check modulation only moves the phase
+                difference = Math.max(difference, Math.abs(out[i] - Math.sin(2.0 * Math.PI * 0.01 * (b * 8 + i))));
+            }
+        }
+        assertTrue(difference > 0.5); // Check the modulator changed the wave
+        fm.setGate(false); // Release takes one block
+        fm.render(frequencies, amplitudes, out, 0, 8, 48000);
+        fm.render(frequencies, amplitudes, out, 0, 8, 48000);
+        assertFalse(fm.isSounding());
+        assertEquals(0.0, out[7], 0.0); // Check the voice is silent
+    }
+    @Test
+    public void testFmPartPlaysThroughVoices() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        synth.setOscType(OscType.FM);
+        synth.setFmAlgorithm(FmAlgorithm.STACKS_2_4);
+        synth.setFmOperator(5, FmParam.FEEDBACK, 0.5);
+        synth.setFmOperator(1, FmParam.RATIO, 3.5);
+        synth.noteOn(synth.getAvailableVoice(), 57, 0.9);
+        renderer.renderSeconds(0.1);
+        double peak = 0.0;
+        for (int b = 0; b < 100; b++) {
+            renderer.renderBuffers(1);
+            for (double v : synth.getMixBus().output.getValues(0)) peak = Math.max(peak, Math.abs(v));
+        }
+        assertTrue(peak > 0.01); // Check the FM voice is heard
+        assertEquals(FmAlgorithm.STACKS_2_4, synth.getPart(0).getFmAlgorithm());
+        assertEquals(3.5, synth.getPart(0).getFmOperator(1, FmParam.RATIO), 0.0);
+        // Test that an IllegalArgumentException is thrown when the settings are out of range
+        assertThrows(IllegalArgumentException.class, () -> synth.setFmOperator(6, FmParam.LEVEL, 1.0));
+        assertThrows(IllegalArgumentException.class, () -> synth.setFmOperator(0, FmParam.FEEDBACK, 2.0));
+        assertThrows(IllegalArgumentException.class, () -> synth.getModMatrix().setLfo1(1.0, OscType.FM));
+    }
+
+    // 20. Convolution reverb
+    @Test
+    public void testReverbStepResponse() throws Exception {
+        Path file = Files.createTempFile("ir", ".wav");
+        float[] response = new float[24000];
+        response[0] = 0.5f;
+        response[3000] = 0.25f; // In the head partitions
+        response[20000] = -0.125f; // In the tail
+        writeWav(file, response, 48000);
+        ImpulseResponse ir = ImpulseResponse.load(file); // Memory mapped
+        Files.delete(file);
+        assertEquals(24000, ir.getFrames());
+        assertEquals(0.25, ir.getChannel(1)[3000], 0.0); // Check a mono response feeds both channels
+        for (boolean worker : new boolean[] {false, true}) {
+            Synthesizer engine = JSyn.createSynthesizer();
+            ConvolutionReverb reverb = new ConvolutionReverb();
+            engine.add(reverb);
+            OfflineRenderer renderer = new OfflineRenderer(engine, 48000);
+            reverb.start();
+            reverb.setImpulseResponse(ir);
+            reverb.setTailOnWorker(worker);
+            reverb.setDry(0.0);
+            reverb.setWet(1.0);
+            reverb.input.set(0, 1.0); // A step, the output is the running sum of the response
+            reverb.input.set(1, 1.0);
+            int latency = reverb.getLatencyFrames();
+            long first = renderer.getFrameCount(); // The step starts with the next buffer
+            while (renderer.getFrameCount() < 30000) {
+                renderer.renderBuffers(1);
+                if (worker) Thread.sleep(0, 200000); // Let the worker keep up, like a device would
+                long frame = renderer.getFrameCount() - 1 - first; // Last frame of the buffer since the step
+                double expected = (frame < latency) ? 0.0 : (frame < latency + 3000) ? 0.5 : (frame < latency + 20000) ? 0.75 : 0.625;
+                assertEquals(expected, reverb.output.getValues(1)[7], 1e-6, "frame " + frame + (worker ? " with worker" : ""));
+            }
+            assertEquals(0, reverb.getMissedTails());
+            Thread tail = reverb.getWorker();
+            assertNotNull(tail); // Check the response is longer than the head
+            reverb.setImpulseResponse(null);
+            tail.join(1000);
+            assertFalse(tail.isAlive()); // Check removing the response stops the worker
+        }
+    }
+
+    // 21. Control rate envelope
+    @Test
+    public void testEnvelopeCurvesAtControlRate() {
+        Synthesizer engine = JSyn.createSynthesizer();
+        ControlRateEnvelope linear = new ControlRateEnvelope();
+        ControlRateEnvelope exponential = new ControlRateEnvelope();
+        engine.add(linear);
+        engine.add(exponential);
+        new OfflineRenderer(engine, 48000); // Sets the frame rate
+        linear.setCurve(EnvelopeCurve.LINEAR);
+        exponential.setCurve(EnvelopeCurve.EXPONENTIAL);
+        for (ControlRateEnvelope env : new ControlRateEnvelope[] {linear, exponential}) {
+            env.setSegments(0.1, 0.1, 0.5, 0.05); // 4800 frame attack and decay, 2400 frame release
+            env.gateOn();
+        }
+        for (int b = 0; b < 300; b++) { // Half the attack
+            linear.generate(0, 8);
+            exponential.generate(0, 8);
+            double[] out = linear.output.getValues();
+            for (int i = 1; i < 7; i++) assertEquals(out[1] - out[0], out[i + 1] - out[i], 1e-12); // Check the ramp is straight between control points
+        }
+        linear.generate(0, 8);
+        exponential.generate(0, 8);
+        assertEquals(0.5, linear.output.getValues()[0], 1e-9); // Check half way up a linear attack
+        assertEquals((1.0 - Math.exp(-2.5)) / (1.0 - Math.exp(-5.0)), exponential.output.getValues()[0], 1e-4); // Check the exponential table
+        for (int b = 0; b < 1000; b++) exponential.generate(0, 8); // Past the decay
+        assertEquals(0.5, exponential.output.getValues()[7], 1e-9); // Check the sustain level
+        exponential.gateOff();
+        for (int b = 0; b < 310; b++) exponential.generate(0, 8);
+        assertTrue(exponential.isIdle());
+        assertEquals(0.0, exponential.output.getValues()[7], 1e-9); // Check the release ends at silence
+    }
+    @Test
+    public void testVelocityDoesNotGateTheEnvelope() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        synth.noteOn(0, 60, 0.005); // Below the old gate threshold
+        renderer.renderSeconds(0.3);
+        assertEquals(0.005 * 0.7, envelope.get().output.getValues()[7], 1e-9); // Check the note triggered and is scaled by its velocity
+        voice.retriggerEnvelope();
+        renderer.renderSeconds(0.01);
+        assertTrue(envelope.get().output.getValues()[7] > 0.0035); // Check the retrigger attacks from the held level
+        renderer.renderSeconds(0.3);
+        assertEquals(0.005 * 0.7, envelope.get().output.getValues()[7], 1e-9); // Check the retrigger kept the velocity
+        synth.noteOff(0);
+        renderer.renderSeconds(0.3);
+        assertTrue(envelope.get().isIdle());
+        assertThrows(IllegalArgumentException.class, () -> envelope.setCurve(null));
+    }
+
+    // 22. Patches
+    @Test
+    public void testPatchBankRoundTrip() throws IOException {
+        List<Patch> patches = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            patches.add(Patch.DEFAULT.withOscType(OscType.values()[i % OscType.values().length])
+                    .withEnvelope(i / 1000.0, 0.2, 0.6, 1.0 + i / 200.0)
+                    .withFilter(FilterType.values()[i % 4], 100.0 + i * 7.3, i / 1000.0)
+                    .withFmOperator(i % 6, FmParam.RATIO, i / 40.0));
+        }
+        Path file = Files.createTempFile("bank", ".bin");
+        PatchBank.save(file, patches);
+        assertEquals(PatchBank.HEADER_BYTES + 1000L * Patch.BYTES, Files.size(file)); // Check the records are compact
+        List<Patch> loaded = PatchBank.load(file);
+        assertEquals(patches, loaded); // Check every value came back
+        assertEquals(patches.get(7).hashCode(), loaded.get(7).hashCode());
+        assertEquals(25.0 / 40.0, loaded.get(25).getFmOperator(1, FmParam.RATIO), 0.0);
+        Files.write(file, new byte[] {1, 2, 3});
+        assertThrows(IOException.class, () -> PatchBank.load(file)); // Check a file that is not a bank is refused
+        Files.delete(file);
+        // Test that an IllegalArgumentException is thrown when a value is out of range
+        assertThrows(IllegalArgumentException.class, () -> Patch.DEFAULT.withFilter(FilterType.LOW_PASS, 10.0, 0.5));
+        assertThrows(IllegalArgumentException.class, () -> Patch.DEFAULT.withFmOperator(0, FmParam.SUSTAIN, 2.0));
+    }
+    @Test
+    public void testPatchSwapHoldsOrCrossfadesHeldNotes() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        synth.noteOn(0, 60, 0.8); // Held through the swaps
+        renderer.renderSeconds(0.1);
+        Patch square = Patch.DEFAULT.withOscType(OscType.SQUARE).withEnvelope(0.01, 0.1, 0.5, 0.3);
+        synth.setPatch(square, PatchSwap.HOLD);
+        renderer.renderBuffers(1);
+        assertEquals(OscType.SINE, voice.getCurrentOscType()); // Check the held note kept the old patch
+        SynthVoice idle = synth.getVoices()[1];
+        assertEquals(OscType.SQUARE, idle.getCurrentOscType()); // Check a silent voice took the patch
+        assertEquals(square.getRelease(), idle.getEnvelope().getRelease(), 0.0);
+        assertEquals(square, synth.getPatch());
+        Patch saw = square.withOscType(OscType.SAWTOOTH);
+        synth.setPatchCrossfadeTime(0.02);
+        synth.setPatch(saw, PatchSwap.CROSSFADE);
+        renderer.renderBuffers(1);
+        assertFalse(voice.isActive()); // Check the old voice is fading out
+        assertEquals(0.02, envelope.getRelease(), 0.0);
+        int moved = synth.noteOffChannel(0, 60); // The note is now on another voice
+        assertTrue(moved > 0);
+        assertEquals(OscType.SAWTOOTH, synth.getVoices()[moved].getCurrentOscType());
+        assertEquals(0.8, synth.getVoices()[moved].getVelocity(), 0.0);
+        renderer.renderSeconds(0.05);
+        assertFalse(voice.isSounding()); // Check the old voice finished within the crossfade
+        synth.setAttack(0.3); // A single setting after a patch is still applied
+        renderer.renderBuffers(1);
+        assertEquals(0.3, voice.getEnvelope().getAttack(), 0.0);
+        assertEquals(OscType.SAWTOOTH, voice.getCurrentOscType());
+    }
+    @Test
+    public void testCrossfadedKeyIsReleasedByItsKey() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        synth.setPatchCrossfadeTime(0.02);
+        KeyboardController keys = synth.getKeyboardController();
+        keys.setRepeatWindow(0);
+        Component source = new Canvas();
+        keys.keyPressed(new KeyEvent(source, KeyEvent.KEY_PRESSED, 0, 0, KeyEvent.VK_A, 'a'));
+        renderer.renderSeconds(0.1);
+        synth.setPatch(Patch.DEFAULT.withOscType(OscType.SAWTOOTH), PatchSwap.CROSSFADE); // Sustain 0.7, the note would hang
+        renderer.renderBuffers(1);
+        assertFalse(voice.isActive()); // The note moved to another voice
+        int moved = synth.getAvailableVoice();
+        assertTrue(moved != 0); // Check the old slot is not handed out while the key is held
+        keys.keyReleased(new KeyEvent(source, KeyEvent.KEY_RELEASED, 0, 0, KeyEvent.VK_A, 'a'));
+        renderer.renderSeconds(0.5);
+        for (SynthVoice v : synth.getVoices()) assertFalse(v != null && v.isActive()); // Check the key released the crossfaded note
+    }
+    @Test
+    public void testPatchLoadIsSwitchedForAllVoicesAtOnce() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        for (int v = 0; v < 4; v++) synth.getAvailableVoice(); // Built voices, all following part 0
+        SynthVoice[] voices = synth.getVoices();
+        synth.setPatch(Patch.DEFAULT.withOscType(OscType.TRIANGLE));
+        for (SynthVoice v : voices) if (v != null) v.applyControl(); // An audio block running during the swap
+        for (SynthVoice v : voices) if (v != null) assertEquals(OscType.SINE, ((VoiceOscillator) v.getOscillator()).getType()); // Check no voice took it early
+        renderer.renderBuffers(1);
+        for (SynthVoice v : voices) if (v != null) assertEquals(OscType.TRIANGLE, ((VoiceOscillator) v.getOscillator()).getType()); // Check they all took it in the same block
+    }
+    @Test
+    public void testPatchLoadReplaysWithItsSwap() throws IOException {
+        Path file = Files.createTempFile("journal", ".bin");
+        Synth recorded = new Synth();
+        OfflineRenderer renderer = recorded.startOffline(48000);
+        EventJournal journal = new EventJournal(file, 256);
+        recorded.setJournal(journal);
+        recorded.noteOn(0, 60, 0.8); // Held through the load
+        renderer.renderSeconds(0.05);
+        Patch square = Patch.DEFAULT.withOscillator(OscType.SQUARE, true, 0.3);
+        recorded.setPatch(square, PatchSwap.HOLD);
+        renderer.renderSeconds(0.05);
+        recorded.setJournal(null);
+        journal.close();
+        List<EventJournal.Record> records = EventJournal.read(file);
+        assertEquals(EventJournal.Type.PATCH_LOAD, records.get(records.size() - 1).getType());
+        assertEquals(2 + EventJournal.PATCH_DATA_RECORDS, records.size()); // Check the load is one patch, not a setter per value
+        Synth replayed = new Synth();
+        OfflineRenderer replayRenderer = replayed.startOffline(48000);
+        JournalReplay.load(file).replay(replayed, replayRenderer, 0.01);
+        assertEquals(square, replayed.getPatch()); // Check the same patch was loaded
+        assertEquals(OscType.SINE, replayed.getVoices()[0].getCurrentOscType()); // Check the held note kept the old patch
+        assertTrue(replayed.getVoices()[0].isActive());
+        Files.delete(file);
+    }
+    // 23. Note cache
+    @Test
+    public void testNoteCacheMatchesLiveVoices() {
+        Patch drum = Patch.DEFAULT.withOscType(OscType.SQUARE).withEnvelope(0.001, 0.05, 0.0, 0.05); // One-shot, sustain 0
+        Synth live = new Synth(); // Plays the same note on a voice
+        OfflineRenderer liveRenderer = live.startOffline(48000);
+        live.setPatch(drum);
+        OfflineRenderer renderer = synth.startOffline(48000);
+        synth.setPatch(drum);
+        NoteCache cache = synth.enableNoteCache(NoteCache.DEFAULT_BUDGET_BYTES, 8);
+        synth.getPart(0).setNoteCacheEnabled(true);
+        liveRenderer.renderBuffers(1);
+        renderer.renderBuffers(1);
+        live.noteOn(0, 57, 0.8);
+        assertEquals(Synth.CACHED_NOTE, synth.noteOnChannel(0, 57, 0.8, NotePath.SEQUENCER)); // Rendered now and played from the cache
+        assertFalse(voice.isActive()); // Check no voice played the note
+        assertEquals(1, cache.getMisses());
+        double peak = 0.0;
+        for (int b = 0; b < 30; b++) { // Only the last block of each buffer is left in the ports
+            liveRenderer.renderBuffers(1);
+            renderer.renderBuffers(1);
+            double[] expected = live.getMixBus().output.getValues(0);
+            double[] actual = cache.getPlayer().output.getValues(0);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], actual[i], 1e-6); // Check the cached note sounds like the voice
+                peak = Math.max(peak, Math.abs(actual[i]));
+            }
+        }
+        assertTrue(peak > 0.01);
+        synth.noteOnChannel(0, 57, 0.76, NotePath.SEQUENCER); // Same velocity step
+        assertEquals(1, cache.getHits());
+        assertEquals(0.5, cache.getHitRate(), 0.0);
+        assertEquals(1, cache.getEntryCount());
+        assertTrue(cache.getCpuSavedNanos() > 0);
+        synth.getPart(0).setSustain(0.5); // Held notes are not cached
+        assertTrue(synth.noteOnChannel(0, 57, 0.8, NotePath.SEQUENCER) >= 0); // Played on a voice
+        assertEquals(2, cache.getHits() + cache.getMisses());
+        synth.noteOn(1, 57, 0.8); // A note on a given voice never uses the cache
+        assertTrue(synth.getVoices()[1].isActive());
+    }
+    @Test
+    public void testNoteCacheEvictsLeastRecentlyUsed() {
+        synth.startOffline(48000);
+        synth.setPatch(Patch.DEFAULT.withEnvelope(0.001, 0.05, 0.0, 0.05));
+        NoteCache cache = synth.enableNoteCache(NoteCache.DEFAULT_BUDGET_BYTES, 4);
+        synth.getPart(0).setNoteCacheEnabled(true);
+        synth.noteOnChannel(0, 60, 1.0, NotePath.SEQUENCER);
+        long noteBytes = cache.getUsedBytes();
+        assertTrue(noteBytes > 0);
+        cache = synth.enableNoteCache(noteBytes * 2, 4); // Room for two notes
+        synth.noteOnChannel(0, 60, 1.0, NotePath.SEQUENCER);
+        synth.noteOnChannel(0, 62, 1.0, NotePath.SEQUENCER);
+        synth.noteOnChannel(0, 60, 1.0, NotePath.SEQUENCER); // Makes note 62 the least recently used
+        synth.noteOnChannel(0, 64, 1.0, NotePath.SEQUENCER);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.getEntryCount());
+        assertTrue(cache.getUsedBytes() <= cache.getBudgetBytes());
+        synth.noteOnChannel(0, 60, 1.0, NotePath.SEQUENCER); // Check note 60 was kept
+        assertEquals(2, cache.getHits());
+        synth.noteOnChannel(0, 62, 1.0, NotePath.SEQUENCER);
+        assertEquals(4, cache.getMisses());
+        assertThrows(IllegalArgumentException.class, () -> synth.enableNoteCache(0, 4));
+    }
+    @Test
+    public void testCachedKeyDoesNotReleaseAnotherKey() throws IOException {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        Path file = Files.createTempFile("journal", ".bin");
+        EventJournal journal = new EventJournal(file, 64);
+        synth.setJournal(journal);
+        synth.setPatch(Patch.DEFAULT.withEnvelope(0.001, 0.05, 0.0, 0.05)); // One-shot, sustain 0
+        synth.enableNoteCache(NoteCache.DEFAULT_BUDGET_BYTES, 4);
+        synth.getPart(0).setNoteCacheEnabled(true);
+        KeyboardController keys = synth.getKeyboardController();
+        keys.setRepeatWindow(0);
+        Component source = new Canvas();
+        keys.keyPressed(new KeyEvent(source, KeyEvent.KEY_PRESSED, 0, 0, KeyEvent.VK_A, 'a')); // From the cache
+        assertFalse(voice.isActive());
+        synth.setSustain(0.5); // Held notes are played by voices
+        keys.keyPressed(new KeyEvent(source, KeyEvent.KEY_PRESSED, 0, 0, KeyEvent.VK_S, 's'));
+        assertTrue(voice.isActive());
+        keys.keyReleased(new KeyEvent(source, KeyEvent.KEY_RELEASED, 0, 0, KeyEvent.VK_A, 'a'));
+        renderer.renderBuffers(1);
+        assertTrue(voice.isActive()); // Check releasing the cached key left the other note playing
+        keys.keyReleased(new KeyEvent(source, KeyEvent.KEY_RELEASED, 0, 0, KeyEvent.VK_S, 's'));
+        assertFalse(voice.isActive());
+        synth.setJournal(null);
+        journal.close();
+        List<EventJournal.Type> types = new ArrayList<>();
+        for (EventJournal.Record record : EventJournal.read(file)) types.add(record.getType());
+        assertEquals(1, Collections.frequency(types, EventJournal.Type.CACHED_NOTE_ON));
+        assertEquals(1, Collections.frequency(types, EventJournal.Type.NOTE_ON)); // Check the cached note is not journaled as a voice note
+        assertEquals(1, Collections.frequency(types, EventJournal.Type.NOTE_OFF));
+        Files.delete(file);
+    }
+    // 24. Graph edits
+    @Test
+    public void testGraphEditAppliesWholeBatchAtOnce() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        renderer.renderBuffers(1);
+        Add sum = new Add();
+        SineOscillator[] oscs = new SineOscillator[32];
+        GraphEdit edit = synth.editGraph().add(sum);
+        for (int i = 0; i < oscs.length; i++) {
+            oscs[i] = new SineOscillator();
+            edit.add(oscs[i]).connect(oscs[i].output, i % 2 == 0 ? sum.inputA : sum.inputB);
+        }
+        edit.commit();
+        assertEquals(65, edit.size());
+        for (SineOscillator osc : oscs) assertFalse(GraphEdit.isConnected(osc.output, 0, sum.inputA, 0) || GraphEdit.isConnected(osc.output, 0, sum.inputB, 0)); // Check nothing is wired before the block
+        renderer.renderBuffers(1);
+        assertTrue(edit.isApplied());
+        for (int i = 0; i < oscs.length; i++) assertTrue(GraphEdit.isConnected(oscs[i].output, 0, i % 2 == 0 ? sum.inputA : sum.inputB, 0)); // Check the whole batch landed together
+        assertThrows(IllegalStateException.class, edit::commit);
+        GraphEdit stray = synth.editGraph().connect(new SineOscillator().output, sum.inputA);
+        assertThrows(IllegalArgumentException.class, stray::commit); // Check a unit outside the synth is refused
+        assertThrows(IllegalArgumentException.class, () -> synth.editGraph().connect(oscs[0].output, 1, sum.inputA, 0));
+        GraphEdit removal = synth.editGraph();
+        for (int i = 0; i < oscs.length; i++) removal.disconnect(oscs[i].output, i % 2 == 0 ? sum.inputA : sum.inputB).remove(oscs[i]);
+        removal.commit();
+        renderer.renderBuffers(1);
+        assertFalse(sum.inputA.isConnected());
+        assertFalse(sum.inputB.isConnected());
+    }
+    @Test
+    public void testRefreshSignalChainRewiresInOneBatch() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        synth.noteOn(0, 60, 0.8);
+        renderer.renderBuffers(2);
+        voice.refreshSignalChain();
+        voice.refreshSignalChain(); // Twice, so a duplicate connection would show
+        renderer.renderBuffers(1);
+        UnitOscillator osc = voice.getOscillator();
+        ZdfFilter filter = voice.getFilter().get();
+        assertTrue(GraphEdit.isConnected(osc.output, 0, filter.input, 0));
+        assertTrue(GraphEdit.isConnected(envelope.get().output, 0, osc.amplitude, 0));
+        assertTrue(GraphEdit.isConnected(envelope.get().output, 0, filter.amplitude, 0));
+        assertEquals(1, ((PortBlockPart) osc.output.getConnectablePart(0)).getConnectionCount()); // Check nothing was doubled
+        double peak = 0.0;
+        for (int b = 0; b < 10; b++) {
+            renderer.renderBuffers(1);
+            for (double v : synth.getMixBus().output.getValues(0)) peak = Math.max(peak, Math.abs(v));
+        }
+        assertTrue(peak > 0.01); // Check the voice still sounds
+        voice.refreshSignalChain(); // Applied, so the same batch is committed again
+        renderer.renderBuffers(1);
+        assertTrue(GraphEdit.isConnected(osc.output, 0, filter.input, 0));
+        assertEquals(1, ((PortBlockPart) osc.output.getConnectablePart(0)).getConnectionCount());
+    }
+    @Test
+    public void testGraphEditRecommitNeedsAppliedConnections() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        Add sum = new Add();
+        SineOscillator osc = new SineOscillator();
+        GraphEdit build = synth.editGraph().add(sum).add(osc).connect(osc.output, sum.inputA);
+        assertThrows(IllegalStateException.class, build::recommit); // Not committed yet
+        build.commit();
+        assertThrows(IllegalStateException.class, build::recommit); // Still waiting for the audio thread
+        renderer.renderBuffers(1);
+        assertThrows(IllegalStateException.class, build::recommit); // Adds units
+        GraphEdit rewire = synth.editGraph().disconnect(osc.output, sum.inputA).connect(osc.output, sum.inputB);
+        rewire.commit();
+        renderer.renderBuffers(1);
+        synth.editGraph().connect(osc.output, sum.inputA).commit();
+        renderer.renderBuffers(1);
+        rewire.recommit();
+        assertFalse(rewire.isApplied());
+        renderer.renderBuffers(1);
+        assertTrue(rewire.isApplied());
+        assertFalse(GraphEdit.isConnected(osc.output, 0, sum.inputA, 0)); // Check the batch ran again
+        assertTrue(GraphEdit.isConnected(osc.output, 0, sum.inputB, 0));
+    }
+    @Test
+    public void testDisposeRemovesVoiceInOneBatch() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        synth.noteOn(0, 60, 0.8);
+        renderer.renderSeconds(0.05);
+        synth.noteOff(0);
+        renderer.renderSeconds(1.0);
+        PortBlockPart slot = (PortBlockPart) synth.getMixBus().input.getConnectablePart(0);
+        voice.dispose();
+        assertEquals(1, slot.getConnectionCount()); // Nothing changes before the block
+        renderer.renderBuffers(1);
+        assertEquals(0, slot.getConnectionCount()); // Check the voice left the bus, its units went in the same batch
+    }
+    // 25. Soak test
+    @Test
+    public void testSoakRunSamplesResources() throws InterruptedException {
+        SoakTest soak = new SoakTest(synth, synth.startOffline(48000));
+        soak.addPlayer(new SoakTest.Player(0, 4.0, 3, 1.0, 10.0));
+        soak.addPlayer(new SoakTest.Player(1, 2.0, 1, 0.5, 5.0));
+        soak.setSampleSeconds(1.0);
+        soak.run(20.0);
+        List<SoakTest.Sample> samples = soak.getSamples();
+        assertEquals(20, samples.size(), 1); // One sample per second of audio
+        SoakTest.Sample last = samples.get(samples.size() - 1);
+        assertTrue(last.getNotes() > 40); // Check the players played
+        assertTrue(last.getUnits() > 0);
+        assertTrue(last.getRenderP99() >= last.getRenderP50());
+        assertTrue(last.getThreads() > 0);
+        assertEquals(samples.get(0).getUnits(), last.getUnits()); // Check switching and sliders add no units
+        assertTrue(last.getRenderMean() > 0.0);
+        String report = soak.getReport();
+        assertTrue(report.contains("\"drift\""));
+        assertTrue(report.contains("\"units\": {"));
+        assertTrue(report.contains("\"leak\": " + soak.isLeaking()));
+        assertThrows(IllegalArgumentException.class, () -> new SoakTest.Player(0, 1.0, 0, 0.0, 0.0));
+    }
+    @Test
+    public void testSoakDriftFlagsLeaksAndCreep() {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        SoakTest flat = new SoakTest(synth, renderer);
+        SoakTest leaking = new SoakTest(synth, renderer);
+        SoakTest creeping = new SoakTest(synth, renderer);
+        for (int i = 0; i <= 60; i++) { // An hour, a sample a minute
+            double t = i * 60.0;
+            flat.addSample(new SoakTest.Sample(t, 50_000_000 + (i % 3) * 1_000_000, 12, 400, 0.2, 30.0, 40, 90, 200, i * 100));
+            leaking.addSample(new SoakTest.Sample(t, 50_000_000 + i * 1_000_000L, 12 + i / 10, 400 + i, 0.2, 30.0, 40, 90, 200, i * 100)); // 60 MB an hour
+            creeping.addSample(new SoakTest.Sample(t, 50_000_000, 12, 400, 0.2, 30.0 + i, 40 + i, 90 + 2 * i, 300, i * 100));
+        }
+        assertFalse(flat.isLeaking());
+        assertFalse(flat.isCreeping());
+        assertTrue(leaking.isLeaking());
+        assertFalse(leaking.isCreeping());
+        assertTrue(creeping.isCreeping());
+        assertFalse(creeping.isLeaking());
+        assertEquals(3600.0, SoakTest.slope(new double[] {0, 1, 2}, new double[] {0, 3600, 7200}), 1e-9);
+        assertTrue(leaking.getReport().contains("\"leak\": true"));
+    }
+    // 26. Stems
+    @Test
+    public void testStemsSumToTheMaster() throws IOException {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        Path dir = Files.createTempDirectory("stems");
+        StemRecorder stems = synth.recordStems(dir, StemLayout.PART, 2);
+        synth.getPart(1).setOscType(OscType.SAWTOOTH);
+        int a = synth.getAvailableVoice(synth.getPart(0));
+        synth.noteOn(a, synth.getPart(0), 60, 0.8, NotePath.SEQUENCER);
+        int b = synth.getAvailableVoice(synth.getPart(1));
+        synth.noteOn(b, synth.getPart(1), 67, 0.8, NotePath.SEQUENCER);
+        int c = synth.getAvailableVoice(synth.getPart(2));
+        synth.noteOn(c, synth.getPart(2), 72, 0.8, NotePath.SEQUENCER); // Only in the master
+        renderer.renderSeconds(1.0); // Several I/O buffers
+        synth.noteOffChannel(2, 72);
+        renderer.renderSeconds(0.5);
+        synth.finishStems();
+        assertEquals(3, stems.getFiles().size());
+        long frames = stems.getFrames();
+        assertTrue(frames >= 72000);
+        float[][] files = new float[3][];
+        for (int f = 0; f < 3; f++) {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(stems.getFiles().get(f))).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(44 + frames * 8, bytes.limit()); // Check every file has every frame
+            assertEquals(frames * 8, bytes.getInt(40) & 0xFFFFFFFFL); // Check the header was filled in
+            assertEquals(3, bytes.getShort(20)); // IEEE float
+            files[f] = new float[(int) frames * 2];
+            bytes.position(44);
+            bytes.asFloatBuffer().get(files[f]);
+        }
+        double third = 0.0, peak0 = 0.0, peak1 = 0.0;
+        for (int i = 0; i < files[0].length; i++) {
+            third = Math.max(third, Math.abs(files[0][i] - files[1][i] - files[2][i])); // The part 2 note
+            peak0 = Math.max(peak0, Math.abs(files[1][i]));
+            peak1 = Math.max(peak1, Math.abs(files[2][i]));
+        }
+        assertTrue(peak0 > 0.01 && peak1 > 0.01); // Check each part landed in its stem
+        assertTrue(third > 0.01);
+        int from = (int) ((frames - 4800) * 2); // After the part 2 note has released
+        for (int i = from; i < files[0].length; i++) assertEquals(files[0][i], files[1][i] + files[2][i], 1e-5); // Check the stems sum to the master
+        for (Path file : stems.getFiles()) Files.delete(file);
+        Files.delete(dir);
+        assertThrows(IllegalArgumentException.class, () -> synth.recordStems(dir, StemLayout.PART, 17));
+    }
+
+    // 27. Band-limited oscillators
+    @Test
+    public void testBandLimitedOscillatorsAliasLess() {
+        int frames = 16384, cycles = 1031; // About 3 kHz, a prime number of cycles so no alias lands on a harmonic
+        double increment = 2.0 * cycles / frames;
+        for (OscType shape : new OscType[] {OscType.SQUARE, OscType.SAWTOOTH, OscType.TRIANGLE}) {
+            double[] naive = new double[frames];
+            double[] blep = new double[frames];
+            double phase = 0.0;
+            for (int i = 0; i < frames; i++) {
+                phase += increment;
+                if (phase >= 1.0) phase -= 2.0;
+                naive[i] = VoiceOscillator.naive(shape, phase, 0.5);
+                blep[i] = VoiceOscillator.bandLimited(shape, phase, increment, 0.5);
+            }
+            assertTrue(aliasDb(blep, cycles) < aliasDb(naive, cycles) - 10.0, shape + " aliases"); // Check at least 10 dB less aliasing
+        }
+        double sum = 0.0, blepSum = 0.0, phase = 0.0;
+        for (int i = 0; i < 48000; i++) { // One second at 440 Hz
+            phase += 2.0 * 440.0 / 48000;
+            if (phase >= 1.0) phase -= 2.0;
+            sum += VoiceOscillator.naive(OscType.SQUARE, phase, 0.25);
+            blepSum += VoiceOscillator.bandLimited(OscType.SQUARE, phase, 2.0 * 440.0 / 48000, 0.25);
+        }
+        assertEquals(-0.5, sum / 48000, 0.01); // Check a quarter of the cycle is high
+        assertEquals(-0.5, blepSum / 48000, 0.01);
+    }
+    @Test
+    public void testBandLimitedSettingsReachVoicesAndBanks() throws IOException {
+        OfflineRenderer renderer = synth.startOffline(48000);
+        synth.setOscType(OscType.SQUARE);
+        synth.setBandLimited(true);
+        synth.setPulseWidth(0.3);
+        synth.noteOn(0, 60, 0.8);
+        renderer.renderBuffers(1);
+        VoiceOscillator oscillator = (VoiceOscillator) voice.getOscillator();
+        assertTrue(oscillator.isBandLimited());
+        assertEquals(0.3, oscillator.getPulseWidth(), 0.0);
+        Patch patch = synth.getPatch();
+        assertTrue(patch.isBandLimited());
+        assertEquals(0.3, patch.getPulseWidth(), 1e-6); // Float precision, like every patch value
+        synth.setPatch(patch.withOscillator(OscType.SAWTOOTH, false, 0.5));
+        renderer.renderBuffers(1);
+        VoiceOscillator idle = (VoiceOscillator) synth.getVoices()[1].getOscillator();
+        assertFalse(idle.isBandLimited()); // Check a patch sets the oscillator in one piece
+        assertEquals(0.5, idle.getPulseWidth(), 0.0);
+        ByteBuffer record = ByteBuffer.allocate(Patch.BYTES);
+        patch.write(record);
+        record.flip();
+        assertEquals(patch, Patch.read(record)); // Check the record keeps both settings
+        ByteBuffer old = ByteBuffer.allocate(PatchBank.HEADER_BYTES + Patch.BYTES - 4); // A version 1 bank of one patch
+        old.putInt(0x53594E50).putShort((short) 1).putShort((short) (Patch.BYTES - 4)).putInt(1).putInt(0);
+        old.put(record.array(), 0, Patch.BYTES - 4);
+        old.put(PatchBank.HEADER_BYTES, (byte) OscType.SQUARE.ordinal()); // Version 1 had no band-limited bit
+        Path file = Files.createTempFile("bank", ".bin");
+        Files.write(file, old.array());
+        assertEquals(patch.withOscillator(OscType.SQUARE, false, 0.5), PatchBank.load(file).get(0)); // Check old banks load with the naive square
+        Files.delete(file);
+        assertThrows(IllegalArgumentException.class, () -> synth.setPulseWidth(0.99));
+        assertThrows(IllegalArgumentException.class, () -> Patch.DEFAULT.withOscillator(OscType.SQUARE, true, 0.0));
+    }
+
+    /**
+     * Writes a mono 32 bit float WAV file
+     */
+    private static void writeWav(Path file, float[] samples, int frameRate) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(44 + samples.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0x46464952).putInt(36 + samples.length * 4).putInt(0x45564157); // RIFF, WAVE
+        buffer.putInt(0x20746D66).putInt(16).putShort((short) 3).putShort((short) 1).putInt(frameRate).putInt(frameRate * 4).putShort((short) 4).putShort((short) 32); // fmt, float mono
+        buffer.putInt(0x61746164).putInt(samples.length * 4); // data
+        for (float v : samples) buffer.putFloat(v);
+        Files.write(file, buffer.array());
+    }
+
+    /**
+     * Measures the energy between the harmonics of a tone with exactly cycles periods in the
+     * signal, relative to the energy of the harmonics, with a Hann window
+     */
+    private static double aliasDb(double[] signal, int cycles) {
+        int n = signal.length;
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int i = 0; i < n; i++) re[i] = signal[i] * (0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / n));
+        new Fft(n).transform(re, im, false);
+        double harmonics = 0.0, alias = 0.0;
+        for (int bin = 1; bin < n / 2; bin++) {
+            double power = re[bin] * re[bin] + im[bin] * im[bin];
+            int nearest = Math.round((float) bin / cycles) * cycles; // Closest harmonic
+            if (nearest > 0 && Math.abs(bin - nearest) <= 2) harmonics += power;
+            else alias += power;
+        }
+        return 10.0 * Math.log10(alias / harmonics);
+    }
+
+    /**
+     * Fits a sine of the given frequency to a signal and returns what is left, relative to the sine
+     */
+    private static double toneResidualDb(double[] signal, int start, int end, double cyclesPerFrame) {
+        double ss = 0, sc = 0, cc = 0, ys = 0, yc = 0;
+        for (int i = start; i < end; i++) {
+            double s = Math.sin(2.0 * Math.PI * cyclesPerFrame * i), c = Math.cos(2.0 * Math.PI * cyclesPerFrame * i);
+            ss += s * s; sc += s * c; cc += c * c; ys += signal[i] * s; yc += signal[i] * c;
+        }
+        double det = ss * cc - sc * sc;
+        double a = (ys * cc - yc * sc) / det, b = (yc * ss - ys * sc) / det; // Least squares sine and cosine parts
+        double tone = 0, residual = 0;
+        for (int i = start; i < end; i++) {
+            double fit = a * Math.sin(2.0 * Math.PI * cyclesPerFrame * i) + b * Math.cos(2.0 * Math.PI * cyclesPerFrame * i);
+            tone += fit * fit;
+            residual += (signal[i] - fit) * (signal[i] - fit);
+        }
+        return 10.0 * Math.log10(residual / tone);
+    }
+
+    /**
+     * Runs an action in rounds until a round allocates nothing on this thread beyond what the
+     * JSyn engine itself allocates for the same number of buffers (its scheduler time stamp and
+     * unit list iterators, which the JIT does not always remove), failing if that never happens.
+     * Early rounds build voices, load classes and let the JIT settle.
+     */
+    private static void assertAllocationFree(OfflineRenderer renderer, int buffersPerRun, Runnable action) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int runs = 5000;
+        long allocated = 0;
+        for (int round = 0; round < 10; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < runs; i++) action.run();
+            long middle = threads.getThreadAllocatedBytes(thread);
+            renderer.renderBuffers(runs * buffersPerRun); // The engine on its own
+            allocated = (middle - before) - (threads.getThreadAllocatedBytes(thread) - middle);
+            if (allocated < runs) return; // Any allocation per run is at least 16 bytes
+        }
+        fail("Steady state allocated " + allocated + " bytes more than the engine in " + runs + " runs");
+    }
+
+    /**
+     * Plays a sine through a ZdfFilter with a 1 kHz cutoff and returns the output peak
+     */
+    private static double filterPeak(FilterType type, double toneHz, double resonance) {
+        Synthesizer engine = JSyn.createSynthesizer();
+        SineOscillator osc = new SineOscillator();
+        ZdfFilter filter = new ZdfFilter();
+        engine.add(osc);
+        engine.add(filter);
+        osc.frequency.set(toneHz);
+        osc.amplitude.set(1.0);
+        osc.output.connect(filter.input);
+        filter.frequency.set(1000.0);
+        filter.resonance.set(resonance);
+        filter.setType(type);
+        OfflineRenderer renderer = new OfflineRenderer(engine, 48000);
+        filter.start(); // Pull the filter every block
+        renderer.renderSeconds(0.5); // Let the filter settle
+        double peak = 0.0;
+        for (int b = 0; b < 2000; b++) {
+            renderer.renderBuffers(1);
+            for (double v : filter.output.getValues()) peak = Math.max(peak, Math.abs(v));
+        }
+        return peak;
+    }
+
+    /**
+     * Sums the left channel of the last block the mix bus rendered
+     */
+    private static double blockSum(Synth synth) {
+        double sum = 0;
+        for (double v : synth.getMixBus().output.getValues(0)) sum += v;
+        return sum;
+    }
+}
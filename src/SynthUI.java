@@ -25,6 +25,7 @@ public class SynthUI {
     private JButton squareButton; // The square button
     private JButton sawtoothButton; // The sawtooth button
     private JButton triangleButton; // The triangle button
+    private JButton fmButton; // The FM button
     private JSlider attackSlider; // The attack slider
     private JSlider decaySlider; // The decay slider
     private JSlider sustainSlider;
@@ -76,32 +77,18 @@ public class SynthUI {
         squareButton = createOscillatorButton("Square", OscType.SQUARE); // Create square button
         sawtoothButton = createOscillatorButton("Sawtooth", OscType.SAWTOOTH); // Create sawtooth button
         triangleButton = createOscillatorButton("Triangle", OscType.TRIANGLE); // Create triangle button
+        fmButton = createOscillatorButton("FM", OscType.FM); // Create FM button
        
         //create adsr sliders
-        // Use the first available SynthVoice's envelope for slider defaults
-        SynthVoice[] voices = (synth != null) ? synth.getVoices() : null; // Get the voices from the synth if it exists else null
-        Envelope env = (voices != null && voices.length > 0 && voices[0] != null) ? voices[0].getEnvelope() : null; // Get the envelope from the first voice if it exists else null
-        if (env != null) {
-            attackLabel = new JLabel("Attack"); // Create attack label
-            attackSlider = createSlider("Attack", env.getAttack()); // Create attack slider
-            decayLabel = new JLabel("Decay"); // Create decay label
-            decaySlider = createSlider("Decay", env.getDecay());
-            sustainLabel = new JLabel("Sustain"); // Create sustain label
-            sustainSlider = createSlider("Sustain", env.getSustain());
-            releaseLabel = new JLabel("Release"); // Create release label
-            releaseSlider = createSlider("Release", env.getRelease());
-        } else {
-            // Fallback to default ADSR values if no voices/envelope available
-            attackLabel = new JLabel("Attack"); // Create attack label
-            attackSlider = createSlider("Attack", 0.01); 
-            decayLabel = new JLabel("Decay"); // Create decay label
-            decaySlider = createSlider("Decay", 0.1);
-            sustainLabel = new JLabel("Sustain"); // Create sustain label
-            sustainSlider = createSlider("Sustain", 0.8);
-            releaseLabel = new JLabel("Release"); // Create release label
-            releaseSlider = createSlider("Release", 0.2);
-            System.err.println("WARNING: No SynthVoice or Envelope available for slider defaults");
-        }
+        // Use the synth's current ADSR values for slider defaults
+        attackLabel = new JLabel("Attack"); // Create attack label
+        attackSlider = createSlider("Attack", synth.getAttack()); // Create attack slider
+        decayLabel = new JLabel("Decay"); // Create decay label
+        decaySlider = createSlider("Decay", synth.getDecay());
+        sustainLabel = new JLabel("Sustain"); // Create sustain label
+        sustainSlider = createSlider("Sustain", synth.getSustain());
+        releaseLabel = new JLabel("Release"); // Create release label
+        releaseSlider = createSlider("Release", synth.getRelease());
         //add labels and sliders to panel
         ADSRPanel.add(attackLabel); // Add attack label to panel
         ADSRPanel.add(attackSlider); // Add attack slider to panel
@@ -118,6 +105,7 @@ public class SynthUI {
         oscTypePanel.add(squareButton); // Add square button to panel
         oscTypePanel.add(sawtoothButton); // Add sawtooth button to panel
         oscTypePanel.add(triangleButton); // Add triangle button to panel
+        oscTypePanel.add(fmButton); // Add FM button to panel
         
         // Create a main panel with horizontal layout
         mainPanel = new JPanel(); // Create main panel
@@ -141,10 +129,7 @@ public class SynthUI {
             @Override
             public void actionPerformed(ActionEvent e) { // When the button is pressed
                 // Update all voices to use the selected oscillator type
-                SynthVoice[] voices = synth.getVoices(); // Get the voices from the synth
-                for (SynthVoice voice : voices) { // For each voice
-                    voice.setCurrentOscType(type); // Set the oscillator type of the voice
-                }
+                synth.setOscType(type); // Set the oscillator type of every voice
                 frame.requestFocus(); // Request focus on the frame
             }
         });
@@ -171,15 +156,10 @@ public class SynthUI {
             public void stateChanged(ChangeEvent e) {
                 if (!slider.getValueIsAdjusting()) { // If the slider is not being adjusted
                     double value = slider.getValue() / 100.0; // Get the value of the slider and divide by 100 to get a decimal
-                    for (SynthVoice voice : synth.getVoices()) { // For each voice
-                        if (label.equals("Attack")) voice.getEnvelope().setAttack(value); // Set the attack value of the envelope
-                        if (label.equals("Decay")) voice.getEnvelope().setDecay(value); // Set the decay value of the envelope
-                        if (label.equals("Sustain")) voice.getEnvelope().setSustain(value); // Set the sustain value of the envelope
-                        if (label.equals("Release")) voice.getEnvelope().setRelease(value); // Set the release value of the envelope
-                        // Refresh the signal chain after updating envelope parameters
-                        voice.refreshSignalChain(); // Refresh the signal chain
-                        if(voice.isActive()) voice.retriggerEnvelope(); // Retrigger the envelope if the voice is active
-                    }
+                    if (label.equals("Attack")) synth.setAttack(value); // Set the attack value of every voice
+                    if (label.equals("Decay")) synth.setDecay(value); // Set the decay value of every voice
+                    if (label.equals("Sustain")) synth.setSustain(value); // Set the sustain value of every voice
+                    if (label.equals("Release")) synth.setRelease(value); // Set the release value of every voice
                     frame.requestFocusInWindow(); // Request focus on the frame
                 }
             }
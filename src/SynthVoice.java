@@ -1,21 +1,25 @@
 import com.jsyn.Synthesizer;
 import com.jsyn.unitgen.UnitGenerator;
 import com.jsyn.unitgen.UnitOscillator;
-import com.jsyn.unitgen.LineOut;
 import com.jsyn.unitgen.Add;
-
-import com.jsyn.unitgen.SineOscillator;
-import com.jsyn.unitgen.SquareOscillator;
-import com.jsyn.unitgen.SawtoothOscillator;
-import com.jsyn.unitgen.TriangleOscillator;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * SynthVoice class for generating a single voice of the synthesizer
  * extends UnitGenerator
+ *
+ * Playing notes and changing the patch do not allocate once the voice is built:
+ * the oscillator switches waveform in place, and note, envelope and filter values are
+ * stored and copied into the ports by the audio thread ({@link #applyControl()}).
+ * Notes, retriggers, oscillator switches and rewiring are recorded in the synth's
+ * TraceRing when tracing is on.
+ *
+ * A whole Patch ({@link #setPatch(Patch)}) is handed over as one reference and applied by the
+ * audio thread in a single block, so the voice never plays half of one patch and half of another.
  */
 public class SynthVoice extends UnitGenerator {
     //The oscillator for the voice
-    private UnitOscillator oscillator;
+    private VoiceOscillator oscillator;
     //The synthesizer that the voice belongs to
     private Synthesizer synth;
     // The current oscillator type
@@ -24,26 +28,55 @@ public class SynthVoice extends UnitGenerator {
     private boolean isActive = false;
     // The envelope for the voice
     private Envelope envelope;
-    //The line out for the voice
-    private LineOut lineOut;
+    //The mix bus the voice feeds
+    private MixBus bus;
+    //The slot of the voice on the mix bus
+    private int busSlot;
     // The mixer for the voice
     private Add mixer;
      //The filter for the voice
     private Filter filter;
     //The current note being played
     private int currentNote = -1;
+    //The velocity of the current note
+    private double velocity = 0.0;
+    //Last time (System.nanoTime) the voice was built, triggered or released
+    private long lastUsedNanos = System.nanoTime();
+    //Note frequency waiting for the audio thread, published by bumping controlVersion
+    private double pendingFrequency = 440.0;
+    private volatile int controlVersion = 0;
+    private int appliedControlVersion = -1; // Audio thread only
+    //Patch waiting for the audio thread, taken whole at the start of the next block
+    private final AtomicReference<Patch> pendingPatch = new AtomicReference<>();
+    //Part whose loaded patch the voice takes, null while it plays values set one by one or holds an older patch
+    private volatile Part patchSource;
+    private volatile int followVersion = 0; // Bumped by followPatch so the audio thread loads the part's patch again
+    private Part appliedSource; // Audio thread only
+    private int appliedSerial = -1;
+    private int appliedFollowVersion = -1;
+    //Trace to record events in, null when tracing is off
+    private volatile TraceRing trace;
+    //The connections refreshSignalChain rebuilds, in the order it makes them
+    private static final TraceRing.Link[] LINKS = TraceRing.Link.values();
+    //The batch refreshSignalChain commits, built once and committed again on later refreshes
+    private GraphEdit rewire;
     
     /**
      * Constructor for SynthVoice
      * 
      * @param synth the Synthesizer to add components to
-     * @param mainLineOut the LineOut to connect to
+     * @param bus the MixBus to connect to
+     * @param busSlot the slot of this voice on the mix bus
      */
-    public SynthVoice(Synthesizer synth, LineOut mainLineOut){
+    public SynthVoice(Synthesizer synth, MixBus bus, int busSlot){
+        if(bus == null) throw new IllegalArgumentException("Mix bus cannot be null");
+        if(busSlot < 0 || busSlot >= bus.getNumSlots()) throw new IllegalArgumentException("Bus slot out of bounds");
         this.synth = synth; // The synthesizer
-        this.lineOut = mainLineOut; // The main line out
+        this.bus = bus; // The mix bus
+        this.busSlot = busSlot; // The slot on the mix bus
         initComponents(synth); // Initialize components
         connectComponents(); // Connect components
+        bus.attach(busSlot); // Start mixing this voice
     }
 
     /**
@@ -62,9 +95,9 @@ public class SynthVoice extends UnitGenerator {
 
     private void initComponents(Synthesizer synth){
         if(synth == null) throw new IllegalArgumentException("Synthesizer cannot be null");
-        //create oscillator with zero initial amplitude to prevent automatic sound
-        oscillator = createOsc(currentOscType);
-        oscillator.amplitude.set(0.0); // Start silent until a note is triggered
+        //create the oscillator, it plays every oscillator type
+        oscillator = new VoiceOscillator();
+        oscillator.setType(currentOscType);
         
         //Create envelope
         envelope = new Envelope(synth);
@@ -83,7 +116,7 @@ public class SynthVoice extends UnitGenerator {
         //create mixer for this voice
         mixer = new Add();
         
-        // LineOut is already set in the constructor
+        // Mix bus is already set in the constructor
         
         //add components to synth
         synth.add(oscillator); // Add oscillator to synthesizer
@@ -93,7 +126,7 @@ public class SynthVoice extends UnitGenerator {
     }
     /**
      * Connects all components in the audio signal chain:
-     * Oscillator → Envelope → Filter → Mixer → LineOut → Speakers
+     * Oscillator → Envelope → Filter → Mixer → MixBus → LineOut → Speakers
      */
     private void connectComponents(){
         // Connect oscillator to filter input
@@ -104,36 +137,11 @@ public class SynthVoice extends UnitGenerator {
         oscillator.amplitude.set(1.0);
         // Connect filter output to mixer
         filter.get().output.connect(mixer.inputA);
-        // Connect mixer to mainLineOut (both left and right channels)
-        mixer.output.connect(0, this.lineOut.input, 0); // Left channel
-        mixer.output.connect(0, this.lineOut.input, 1); // Right channel
+        // Connect mixer to this voice's slot on the mix bus (panned there)
+        mixer.output.connect(0, this.bus.input, busSlot);
     }
     
 
-    private UnitOscillator createOsc(OscType type) {
-        if(type == null) throw new IllegalArgumentException("Oscillator type cannot be null");
-        //check if there is a current oscillator in use
-        //if so remove it from the synth
-        if (oscillator != null) synth.remove(oscillator); // Remove old oscillator from synth
-        
-        UnitOscillator newOsc = null;
-        switch (type) {
-            case SINE:
-                newOsc = new SineOscillator(); // Create sine oscillator
-                break;
-            case SQUARE:
-                newOsc = new SquareOscillator(); // Create square oscillator
-                break;
-            case SAWTOOTH:
-                newOsc = new SawtoothOscillator(); // Create sawtooth oscillator
-                break;
-            case TRIANGLE:
-                newOsc = new TriangleOscillator(); // Create triangle oscillator
-                break;
-        }
-        return newOsc;
-    }
-
     /**
      * Sets the current oscillator type
      * 
@@ -145,83 +153,13 @@ public class SynthVoice extends UnitGenerator {
         // If we already have this type, do nothing
         if (type == currentOscType) {return;}
         
-        // Update current oscillator type first
-        currentOscType = type;
-        
-        // Remove old oscillator if it exists
-        if (oscillator != null) {
-            System.out.println("[Voice " + this + "] Disconnecting old oscillator");
-            synth.remove(oscillator); // Remove old oscillator from synth
-        }
-        
-        // Create new oscillator with type
-        UnitOscillator newOsc = createOsc(type);
-        if (newOsc != null) { // If we successfully created the oscillator
-            System.out.println("[Voice " + this + "] Creating new oscillator");
-            
-            // Disconnect all relevant connections
-            try {
-                filter.get().output.disconnect(mixer.inputA); // Disconnect filter output from mixer input A
-                System.out.println("[Voice " + this + "] Disconnected filter.output -> mixer.inputA");
-            } catch (IllegalArgumentException e) {
-                System.out.println("[Voice " + this + "] filter.output not connected to mixer.inputA" + e.getMessage());
-            }
-            try {
-                mixer.output.disconnect(0, lineOut.input, 0);
-                System.out.println("[Voice " + this + "] Disconnected mixer.output[0] -> lineOut.input[0]");
-            } catch (IllegalArgumentException e) {
-                System.out.println("[Voice " + this + "] mixer.output[0] not connected to lineOut.input[0]" + e.getMessage());
-            }
-            try {
-                mixer.output.disconnect(0, lineOut.input, 1); // Disconnect mixer output from lineOut input
-                System.out.println("[Voice " + this + "] Disconnected mixer.output[0] -> lineOut.input[1]");
-            } catch (IllegalArgumentException e) {
-                System.out.println("[Voice " + this + "] mixer.output[0] not connected to lineOut.input[1]" + e.getMessage());
-            }
-            try {
-                envelope.get().output.disconnect(filter.get().amplitude);
-                envelope.get().output.disconnect(oscillator.amplitude);
-                System.out.println("[Voice " + this + "] Disconnected envelope.output -> filter.amplitude");
-            } catch (IllegalArgumentException e) {
-                System.out.println("[Voice " + this + "] envelope.output not connected to filter.amplitude" + e.getMessage());
-            }
-            try {
-                if (oscillator != null) {
-                    oscillator.output.disconnect(0, filter.get().input, 0); // Disconnect old oscillator output from filter input
-                    System.out.println("[Voice " + this + "] Disconnected old oscillator.output -> filter.input");
-                }
-            } catch (   IllegalArgumentException e) {
-                System.out.println("[Voice " + this + "] old oscillator.output not connected to filter.input" + e.getMessage());
-            }
-
-            // Reconnect the signal chain in order
-            newOsc.output.connect(0, filter.get().input, 0); // Connect new oscillator output to filter input
-            System.out.println("[Voice " + this + "] Connected newOsc.output -> filter.input");
-
-            envelope.get().output.connect(newOsc.amplitude); // Connect envelope output to new oscillator amplitude
-            System.out.println("[Voice " + this + "] Connected envelope.output -> filter.amplitude");
-
-            filter.get().output.connect(mixer.inputA); // Connect filter output to mixer input A
-            System.out.println("[Voice " + this + "] Connected filter.output -> mixer.inputA");
-
-            mixer.output.connect(0, lineOut.input, 0); // Left channel
-            System.out.println("[Voice " + this + "] Connected mixer.output[0] -> lineOut.input[0]");
-            mixer.output.connect(0, lineOut.input, 1); // Right channel
-            System.out.println("[Voice " + this + "] Connected mixer.output[0] -> lineOut.input[1]");
-
-            // Set default values
-            newOsc.frequency.set(440.0); // A4 note
-            newOsc.amplitude.set(1.0); // Full volume
-
-            // Add to synth after connections are set up
-            synth.add(newOsc); // Add new oscillator to synth
-            System.out.println("[Voice " + this + "] Added new oscillator to synth");
-            newOsc.start(); // Start the new oscillator
-            System.out.println("[Voice " + this + "] Started new oscillator");
-
-            // Update oscillator reference at the end
-            oscillator = newOsc;
-        }
+        SynthEvents.GraphRewire event = new SynthEvents.GraphRewire();
+        event.begin();
+        currentOscType = type; // Update the current oscillator type
+        oscillator.setType(type); // Takes effect at the next block, no units change
+        TraceRing t = trace;
+        if (t != null) t.record(TraceRing.Type.OSC_SWITCH, busSlot, type.ordinal(), 0.0);
+        commitRewire(event, "setCurrentOscType");
     }
 
     /**
@@ -234,18 +172,26 @@ public class SynthVoice extends UnitGenerator {
         if(note < 0 || note > 127)throw new IllegalArgumentException("Note must be between 0 and 127");
         if(velocity < 0 || velocity > 1) throw new IllegalArgumentException("Velocity must be between 0 and 1");
     
+        SynthEvents.EnvelopeRetrigger event = new SynthEvents.EnvelopeRetrigger(); // Committed if the voice was still playing
+        event.begin();
+        boolean retrigger = isActive;
         currentNote = note; // Set the current note
+        this.velocity = velocity; // Remember the velocity
         isActive = true; // Set the voice to active
+        lastUsedNanos = System.nanoTime(); // Remember when the voice was last used
         
         // Convert MIDI note to frequency
         double freq = 440.0 * Math.pow(2, (note - 69) / 12.0); // Convert MIDI note to frequency
         
         // Set frequency and trigger envelope
-        if (oscillator != null) { // If the oscillator exists
-            oscillator.frequency.set(freq); // Set oscillator frequency
-            envelope.trigger(true); // Trigger envelope
-            envelope.setVelocity(velocity); // Set envelope velocity
-        }
+        pendingFrequency = freq; // Applied by the audio thread
+        controlVersion++;
+        envelope.trigger(true); // Trigger envelope
+        envelope.setVelocity(velocity); // Set envelope velocity
+        oscillator.setGate(true); // Start the FM operator envelopes
+        TraceRing t = trace;
+        if (t != null) t.record(TraceRing.Type.NOTE_ON, busSlot, note, velocity);
+        if (retrigger) commitRetrigger(event);
     }
 
     /**
@@ -253,24 +199,116 @@ public class SynthVoice extends UnitGenerator {
      * 
      */
     public void triggerNoteOff(){
-        envelope.trigger(false); // Release envelope
-        // Reset oscillator amplitude after release time to ensure no sound leakage
-        // We'll use a thread to delay this reset to allow the envelope release to complete
-        Thread resetThread = new Thread(new Runnable() {
-            @Override
-            public void run() { // Run the thread
-                try {
-                    // Wait for envelope release to complete (in milliseconds) 
-                    Thread.sleep((long)(envelope.getRelease() * 1000)); // Wait for envelope release to complete
-                    oscillator.amplitude.set(0.0); // Reset oscillator amplitude
-                } catch (InterruptedException e) {
-                    System.err.println("Thread interrupted: " + e.getMessage());
-                }
-            }
-        });
-        System.out.println("Voice envelope on noteOn: " + this.envelope);
-        resetThread.start(); // Start the reset thread
+        envelope.trigger(false); // Release envelope, its output takes the oscillator amplitude to 0
+        oscillator.setGate(false); // Release the FM operator envelopes
+        TraceRing t = trace;
+        if (t != null) t.record(TraceRing.Type.NOTE_OFF, busSlot, currentNote, 0.0);
         isActive = false; // Set the voice to inactive
+        lastUsedNanos = System.nanoTime(); // Remember when the voice was last used
+    }
+
+    /**
+     * Copies the note, envelope and filter values changed since the last block into
+     * the ports. Called by the audio thread at the start of every block.
+     */
+    public void applyControl() {
+        Patch patch = pendingPatch.getAndSet(null);
+        Part source = patchSource;
+        if (source != null) {
+            int serial = source.getLiveSerial();
+            int follow = followVersion;
+            Patch live = source.getLivePatch(); // Switched between blocks, the same for every voice following the part
+            if (live != null && (source != appliedSource || serial != appliedSerial || follow != appliedFollowVersion)) {
+                appliedSource = source;
+                appliedSerial = serial;
+                appliedFollowVersion = follow;
+                patch = live;
+            }
+        }
+        if (patch != null) applyPatch(patch); // Before the note, so a new note starts with the patch
+        int v = controlVersion;
+        if (v != appliedControlVersion) {
+            appliedControlVersion = v;
+            oscillator.frequency.setValueInternal(pendingFrequency);
+        }
+        envelope.apply();
+        filter.apply();
+    }
+
+    /**
+     * Loads a whole patch. The oscillator, envelope, filter and FM values are all applied by
+     * the audio thread at the start of the next block. Does not allocate.
+     *
+     * @param patch the patch
+     */
+    public void setPatch(Patch patch) {
+        if (patch == null) throw new IllegalArgumentException("Patch cannot be null");
+        patchSource = null; // This patch replaces the part's
+        currentOscType = patch.getOscType(); // Switched by the audio thread with the rest of the patch
+        pendingPatch.set(patch);
+    }
+
+    /**
+     * Makes the voice take the patch its part has loaded, at the start of the next block, and any
+     * patch the part loads later in the same block as every other voice following the part
+     *
+     * @param part the part
+     */
+    void followPatch(Part part) {
+        pendingPatch.set(null);
+        currentOscType = part.getOscType(); // Switched by the audio thread with the rest of the patch
+        patchSource = part;
+        followVersion++;
+    }
+
+    /**
+     * Stops taking the part's patches, so a held note keeps the patch it has
+     */
+    void holdPatch() {patchSource = null;}
+
+    /**
+     * Drops a patch that the audio thread has not applied yet, used before setting values one by one
+     */
+    void cancelPatch() {
+        patchSource = null;
+        pendingPatch.set(null);
+    }
+
+    /**
+     * Copies a patch into the oscillator, envelope and filter. Audio thread only.
+     */
+    private void applyPatch(Patch patch) {
+        oscillator.setType(patch.getOscType());
+        oscillator.setBandLimited(patch.isBandLimited());
+        oscillator.setPulseWidth(patch.getPulseWidth());
+        envelope.setAttack(patch.getAttack());
+        envelope.setDecay(patch.getDecay());
+        envelope.setSustain(patch.getSustain());
+        envelope.setRelease(patch.getRelease());
+        envelope.setCurve(patch.getEnvelopeCurve());
+        filter.setFilterCutoff(patch.getFilterCutoff());
+        filter.setFilterResonance(patch.getFilterResonance());
+        filter.setFilterType(patch.getFilterType());
+        oscillator.setFmPatch(patch.getFmAlgorithm(), patch.getFmSettings());
+        TraceRing t = trace;
+        if (t != null) t.record(TraceRing.Type.OSC_SWITCH, busSlot, patch.getOscType().ordinal(), 0.0);
+    }
+
+    /**
+     * Disconnects the voice from the line out and removes all of its units from the synth,
+     * in one batch applied by the audio thread at the start of the next block ({@link GraphEdit}).
+     * The voice cannot be used afterwards.
+     */
+    public void dispose() {
+        bus.detach(busSlot); // Stop mixing this voice
+        new GraphEdit(synth)
+            .disconnect(mixer.output, 0, bus.input, busSlot) // Disconnect from the bus slot
+            .remove(oscillator)
+            .remove(envelope.get())
+            .remove(filter.get())
+            .remove(mixer)
+            .commit();
+        isActive = false;
     }
 
     /**
@@ -280,6 +318,48 @@ public class SynthVoice extends UnitGenerator {
      */
     public boolean isActive(){return isActive;}
 
+    /**
+     * Checks if the voice is still heard, held or in its release
+     *
+     * @return true if the voice is active or its envelope has not finished
+     */
+    public boolean isSounding(){return isActive || !envelope.get().isIdle();}
+
+    /**
+     * Sets the stereo position of the voice on the mix bus
+     * 
+     * @param pan the pan (-1.0 left to 1.0 right)
+     */
+    public void setPan(double pan){bus.setPan(busSlot, pan);}
+
+    /**
+     * Gets the stereo position of the voice
+     * 
+     * @return the pan
+     */
+    public double getPan(){return bus.getPan(busSlot);}
+
+    /**
+     * Sets the level of the voice on the mix bus
+     * 
+     * @param gain the gain (0.0 to 1.0)
+     */
+    public void setGain(double gain){bus.setGain(busSlot, gain);}
+
+    /**
+     * Gets the level of the voice on the mix bus
+     * 
+     * @return the gain
+     */
+    public double getGain(){return bus.getGain(busSlot);}
+
+    /**
+     * Gets the last time the voice was triggered or released
+     * 
+     * @return the time in System.nanoTime() units
+     */
+    public long getLastUsedNanos(){return lastUsedNanos;}
+
     /**
      * Gets the current note being played
      * 
@@ -287,6 +367,13 @@ public class SynthVoice extends UnitGenerator {
      */
     public int getCurrentNote() {return currentNote;}
 
+    /**
+     * Gets the velocity of the current note
+     *
+     * @return the velocity
+     */
+    public double getVelocity() {return velocity;}
+
     /**
      * Gets the current oscillator type
      * 
@@ -300,72 +387,128 @@ public class SynthVoice extends UnitGenerator {
      */
     public Envelope getEnvelope() {return envelope;}
 
+    /**
+     * Sets how the oscillator plays the square, sawtooth and triangle
+     *
+     * @param bandLimited true for the band-limited waveforms
+     * @param pulseWidth the pulse width of the square (0.05 to 0.95)
+     */
+    public void setOscillatorShape(boolean bandLimited, double pulseWidth) {
+        oscillator.setBandLimited(bandLimited);
+        oscillator.setPulseWidth(pulseWidth);
+    }
+
+    /**
+     * Sets the FM patch the voice plays when its oscillator type is FM
+     *
+     * @param algorithm the algorithm
+     * @param settings the operator settings, see {@link FmEngine#setPatch(FmAlgorithm, double[])}
+     */
+    public void setFmPatch(FmAlgorithm algorithm, double[] settings) {oscillator.setFmPatch(algorithm, settings);}
+
+    /**
+     * Get the oscillator currently used by this voice
+     *
+     * @return the oscillator
+     */
+    public UnitOscillator getOscillator() {return oscillator;}
+
+    /**
+     * Get the filter for this voice
+     *
+     * @return the filter
+     */
+    public Filter getFilter() {return filter;}
+
     /**
      * Retriggers the envelope 
      * required to get the envelope to work after a note off
      */
     public void retriggerEnvelope() {
-        System.out.println("Retriggering envelope for voice " + this + " (force retrigger)");
+        SynthEvents.EnvelopeRetrigger event = new SynthEvents.EnvelopeRetrigger();
+        event.begin();
+        TraceRing t = trace;
+        if (t != null) t.record(TraceRing.Type.RETRIGGER, busSlot, currentNote, 0.0);
         envelope.trigger(false); // Note off
         envelope.trigger(true);  // Note on
+        oscillator.setGate(true); // Restart the FM operator envelopes
+        commitRetrigger(event);
     }
 
     /**
      * Fully disconnects and reconnects the signal chain for this voice.
-     * mimicking the setCurrentOscType method but without creating a new oscillator
+     * The edits are applied together by the audio thread at the start of the next block ({@link GraphEdit}).
+     * The batch is the same every time, so it is built once and committed again; only a refresh
+     * made before the audio thread applied the last one builds a new batch. Each refresh still
+     * allocates JSyn's engine command and, when applied, one JSyn command per connection change.
      */
     public void refreshSignalChain() {
-        System.out.println("[Voice " + this + "] refreshSignalChain() called");
-        // Disconnect all relevant connections
-        try {
-            oscillator.output.disconnect(filter.get().input); // Disconnect oscillator output from filter input
-            System.out.println("[Voice " + this + "] Disconnected oscillator.output -> filter.input");
-        } catch (IllegalArgumentException e) {
-            System.out.println("[Voice " + this + "] oscillator.output not connected to filter.input" + e.getMessage());
-        }
-        try {
-            envelope.get().output.disconnect(oscillator.amplitude); // Disconnect envelope output from oscillator amplitude
-            System.out.println("[Voice " + this + "] Disconnected envelope.output -> oscillator.amplitude");
-        } catch (IllegalArgumentException e) {
-            System.out.println("[Voice " + this + "] envelope.output not connected to oscillator.amplitude" + e.getMessage());
-        }
-        try {
-            envelope.get().output.disconnect(filter.get().amplitude); // Disconnect envelope output from filter amplitude
-            System.out.println("[Voice " + this + "] Disconnected envelope.output -> filter.amplitude");
-        } catch (IllegalArgumentException e) {
-            System.out.println("[Voice " + this + "] envelope.output not connected to filter.amplitude" + e.getMessage());
-        }
-        try {
-            filter.get().output.disconnect(mixer.inputA); // Disconnect filter output from mixer input A
-            System.out.println("[Voice " + this + "] Disconnected filter.output -> mixer.inputA");
-        } catch (IllegalArgumentException e) {
-            System.out.println("[Voice " + this + "] filter.output not connected to mixer.inputA" + e.getMessage());
-        }
-        try {
-            mixer.output.disconnect(0, this.lineOut.input, 0); // Disconnect mixer output from lineOut input A
-            System.out.println("[Voice " + this + "] Disconnected mixer.output[0] -> lineOut.input[0]");
-        } catch (IllegalArgumentException e) {
-            System.out.println("[Voice " + this + "] mixer.output[0] not connected to lineOut.input[0]" + e.getMessage());
-        }
-        try {
-            mixer.output.disconnect(0, this.lineOut.input, 1); // Disconnect mixer output from lineOut input B
-            System.out.println("[Voice " + this + "] Disconnected mixer.output[0] -> lineOut.input[1]" );
-        } catch (IllegalArgumentException e) {
-            System.out.println("[Voice " + this + "] mixer.output[0] not connected to lineOut.input[1]" + e.getMessage());
+        SynthEvents.GraphRewire event = new SynthEvents.GraphRewire();
+        event.begin();
+        TraceRing t = trace;
+        if (t != null) t.record(TraceRing.Type.REFRESH, busSlot, 0, 0.0);
+        for (TraceRing.Link link : LINKS) traceLink(TraceRing.Type.DISCONNECT, link);
+        for (TraceRing.Link link : LINKS) traceLink(TraceRing.Type.CONNECT, link);
+        if (rewire != null && rewire.isApplied()) {
+            rewire.recommit();
+        } else {
+            rewire = buildRewire();
+            rewire.commit();
         }
+        commitRewire(event, "refreshSignalChain");
+    }
 
-        // 2. Reconnect in correct order
-        oscillator.output.connect(filter.get().input); // Connect oscillator output to filter input
-        System.out.println("[Voice " + this + "] Connected oscillator.output -> filter.input");
-        envelope.get().output.connect(oscillator.amplitude); // Connect envelope output to oscillator amplitude
-        System.out.println("[Voice " + this + "] Connected envelope.output -> oscillator.amplitude");
-        envelope.get().output.connect(filter.get().amplitude); // Connect envelope output to filter amplitude
-        System.out.println("[Voice " + this + "] Connected envelope.output -> filter.amplitude");
-        filter.get().output.connect(mixer.inputA); // Connect filter output to mixer input A
-        System.out.println("[Voice " + this + "] Connected filter.output -> mixer.inputA");
-        mixer.output.connect(0, this.lineOut.input, 0); // Connect mixer output to lineOut input A
-        System.out.println("[Voice " + this + "] Connected mixer.output[0] -> lineOut.input[0]");
-        mixer.output.connect(0, this.lineOut.input, 1); // Connect mixer output to lineOut input B
-        System.out.println("[Voice " + this + "] Connected mixer.output[0] -> lineOut.input[1]");
+    /**
+     * Builds the batch that disconnects and reconnects the signal chain, so no block plays a half wired voice
+     */
+    private GraphEdit buildRewire() {
+        GraphEdit edit = new GraphEdit(synth);
+        edit.disconnect(oscillator.output, filter.get().input); // Oscillator output from filter input
+        edit.disconnect(envelope.get().output, oscillator.amplitude); // Envelope output from oscillator amplitude
+        edit.disconnect(envelope.get().output, filter.get().amplitude); // Envelope output from filter amplitude
+        edit.disconnect(filter.get().output, mixer.inputA); // Filter output from mixer input A
+        edit.disconnect(mixer.output, 0, this.bus.input, busSlot); // Mixer output from the bus slot
+        edit.connect(oscillator.output, filter.get().input);
+        edit.connect(envelope.get().output, oscillator.amplitude);
+        edit.connect(envelope.get().output, filter.get().amplitude);
+        edit.connect(filter.get().output, mixer.inputA);
+        edit.connect(mixer.output, 0, this.bus.input, busSlot);
+        return edit;
+    }
+
+    /**
+     * Sets the trace the voice records its events in
+     *
+     * @param trace the trace, or null to stop tracing
+     */
+    public void setTrace(TraceRing trace) {this.trace = trace;}
+
+    /**
+     * Ends a graph rewire flight recorder event and commits it if a recording wants it
+     */
+    private void commitRewire(SynthEvents.GraphRewire event, String operation) {
+        if (!event.shouldCommit()) return;
+        event.voice = busSlot;
+        event.note = currentNote;
+        event.operation = operation;
+        event.commit();
+    }
+
+    /**
+     * Ends an envelope retrigger flight recorder event and commits it if a recording wants it
+     */
+    private void commitRetrigger(SynthEvents.EnvelopeRetrigger event) {
+        if (!event.shouldCommit()) return;
+        event.voice = busSlot;
+        event.note = currentNote;
+        event.commit();
+    }
+
+    /**
+     * Records a connection change if tracing is on
+     */
+    private void traceLink(TraceRing.Type type, TraceRing.Link link) {
+        TraceRing t = trace;
+        if (t != null) t.record(type, busSlot, link.ordinal(), 0.0);
     }
-}
\ No newline at end of file
+}
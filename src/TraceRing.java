@@ -0,0 +1,295 @@
+import com.jsyn.Synthesizer;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * TraceRing records typed signal chain events (connections, notes, retriggers, oscillator
+ * switches and underruns) into a preallocated ring, stamped with the engine's frame count.
+ *
+ * Recording claims a slot with one atomic increment and writes plain arrays, so it never
+ * locks, prints or allocates and is safe from the audio thread. The newest events overwrite
+ * the oldest. Tracing is off when no ring is set ({@link Synth#setTrace(TraceRing)}), which
+ * leaves a null check at each trace point.
+ *
+ * The ring is read with {@link #snapshot()} or {@link #dump(PrintStream)}. Code that notices
+ * a problem calls {@link #requestDump()}, and a dump thread started with
+ * {@link #startDumpThread(PrintStream)} prints the ring off the audio thread.
+ */
+public class TraceRing {
+    /**
+     * Event types
+     */
+    public enum Type {
+        /**
+         * A port connection was made, arg = Link ordinal
+         */
+        CONNECT,
+        /**
+         * A port connection was removed, arg = Link ordinal
+         */
+        DISCONNECT,
+        /**
+         * A voice started a note, arg = note, value = velocity
+         */
+        NOTE_ON,
+        /**
+         * A voice released its note, arg = note
+         */
+        NOTE_OFF,
+        /**
+         * A voice's envelope was retriggered, arg = note
+         */
+        RETRIGGER,
+        /**
+         * A voice switched oscillator, arg = OscType ordinal
+         */
+        OSC_SWITCH,
+        /**
+         * A voice's signal chain was rebuilt
+         */
+        REFRESH,
+        /**
+         * The output device ran out of frames, value = headroom in seconds
+         */
+        UNDERRUN,
+        /**
+         * A buffer started with too little headroom, value = headroom in seconds
+         */
+        LATE_BLOCK
+    }
+
+    /**
+     * Connections inside a voice, the arg of CONNECT and DISCONNECT events
+     */
+    public enum Link {
+        OSC_TO_FILTER("oscillator.output -> filter.input"),
+        ENV_TO_OSC_AMP("envelope.output -> oscillator.amplitude"),
+        ENV_TO_FILTER_AMP("envelope.output -> filter.amplitude"),
+        FILTER_TO_MIXER("filter.output -> mixer.inputA"),
+        MIXER_TO_BUS("mixer.output -> bus.input");
+
+        private final String name; // The ports joined
+        private Link(String name) {this.name = name;}
+        @Override
+        public String toString() {return name;}
+    }
+
+    /**
+     * One recorded event
+     */
+    public static class Entry {
+        private final long sequence;
+        private final long frame;
+        private final Type type;
+        private final int voice;
+        private final int arg;
+        private final double value;
+
+        Entry(long sequence, long frame, Type type, int voice, int arg, double value) {
+            this.sequence = sequence;
+            this.frame = frame;
+            this.type = type;
+            this.voice = voice;
+            this.arg = arg;
+            this.value = value;
+        }
+
+        /**
+         * Gets the position of the event in the trace
+         *
+         * @return the sequence number, counting from 0
+         */
+        public long getSequence() {return sequence;}
+
+        /**
+         * Gets the engine frame count when the event was recorded
+         *
+         * @return the frame
+         */
+        public long getFrame() {return frame;}
+
+        /**
+         * Gets the event type
+         *
+         * @return the type
+         */
+        public Type getType() {return type;}
+
+        /**
+         * Gets the voice the event is about
+         *
+         * @return the voice slot, -1 for engine events
+         */
+        public int getVoice() {return voice;}
+
+        /**
+         * Gets the type specific integer
+         *
+         * @return the arg
+         */
+        public int getArg() {return arg;}
+
+        /**
+         * Gets the type specific value
+         *
+         * @return the value
+         */
+        public double getValue() {return value;}
+
+        @Override
+        public String toString() {
+            String detail;
+            switch (type) {
+                case CONNECT: case DISCONNECT: detail = Link.values()[arg].toString(); break;
+                case OSC_SWITCH: detail = OscType.values()[arg].toString(); break;
+                case NOTE_ON: detail = "note " + arg + " velocity " + value; break;
+                case NOTE_OFF: case RETRIGGER: detail = "note " + arg; break;
+                case UNDERRUN: case LATE_BLOCK: detail = "headroom " + value + " s"; break;
+                default: detail = ""; break;
+            }
+            return "#" + sequence + " frame " + frame + " voice " + voice + " " + type + " " + detail;
+        }
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    // Events by slot, slot = sequence % capacity
+    private final long[] frames;
+    private final int[] types;
+    private final int[] voices;
+    private final int[] args;
+    private final double[] values;
+    // Sequence written to each slot, published after its fields
+    private final AtomicLongArray published;
+    // Next sequence to claim
+    private final AtomicLong next = new AtomicLong();
+    // Source of the sample clock, null until attached
+    private volatile Synthesizer clock;
+    // Set when a dump is wanted, cleared by the dump thread
+    private volatile boolean dumpRequested = false;
+
+    /**
+     * Creates a new TraceRing
+     *
+     * @param capacity the number of events kept
+     */
+    public TraceRing(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+        frames = new long[capacity];
+        types = new int[capacity];
+        voices = new int[capacity];
+        args = new int[capacity];
+        values = new double[capacity];
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) published.set(i, -1); // Nothing written
+    }
+
+    /**
+     * Uses a synthesizer's frame count as the clock
+     *
+     * @param synth the synthesizer
+     */
+    public void attach(Synthesizer synth) {
+        if (synth == null) throw new IllegalArgumentException("Synthesizer cannot be null");
+        clock = synth;
+    }
+
+    /**
+     * Records an event. Never blocks or allocates.
+     *
+     * @param type the event type
+     * @param voice the voice slot, -1 for engine events
+     * @param arg the type specific integer
+     * @param value the type specific value
+     */
+    public void record(Type type, int voice, int arg, double value) {
+        Synthesizer synth = clock;
+        long frame = (synth == null) ? 0 : synth.getFrameCount();
+        long sequence = next.getAndIncrement(); // Claim a slot
+        int slot = (int) (sequence % frames.length);
+        published.set(slot, -1); // Readers skip the slot while it is written
+        frames[slot] = frame;
+        types[slot] = type.ordinal();
+        voices[slot] = voice;
+        args[slot] = arg;
+        values[slot] = value;
+        published.set(slot, sequence); // Publish
+    }
+
+    /**
+     * Gets the number of events recorded since the ring was created
+     *
+     * @return the event count, including overwritten ones
+     */
+    public long getCount() {return next.get();}
+
+    /**
+     * Gets the number of events kept
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {return frames.length;}
+
+    /**
+     * Copies the events in the ring, oldest first. Events overwritten while copying are left out.
+     *
+     * @return the events
+     */
+    public List<Entry> snapshot() {
+        long end = next.get();
+        long start = Math.max(0, end - frames.length);
+        List<Entry> entries = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence % frames.length);
+            if (published.get(slot) != sequence) continue; // Being written or already overwritten
+            Entry entry = new Entry(sequence, frames[slot], TYPES[types[slot]], voices[slot], args[slot], values[slot]);
+            if (published.get(slot) == sequence) entries.add(entry); // Not overwritten while copying
+        }
+        return entries;
+    }
+
+    /**
+     * Prints the events in the ring, oldest first
+     *
+     * @param out the stream to print to
+     */
+    public void dump(PrintStream out) {
+        List<Entry> entries = snapshot();
+        out.println("# trace: " + entries.size() + " of " + getCount() + " events");
+        for (Entry entry : entries) out.println(entry);
+    }
+
+    /**
+     * Asks the dump thread to print the ring. Safe from the audio thread.
+     */
+    public void requestDump() {dumpRequested = true;}
+
+    /**
+     * Starts a daemon thread that dumps the ring whenever a dump is requested
+     *
+     * @param out the stream to print to
+     * @return the thread
+     */
+    public Thread startDumpThread(PrintStream out) {
+        if (out == null) throw new IllegalArgumentException("Output stream cannot be null");
+        Thread thread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (dumpRequested) {
+                    dumpRequested = false;
+                    dump(out);
+                }
+                try {
+                    Thread.sleep(100); // Dumps are for people, a tenth of a second is soon enough
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "trace-dump");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,198 @@
+import com.jsyn.unitgen.SineOscillator;
+import com.jsyn.unitgen.UnitOscillator;
+
+/**
+ * VoiceOscillator is one oscillator that can play every OscType.
+ * Switching the waveform only changes a field the audio thread reads at the start of
+ * each block, so a voice changes oscillator without removing, adding or reconnecting
+ * units and without allocating. The waveforms match the JSyn sine, square, sawtooth
+ * and triangle oscillators, and OscType.FM renders the voice with an FmEngine.
+ *
+ * The square, sawtooth and triangle can also be band-limited. The naive waveforms jump (or
+ * turn a corner) between two samples, which puts harmonics above Nyquist that fold back as
+ * inharmonic aliases, loud on high notes. The band-limited versions add a short polynomial
+ * correction on the two samples around each jump (PolyBLEP) or corner (PolyBLAMP), which
+ * removes most of the aliasing for a few operations per sample instead of oversampling.
+ * The square has a pulse width, used by both versions.
+ */
+public class VoiceOscillator extends UnitOscillator {
+    // Waveform, read once per block by the audio thread
+    private volatile OscType type = OscType.SINE;
+    // Band-limited square, sawtooth and triangle, read once per block
+    private volatile boolean bandLimited = false;
+    // Fraction of the square's cycle spent high, read once per block
+    private volatile double pulseWidth = 0.5;
+    // Operators used when the type is FM
+    private final FmEngine fm = new FmEngine();
+
+    /**
+     * Sets the waveform
+     *
+     * @param type the oscillator type
+     */
+    public void setType(OscType type) {
+        if (type == null) throw new IllegalArgumentException("Oscillator type cannot be null");
+        this.type = type;
+    }
+
+    /**
+     * Gets the waveform
+     *
+     * @return the oscillator type
+     */
+    public OscType getType() {return type;}
+
+    /**
+     * Sets whether the square, sawtooth and triangle are band-limited
+     *
+     * @param bandLimited true for the PolyBLEP waveforms, false for the naive ones
+     */
+    public void setBandLimited(boolean bandLimited) {this.bandLimited = bandLimited;}
+
+    /**
+     * Checks if the square, sawtooth and triangle are band-limited
+     *
+     * @return true for the PolyBLEP waveforms
+     */
+    public boolean isBandLimited() {return bandLimited;}
+
+    /**
+     * Sets the pulse width of the square
+     *
+     * @param width the fraction of the cycle spent high (0.05 to 0.95), 0.5 for a square
+     */
+    public void setPulseWidth(double width) {
+        if (width < 0.05 || width > 0.95) throw new IllegalArgumentException("Pulse width must be between 0.05 and 0.95");
+        pulseWidth = width;
+    }
+
+    /**
+     * Gets the pulse width of the square
+     *
+     * @return the fraction of the cycle spent high
+     */
+    public double getPulseWidth() {return pulseWidth;}
+
+    /**
+     * Sets the FM patch, used while the type is FM
+     *
+     * @param algorithm the algorithm
+     * @param settings the operator settings, see {@link FmEngine#setPatch(FmAlgorithm, double[])}
+     */
+    public void setFmPatch(FmAlgorithm algorithm, double[] settings) {fm.setPatch(algorithm, settings);}
+
+    /**
+     * Starts or releases the FM operator envelopes. Kept up to date whatever the type,
+     * so switching to FM during a note plays it.
+     *
+     * @param on true for note on, false for note off
+     */
+    public void setGate(boolean on) {fm.setGate(on);}
+
+    /**
+     * Generates a block of the selected waveform
+     *
+     * @param start the start index
+     * @param limit the limit index
+     */
+    @Override
+    public void generate(int start, int limit) {
+        double[] frequencies = frequency.getValues();
+        double[] amplitudes = amplitude.getValues();
+        double[] outputs = output.getValues();
+        double currentPhase = phase.getValue(); // -1.0 to 1.0
+        OscType shape = type; // One waveform for the whole block
+        if (shape == OscType.FM) {
+            fm.render(frequencies, amplitudes, outputs, start, limit, getFrameRate());
+            return;
+        }
+        boolean blep = bandLimited && shape != OscType.SINE;
+        double width = pulseWidth;
+        for (int i = start; i < limit; i++) {
+            double increment = convertFrequencyToPhaseIncrement(frequencies[i]);
+            currentPhase = incrementWrapPhase(currentPhase, increment);
+            double value = blep ? bandLimited(shape, currentPhase, increment, width) : naive(shape, currentPhase, width);
+            outputs[i] = value * amplitudes[i];
+        }
+        phase.setValue(currentPhase);
+    }
+
+    /**
+     * Gets one sample of a naive waveform
+     *
+     * @param shape the waveform, not FM
+     * @param phase the phase (-1.0 to 1.0)
+     * @param width the pulse width of the square
+     * @return the sample (-1.0 to 1.0)
+     */
+    static double naive(OscType shape, double phase, double width) {
+        switch (shape) {
+            case SQUARE: return phase < 1.0 - 2.0 * width ? -1.0 : 1.0;
+            case SAWTOOTH: return phase;
+            case TRIANGLE: return 2.0 * (phase >= 0.0 ? 0.5 - phase : 0.5 + phase);
+            default: return SineOscillator.fastSin(phase);
+        }
+    }
+
+    /**
+     * Gets one sample of a band-limited waveform. The cycle position t runs from 0 to 1 and
+     * dt is the step per sample; the corrections only touch samples within dt of a jump or corner.
+     *
+     * @param shape the waveform, not FM
+     * @param phase the phase (-1.0 to 1.0)
+     * @param increment the phase step per sample
+     * @param width the pulse width of the square
+     * @return the sample
+     */
+    static double bandLimited(OscType shape, double phase, double increment, double width) {
+        double t = 0.5 * (phase + 1.0);
+        double dt = Math.min(0.5 * Math.abs(increment), 0.5);
+        if (dt == 0.0) return naive(shape, phase, width);
+        switch (shape) {
+            case SQUARE: {
+                double rise = t + width; // The rising edge is at t = 1 - width
+                if (rise >= 1.0) rise -= 1.0;
+                double value = rise < width ? 1.0 : -1.0;
+                return value + blep(rise, dt) - blep(t, dt); // Up 2 at the rise, down 2 at t = 0
+            }
+            case SAWTOOTH: return phase - blep(t, dt); // Down 2 at t = 0
+            case TRIANGLE: {
+                double peak = t + 0.5;
+                if (peak >= 1.0) peak -= 1.0;
+                double value = 2.0 * (phase >= 0.0 ? 0.5 - phase : 0.5 + phase);
+                return value + 8.0 * dt * (blamp(t, dt) - blamp(peak, dt)); // Slope changes by 8 per cycle at each corner
+            }
+            default: return SineOscillator.fastSin(phase);
+        }
+    }
+
+    /**
+     * PolyBLEP residual of an upward jump of 2 at t = 0, zero away from the jump
+     */
+    private static double blep(double t, double dt) {
+        if (t < dt) {
+            double x = t / dt - 1.0; // -1 at the jump, 0 one sample after
+            return -x * x;
+        }
+        if (t > 1.0 - dt) {
+            double x = (t - 1.0) / dt + 1.0; // 0 one sample before the jump, 1 at it
+            return x * x;
+        }
+        return 0.0;
+    }
+
+    /**
+     * PolyBLAMP residual of a corner at t = 0 where the slope grows by 1 per sample, zero away from the corner
+     */
+    private static double blamp(double t, double dt) {
+        if (t < dt) {
+            double x = 1.0 - t / dt;
+            return x * x * x / 6.0;
+        }
+        if (t > 1.0 - dt) {
+            double x = (t - 1.0) / dt + 1.0;
+            return x * x * x / 6.0;
+        }
+        return 0.0;
+    }
+}
@@ -0,0 +1,123 @@
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.unitgen.UnitFilter;
+
+/**
+ * ZdfFilter is a zero delay feedback (topology preserving transform) state variable filter
+ * with low pass, high pass, band pass and notch outputs.
+ *
+ * The coefficients depend on tan(pi * cutoff / frameRate) and are only recomputed when the
+ * cutoff or resonance at the start of a block differ from the last block, so the per sample
+ * work is a handful of multiply-adds on two state variables. The trapezoidal integrators keep
+ * the filter stable for any cutoff below Nyquist and any resonance, up to the edge of self oscillation.
+ */
+public class ZdfFilter extends UnitFilter {
+    /**
+     * Cutoff frequency in Hz
+     */
+    public UnitInputPort frequency;
+    /**
+     * Resonance (0.0 to 1.0, 1.0 is the edge of self oscillation)
+     */
+    public UnitInputPort resonance;
+    /**
+     * Output gain, connect an envelope here to shape the output
+     */
+    public UnitInputPort amplitude;
+
+    // Smallest damping allowed, a Q of 25 at full resonance
+    private static final double MIN_DAMPING = 0.04;
+
+    // Selected output
+    private volatile FilterType type = FilterType.LOW_PASS;
+
+    // Integrator state
+    private double ic1eq = 0.0;
+    private double ic2eq = 0.0;
+    // Coefficients and the values they were computed from
+    private double k; // Damping
+    private double a1, a2, a3;
+    private double lastFrequency = -1.0;
+    private double lastResonance = -1.0;
+
+    /**
+     * Creates a new ZdfFilter
+     */
+    public ZdfFilter() {
+        addPort(frequency = new UnitInputPort("Frequency", 1000.0));
+        addPort(resonance = new UnitInputPort("Resonance", 0.2));
+        addPort(amplitude = new UnitInputPort("Amplitude", 1.0));
+    }
+
+    /**
+     * Selects the output of the filter
+     *
+     * @param type the filter type
+     */
+    public void setType(FilterType type) {
+        if (type == null) throw new IllegalArgumentException("Filter type cannot be null");
+        this.type = type;
+    }
+
+    /**
+     * Gets the selected output
+     *
+     * @return the filter type
+     */
+    public FilterType getType() {return type;}
+
+    /**
+     * Filters one block
+     *
+     * @param start the start index
+     * @param limit the limit index
+     */
+    @Override
+    public void generate(int start, int limit) {
+        double[] in = input.getValues();
+        double[] out = output.getValues();
+        double[] amps = amplitude.getValues();
+        double freq = frequency.getValues()[start];
+        double res = resonance.getValues()[start];
+        if (freq != lastFrequency || res != lastResonance) updateCoefficients(freq, res); // Control changed since last block
+        // Each mode is a mix of the input, band pass and low pass signals
+        double mixIn, mixBand, mixLow;
+        switch (type) {
+            case HIGH_PASS: mixIn = 1.0; mixBand = -k; mixLow = -1.0; break;
+            case BAND_PASS: mixIn = 0.0; mixBand = 1.0; mixLow = 0.0; break;
+            case NOTCH: mixIn = 1.0; mixBand = -k; mixLow = 0.0; break; // Low pass + high pass
+            default: mixIn = 0.0; mixBand = 0.0; mixLow = 1.0; break;
+        }
+        double s1 = ic1eq, s2 = ic2eq; // Keep the state in locals for the loop
+        double c1 = a1, c2 = a2, c3 = a3;
+        for (int i = start; i < limit; i++) {
+            double v0 = in[i];
+            double v3 = v0 - s2;
+            double v1 = c1 * s1 + c2 * v3; // Band pass
+            double v2 = s2 + c2 * s1 + c3 * v3; // Low pass
+            s1 = 2.0 * v1 - s1;
+            s2 = 2.0 * v2 - s2;
+            out[i] = (mixIn * v0 + mixBand * v1 + mixLow * v2) * amps[i];
+        }
+        // Flush denormals and recover from a non finite input
+        if (Math.abs(s1) < 1e-20 || Double.isNaN(s1) || Double.isInfinite(s1)) s1 = 0.0;
+        if (Math.abs(s2) < 1e-20 || Double.isNaN(s2) || Double.isInfinite(s2)) s2 = 0.0;
+        ic1eq = s1;
+        ic2eq = s2;
+    }
+
+    /**
+     * Recomputes the coefficients for a cutoff and resonance
+     */
+    private void updateCoefficients(double freq, double res) {
+        lastFrequency = freq;
+        lastResonance = res;
+        double nyquist = getFrameRate() * 0.5;
+        double f = Math.max(10.0, Math.min(freq, nyquist * 0.98)); // tan() blows up at Nyquist
+        double r = Math.max(0.0, Math.min(1.0, res));
+        double g = Math.tan(Math.PI * f / getFrameRate());
+        k = Math.max(MIN_DAMPING, 2.0 * (1.0 - r)); // Resonance 0 is Q 0.5, critically damped (Butterworth would be k = sqrt 2)
+        a1 = 1.0 / (1.0 + g * (g + k));
+        a2 = g * a1;
+        a3 = g * a2;
+    }
+}